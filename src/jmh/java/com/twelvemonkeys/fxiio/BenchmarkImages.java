@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import com.twelvemonkeys.fxiio.FXImageReadBenchmark.SourceType;
+
+/**
+ * Generates the benchmark test images, so that the benchmarks can run without any external resources.
+ */
+final class BenchmarkImages {
+
+    private BenchmarkImages() {}
+
+    /**
+     * Creates a synthetic image, with gradients and some noise, to avoid unrealistically good compression.
+     */
+    static BufferedImage createBufferedImage(final int width, final int height, final SourceType type) {
+        BufferedImage image = new BufferedImage(width, height, type.bufferedImageType);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                int r = (x * 255 / width + noise) & 0xff;
+                int g = (y * 255 / height + noise) & 0xff;
+                int b = ((x + y) * 255 / (width + height) + noise) & 0xff;
+                int a = type == SourceType.ARGB ? (x * 255 / width) : 0xff;
+
+                row[x] = a << 24 | r << 16 | g << 8 | b;
+            }
+
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+
+        return image;
+    }
+
+    /**
+     * Writes the image to a temporary file, deleted on exit.
+     */
+    static File createFile(final BufferedImage image, final String format) throws IOException {
+        File file = File.createTempFile("fxiio-benchmark-", "." + format.toLowerCase());
+        file.deleteOnExit();
+
+        if (!ImageIO.write(image, format, file)) {
+            throw new IllegalArgumentException("No " + format + " writer for image: " + image);
+        }
+
+        return file;
+    }
+
+    /**
+     * Creates a JavaFX image, using the given pixel format.
+     * Only the formats the JavaFX toolkit actually produces for images are supported
+     * ({@code INT_ARGB} and {@code BYTE_BGRA} are never used by the toolkit for image data).
+     */
+    static Image createFXImage(final int width, final int height, final PixelFormat.Type pixelFormat) throws IOException {
+        Image image;
+
+        switch (pixelFormat) {
+            case BYTE_RGB:
+                // The JavaFX PNG loader uses BYTE_RGB for opaque images
+                image = decodeFX(createBufferedImage(width, height, SourceType.RGB));
+                break;
+            case BYTE_BGRA_PRE:
+                image = decodeFX(createBufferedImage(width, height, SourceType.ARGB));
+                break;
+            case BYTE_INDEXED:
+                // ...and BYTE_INDEXED for gray images
+                image = decodeFX(createBufferedImage(width, height, SourceType.GRAY));
+                break;
+            case INT_ARGB_PRE:
+                BufferedImage source = createBufferedImage(width, height, SourceType.RGB);
+                IntBuffer buffer = IntBuffer.allocate(width * height);
+                source.getRGB(0, 0, width, height, buffer.array(), 0, width);
+                image = new WritableImage(new PixelBuffer<>(width, height, buffer, PixelFormat.getIntArgbPreInstance()));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported pixel format: " + pixelFormat);
+        }
+
+        if (image.getPixelReader().getPixelFormat().getType() != pixelFormat) {
+            throw new IllegalStateException("Expected " + pixelFormat + ": " + image.getPixelReader().getPixelFormat().getType());
+        }
+
+        return image;
+    }
+
+    private static Image decodeFX(final BufferedImage image) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "PNG", bytes);
+
+        return new Image(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the allocation of the bridge between ImageIO and JavaFX, without a decoder,
+ * by writing rows of pixels into a {@link WritableImage} through {@link FXBufferedImage}, the way decoders do.
+ * <p>
+ * Run with {@code java -jar target/benchmarks.jar FXImageAllocationBenchmark -prof gc}.
+ * In steady state, scratch buffers are pooled, and color and sample models are shared,
+ * so {@code gc.alloc.rate.norm} should be the same for all sizes, that is, zero bytes per pixel.
+ * The {@code HEAP} surface measures the bridge alone, writing to an array instead of a {@code WritableImage}.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dprism.order=sw"})
+public class FXImageAllocationBenchmark {
+
+    /** The raster operation used by the decoder, mapping to the fast paths of FXWritableRaster. */
+    public enum RasterPath {
+        /** Rows of samples as data elements (PNG, GIF and BMP). */
+        DATA_ELEMENTS,
+        /** Rows of samples as pixels (JPEG). */
+        PIXELS,
+        /** Single pixels, buffered in the row cache (PNG with subsampling, TIFF). */
+        PIXEL
+    }
+
+    @Param({"RGB", "ARGB"})
+    public FXImageReadBenchmark.SourceType sourceType;
+
+    @Param({"DATA_ELEMENTS", "PIXELS", "PIXEL"})
+    public RasterPath path;
+
+    /** The surface written to. */
+    public enum Surface {
+        FX,
+        HEAP
+    }
+
+    @Param({"512", "2048"})
+    public int size;
+
+    @Param({"FX", "HEAP"})
+    public Surface surface;
+
+    private PixelSurface image;
+    private ImageTypeSpecifier spec;
+
+    private byte[] rowElements;
+    private int[] rowSamples;
+    private int[] pixel;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = surface == Surface.HEAP ? HeapImage.createSurface(size, size) : PixelSurface.of(new WritableImage(size, size));
+        spec = ImageTypeSpecifier.createFromBufferedImageType(sourceType == FXImageReadBenchmark.SourceType.ARGB ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+
+        int bands = spec.getNumBands();
+        rowElements = new byte[size * bands];
+        rowSamples = new int[size * bands];
+        pixel = new int[bands];
+
+        for (int i = 0; i < rowSamples.length; i++) {
+            rowSamples[i] = i & 0xff;
+            rowElements[i] = (byte) i;
+        }
+    }
+
+    @Benchmark
+    public FXBufferedImage write() {
+        FXBufferedImage destination = new FXBufferedImage(image, spec);
+        WritableRaster raster = destination.getRaster();
+
+        for (int y = 0; y < size; y++) {
+            switch (path) {
+                case DATA_ELEMENTS:
+                    raster.setDataElements(0, y, size, 1, rowElements);
+                    break;
+                case PIXELS:
+                    raster.setPixels(0, y, size, 1, rowSamples);
+                    break;
+                case PIXEL:
+                    for (int x = 0; x < size; x++) {
+                        pixel[0] = x;
+                        raster.setPixel(x, y, pixel);
+                    }
+                    break;
+            }
+        }
+
+        destination.release();
+
+        return destination;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading directly into a JavaFX {@link WritableImage}, against reading a {@code BufferedImage}
+ * and converting it using {@link SwingFXUtils#toFXImage}.
+ * Reading into a {@link HeapImage} measures the same decoding, without the JavaFX pixel writer.
+ * <p>
+ * Run with {@code java -jar target/benchmarks.jar -prof gc} to also get allocation rates.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dprism.order=sw"})
+public class FXImageReadBenchmark {
+
+    /** The kinds of source images used for the read benchmarks, mapping to the typical decoder paths. */
+    public enum SourceType {
+        RGB(BufferedImage.TYPE_INT_RGB),
+        ARGB(BufferedImage.TYPE_INT_ARGB),
+        GRAY(BufferedImage.TYPE_BYTE_GRAY);
+
+        final int bufferedImageType;
+
+        SourceType(final int bufferedImageType) {
+            this.bufferedImageType = bufferedImageType;
+        }
+    }
+
+    @Param({"JPEG", "PNG", "BMP", "GIF"})
+    public String format;
+
+    /** The type of source image, decides the image type and the path through the decoder. */
+    @Param({"RGB", "ARGB", "GRAY"})
+    public SourceType sourceType;
+
+    @Param({"2048"})
+    public int size;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ImageIO.setUseCache(false);
+
+        file = BenchmarkImages.createFile(BenchmarkImages.createBufferedImage(size, size, sourceType), format);
+    }
+
+    @Benchmark
+    public WritableImage fxiio() throws IOException {
+        return FXBufferedImageTest.readImage(file);
+    }
+
+    @Benchmark
+    public HeapImage fxiioHeap() throws IOException {
+        return FXImageIO.readHeap(file.toPath());
+    }
+
+    @Benchmark
+    public WritableImage swingFXUtils() throws IOException {
+        return SwingFXUtils.toFXImage(ImageIO.read(file), null);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing one JavaFX {@link Image} to several formats, one after the other, against writing
+ * all formats concurrently, reading each row once, using {@link FXImageIO#writeAll}.
+ * <p>
+ * Run with {@code java -jar target/benchmarks.jar FXImageWriteAllBenchmark -prof gc} to also get allocation rates.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dprism.order=sw"})
+public class FXImageWriteAllBenchmark {
+
+    private static final String[] FORMATS = {"JPEG", "PNG", "BMP", "GIF"};
+
+    @Param({"BYTE_RGB", "BYTE_BGRA_PRE"})
+    public PixelFormat.Type pixelFormat;
+
+    @Param({"2048"})
+    public int size;
+
+    private Image image;
+    private List<ByteArrayOutputStream> outputs;
+    private List<WriteTarget> targets;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ImageIO.setUseCache(false);
+
+        image = BenchmarkImages.createFXImage(size, size, pixelFormat);
+        outputs = new ArrayList<>();
+        targets = new ArrayList<>();
+
+        for (String format : FORMATS) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(size * size * 4);
+            outputs.add(output);
+            targets.add(WriteTarget.of(format, output));
+        }
+    }
+
+    @Benchmark
+    public int sequential() throws IOException {
+        reset();
+
+        for (int i = 0; i < FORMATS.length; i++) {
+            FXImageIO.write(image, FORMATS[i], outputs.get(i));
+        }
+
+        return size();
+    }
+
+    @Benchmark
+    public int writeAll() throws IOException {
+        reset();
+
+        FXImageIO.writeAll(image, targets);
+
+        return size();
+    }
+
+    private void reset() {
+        for (ByteArrayOutputStream output : outputs) {
+            output.reset();
+        }
+    }
+
+    private int size() {
+        int size = 0;
+
+        for (ByteArrayOutputStream output : outputs) {
+            size += output.size();
+        }
+
+        return size;
+    }
+}
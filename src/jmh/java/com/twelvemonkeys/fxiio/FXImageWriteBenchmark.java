@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing a JavaFX {@link Image} directly, using {@link FXBufferedImage}, against converting
+ * it to a {@code BufferedImage} using {@link SwingFXUtils#fromFXImage} first.
+ * <p>
+ * Run with {@code java -jar target/benchmarks.jar -prof gc} to also get allocation rates.
+ * Note that formats without alpha support (JPEG and BMP) can't be written from translucent sources,
+ * these combinations will fail.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Dprism.order=sw"})
+public class FXImageWriteBenchmark {
+
+    @Param({"JPEG", "PNG", "BMP", "GIF"})
+    public String format;
+
+    /** The pixel format of the JavaFX source image, decides the code path in FXWritableRaster. */
+    @Param({"BYTE_RGB", "BYTE_BGRA_PRE", "BYTE_INDEXED", "INT_ARGB_PRE"})
+    public PixelFormat.Type pixelFormat;
+
+    @Param({"2048"})
+    public int size;
+
+    private Image image;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ImageIO.setUseCache(false);
+
+        image = BenchmarkImages.createFXImage(size, size, pixelFormat);
+        output = new ByteArrayOutputStream(size * size * 4);
+    }
+
+    @Benchmark
+    public int fxiio() throws IOException {
+        return write(new FXBufferedImage(image));
+    }
+
+    @Benchmark
+    public int swingFXUtils() throws IOException {
+        return write(SwingFXUtils.fromFXImage(image, null));
+    }
+
+    private int write(final RenderedImage image) throws IOException {
+        output.reset();
+
+        if (!ImageIO.write(image, format, output)) {
+            throw new IllegalStateException("No " + format + " writer for image: " + image);
+        }
+
+        return output.size();
+    }
+}
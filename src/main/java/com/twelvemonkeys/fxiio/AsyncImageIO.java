@@ -0,0 +1,480 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and writes images asynchronously, returning {@code CompletableFuture}s, for use from the JavaFX application thread.
+ * <p>
+ * Concurrent reads and writes are bounded by a budget of bytes, rather than a number of threads.
+ * Each request reserves the size of its pixels, in the pixel format of the image read or written, while running.
+ * For reads, the size is read from the image header first, with at most as many headers read concurrently
+ * as there are processors.
+ * Requests that don't fit the budget are queued, in order, without occupying a thread, and started as running
+ * requests complete. A single request larger than the budget is started when no other request is running.
+ * </p>
+ * <p>
+ * Cancelling a returned future removes a queued request, or {@link ImageReader#abort() aborts} a running read,
+ * at the next progress event of the reader.
+ * Cancelling a dependent future, like one returned by {@code thenApply}, does not cancel the request.
+ * </p>
+ * <p>
+ * Futures complete on a thread of the executor. To use the result on the JavaFX application thread,
+ * chain it using for example {@code thenAcceptAsync(image -> view.setImage(image), Platform::runLater)}.
+ * The default executor uses a fixed number of daemon threads, one per processor. Threads are reused rather than
+ * created per request, so that the readers and writers pooled per thread by {@link FXImageIO} are reused too.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public final class AsyncImageIO implements AutoCloseable {
+    // The number of threads of the default executor, and of headers read concurrently
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final long maxBytes;
+    private final int maxMeasuring;
+
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private final ArrayDeque<Request<?>> queued = new ArrayDeque<>();
+    private long reservedBytes;
+    private int running;
+    private final ArrayDeque<ReadRequest> unmeasured = new ArrayDeque<>();
+    private int measuring;
+
+    /**
+     * Creates an instance using the default executor, and a budget of a quarter of the maximum heap size.
+     */
+    public AsyncImageIO() {
+        this(null, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Creates an instance using the given executor, and budget.
+     *
+     * @param executor the executor running the requests, or {@code null} to use the default executor.
+     * @param maxBytes the maximum number of bytes of pixels read or written concurrently.
+     */
+    public AsyncImageIO(final Executor executor, final long maxBytes) {
+        this(executor, maxBytes, THREADS);
+    }
+
+    AsyncImageIO(final Executor executor, final long maxBytes, final int maxMeasuring) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0: " + maxBytes);
+        }
+        if (maxMeasuring <= 0) {
+            throw new IllegalArgumentException("maxMeasuring <= 0: " + maxMeasuring);
+        }
+
+        this.ownExecutor = executor == null ? createDefaultExecutor() : null;
+        this.executor = executor == null ? ownExecutor : executor;
+        this.maxBytes = maxBytes;
+        this.maxMeasuring = maxMeasuring;
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        AtomicInteger count = new AtomicInteger();
+
+        return Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "AsyncImageIO-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the maximum number of bytes of pixels read or written concurrently.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes reserved by running requests.
+     */
+    public long getReservedBytes() {
+        synchronized (lock) {
+            return reservedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for budget, or waiting to read their image header.
+     */
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return queued.size() + unmeasured.size();
+        }
+    }
+
+    /**
+     * Reads an image from the given file.
+     *
+     * @return a future completing with a new {@code WritableImage}, or {@code null} if no reader could decode the file,
+     * or exceptionally if an error occurs during reading.
+     * @see FXImageIO#read(Path)
+     */
+    public CompletableFuture<WritableImage> read(final Path path) {
+        return read(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, using the source region and subsampling settings of {@code param}.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}. Must not be modified until the future completes.
+     * @return a future completing with a new {@code WritableImage}, sized to the region and subsampling,
+     * or {@code null} if no reader could decode the file, or exceptionally if an error occurs during reading.
+     * @see FXImageIO#read(Path, ImageReadParam)
+     */
+    public CompletableFuture<WritableImage> read(final Path path, final ImageReadParam param) {
+        ReadRequest request = new ReadRequest(path, param);
+        measure(request);
+
+        return request.future;
+    }
+
+    /**
+     * Writes the image to the given file, in the given format. Any existing file is replaced.
+     * The image must not be modified until the future completes.
+     *
+     * @return a future completing with {@code false} if no writer for the format could encode the image,
+     * or exceptionally if an error occurs during writing.
+     * @see FXImageIO#write(Image, String, Path)
+     */
+    public CompletableFuture<Boolean> write(final Image image, final String formatName, final Path path) {
+        WriteRequest request = new WriteRequest(image, formatName, path);
+        submit(request, FXImageIO.sizeOf(image));
+
+        return request.future;
+    }
+
+    /**
+     * Shuts down the default executor, if used. Requests already submitted are completed.
+     */
+    @Override public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Reads the size of the image from its header in the background, as it requires I/O,
+     * or queues the request if too many headers are already being read.
+     */
+    private void measure(final ReadRequest request) {
+        synchronized (lock) {
+            if (measuring >= maxMeasuring) {
+                unmeasured.add(request);
+                return;
+            }
+
+            measuring++;
+        }
+
+        startMeasure(request);
+    }
+
+    private void startMeasure(final ReadRequest request) {
+        try {
+            executor.execute(() -> {
+                try {
+                    request.measure();
+                }
+                finally {
+                    measured();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            request.future.completeExceptionally(e);
+            measured();
+        }
+    }
+
+    /**
+     * Starts reading the header of the next queued request, if any.
+     */
+    private void measured() {
+        ReadRequest next;
+
+        synchronized (lock) {
+            // Skips requests cancelled while queued
+            do {
+                next = unmeasured.poll();
+            }
+            while (next != null && next.future.isDone());
+
+            if (next == null) {
+                measuring--;
+                return;
+            }
+        }
+
+        startMeasure(next);
+    }
+
+    /**
+     * Starts the request if it fits the budget, otherwise queues it.
+     */
+    private void submit(final Request<?> request, final long bytes) {
+        request.bytes = bytes;
+
+        synchronized (lock) {
+            // Queued requests go first, and a request larger than the budget starts when nothing else is running
+            if (!queued.isEmpty() || running > 0 && reservedBytes + bytes > maxBytes) {
+                queued.add(request);
+                return;
+            }
+
+            reserve(request);
+        }
+
+        start(request);
+    }
+
+    private void start(final Request<?> request) {
+        try {
+            executor.execute(() -> run(request));
+        }
+        catch (RejectedExecutionException e) {
+            request.future.completeExceptionally(e);
+            release(request);
+        }
+    }
+
+    // Guarded by lock
+    private void reserve(final Request<?> request) {
+        reservedBytes += request.bytes;
+        running++;
+    }
+
+    private void run(final Request<?> request) {
+        try {
+            if (!request.future.isDone()) {
+                request.run();
+            }
+        }
+        catch (IOException | RuntimeException | Error e) {
+            request.future.completeExceptionally(e);
+        }
+        finally {
+            release(request);
+        }
+    }
+
+    /**
+     * Returns the budget of a completed request, and starts the queued requests that now fit.
+     */
+    private void release(final Request<?> request) {
+        List<Request<?>> started = new ArrayList<>();
+
+        synchronized (lock) {
+            reservedBytes -= request.bytes;
+            running--;
+
+            for (Iterator<Request<?>> iterator = queued.iterator(); iterator.hasNext(); ) {
+                Request<?> next = iterator.next();
+
+                if (next.future.isDone()) {
+                    // Cancelled while queued
+                    iterator.remove();
+                    continue;
+                }
+
+                if (running > 0 && reservedBytes + next.bytes > maxBytes) {
+                    break;
+                }
+
+                iterator.remove();
+                reserve(next);
+                started.add(next);
+            }
+        }
+
+        for (Request<?> next : started) {
+            start(next);
+        }
+    }
+
+    private abstract static class Request<T> {
+        final CompletableFuture<T> future;
+        long bytes;
+
+        Request(final CompletableFuture<T> future) {
+            this.future = future;
+        }
+
+        abstract void run() throws IOException;
+    }
+
+    private final class ReadRequest extends Request<WritableImage> {
+        private final Path path;
+        private final ImageReadParam param;
+
+        ReadRequest(final Path path, final ImageReadParam param) {
+            super(new ReadFuture());
+            this.path = path;
+            this.param = param;
+        }
+
+        /**
+         * Reads the destination size from the image header, and submits the request for decoding.
+         */
+        void measure() {
+            if (future.isDone()) {
+                return;
+            }
+
+            try (ImageInputStream stream = FXImageIO.createInputStream(path)) {
+                ImageReader reader = FXImageIO.getReader(stream);
+                if (reader == null) {
+                    future.complete(null);
+                    return;
+                }
+
+                Dimension size;
+
+                try {
+                    reader.setInput(stream, true, true);
+
+                    ImageReadParam readParam = FXImageIO.createReadParam(reader, param);
+                    Rectangle region = FXImageIO.computeSourceRegion(reader.getWidth(0), reader.getHeight(0), readParam);
+                    size = FXImageIO.getDestinationSize(region, readParam);
+                }
+                finally {
+                    FXImageIO.release(reader);
+                }
+
+                submit(this, FXPixelSurface.sizeOf(size.width, size.height));
+            }
+            catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override void run() throws IOException {
+            try (ImageInputStream stream = FXImageIO.createInputStream(path)) {
+                ReadFuture readFuture = (ReadFuture) future;
+                WritableImage image = FXImageIO.read(stream, param, readFuture::setReader);
+
+                // An aborted read returns a partial image, or null
+                future.complete(image);
+            }
+        }
+    }
+
+    /**
+     * A future aborting the reader, if cancelled while reading.
+     * The reader is aborted from its progress events, on the reading thread,
+     * as some readers, like the JPEG reader, may only be aborted from the thread using them.
+     */
+    private static final class ReadFuture extends CompletableFuture<WritableImage> implements IIOReadProgressListener {
+        void setReader(final ImageReader reader) {
+            // The listener is removed when the reader is released
+            if (reader != null) {
+                reader.addIIOReadProgressListener(this);
+            }
+        }
+
+        @Override public void imageProgress(final ImageReader source, final float percentageDone) {
+            if (isCancelled()) {
+                source.abort();
+            }
+        }
+
+        @Override public void imageStarted(final ImageReader source, final int imageIndex) {
+        }
+
+        @Override public void imageComplete(final ImageReader source) {
+        }
+
+        @Override public void sequenceStarted(final ImageReader source, final int minIndex) {
+        }
+
+        @Override public void sequenceComplete(final ImageReader source) {
+        }
+
+        @Override public void thumbnailStarted(final ImageReader source, final int imageIndex, final int thumbnailIndex) {
+        }
+
+        @Override public void thumbnailProgress(final ImageReader source, final float percentageDone) {
+        }
+
+        @Override public void thumbnailComplete(final ImageReader source) {
+        }
+
+        @Override public void readAborted(final ImageReader source) {
+        }
+    }
+
+    private static final class WriteRequest extends Request<Boolean> {
+        private final Image image;
+        private final String formatName;
+        private final Path path;
+
+        WriteRequest(final Image image, final String formatName, final Path path) {
+            super(new CompletableFuture<>());
+            this.image = image;
+            this.formatName = formatName;
+            this.path = path;
+        }
+
+        @Override void run() throws IOException {
+            future.complete(FXImageIO.write(image, formatName, path));
+        }
+    }
+}
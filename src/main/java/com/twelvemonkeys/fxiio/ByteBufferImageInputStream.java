@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@code ImageInputStream} reading from a {@code ByteBuffer}, either a memory mapped file, or data already in memory.
+ * <p>
+ * Reads are copies from the buffer, without system calls or the intermediate buffers of the ImageIO
+ * streams, and without caching the data, as the entire buffer is always available.
+ * Multi-byte arrays are read using the bulk views of the buffer, in the byte order of the stream.
+ * </p>
+ * <p>
+ * Files are mapped, if larger than {@code com.twelvemonkeys.fxiio.mapThreshold} bytes (default 64 KB),
+ * smaller files are read into an array from the {@link ScratchBuffers} pool.
+ * A mapped file stays mapped until the buffer is garbage collected, even after the stream is closed.
+ * </p>
+ */
+final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+    private static final long MAP_THRESHOLD = Long.getLong("com.twelvemonkeys.fxiio.mapThreshold", 64 * 1024);
+
+    private ByteBuffer buffer;
+    private byte[] pooled;
+
+    ByteBufferImageInputStream(final ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Opens the given file, or returns {@code null} if the file is too large to map as a single buffer.
+     */
+    static ByteBufferImageInputStream open(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            if (size > MAP_THRESHOLD) {
+                // The mapping stays valid after the channel is closed
+                return new ByteBufferImageInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            }
+
+            byte[] bytes = ScratchBuffers.getBytes((int) size);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) size);
+
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read until the buffer is full, or the file is truncated concurrently
+            }
+
+            ByteBufferImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(bytes, 0, buffer.position()));
+            stream.pooled = bytes;
+
+            return stream;
+        }
+    }
+
+    @Override public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+
+        if (streamPos >= buffer.limit()) {
+            return -1;
+        }
+
+        return buffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        checkClosed();
+
+        if (offset < 0 || length < 0 || offset + length > bytes.length || offset + length < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", bytes.length: " + bytes.length);
+        }
+
+        bitOffset = 0;
+
+        if (length == 0) {
+            return 0;
+        }
+
+        int available = (int) Math.min(length, buffer.limit() - streamPos);
+        if (available <= 0) {
+            return -1;
+        }
+
+        buffer.position((int) streamPos);
+        buffer.get(bytes, offset, available);
+        streamPos += available;
+
+        return available;
+    }
+
+    @Override public void readFully(final short[] shorts, final int offset, final int length) throws IOException {
+        checkBounds(shorts.length, offset, length, Short.BYTES);
+        buffer.position((int) streamPos);
+        buffer.slice().order(byteOrder).asShortBuffer().get(shorts, offset, length);
+        streamPos += (long) length * Short.BYTES;
+    }
+
+    @Override public void readFully(final int[] ints, final int offset, final int length) throws IOException {
+        checkBounds(ints.length, offset, length, Integer.BYTES);
+        buffer.position((int) streamPos);
+        buffer.slice().order(byteOrder).asIntBuffer().get(ints, offset, length);
+        streamPos += (long) length * Integer.BYTES;
+    }
+
+    @Override public void readFully(final float[] floats, final int offset, final int length) throws IOException {
+        checkBounds(floats.length, offset, length, Float.BYTES);
+        buffer.position((int) streamPos);
+        buffer.slice().order(byteOrder).asFloatBuffer().get(floats, offset, length);
+        streamPos += (long) length * Float.BYTES;
+    }
+
+    private void checkBounds(final int arrayLength, final int offset, final int length, final int elementSize) throws IOException {
+        checkClosed();
+
+        if (offset < 0 || length < 0 || offset + length > arrayLength || offset + length < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", array length: " + arrayLength);
+        }
+
+        bitOffset = 0;
+
+        if (streamPos + (long) length * elementSize > buffer.limit()) {
+            // Same as the default implementation, consuming the remaining bytes
+            streamPos = buffer.limit();
+            throw new EOFException();
+        }
+    }
+
+    @Override public long length() {
+        return buffer.limit();
+    }
+
+    @Override public void close() throws IOException {
+        super.close();
+
+        buffer = null;
+        ScratchBuffers.release(pooled);
+        pooled = null;
+    }
+}
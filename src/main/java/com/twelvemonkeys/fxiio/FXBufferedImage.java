@@ -32,35 +32,130 @@ package com.twelvemonkeys.fxiio;
 
 import javafx.scene.image.Image;
 import javafx.scene.image.PixelFormat;
-import javafx.scene.image.PixelReader;
 import javafx.scene.image.WritableImage;
 
 import javax.imageio.ImageTypeSpecifier;
 import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Wrapper class for JavaFX {@link Image} and {@link WritableImage} to masquerade as a {@link BufferedImage}.
+ * <p>
+ * Pixels are accessed through a {@link PixelSurface}, so the image may also wrap a {@link HeapPixelSurface},
+ * without the JavaFX toolkit.
+ * </p>
+ * <p>
+ * The image may be read, and encoded, by several threads concurrently. Writes are buffered per thread,
+ * and written back when the writing thread invokes {@link #flush()} or {@code release()}.
+ * </p>
  */
 final class FXBufferedImage extends BufferedImage {
 
     private static final ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
 
+    // Color models and sample models are immutable, and shared between images of the same pixel format (and size)
+    private static final ColorModel INT_ARGB_PRE = new DirectColorModel(sRGB, 32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000, true, DataBuffer.TYPE_INT);
+    private static final ColorModel BYTE_BGRA_PRE = new ComponentColorModel(sRGB, true, true, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+    private static final ColorModel BYTE_BGRA = new ComponentColorModel(sRGB, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+    private static final ColorModel BYTE_RGB = new ComponentColorModel(sRGB, false, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+
+    private static final int MAX_SAMPLE_MODELS = 64;
+    private static final Map<SampleModelKey, SampleModel> sampleModels = new LinkedHashMap<SampleModelKey, SampleModel>(16, .75f, true) {
+        @Override protected boolean removeEldestEntry(final Map.Entry<SampleModelKey, SampleModel> eldest) {
+            return size() > MAX_SAMPLE_MODELS;
+        }
+    };
+
+    // Sample model layouts, other than the number of bands of a subset
+    private static final int LAYOUT_ALL_BANDS = 0;
+    private static final int LAYOUT_INDEXED = -1;
+    private static final int LAYOUT_GRAY_ALPHA = -2;
+
     public FXBufferedImage(final Image fxImage) {
-        this(getColorModel(fxImage), new FXWritableRaster(fxImage, crateSampleModel(fxImage), PixelReaderDataBuffer.createDataBuffer(fxImage)));
+        this(PixelSurface.of(fxImage));
     }
 
     public FXBufferedImage(final WritableImage fxImage, final ImageTypeSpecifier spec) {
-        // TODO: Create a Color model, sample model and raster, compatible with spec!
-        this(spec.getColorModel(), new FXWritableRaster(fxImage,
-                                                        crateSampleModel(fxImage).createSubsetSampleModel(createIndicies(spec.getNumBands())),
-//                                                        spec.getSampleModel((int) fxImage.getWidth(), (int) fxImage.getHeight()),
-                                                        PixelReaderDataBuffer.createDataBuffer(fxImage)));
+        this(PixelSurface.of(fxImage), spec);
+    }
+
+    FXBufferedImage(final PixelSurface surface) {
+        this(getColorModel(surface), surface, getSampleModel(surface, LAYOUT_ALL_BANDS));
+    }
+
+    /**
+     * Creates an image of the given type over the surface, for readers to decode into.
+     * The type must be supported by {@link ImageTypeNegotiation#selectSupported}, images of other types
+     * are read one strip at the time, by {@link StripStagingReader}.
+     */
+    FXBufferedImage(final PixelSurface surface, final ImageTypeSpecifier spec) {
+        this(getColorModel(spec), surface, createSampleModel(surface, spec));
+    }
+
+    private FXBufferedImage(final ColorModel cm, final PixelSurface surface, final SampleModel sampleModel) {
+        super(cm, new FXWritableRaster(surface, sampleModel, PixelReaderDataBuffer.createDataBuffer(surface, cm), cm), cm.isAlphaPremultiplied(), null);
+    }
+
+    private static ColorModel getColorModel(final ImageTypeSpecifier spec) {
+        ColorModel colorModel = spec.getColorModel();
+
+        // Palette images are stored as indices, one byte per pixel
+        return colorModel instanceof IndexColorModel ? toByteIndexColorModel((IndexColorModel) colorModel) : colorModel;
+    }
+
+    private static SampleModel createSampleModel(final PixelSurface surface, final ImageTypeSpecifier spec) {
+        if (spec.getColorModel() instanceof IndexColorModel) {
+            return getSampleModel(surface, LAYOUT_INDEXED);
+        }
+
+        if (SampleReduction.isSupported(spec.getColorModel())) {
+            // Samples of more than 8 bits are laid out as BGRA, like 8 bit samples, but of the transfer type of the color model
+            int width = surface.getWidth();
+
+            return new PixelInterleavedSampleModel(spec.getColorModel().getTransferType(), width, surface.getHeight(),
+                                                   SampleReduction.BGRA_STRIDE, SampleReduction.BGRA_STRIDE * width,
+                                                   SampleReduction.getBGRAOffsets(spec.getColorModel()));
+        }
+
+        if (spec.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY && spec.getNumBands() == 2) {
+            return getSampleModel(surface, LAYOUT_GRAY_ALPHA);
+        }
+
+        return getSampleModel(surface, spec.getNumBands());
     }
 
-    private FXBufferedImage(ColorModel cm, FXWritableRaster raster) {
-        super(cm, raster, cm.isAlphaPremultiplied(), null);
+    private static SampleModel getSampleModel(final PixelSurface surface, final int layout) {
+        SampleModelKey key = new SampleModelKey(surface.getPixelFormatType(), surface.getWidth(), surface.getHeight(), layout);
+
+        synchronized (sampleModels) {
+            SampleModel sampleModel = sampleModels.get(key);
+
+            if (sampleModel == null) {
+                sampleModel = createSampleModel(surface, layout);
+                sampleModels.put(key, sampleModel);
+            }
+
+            return sampleModel;
+        }
+    }
+
+    private static SampleModel createSampleModel(final PixelSurface surface, final int layout) {
+        switch (layout) {
+            case LAYOUT_ALL_BANDS:
+                return crateSampleModel(surface);
+            case LAYOUT_INDEXED:
+                return createIndexedSampleModel(surface);
+            case LAYOUT_GRAY_ALPHA:
+                // Gray is mapped to red (and replicated to green and blue by the raster), alpha to alpha
+                return crateSampleModel(surface).createSubsetSampleModel(new int[] {0, 3});
+            default:
+                return crateSampleModel(surface).createSubsetSampleModel(createIndicies(layout));
+        }
     }
 
     private static int[] createIndicies(final int count) {
@@ -89,42 +184,112 @@ final class FXBufferedImage extends BufferedImage {
         }
     }
 
-    private static ColorModel getColorModel(final Image image) {
+    private static ColorModel getColorModel(final PixelSurface surface) {
         @SuppressWarnings("rawtypes")
-        PixelFormat pixelFormat = image.getPixelReader().getPixelFormat();
+        PixelFormat pixelFormat = surface.getPixelReader().getPixelFormat();
         switch (pixelFormat.getType()) {
             case INT_ARGB_PRE:
+                return INT_ARGB_PRE;
             case INT_ARGB:
                 return ColorModel.getRGBdefault();
             case BYTE_BGRA_PRE:
-                return new ComponentColorModel(sRGB, true, true, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+                return BYTE_BGRA_PRE;
             case BYTE_BGRA:
-                return new ComponentColorModel(sRGB, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+                return BYTE_BGRA;
             case BYTE_RGB:
-                return new ComponentColorModel(sRGB, false, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+                return BYTE_RGB;
             case BYTE_INDEXED:
-                // TODO: Will need to create an IndexColorModel
+                @SuppressWarnings("unchecked")
+                PixelFormat<ByteBuffer> indexedFormat = (PixelFormat<ByteBuffer>) pixelFormat;
+                return createIndexColorModel(getPalette(indexedFormat));
             default:
                 throw new IllegalArgumentException("Unsupported pixel format: " + pixelFormat.getType());
         }
     }
 
-    private static SampleModel crateSampleModel(final Image image) {
-        PixelReader pixelReader = image.getPixelReader();
+    /**
+     * Gets the (non-premultiplied) palette of an indexed pixel format, by looking up each possible index.
+     * JavaFX pads palettes to 256 entries with transparent black, so trailing transparent black entries are removed.
+     * As these can't be told from entries of the original palette, one is kept unless the palette has another
+     * transparent entry, so that transparent pixels still have an index.
+     */
+    static int[] getPalette(final PixelFormat<ByteBuffer> pixelFormat) {
+        int[] palette = new int[256];
+        ByteBuffer index = ByteBuffer.allocate(1);
+
+        for (int i = 0; i < palette.length; i++) {
+            index.put(0, (byte) i);
+            palette[i] = pixelFormat.getArgb(index, 0, 0, 1);
+        }
+
+        int size = palette.length;
+        while (size > 1 && palette[size - 1] == 0) {
+            size--;
+        }
+
+        if (size < palette.length && !hasTransparent(palette, size)) {
+            size++;
+        }
+
+        return Arrays.copyOf(palette, size);
+    }
+
+    private static boolean hasTransparent(final int[] palette, final int size) {
+        for (int i = 0; i < size; i++) {
+            if ((palette[i] >>> 24) == 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static IndexColorModel createIndexColorModel(final int[] palette) {
+        boolean hasAlpha = false;
+
+        for (int argb : palette) {
+            if ((argb >>> 24) != 0xff) {
+                hasAlpha = true;
+                break;
+            }
+        }
+
+        return new IndexColorModel(8, palette.length, palette, 0, hasAlpha, -1, DataBuffer.TYPE_BYTE);
+    }
+
+    /**
+     * Converts a color model of 1, 2 or 4 bits per pixel to 8 bits, as the indices are stored as one byte per pixel.
+     */
+    private static IndexColorModel toByteIndexColorModel(final IndexColorModel colorModel) {
+        if (colorModel.getPixelSize() == 8 && colorModel.getTransferType() == DataBuffer.TYPE_BYTE) {
+            return colorModel;
+        }
+
+        int[] palette = new int[colorModel.getMapSize()];
+        colorModel.getRGBs(palette);
+
+        return new IndexColorModel(8, palette.length, palette, 0, colorModel.hasAlpha(), colorModel.getTransparentPixel(), DataBuffer.TYPE_BYTE);
+    }
+
+    private static SampleModel createIndexedSampleModel(final PixelSurface surface) {
+        return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, surface.getWidth(), surface.getHeight(), 1, surface.getWidth(), new int[] {0});
+    }
 
+    private static SampleModel crateSampleModel(final PixelSurface surface) {
         @SuppressWarnings("rawtypes")
-        PixelFormat pixelFormat = pixelReader.getPixelFormat();
+        PixelFormat pixelFormat = surface.getPixelReader().getPixelFormat();
 
         switch (pixelFormat.getType()) {
             case INT_ARGB_PRE:
             case INT_ARGB:
-                return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, (int) image.getWidth(), (int) image.getHeight(), new int[] {0xFF000000, 0xFF0000, 0xFF00, 0xFF});
+                return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, surface.getWidth(), surface.getHeight(), new int[] {0xFF0000, 0xFF00, 0xFF, 0xFF000000});
             case BYTE_BGRA_PRE:
             case BYTE_BGRA:
             case BYTE_RGB:
                 int sampleSize = getSampleSize(pixelFormat);
-                return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, (int) image.getWidth(), (int) image.getHeight(), sampleSize, sampleSize * (int) image.getWidth(), createOffsets(pixelFormat));
+                return new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, surface.getWidth(), surface.getHeight(), sampleSize, sampleSize * surface.getWidth(), createOffsets(pixelFormat));
             case BYTE_INDEXED:
+                return createIndexedSampleModel(surface);
             default:
                 throw new IllegalArgumentException("Unsupported pixel format: " + pixelFormat.getType());
         }
@@ -146,7 +311,52 @@ final class FXBufferedImage extends BufferedImage {
         }
     }
 
+    /**
+     * Writes any pending changes of the current thread back to the FX image, before releasing resources as normal.
+     * Must be invoked after writing to the image, to make sure the FX image is complete.
+     */
+    @Override public void flush() {
+        ((PixelReaderDataBuffer<?>) getRaster().getDataBuffer()).flush();
+        super.flush();
+    }
+
+    /**
+     * Writes any pending changes of the current thread back to the FX image, and returns scratch buffers to the pool.
+     * Should be invoked when done reading or writing the image, the image is still usable after release.
+     */
+    void release() {
+        ((FXWritableRaster) getRaster()).release();
+    }
+
     @Override public String toString() {
         return "FX" + super.toString();
     }
+
+    private static final class SampleModelKey {
+        private final PixelFormat.Type type;
+        private final int width;
+        private final int height;
+        private final int layout;
+
+        SampleModelKey(final PixelFormat.Type type, final int width, final int height, final int layout) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.layout = layout;
+        }
+
+        @Override public boolean equals(final Object other) {
+            if (!(other instanceof SampleModelKey)) {
+                return false;
+            }
+
+            SampleModelKey key = (SampleModelKey) other;
+
+            return type == key.type && width == key.width && height == key.height && layout == key.layout;
+        }
+
+        @Override public int hashCode() {
+            return ((type.hashCode() * 31 + width) * 31 + height) * 31 + layout;
+        }
+    }
 }
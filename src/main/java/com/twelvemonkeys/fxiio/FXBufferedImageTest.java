@@ -31,6 +31,7 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.twelvemonkeys.fxiio;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Group;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
@@ -40,17 +41,14 @@ import javafx.scene.image.WritableImage;
 import javafx.stage.Stage;
 
 import javax.imageio.ImageIO;
-import javax.imageio.ImageReadParam;
-import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
-import javax.imageio.stream.ImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
 
 public class FXBufferedImageTest extends Application {
 
+    private final AsyncImageIO asyncImageIO = new AsyncImageIO();
+
     // TODO: Expand on this idea to create a fully working ImageIO wrapper for JavaFX!
 
     public static void main(String[] args) throws IOException {
@@ -80,67 +78,45 @@ public class FXBufferedImageTest extends Application {
     @Override public void start(final Stage primaryStage) throws Exception {
         File input = new File(getParameters().getRaw().get(0));
         long start = System.currentTimeMillis();
-        WritableImage fxWritableImage = readImage(input);
-        System.err.println("Loaded using ImageIO in: " + (System.currentTimeMillis() - start) + "ms");
 
-        Scene scene = new Scene(new Group(), fxWritableImage.getWidth(), fxWritableImage.getHeight());
-        Label label = new Label();
-        label.setGraphic(new ImageView(fxWritableImage));
+        Label label = new Label("Loading " + input.getName() + "...");
+        Scene scene = new Scene(new Group());
         scene.setRoot(label);
 
         primaryStage.setScene(scene);
         primaryStage.centerOnScreen();
 
         primaryStage.show();
-    }
-
-
-    public static WritableImage readImage(final File file) throws IOException {
-        ImageInputStream stream = ImageIO.createImageInputStream(file);
-
-        try {
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
-            if (!readers.hasNext()) {
-                return null;
-            }
-
-            ImageReader reader = readers.next();
-            try {
-                reader.setInput(stream);
-
-                int width = reader.getWidth(0);
-                int height = reader.getHeight(0);
-
-                ImageTypeSpecifier defaultSpec = reader.getImageTypes(0).next();
-
-                WritableImage fxImage = new WritableImage(width, height); // TODO: How do we decide the pixel format (we don't, the system decides)?!
-
-                ImageReadParam param = reader.getDefaultReadParam();
 
-                // TODO: Consider ImageTypeSpecifier as extra parameter, to decide format
-                BufferedImage destination = asBufferdImage(fxImage, defaultSpec);
-                param.setDestination(destination);
+        // Decode in the background, the application thread only displays the result
+        asyncImageIO.read(input.toPath())
+                .thenAcceptAsync(fxWritableImage -> {
+                    if (fxWritableImage == null) {
+                        label.setText("No reader for " + input.getName());
+                        return;
+                    }
+
+                    System.err.println("Loaded using ImageIO in: " + (System.currentTimeMillis() - start) + "ms");
+
+                    label.setText(null);
+                    label.setGraphic(new ImageView(fxWritableImage));
+
+                    primaryStage.sizeToScene();
+                    primaryStage.centerOnScreen();
+                }, Platform::runLater)
+                .exceptionally(e -> {
+                    Platform.runLater(() -> label.setText("Could not load " + input.getName() + ": " + e.getCause()));
+                    return null;
+                });
+    }
 
-                // TODO: This is a QnD hack. Should really compare the bands, and map accordingly
-//                if (destination.getSampleModel().getNumBands() != defaultSpec.getNumBands()) {
-//                    int[] bands = new int[defaultSpec.getNumBands()];
-//                    for (int i = 0; i < bands.length; i++) {
-//                        bands[i] = 1;
-//                    }
-//                    param.setDestinationBands(bands); // TODO: (...besides, it doesn't work, might be a bug in JPEGImageReader, computing band sizes)
-//                }
+    @Override public void stop() {
+        asyncImageIO.close();
+    }
 
-                reader.read(0, param);
 
-                return fxImage;
-            }
-            finally {
-                reader.dispose();
-            }
-        }
-        finally {
-            stream.close();
-        }
+    public static WritableImage readImage(final File file) throws IOException {
+        return FXImageIO.read(file.toPath());
     }
 
     /**
@@ -152,23 +128,4 @@ public class FXBufferedImageTest extends Application {
     private static BufferedImage asReadOnlyBufferdImage(final Image fxImage) {
         return new FXBufferedImage(fxImage);
     }
-
-    /**
-     * Creates a {@link java.awt.image.BufferedImage} that is backed by a JavaFX {@link javafx.scene.image.WritableImage}.
-     * @param fxImage
-     * @param defaultSpec
-     * @return a {@code TYPE_CUSTOM} {@code BufferedImage}.
-     */
-    private static BufferedImage asBufferdImage(final WritableImage fxImage, final ImageTypeSpecifier defaultSpec) {
-        // TODO: Handle this scenario!
-//                int[] bands = new int[defaultSpec.getNumBands()];
-//                for (int i = 0; i < bands.length; i++) {
-//                    bands[i] = 1;
-//                }
-//                System.err.println("defaultSpec: " + defaultSpec.getNumBands());
-//
-//                BufferedImage destination = new FXBufferedImage(getColorModel(fxImage),
-//                                                                new FXWritableRaster(fxImage, crateSampleModel(fxImage).createSubsetSampleModel(bands), PixelReaderDataBuffer.createDataBuffer(fxImage)));
-        return new FXBufferedImage(fxImage, defaultSpec);
-    }
 }
@@ -0,0 +1,1225 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.concurrent.Task;
+import javafx.geometry.Dimension2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+
+import javax.imageio.*;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.spi.ServiceRegistry;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes JavaFX {@link Image}s using ImageIO, without intermediate {@code BufferedImage}s.
+ * <p>
+ * To reduce per-image overhead, the {@code ImageReaderSpi} found for each kind of input (identified by its first
+ * few "magic" bytes) and the {@code ImageWriterSpi}s for each format name are cached.
+ * Readers and writers are pooled per thread, and {@link ImageReader#reset() reset} after use rather than disposed.
+ * A reader or writer is removed from the pool while in use, so nested reads on the same thread are safe.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public final class FXImageIO {
+    private static final Duration DEFAULT_PUBLISH_INTERVAL = Duration.millis(100);
+
+    private static final int MAGIC_LENGTH = 8;
+    private static final int MAX_CACHED_MAGIC = 256;
+
+    private static final ConcurrentMap<Long, ImageReaderSpi> readerSpis = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, List<ImageWriterSpi>> writerSpis = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> readers = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<ImageWriterSpi, ImageWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+
+    private FXImageIO() {}
+
+    /**
+     * Reads an image from the given file.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final Path path) throws IOException {
+        return read(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, using the source region and subsampling settings of {@code param}.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #read(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage read(final Path path, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(path)) {
+            return read(stream, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given stream. The stream is not closed.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final InputStream input) throws IOException {
+        return read(input, null);
+    }
+
+    /**
+     * Reads an image from the given stream, using the source region and subsampling settings of {@code param}.
+     * The stream is not closed.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     * @see #read(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage read(final InputStream input, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(input)) {
+            return read(stream, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given bytes.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the data.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final byte[] data) throws IOException {
+        return read(ByteBuffer.wrap(data), null);
+    }
+
+    /**
+     * Reads an image from the remaining bytes of the given buffer. The position of the buffer is not changed.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the data.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final ByteBuffer data) throws IOException {
+        return read(data, null);
+    }
+
+    /**
+     * Reads an image from the remaining bytes of the given buffer, using the source region and subsampling settings
+     * of {@code param}. The position of the buffer is not changed.
+     * <p>
+     * The data is read directly from the buffer, without copying it to a stream cache first.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the data.
+     * @throws IOException if an error occurs during reading.
+     * @see #read(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage read(final ByteBuffer data, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(data)) {
+            return read(stream, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given URL.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the resource.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final URL url) throws IOException {
+        return read(url, null);
+    }
+
+    /**
+     * Reads an image from the given URL, using the source region and subsampling settings of {@code param}.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the resource.
+     * @throws IOException if an error occurs during reading.
+     * @see #read(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage read(final URL url, final ImageReadParam param) throws IOException {
+        try (InputStream input = url.openStream()) {
+            return read(input, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given stream. The stream is not closed.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage read(final ImageInputStream stream) throws IOException {
+        return read(stream, null);
+    }
+
+    /**
+     * Reads an image from the given stream, using the source region and subsampling settings of {@code param}.
+     * The stream is not closed.
+     * <p>
+     * Only the settings for source region, source subsampling and subsampling offsets are used,
+     * any destination or band settings are ignored. The image is allocated at the size of the
+     * subsampled region, so that memory use depends on the output size only, making it cheap to
+     * create thumbnails or previews of large images.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     * @throws IllegalArgumentException if the source region does not intersect the image.
+     */
+    public static WritableImage read(final ImageInputStream stream, final ImageReadParam param) throws IOException {
+        return read(stream, param, null);
+    }
+
+    /**
+     * Reads an image, as {@link #read(ImageInputStream, ImageReadParam)}, passing the reader to {@code active}
+     * before reading, and {@code null} after, for example to add listeners.
+     */
+    static WritableImage read(final ImageInputStream stream, final ImageReadParam param, final Consumer<ImageReader> active) throws IOException {
+        FXPixelSurface surface = read(stream, param, active, FXPixelSurface::create);
+        return surface != null ? (WritableImage) surface.getImage() : null;
+    }
+
+    /**
+     * Reads an image into a surface created by {@code factory}, of the size of the subsampled source region.
+     */
+    private static <S extends PixelSurface> S read(final ImageInputStream stream, final ImageReadParam param, final Consumer<ImageReader> active,
+                                                   final PixelSurface.Factory<S> factory) throws IOException {
+        ImageReader reader = getReader(stream);
+        if (reader == null) {
+            return null;
+        }
+
+        long start = stream.getStreamPosition();
+
+        try {
+            reader.setInput(stream, true, true);
+
+            if (active != null) {
+                active.accept(reader);
+            }
+
+            return StripStagingReader.read(reader, stream, start, source -> read(source, 0, param, factory));
+        }
+        finally {
+            if (active != null) {
+                active.accept(null);
+            }
+
+            release(reader);
+        }
+    }
+
+    /**
+     * Reads an image from the given file, decoding tiled images in parallel, using the common pool.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readParallel(Path, ForkJoinPool)
+     */
+    public static WritableImage readParallel(final Path path) throws IOException {
+        return readParallel(path, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Reads an image from the given file, decoding tiled images in parallel, using the given pool.
+     * <p>
+     * The image is split into regions of whole tiles, each decoded by a task in the pool, using its own reader
+     * and stream. Images that are not tiled, or consist of a single tile, are read on the current thread.
+     * </p>
+     *
+     * @param pool the pool used for decoding the regions.
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static WritableImage readParallel(final Path path, final ForkJoinPool pool) throws IOException {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(pool, "pool");
+
+        return ParallelTileReader.read(path, pool);
+    }
+
+    /**
+     * Reads an image from the given file, directly into the pixels of a {@code PixelBuffer}.
+     *
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readPixelBuffer(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage readPixelBuffer(final Path path) throws IOException {
+        return readPixelBuffer(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, directly into the pixels of a {@code PixelBuffer},
+     * using the source region and subsampling settings of {@code param}.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readPixelBuffer(ImageInputStream, ImageReadParam)
+     */
+    public static WritableImage readPixelBuffer(final Path path, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(path)) {
+            return readPixelBuffer(stream, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given stream, directly into the pixels of a {@code PixelBuffer},
+     * using the source region and subsampling settings of {@code param}. The stream is not closed.
+     * <p>
+     * The decoder writes directly into the memory JavaFX renders from, avoiding the intermediate copies
+     * of {@link #read(ImageInputStream, ImageReadParam)}. The returned image is backed by a
+     * {@code PixelBuffer<IntBuffer>} in {@code INT_ARGB_PRE} format, and does not support {@code getPixelWriter()}.
+     * Images the reader can not decode as packed 8 bit RGB or ARGB {@code int}s (like JPEG) are read as by {@code read}.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code WritableImage}, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     * @throws IllegalArgumentException if the source region does not intersect the image.
+     */
+    public static WritableImage readPixelBuffer(final ImageInputStream stream, final ImageReadParam param) throws IOException {
+        ImageReader reader = getReader(stream);
+        if (reader == null) {
+            return null;
+        }
+
+        long start = stream.getStreamPosition();
+
+        try {
+            reader.setInput(stream, true, true);
+
+            return StripStagingReader.read(reader, stream, start, source -> {
+                ImageTypeSpecifier spec = ImageTypeNegotiation.selectSupported(source, 0, PixelFormat.Type.INT_ARGB_PRE);
+                return spec != null ? readPixelBuffer(source, 0, param, spec) : read(source, 0, param);
+            });
+        }
+        finally {
+            release(reader);
+        }
+    }
+
+    private static WritableImage readPixelBuffer(final ImageReader reader, final int imageIndex, final ImageReadParam settings, final ImageTypeSpecifier spec) throws IOException {
+        ImageReadEvent event = new ImageReadEvent();
+        event.begin();
+
+        ImageReadParam param = createReadParam(reader, settings);
+        Dimension size = getDestinationSize(computeSourceRegion(reader.getWidth(imageIndex), reader.getHeight(imageIndex), param), param);
+
+        PixelBuffer<IntBuffer> pixelBuffer = PixelBufferImage.createPixelBuffer(size.width, size.height, spec);
+        param.setDestination(PixelBufferImage.createBufferedImage(pixelBuffer, spec));
+
+        reader.read(imageIndex, param);
+
+        if (PixelBufferImage.needsPremultiply(spec)) {
+            PixelBufferImage.premultiply(pixelBuffer, 0, 0, size.width, size.height);
+        }
+
+        WritableImage image = new WritableImage(pixelBuffer);
+        commit(event, reader, image);
+
+        return image;
+    }
+
+    /**
+     * Reads an image from the given file, into a memory mapped scratch file.
+     *
+     * @return a new {@code MappedImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readMapped(Path, ImageReadParam)
+     */
+    public static MappedImage readMapped(final Path path) throws IOException {
+        return readMapped(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, into a memory mapped scratch file,
+     * using the source region and subsampling settings of {@code param}.
+     * <p>
+     * Use this method for images too large to keep on the Java heap, or in texture memory.
+     * The caller is responsible for closing the returned image, to delete the scratch file.
+     * Images the reader can decode as packed 8 bit RGB or ARGB {@code int}s are decoded directly into the mapped pixels,
+     * other images are decoded one strip at the time, and converted to packed pixels.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code MappedImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @throws IllegalArgumentException if the source region does not intersect the image, or the image has more than
+     * {@code Integer.MAX_VALUE} pixels.
+     * @see MappedImage
+     */
+    public static MappedImage readMapped(final Path path, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(path)) {
+            ImageReader reader = getReader(stream);
+            if (reader == null) {
+                return null;
+            }
+
+            try {
+                reader.setInput(stream, true, true);
+
+                ImageReadEvent event = new ImageReadEvent();
+                event.begin();
+
+                MappedImage image = StripStagingReader.read(reader, stream, 0, source -> readMapped(source, param));
+
+                if (event.shouldCommit()) {
+                    event.format = reader.getFormatName();
+                    event.width = image.getWidth();
+                    event.height = image.getHeight();
+                    event.pixelFormat = "MAPPED";
+                    event.bytes = (long) image.getWidth() * image.getHeight() * Integer.BYTES;
+                    event.commit();
+                }
+
+                return image;
+            }
+            finally {
+                release(reader);
+            }
+        }
+    }
+
+    private static MappedImage readMapped(final ImageReader reader, final ImageReadParam settings) throws IOException {
+        ImageReadParam param = createReadParam(reader, settings);
+        Rectangle region = computeSourceRegion(reader.getWidth(0), reader.getHeight(0), param);
+
+        if (StripStagingReader.isRequired(reader, 0, PixelFormat.Type.INT_ARGB)) {
+            // The reader can not decode into the mapped pixels, as it offers no packed type or assumes a standard data buffer
+            return StripStagingReader.readMapped(reader, 0, param, region);
+        }
+
+        // Mapped images store pixels as the reader decodes them, premultiplied or not
+        ImageTypeSpecifier spec = ImageTypeNegotiation.selectSupported(reader, 0, PixelFormat.Type.INT_ARGB);
+        Dimension size = getDestinationSize(region, param);
+        MappedImage image = MappedImage.create(size.width, size.height, spec);
+
+        try {
+            param.setDestination(image.getBufferedImage());
+            StripStagingReader.readDirect(reader, 0, param);
+        }
+        catch (IOException | RuntimeException e) {
+            image.close();
+            throw e;
+        }
+
+        return image;
+    }
+
+    /**
+     * Reads an image from the given file, into an array on the heap, without the JavaFX toolkit.
+     *
+     * @return a new {@code HeapImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readHeap(Path, ImageReadParam)
+     */
+    public static HeapImage readHeap(final Path path) throws IOException {
+        return readHeap(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, into an array on the heap, without the JavaFX toolkit,
+     * using the source region and subsampling settings of {@code param}.
+     * <p>
+     * The image is decoded exactly as by {@link #read(Path, ImageReadParam)}, but the JavaFX toolkit is never started,
+     * so this method is suitable for server side batch conversions, benchmarks and tests.
+     * Use {@link HeapImage#toImage()} to display the image.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code HeapImage}, sized to the region and subsampling, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @throws IllegalArgumentException if the source region does not intersect the image.
+     * @see HeapImage
+     */
+    public static HeapImage readHeap(final Path path, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(path)) {
+            return readHeap(stream, param);
+        }
+    }
+
+    /**
+     * Reads an image from the given stream, into an array on the heap, without the JavaFX toolkit. The stream is not closed.
+     *
+     * @return a new {@code HeapImage}, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     * @see #readHeap(Path, ImageReadParam)
+     */
+    public static HeapImage readHeap(final InputStream input) throws IOException {
+        return readHeap(input, null);
+    }
+
+    /**
+     * Reads an image from the given stream, into an array on the heap, without the JavaFX toolkit,
+     * using the source region and subsampling settings of {@code param}. The stream is not closed.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a new {@code HeapImage}, sized to the region and subsampling, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     * @see #readHeap(Path, ImageReadParam)
+     */
+    public static HeapImage readHeap(final InputStream input, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = createInputStream(input)) {
+            return readHeap(stream, param);
+        }
+    }
+
+    private static HeapImage readHeap(final ImageInputStream stream, final ImageReadParam param) throws IOException {
+        HeapPixelSurface surface = read(stream, param, null, HeapImage::createSurface);
+        return surface != null ? new HeapImage(surface) : null;
+    }
+
+    /**
+     * Opens the frames of an animated image, or the pages of a multipage document, like a TIFF,
+     * caching up to 64 MB of decoded frames.
+     *
+     * @return a new {@code FrameSequence}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see #readFrames(Path, long)
+     */
+    public static FrameSequence readFrames(final Path path) throws IOException {
+        return readFrames(path, 64L * 1024 * 1024);
+    }
+
+    /**
+     * Opens the frames of an animated image, or the pages of a multipage document, like a TIFF.
+     * <p>
+     * Frames are decoded on demand, the caller is responsible for closing the returned sequence, to close the file.
+     * </p>
+     *
+     * @param maxCacheBytes the maximum size in bytes of decoded frames to keep in memory.
+     * @return a new {@code FrameSequence}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @throws IllegalArgumentException if {@code maxCacheBytes} is negative.
+     * @see FrameSequence
+     */
+    public static FrameSequence readFrames(final Path path, final long maxCacheBytes) throws IOException {
+        if (maxCacheBytes < 0) {
+            throw new IllegalArgumentException("maxCacheBytes < 0: " + maxCacheBytes);
+        }
+
+        ImageInputStream stream = createInputStream(path);
+
+        try {
+            ImageReader reader = getReader(stream);
+            if (reader == null) {
+                stream.close();
+                return null;
+            }
+
+            try {
+                // Not seek forward only, frames may be requested in any order
+                reader.setInput(stream, false, false);
+
+                return new FrameSequence(stream, reader, maxCacheBytes);
+            }
+            catch (IOException | RuntimeException e) {
+                reader.dispose();
+                throw e;
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    static WritableImage read(final ImageReader reader, final int imageIndex, final ImageReadParam settings) throws IOException {
+        return (WritableImage) read(reader, imageIndex, settings, FXPixelSurface::create).getImage();
+    }
+
+    private static <S extends PixelSurface> S read(final ImageReader reader, final int imageIndex, final ImageReadParam settings,
+                                                   final PixelSurface.Factory<S> factory) throws IOException {
+        ImageReadEvent event = new ImageReadEvent();
+        event.begin();
+
+        ImageReadParam param = createReadParam(reader, settings);
+        Rectangle region = computeSourceRegion(reader.getWidth(imageIndex), reader.getHeight(imageIndex), param);
+        Dimension size = getDestinationSize(region, param);
+        S surface = factory.create(size.width, size.height);
+
+        read(reader, imageIndex, param, region, surface);
+        commit(event, reader, surface);
+
+        return surface;
+    }
+
+    /**
+     * Reads the source region of the image into the surface, which must be of the subsampled size of the region,
+     * directly or staged.
+     */
+    static void read(final ImageReader reader, final int imageIndex, final ImageReadParam param, final Rectangle region,
+                     final PixelSurface surface) throws IOException {
+        boolean staged = StripStagingReader.isRequired(reader, imageIndex, surface.getPixelFormatType()) || StripStagingReader.isPreferred(reader);
+        long start = System.nanoTime();
+
+        if (staged) {
+            StripStagingReader.read(reader, imageIndex, param, region, surface);
+        }
+        else {
+            readDirect(reader, imageIndex, param, surface);
+        }
+
+        StripStagingReader.record(reader, staged, (long) surface.getWidth() * (long) surface.getHeight(), System.nanoTime() - start);
+    }
+
+    private static void readDirect(final ImageReader reader, final int imageIndex, final ImageReadParam param, final PixelSurface surface) throws IOException {
+        // The pixel format is decided by the surface (JavaFX), pick the image type that is cheapest to store in it
+        ImageTypeSpecifier spec = ImageTypeNegotiation.select(reader, imageIndex, surface.getPixelFormatType());
+
+        FXBufferedImage destination = new FXBufferedImage(surface, spec);
+        param.setDestination(destination);
+
+        try {
+            StripStagingReader.readDirect(reader, imageIndex, param);
+        }
+        finally {
+            // Make sure all pixels are written to the surface
+            destination.release();
+        }
+    }
+
+    static void commit(final ImageReadEvent event, final ImageReader reader, final Image image) throws IOException {
+        commit(event, reader, image.getPixelReader().getPixelFormat(), (int) image.getWidth(), (int) image.getHeight());
+    }
+
+    private static void commit(final ImageReadEvent event, final ImageReader reader, final PixelSurface surface) throws IOException {
+        commit(event, reader, surface.getPixelReader().getPixelFormat(), surface.getWidth(), surface.getHeight());
+    }
+
+    private static void commit(final ImageReadEvent event, final ImageReader reader, final PixelFormat<?> pixelFormat, final int width, final int height) throws IOException {
+        if (event.shouldCommit()) {
+            event.format = reader.getFormatName();
+            event.width = width;
+            event.height = height;
+            event.pixelFormat = pixelFormat.getType().name();
+            event.bytes = sizeOf(pixelFormat, width, height);
+            event.commit();
+        }
+    }
+
+    /**
+     * Computes the size of the pixels of the image, in bytes.
+     */
+    static long sizeOf(final Image image) {
+        return sizeOf(image.getPixelReader().getPixelFormat(), (int) image.getWidth(), (int) image.getHeight());
+    }
+
+    /**
+     * Computes the size of pixels of the given format, in bytes.
+     */
+    static long sizeOf(final PixelFormat<?> pixelFormat, final int width, final int height) {
+        int bytesPerElement = pixelFormat.getType() == PixelFormat.Type.INT_ARGB || pixelFormat.getType() == PixelFormat.Type.INT_ARGB_PRE ? Integer.BYTES : 1;
+
+        return (long) width * (long) height * FXBufferedImage.getSampleSize(pixelFormat) * bytesPerElement;
+    }
+
+    /**
+     * Creates an image at the subsampled size of the source region, not the source size.
+     */
+    static WritableImage createImage(final Rectangle region, final ImageReadParam param) {
+        Dimension size = getDestinationSize(region, param);
+        return new WritableImage(size.width, size.height);
+    }
+
+    static Dimension getDestinationSize(final Rectangle region, final ImageReadParam param) {
+        return new Dimension((region.width + param.getSourceXSubsampling() - 1) / param.getSourceXSubsampling(),
+                             (region.height + param.getSourceYSubsampling() - 1) / param.getSourceYSubsampling());
+    }
+
+    static ImageReadParam createReadParam(final ImageReader reader, final ImageReadParam settings) {
+        ImageReadParam param = reader.getDefaultReadParam();
+
+        if (settings != null) {
+            param.setSourceRegion(settings.getSourceRegion());
+            param.setSourceSubsampling(settings.getSourceXSubsampling(), settings.getSourceYSubsampling(),
+                                       settings.getSubsamplingXOffset(), settings.getSubsamplingYOffset());
+        }
+
+        return param;
+    }
+
+    /**
+     * Computes the source region, clipped to the image bounds and adjusted for subsampling offsets,
+     * the same way as {@code ImageReader.computeRegions}.
+     */
+    static Rectangle computeSourceRegion(final int imageWidth, final int imageHeight, final ImageReadParam param) {
+        Rectangle region = new Rectangle(0, 0, imageWidth, imageHeight);
+
+        if (param.getSourceRegion() != null) {
+            region = region.intersection(param.getSourceRegion());
+        }
+
+        region.x += param.getSubsamplingXOffset();
+        region.y += param.getSubsamplingYOffset();
+        region.width -= param.getSubsamplingXOffset();
+        region.height -= param.getSubsamplingYOffset();
+
+        if (region.isEmpty()) {
+            throw new IllegalArgumentException("Source region does not intersect image: " + param.getSourceRegion());
+        }
+
+        return region;
+    }
+
+    /**
+     * Creates a task that reads an image from the given file progressively.
+     *
+     * @return a new task, that must be started by the caller.
+     * @see #readProgressively(Path, ImageReadParam, Duration)
+     */
+    public static Task<WritableImage> readProgressively(final Path path) {
+        return readProgressively(path, null, DEFAULT_PUBLISH_INTERVAL);
+    }
+
+    /**
+     * Creates a task that reads an image from the given file progressively, using the source region and subsampling
+     * settings of {@code param}.
+     * <p>
+     * The image is available as the task {@code value}, as soon as its dimensions are known,
+     * and is updated on the JavaFX application thread as decoding progresses,
+     * at most once per {@code publishInterval} and after each pass of progressive or interlaced images.
+     * The task {@code progress} follows the reader progress, and cancelling the task aborts the reader.
+     * When the task succeeds, the image is complete.
+     * If no reader could decode the file, the task value is {@code null}.
+     * </p>
+     * <p>
+     * The task is not started, it should be run on a background thread, for example using an {@code Executor}.
+     * Note that while reading, the memory needed is twice the size of the image.
+     * </p>
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @param publishInterval the minimum interval between publishing updates to the image.
+     * @return a new task, that must be started by the caller.
+     * @see #read(ImageInputStream, ImageReadParam)
+     */
+    public static Task<WritableImage> readProgressively(final Path path, final ImageReadParam param, final Duration publishInterval) {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(publishInterval, "publishInterval");
+
+        return new ProgressiveReadTask(() -> createInputStream(path), param, publishInterval);
+    }
+
+    /**
+     * Reads the dimensions of the (first) image in the given file, without decoding the image.
+     *
+     * @return the dimensions of the image, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static Dimension2D readDimensions(final Path path) throws IOException {
+        try (ImageInputStream stream = createInputStream(path)) {
+            return readDimensions(stream);
+        }
+    }
+
+    /**
+     * Reads the dimensions of the (first) image in the given stream, without decoding the image.
+     * The stream is not closed.
+     *
+     * @return the dimensions of the image, or {@code null} if no reader could decode the stream.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static Dimension2D readDimensions(final InputStream input) throws IOException {
+        try (ImageInputStream stream = createInputStream(input)) {
+            return readDimensions(stream);
+        }
+    }
+
+    /**
+     * Reads the dimensions of the (first) image in the given resource, without decoding the image.
+     *
+     * @return the dimensions of the image, or {@code null} if no reader could decode the resource.
+     * @throws IOException if an error occurs during reading.
+     */
+    public static Dimension2D readDimensions(final URL url) throws IOException {
+        try (InputStream input = url.openStream()) {
+            return readDimensions(input);
+        }
+    }
+
+    private static Dimension2D readDimensions(final ImageInputStream stream) throws IOException {
+        ImageReader reader = getReader(stream);
+        if (reader == null) {
+            return null;
+        }
+
+        try {
+            reader.setInput(stream, true, true);
+
+            return new Dimension2D(reader.getWidth(0), reader.getHeight(0));
+        }
+        finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * Writes the image to the given file, in the given format. Any existing file is replaced.
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     */
+    public static boolean write(final Image image, final String formatName, final Path path) throws IOException {
+        return write(new FXBufferedImage(image), formatName, path);
+    }
+
+    static boolean write(final BufferedImage bufferedImage, final String formatName, final Path path) throws IOException {
+        ImageWriter writer = getWriter(bufferedImage, formatName);
+        if (writer == null) {
+            return false;
+        }
+
+        try {
+            try (ImageOutputStream stream = createOutputStream(path)) {
+                write(writer, bufferedImage, stream);
+            }
+
+            return true;
+        }
+        finally {
+            release(writer);
+        }
+    }
+
+    /**
+     * Writes the image to the given stream, in the given format. The stream is not closed.
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     */
+    public static boolean write(final Image image, final String formatName, final OutputStream output) throws IOException {
+        return write(new FXBufferedImage(image), formatName, output);
+    }
+
+    static boolean write(final BufferedImage bufferedImage, final String formatName, final OutputStream output) throws IOException {
+        ImageWriter writer = getWriter(bufferedImage, formatName);
+        if (writer == null) {
+            return false;
+        }
+
+        try {
+            try (ImageOutputStream stream = createOutputStream(output)) {
+                write(writer, bufferedImage, stream);
+            }
+
+            return true;
+        }
+        finally {
+            release(writer);
+        }
+    }
+
+    /**
+     * Writes the image to the given file, in the given format, one strip of rows at a time. Any existing file is replaced.
+     * <p>
+     * Use this method for images too large to encode with an extra copy on the Java heap, like large snapshots.
+     * If the writer for the format can write images in strips, using {@link ImageWriter#prepareWriteEmpty} and
+     * {@link ImageWriter#replacePixels(java.awt.image.Raster, javax.imageio.ImageWriteParam) replacePixels},
+     * memory use is bounded by the strip size. Of the JDK writers, only TIFF can, and writes the image uncompressed.
+     * Other formats are written as by {@link #write(Image, String, Path)}, the memory use then depends on the writer.
+     * </p>
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     * @see StripStreamingWriter
+     */
+    public static boolean writeStreaming(final Image image, final String formatName, final Path path) throws IOException {
+        ImageTypeSpecifier type = StripStreamingWriter.getType(image);
+        ImageWriter writer = getWriter(type, formatName);
+        if (writer == null) {
+            return write(image, formatName, path);
+        }
+
+        boolean streamed;
+
+        try {
+            // Before opening the target, so that it's not truncated if the image is written by another writer
+            streamed = StripStreamingWriter.canWrite(writer);
+
+            if (streamed) {
+                try (ImageOutputStream stream = createOutputStream(path)) {
+                    writer.setOutput(stream);
+                    writeStreaming(writer, image, type, stream);
+                }
+            }
+        }
+        finally {
+            release(writer);
+        }
+
+        return streamed || write(image, formatName, path);
+    }
+
+    /**
+     * Writes the image to the given stream, in the given format, one strip of rows at a time. The stream is not closed.
+     * <p>
+     * As {@link #writeStreaming(Image, String, Path)}, except that the writer reads back from a
+     * stream cache in memory, of the size of the encoded image.
+     * </p>
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     */
+    public static boolean writeStreaming(final Image image, final String formatName, final OutputStream output) throws IOException {
+        ImageTypeSpecifier type = StripStreamingWriter.getType(image);
+        ImageWriter writer = getWriter(type, formatName);
+        if (writer == null) {
+            return write(image, formatName, output);
+        }
+
+        boolean streamed;
+
+        try {
+            streamed = StripStreamingWriter.canWrite(writer);
+
+            if (streamed) {
+                try (ImageOutputStream stream = createOutputStream(output)) {
+                    writer.setOutput(stream);
+                    writeStreaming(writer, image, type, stream);
+                }
+            }
+        }
+        finally {
+            release(writer);
+        }
+
+        return streamed || write(image, formatName, output);
+    }
+
+    /**
+     * Writes the image to all the given targets concurrently, like an image published in several formats,
+     * using the common pool.
+     *
+     * @return whether each target was written, in the order of the targets,
+     * {@code false} if no writer for the format of the target could encode the image.
+     * @throws IOException if an error occurs during writing.
+     * @see #writeAll(Image, List, ForkJoinPool)
+     */
+    public static List<Boolean> writeAll(final Image image, final List<WriteTarget> targets) throws IOException {
+        return writeAll(image, targets, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Writes the image to all the given targets concurrently, using the given pool.
+     * <p>
+     * Each target is encoded by a task in the pool, using its own writer, and its own read-only view of the image.
+     * The views share strips of rows, so that each row is read from the {@code PixelReader} of the image once,
+     * instead of once per target. Strips are kept until all targets have written them, so the memory used
+     * depends on how far apart the writers are, at most one copy of the image.
+     * All targets are written (or have failed), before returning or throwing.
+     * The image must not be modified while writing.
+     * </p>
+     *
+     * @param pool the pool used for encoding the targets.
+     * @return whether each target was written, in the order of the targets,
+     * {@code false} if no writer for the format of the target could encode the image.
+     * @throws IOException if an error occurs during writing, for any of the targets.
+     */
+    public static List<Boolean> writeAll(final Image image, final List<WriteTarget> targets, final ForkJoinPool pool) throws IOException {
+        Objects.requireNonNull(image, "image");
+        Objects.requireNonNull(targets, "targets");
+        Objects.requireNonNull(pool, "pool");
+
+        return SharedStrips.write(PixelSurface.of(image), targets, pool);
+    }
+
+    private static void writeStreaming(final ImageWriter writer, final Image image, final ImageTypeSpecifier type, final ImageOutputStream stream) throws IOException {
+        ImageWriteEvent event = new ImageWriteEvent();
+        event.begin();
+
+        long start = stream.getStreamPosition();
+
+        StripStreamingWriter.write(writer, image, type);
+        stream.flush();
+
+        if (event.shouldCommit()) {
+            event.format = writer.getOriginatingProvider().getFormatNames()[0];
+            event.width = (int) image.getWidth();
+            event.height = (int) image.getHeight();
+            event.pixelFormat = image.getPixelReader().getPixelFormat().getType().name();
+            event.bytes = stream.getStreamPosition() - start;
+            event.commit();
+        }
+    }
+
+    private static void write(final ImageWriter writer, final BufferedImage image, final ImageOutputStream stream) throws IOException {
+        ImageWriteEvent event = new ImageWriteEvent();
+        event.begin();
+
+        long start = stream.getStreamPosition();
+
+        try {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), null);
+            stream.flush();
+        }
+        finally {
+            if (image instanceof FXBufferedImage) {
+                ((FXBufferedImage) image).release();
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.format = writer.getOriginatingProvider().getFormatNames()[0];
+            event.width = image.getWidth();
+            event.height = image.getHeight();
+            event.pixelFormat = image.getRaster() instanceof FXWritableRaster ? ((FXWritableRaster) image.getRaster()).getPixelFormatType().name() : "MAPPED";
+            event.bytes = stream.getStreamPosition() - start;
+            event.commit();
+        }
+    }
+
+    /**
+     * Creates a stream for the given input. Files are mapped, and in-memory data is read directly,
+     * other input streams are cached in memory, never in a temporary file.
+     */
+    static ImageInputStream createInputStream(final Object input) throws IOException {
+        if (input instanceof Path) {
+            ImageInputStream stream = ByteBufferImageInputStream.open((Path) input);
+
+            if (stream != null) {
+                return stream;
+            }
+        }
+        else if (input instanceof ByteBuffer) {
+            return new ByteBufferImageInputStream((ByteBuffer) input);
+        }
+        else if (input instanceof InputStream) {
+            return new MemoryCacheImageInputStream((InputStream) input);
+        }
+
+        ImageInputStream stream = ImageIO.createImageInputStream(input instanceof Path ? ((Path) input).toFile() : input);
+
+        if (stream == null) {
+            throw new IIOException("Can't create an ImageInputStream: " + input);
+        }
+
+        return stream;
+    }
+
+    /**
+     * Creates a stream for the given output. Files are written through a buffered channel,
+     * other output streams are cached in memory, never in a temporary file.
+     */
+    private static ImageOutputStream createOutputStream(final Object output) throws IOException {
+        if (output instanceof Path) {
+            return new FileChannelImageOutputStream((Path) output);
+        }
+        else if (output instanceof OutputStream) {
+            return new MemoryCacheImageOutputStream((OutputStream) output);
+        }
+
+        ImageOutputStream stream = ImageIO.createImageOutputStream(output instanceof Path ? ((Path) output).toFile() : output);
+
+        if (stream == null) {
+            throw new IIOException("Can't create an ImageOutputStream: " + output);
+        }
+
+        return stream;
+    }
+
+    static ImageReader getReader(final ImageInputStream stream) throws IOException {
+        Long magic = readMagic(stream);
+        ImageReaderSpi spi = readerSpis.get(magic);
+
+        // Make sure the cached provider can really decode this input, only the start of the magic might match
+        if (spi == null || !canDecodeInput(spi, stream)) {
+            spi = findReaderSpi(stream);
+
+            if (spi == null) {
+                return null;
+            }
+
+            if (readerSpis.size() >= MAX_CACHED_MAGIC) {
+                readerSpis.clear();
+            }
+
+            readerSpis.put(magic, spi);
+        }
+
+        ImageReader reader = readers.get().remove(spi);
+
+        return reader != null ? reader : spi.createReaderInstance();
+    }
+
+    private static Long readMagic(final ImageInputStream stream) throws IOException {
+        long magic = 0;
+
+        stream.mark();
+
+        try {
+            for (int i = 0; i < MAGIC_LENGTH; i++) {
+                int b = stream.read();
+
+                if (b < 0) {
+                    break;
+                }
+
+                magic = magic << 8 | b;
+            }
+        }
+        finally {
+            stream.reset();
+        }
+
+        return magic;
+    }
+
+    private static boolean canDecodeInput(final ImageReaderSpi spi, final ImageInputStream stream) throws IOException {
+        stream.mark();
+
+        try {
+            return spi.canDecodeInput(stream);
+        }
+        finally {
+            stream.reset();
+        }
+    }
+
+    private static ImageReaderSpi findReaderSpi(final ImageInputStream stream) {
+        Iterator<ImageReader> candidates = ImageIO.getImageReaders(stream);
+
+        while (candidates.hasNext()) {
+            ImageReader reader = candidates.next();
+            ImageReaderSpi spi = reader.getOriginatingProvider();
+
+            if (spi != null) {
+                // Pool the reader created while probing, instead of creating another one
+                release(reader);
+
+                return spi;
+            }
+
+            // Readers without a provider can't be looked up later
+            reader.dispose();
+        }
+
+        return null;
+    }
+
+    static ImageWriter getWriter(final BufferedImage image, final String formatName) throws IOException {
+        return getWriter(ImageTypeSpecifier.createFromRenderedImage(image), formatName);
+    }
+
+    private static ImageWriter getWriter(final ImageTypeSpecifier type, final String formatName) throws IOException {
+        for (ImageWriterSpi spi : writerSpis.computeIfAbsent(formatName.toLowerCase(Locale.ROOT), FXImageIO::findWriterSpis)) {
+            if (spi.canEncodeImage(type)) {
+                ImageWriter writer = writers.get().remove(spi);
+
+                return writer != null ? writer : spi.createWriterInstance();
+            }
+        }
+
+        return null;
+    }
+
+    private static List<ImageWriterSpi> findWriterSpis(final String formatName) {
+        Iterator<ImageWriterSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(ImageWriterSpi.class, new FormatNameFilter(formatName), true);
+
+        List<ImageWriterSpi> result = new ArrayList<>();
+        spis.forEachRemaining(result::add);
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the reader to the pool of the current thread, after releasing the input and any listeners.
+     */
+    static void release(final ImageReader reader) {
+        reader.reset();
+
+        if (readers.get().putIfAbsent(reader.getOriginatingProvider(), reader) != null) {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Returns the writer to the pool of the current thread, after releasing the output and any listeners.
+     */
+    static void release(final ImageWriter writer) {
+        writer.reset();
+
+        if (writers.get().putIfAbsent(writer.getOriginatingProvider(), writer) != null) {
+            writer.dispose();
+        }
+    }
+
+    private static final class FormatNameFilter implements ServiceRegistry.Filter {
+        private final String formatName;
+
+        FormatNameFilter(final String formatName) {
+            this.formatName = formatName;
+        }
+
+        @Override public boolean filter(final Object provider) {
+            for (String name : ((ImageWriterSpi) provider).getFormatNames()) {
+                if (name.equalsIgnoreCase(formatName)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+/**
+ * A surface backed by a JavaFX {@link Image}, read-only unless the image is a {@link WritableImage}.
+ */
+final class FXPixelSurface implements PixelSurface {
+    private final Image image;
+    private final PixelReader pixelReader;
+    private final PixelWriter pixelWriter;
+
+    FXPixelSurface(final Image image) {
+        this.image = image;
+        this.pixelReader = image.getPixelReader();
+        this.pixelWriter = getPixelWriter(image);
+    }
+
+    /**
+     * Creates a surface backed by a new, fully transparent, {@code WritableImage}.
+     */
+    static FXPixelSurface create(final int width, final int height) {
+        return new FXPixelSurface(new WritableImage(width, height));
+    }
+
+    /**
+     * Returns the size in bytes of the pixels of a surface {@link #create created} with the given size,
+     * in the {@code BYTE_BGRA_PRE} format of a new {@code WritableImage}.
+     */
+    static long sizeOf(final int width, final int height) {
+        return FXImageIO.sizeOf(PixelFormat.getByteBgraPreInstance(), width, height);
+    }
+
+    /**
+     * Returns the pixel writer of the image, or {@code null} if the image is read-only.
+     * Images backed by a {@code PixelBuffer} are writable, but not through a {@code PixelWriter}.
+     */
+    private static PixelWriter getPixelWriter(final Image image) {
+        if (image instanceof WritableImage) {
+            try {
+                return ((WritableImage) image).getPixelWriter();
+            }
+            catch (UnsupportedOperationException ignore) {
+                // PixelBuffer backed image
+            }
+        }
+
+        return null;
+    }
+
+    Image getImage() {
+        return image;
+    }
+
+    @Override public int getWidth() {
+        return (int) image.getWidth();
+    }
+
+    @Override public int getHeight() {
+        return (int) image.getHeight();
+    }
+
+    @Override public PixelReader getPixelReader() {
+        return pixelReader;
+    }
+
+    @Override public PixelWriter getPixelWriter() {
+        return pixelWriter;
+    }
+
+    @Override public String toString() {
+        return "FXPixelSurface: " + getWidth() + "x" + getHeight() + " " + getPixelFormatType();
+    }
+}
@@ -34,22 +34,47 @@ import javafx.scene.image.Image;
 import javafx.scene.image.*;
 
 import java.awt.*;
+import java.awt.color.ColorSpace;
 import java.awt.image.*;
+import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * WritableRaster backed by a JavaFX {@link Image} or {@link WritableImage}
+ * WritableRaster backed by a JavaFX {@link Image} or {@link WritableImage}, or a {@link PixelSurface heap surface}
+ * <p>
+ * Bulk operations convert pixels in scratch arrays borrowed from the pool of the current thread, for the duration of
+ * the operation, and the data buffer caches rows per thread, so the raster may be read by several threads concurrently.
+ * </p>
  */
 final class FXWritableRaster extends WritableRaster {
     private final PixelReader pixelReader;
     private final PixelWriter pixelWriter;
     private final WritablePixelFormat<IntBuffer> writableIntFormat;
 
-    public FXWritableRaster(final Image fxImage, final SampleModel sampleModel, final DataBuffer dataBuffer) {
+    /** Whether data elements are premultiplied, as specified by the color model of the image. */
+    private final boolean premultiplied;
+
+    /** Bit offset into an ARGB pixel for each band, {@code null} if not supported. */
+    private final int[] argbShifts;
+
+    /** Format for writing palette indices, {@code null} unless the data buffer holds indices. */
+    private final PixelFormat<ByteBuffer> indexedFormat;
+
+    /** Whether samples have more than 8 bits, or are floating point, and are reduced to 8 bits when written. */
+    private final boolean reduced;
+
+    public FXWritableRaster(final PixelSurface surface, final SampleModel sampleModel, final DataBuffer dataBuffer, final ColorModel colorModel) {
         super(sampleModel, dataBuffer, new Point());
 
-        this.pixelReader = fxImage.getPixelReader();
-        this.pixelWriter = fxImage instanceof WritableImage ? ((WritableImage) fxImage).getPixelWriter() : null;
+        this.pixelReader = surface.getPixelReader();
+        this.pixelWriter = surface.getPixelWriter();
+        this.premultiplied = colorModel.isAlphaPremultiplied();
+        this.indexedFormat = ((PixelReaderDataBuffer<?>) dataBuffer).getIndexedFormat();
+        this.reduced = SampleReduction.isSupported(colorModel);
+        this.argbShifts = indexedFormat != null || reduced ? null
+                          : isGray(colorModel) ? getGrayShifts(sampleModel, pixelReader.getPixelFormat().getType())
+                          : getARGBShifts(sampleModel, pixelReader.getPixelFormat().getType());
 
         switch (pixelReader.getPixelFormat().getType()) {
             case BYTE_BGRA_PRE:
@@ -77,6 +102,64 @@ final class FXWritableRaster extends WritableRaster {
         pixelReader = parent.pixelReader;
         pixelWriter = parent.pixelWriter;
         writableIntFormat = parent.writableIntFormat;
+        premultiplied = parent.premultiplied;
+        indexedFormat = parent.indexedFormat;
+        reduced = parent.reduced && sampleModel.equals(parent.sampleModel);
+        argbShifts = indexedFormat != null || parent.reduced ? null
+                     : parent.isGray() ? (sampleModel.getNumBands() == parent.numBands ? parent.argbShifts : null)
+                     : getARGBShifts(sampleModel, pixelReader.getPixelFormat().getType());
+    }
+
+    private static boolean isGray(final ColorModel colorModel) {
+        return colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY && !(colorModel instanceof IndexColorModel);
+    }
+
+    private boolean isGray() {
+        return argbShifts != null && argbShifts[0] == PixelConversion.GRAY;
+    }
+
+    /**
+     * Gray, and optional alpha, bands. The sample model maps the gray band to red, and the alpha band to alpha.
+     */
+    private static int[] getGrayShifts(final SampleModel sampleModel, final PixelFormat.Type type) {
+        switch (type) {
+            case INT_ARGB:
+            case INT_ARGB_PRE:
+            case BYTE_BGRA:
+            case BYTE_BGRA_PRE:
+                return sampleModel.getNumBands() == 1 ? new int[] {PixelConversion.GRAY} : new int[] {PixelConversion.GRAY, 24};
+
+            default:
+                return null;
+        }
+    }
+
+    private static int[] getARGBShifts(final SampleModel sampleModel, final PixelFormat.Type type) {
+        switch (type) {
+            case INT_ARGB:
+            case INT_ARGB_PRE:
+                return sampleModel instanceof SinglePixelPackedSampleModel ? ((SinglePixelPackedSampleModel) sampleModel).getBitOffsets() : null;
+
+            case BYTE_BGRA:
+            case BYTE_BGRA_PRE:
+            case BYTE_RGB:
+                if (!(sampleModel instanceof ComponentSampleModel)) {
+                    return null;
+                }
+
+                int[] offsets = ((ComponentSampleModel) sampleModel).getBandOffsets();
+
+                for (int i = 0; i < offsets.length; i++) {
+                    // Byte offset into BGRA, or RGB, which is reversed
+                    offsets[i] = (type == PixelFormat.Type.BYTE_RGB ? 2 - offsets[i] : offsets[i]) * 8;
+                }
+
+                return offsets;
+
+            case BYTE_INDEXED:
+            default:
+                return null;
+        }
     }
 
     @Override public FXWritableRaster createWritableChild(final int parentX,
@@ -155,170 +238,343 @@ final class FXWritableRaster extends WritableRaster {
                                     this);
     }
 
+    @Override public Object getDataElements(final int x, final int y, final Object outData) {
+        return getDataElements(x, y, 1, 1, outData);
+    }
+
+    @Override public Object getDataElements(final int x, final int y, final int w, final int h, final Object outData) {
+        // Overridden for performance, reads all pixels in one operation
+        if (argbShifts == null) {
+            // Fallback to default impl
+            Instrumentation.increment(Instrumentation.FALLBACK);
+            return super.getDataElements(x, y, w, h, outData);
+        }
+
+        checkBounds(x, y, w, h);
+        flushDataBuffer();
+        countFastPath(Instrumentation.PIXEL_READER_CALLS);
+
+        switch (pixelReader.getPixelFormat().getType()) {
+            case INT_ARGB:
+            case INT_ARGB_PRE: {
+                int[] data = outData != null ? (int[]) outData : new int[w * h];
+                pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, data, 0, w);
+                toColorModel(data, w * h);
+
+                return data;
+            }
+            default: {
+                byte[] data = outData != null ? (byte[]) outData : new byte[w * h * numBands];
+                byte[] bgra = ScratchBuffers.getBytes(w * h * 4);
+
+                try {
+                    pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, getByteFormat(), bgra, 0, w * 4);
+                    toColorModel(bgra, w * h);
+
+                    PixelConversion.bgraToSamples(bgra, w * h, argbShifts, data);
+                }
+                finally {
+                    ScratchBuffers.release(bgra);
+                }
+
+                return data;
+            }
+        }
+    }
+
     @Override public void setDataElements(final int x, final int y, final Object inData) {
-        System.out.println("FXWritableRaster.setDataElements(xy,Object)");
-        super.setDataElements(x, y, inData);
+        setDataElements(x, y, 1, 1, inData);
     }
 
     @Override public void setDataElements(final int x, final int y, final int w, final int h, final Object inData) {
-        System.out.println("FXWritableRaster.setDataElements(xywh,Object)");
-        super.setDataElements(x, y, w, h, inData);
-    }
+        // Overridden for performance (PNG, GIF, BMP), writes all pixels in one operation
+        if (pixelWriter != null && indexedFormat != null) {
+            checkBounds(x, y, w, h);
+            invalidateDataBuffer(y, h);
+            countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
+
+            pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, indexedFormat, (byte[]) inData, 0, w);
+
+            return;
+        }
+
+        if (pixelWriter == null || argbShifts == null) {
+            // Fallback to default impl, the data buffer will throw if read-only
+            Instrumentation.increment(Instrumentation.FALLBACK);
+            super.setDataElements(x, y, w, h, inData);
+            return;
+        }
+
+        checkBounds(x, y, w, h);
+        invalidateDataBuffer(y, h);
+        countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
 
-    @Override public void setPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
-        // Overriden for performance (JPEG)
         switch (pixelWriter.getPixelFormat().getType()) {
             case INT_ARGB:
             case INT_ARGB_PRE:
-                pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, iArray, 0, w);
+                if (premultiplied == isImagePremultiplied()) {
+                    pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, (int[]) inData, 0, w);
+                    break;
+                }
 
-                break;
+                // Convert a copy, the data belongs to the caller
+                int[] argb = ScratchBuffers.getInts(w * h);
 
-            case BYTE_BGRA_PRE:
-            case BYTE_BGRA:
-            {
-                int stride = w * numBands;
-
-                // TODO: Most likely there are other conversions...
-                // QnD fix for BGRA -> RGB conversion
-                if (numBands == 4) {
-                    for (int i = 0; i < iArray.length; i += numBands) {
-                        int argb = iArray[i] << 16 | iArray[i + 1] << 8 | iArray[i + 2] | iArray[i + 3] << 24;
-
-                        int xtrans = i % stride;
-                        int ytrans = i / stride;
-                        pixelWriter.setArgb(x - sampleModelTranslateX + xtrans, y - sampleModelTranslateY + ytrans, argb);
-                    }
+                try {
+                    System.arraycopy(inData, 0, argb, 0, w * h);
+                    fromColorModel(argb, w * h);
+
+                    pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, argb, 0, w);
+                }
+                finally {
+                    ScratchBuffers.release(argb);
                 }
-                else {
-                    for (int i = 0; i < iArray.length; i += numBands) {
-                        int argb = iArray[i] << 16 | iArray[i + 1] << 8 | iArray[i + 2] | 0xFF000000;
 
-                        int xtrans = (i / numBands) % w;
-                        int ytrans = i / stride;
+                break;
+
+            default:
+                byte[] bgra = ScratchBuffers.getBytes(w * h * 4);
 
-                        pixelWriter.setArgb(x - sampleModelTranslateX + xtrans, y - sampleModelTranslateY + ytrans, argb);
-                    }
+                try {
+                    PixelConversion.samplesToBGRA((byte[]) inData, w * h, argbShifts, bgra);
+                    fromColorModel(bgra, w * h);
+
+                    pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, getByteFormat(), bgra, 0, w * 4);
+                }
+                finally {
+                    ScratchBuffers.release(bgra);
                 }
+        }
+    }
 
-                break;
-            }
-            case BYTE_RGB:
-            {
-                int stride = w * numBands;
+    @Override public void setPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
+        // Overriden for performance (JPEG), converts and writes all pixels in one operation
+        if (pixelWriter != null && reduced) {
+            checkBounds(x, y, w, h);
+            invalidateDataBuffer(y, h);
+            countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
+
+            ((PixelReaderDataBuffer<?>) dataBuffer).setReducedPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, iArray);
 
-                for (int i = 0; i < iArray.length; i += numBands) {
-                    int argb = iArray[i] << 16 | iArray[i + 1] << 8 | iArray[i + 2] | 0xFF000000;
+            return;
+        }
+
+        if (pixelWriter != null && indexedFormat != null) {
+            checkBounds(x, y, w, h);
+            invalidateDataBuffer(y, h);
+            countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
 
-                    int xtrans = (i / numBands) % w;
-                    int ytrans = i / stride;
+            byte[] indices = ScratchBuffers.getBytes(w * h);
 
-                    pixelWriter.setArgb(x - sampleModelTranslateX + xtrans, y - sampleModelTranslateY + ytrans, argb);
+            try {
+                for (int i = 0; i < w * h; i++) {
+                    indices[i] = (byte) iArray[i];
                 }
 
-                break;
+                pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, indexedFormat, indices, 0, w);
             }
-            case BYTE_INDEXED:
-            default:
-                // Fallback to default impl
-                super.setPixels(x, y, w, h, iArray);
+            finally {
+                ScratchBuffers.release(indices);
+            }
+
+            return;
+        }
+
+        if (pixelWriter == null || argbShifts == null) {
+            // Fallback to default impl, the data buffer will throw if read-only
+            Instrumentation.increment(Instrumentation.FALLBACK);
+            super.setPixels(x, y, w, h, iArray);
+            return;
+        }
+
+        checkBounds(x, y, w, h);
+        invalidateDataBuffer(y, h);
+        countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
+
+        int[] argb = ScratchBuffers.getInts(w * h);
+
+        try {
+            PixelConversion.packARGB(iArray, w * h, argbShifts, argb);
+            fromColorModel(argb, w * h);
+
+            pixelWriter.setPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, argb, 0, w);
+        }
+        finally {
+            ScratchBuffers.release(argb);
         }
     }
 
-    @Override public void setPixel(int x, int y, int[] iArray) {
+    @Override public void setPixels(final int x, final int y, final int w, final int h, final float[] fArray) {
+        // Overriden for performance (16 bit PNG, using setRect), reduces and writes all pixels in one operation
+        if (pixelWriter == null || !reduced) {
+            super.setPixels(x, y, w, h, fArray);
+            return;
+        }
+
+        checkBounds(x, y, w, h);
+        invalidateDataBuffer(y, h);
+        countFastPath(Instrumentation.PIXEL_WRITER_CALLS);
+
+        ((PixelReaderDataBuffer<?>) dataBuffer).setReducedPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, fArray);
+    }
+
+    @Override public void setPixel(final int x, final int y, final int[] iArray) {
         // Overriden for performance (PNG)
-        // TODO: Probably not correct for pre...
+        if (pixelWriter != null && reduced) {
+            checkBounds(x, y, 1, 1);
+            Instrumentation.increment(Instrumentation.PIXELS);
 
-        switch (pixelWriter.getPixelFormat().getType()) {
-            case INT_ARGB:
-            case INT_ARGB_PRE:
-                pixelWriter.setArgb(x - sampleModelTranslateX, y - sampleModelTranslateY, iArray[0]);
+            ((PixelReaderDataBuffer<?>) dataBuffer).setReducedPixel(x - sampleModelTranslateX, y - sampleModelTranslateY, iArray);
 
-                break;
+            return;
+        }
 
-            case BYTE_BGRA_PRE:
-            case BYTE_BGRA:
-                {
-                    // TODO: Most likely there are other conversions...
-                    // QnD fix for BGRA -> RGB conversion
-                    if (numBands == 4) {
-                        int argb = iArray[0] << 16 | iArray[1] << 8 | iArray[2] | iArray[3] << 24;
-                        pixelWriter.setArgb(x - sampleModelTranslateX, y - sampleModelTranslateY, argb);
-                    }
-                    else {
-                        int argb = iArray[0] << 16 | iArray[1] << 8 | iArray[2] | 0xFF000000;
-                        pixelWriter.setArgb(x - sampleModelTranslateX, y - sampleModelTranslateY, argb);
-
-                    }
+        if (pixelWriter == null || argbShifts == null) {
+            // Fallback to default impl, the data buffer will throw if read-only
+            Instrumentation.increment(Instrumentation.FALLBACK);
+            super.setPixel(x, y, iArray);
+            return;
+        }
 
-                break;
-            }
-            case BYTE_RGB:
-            {
-                int argb = iArray[0] | iArray[1] << 8 | iArray[2] << 16 | 0xFF000000;
-                pixelWriter.setArgb(x - sampleModelTranslateX, y - sampleModelTranslateY, argb);
+        checkBounds(x, y, 1, 1);
+        Instrumentation.increment(Instrumentation.PIXELS);
 
-                break;
-            }
-            case BYTE_INDEXED:
-            default:
-                // Fallback to default impl
-                super.setPixel(x, y, iArray);
+        // Buffered in the data buffer, and written back one block of rows at a time
+        ((PixelReaderDataBuffer<?>) dataBuffer).setArgb(x - sampleModelTranslateX, y - sampleModelTranslateY, PixelConversion.packARGB(iArray, argbShifts), premultiplied);
+    }
+
+    @Override public void setSample(final int x, final int y, final int b, final int s) {
+        if (isGray()) {
+            // The sample model maps gray to red only, set the entire pixel to also replicate gray to green and blue
+            int[] pixel = getPixel(x, y, (int[]) null);
+            pixel[b] = s;
+            setPixel(x, y, pixel);
+
+            return;
         }
+
+        super.setSample(x, y, b, s);
     }
 
     @Override public int[] getPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
-        // Overriden for better performance
-        int[] pixels;
+        // Overriden for better performance, reads all pixels in one operation
+        if (argbShifts == null) {
+            // Fallback to default impl
+            Instrumentation.increment(Instrumentation.FALLBACK);
+            return super.getPixels(x, y, w, h, iArray);
+        }
 
-        switch (pixelReader.getPixelFormat().getType()) {
-            case INT_ARGB:
-            case INT_ARGB_PRE:
-                pixels = iArray != null ? iArray : new int[w * h];
+        checkBounds(x, y, w, h);
+        flushDataBuffer();
+        countFastPath(Instrumentation.PIXEL_READER_CALLS);
 
-                pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, pixels, 0, w);
+        int[] pixels = iArray != null ? iArray : new int[w * h * numBands];
+        pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, pixels, 0, w);
+        toColorModel(pixels, w * h);
 
-                return pixels;
+        PixelConversion.unpackARGB(pixels, w * h, argbShifts);
 
-            case BYTE_BGRA_PRE:
-            case BYTE_BGRA:
-                pixels = iArray != null ? iArray : new int[w * h * numBands];
+        return pixels;
+    }
 
-                pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, pixels, 0, w);
+    PixelFormat.Type getPixelFormatType() {
+        return pixelReader.getPixelFormat().getType();
+    }
 
-                // Loop through pixels from the back of the read values, and copy values backwards, to have one sample per element (unpack)
-                for (int i = (w * h) - 1; i >= 0; i--) {
-                    int argb = pixels[i];
+    private boolean isImagePremultiplied() {
+        return writableIntFormat.isPremultiplied();
+    }
 
-                    pixels[i * numBands    ] = (argb & 0xff);              // B
-                    pixels[i * numBands + 1] = (argb & 0xff00) >> 8;       // G
-                    pixels[i * numBands + 2] = (argb & 0xff0000) >> 16;    // R
-                    pixels[i * numBands + 3] = (argb & 0xff000000) >>> 24; // A
-                }
+    /**
+     * Returns the byte format with the same alpha as the image, so that JavaFX only reorders bytes.
+     */
+    private WritablePixelFormat<ByteBuffer> getByteFormat() {
+        return isImagePremultiplied() ? PixelFormat.getByteBgraPreInstance() : PixelFormat.getByteBgraInstance();
+    }
 
-                return pixels;
-            case BYTE_RGB:
-                pixels = iArray != null ? iArray : new int[w * h * numBands];
+    /**
+     * Converts pixels read from the image, to premultiplied or not, as specified by the color model.
+     * Pixels are transferred in the form of the image, and converted here using lookup tables,
+     * rather than per pixel by JavaFX.
+     */
+    private void toColorModel(final int[] argb, final int pixels) {
+        if (premultiplied != isImagePremultiplied()) {
+            if (premultiplied) {
+                PixelConversion.premultiply(argb, 0, pixels);
+            }
+            else {
+                PixelConversion.unpremultiply(argb, 0, pixels);
+            }
+        }
+    }
 
-                pixelReader.getPixels(x - sampleModelTranslateX, y - sampleModelTranslateY, w, h, writableIntFormat, pixels, 0, w);
+    private void toColorModel(final byte[] bgra, final int pixels) {
+        if (premultiplied != isImagePremultiplied()) {
+            if (premultiplied) {
+                PixelConversion.premultiply(bgra, 0, pixels);
+            }
+            else {
+                PixelConversion.unpremultiply(bgra, 0, pixels);
+            }
+        }
+    }
 
-                // Loop through pixels from the back of the read values, and copy values backwards, to have one sample per element (unpack)
-                for (int i = (w * h) - 1; i >= 0; i--) {
-                    int argb = pixels[i];
+    /**
+     * Converts pixels in the form specified by the color model, to the form of the image, before writing.
+     */
+    private void fromColorModel(final int[] argb, final int pixels) {
+        if (premultiplied != isImagePremultiplied()) {
+            if (premultiplied) {
+                PixelConversion.unpremultiply(argb, 0, pixels);
+            }
+            else {
+                PixelConversion.premultiply(argb, 0, pixels);
+            }
+        }
+    }
 
-                    pixels[i * numBands    ] = (argb & 0xff0000) >> 16;    // R
-                    pixels[i * numBands + 1] = (argb & 0xff00) >> 8;       // G
-                    pixels[i * numBands + 2] = (argb & 0xff);              // B
-                }
+    private void fromColorModel(final byte[] bgra, final int pixels) {
+        if (premultiplied != isImagePremultiplied()) {
+            if (premultiplied) {
+                PixelConversion.unpremultiply(bgra, 0, pixels);
+            }
+            else {
+                PixelConversion.premultiply(bgra, 0, pixels);
+            }
+        }
+    }
 
-                return pixels;
-            case BYTE_INDEXED:
-            default:
-                // Fallback to default impl
-                return super.getPixels(x, y, w, h, iArray);
+    /**
+     * Writes any pending changes of the current thread back to the FX image, and returns the cached blocks of
+     * the data buffer to the pool. The raster is still usable after release.
+     */
+    void release() {
+        ((PixelReaderDataBuffer<?>) dataBuffer).release();
+    }
+
+    private void checkBounds(final int x, final int y, final int w, final int h) {
+        if (x < minX || y < minY || w < 0 || h < 0 || x + w > minX + width || y + h > minY + height) {
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
         }
     }
 
+    private static void countFastPath(final LongAdder calls) {
+        // Each fast path transfers all pixels using a single PixelReader or PixelWriter call
+        Instrumentation.increment(Instrumentation.FAST_PATH);
+        Instrumentation.increment(calls);
+    }
+
+    private void flushDataBuffer() {
+        // Pending writes in the data buffer would otherwise not be read
+        ((PixelReaderDataBuffer<?>) dataBuffer).flush();
+    }
+
+    private void invalidateDataBuffer(final int y, final int h) {
+        // Pending writes in the data buffer would otherwise later overwrite the pixels we write directly,
+        // and cached rows would no longer match the image
+        ((PixelReaderDataBuffer<?>) dataBuffer).invalidate(y - sampleModelTranslateY, h);
+    }
+
     @Override public String toString() {
         return "FXWritableRaster@" + Integer.toHexString(hashCode())
                 + " width = " + width + ", height = " + height
@@ -0,0 +1,181 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An {@code ImageOutputStream} writing to a {@code FileChannel}, through a heap buffer.
+ * <p>
+ * Writes are collected in the buffer, and written using a single positional write when the buffer is full,
+ * or the stream seeks away from the buffered range.
+ * Unlike the ImageIO file streams, small writes need no system call each, and any existing file is truncated.
+ * The stream may be read and seeked, as needed by writers that update data already written.
+ * </p>
+ */
+final class FileChannelImageOutputStream extends ImageOutputStreamImpl {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // Stream position of the first byte in the buffer
+    private long bufferStart;
+
+    FileChannelImageOutputStream(final Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @Override public void write(final int b) throws IOException {
+        checkClosed();
+        flushBits();
+        prepareWrite(1);
+
+        buffer.put((byte) b);
+        streamPos++;
+    }
+
+    @Override public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        checkClosed();
+        flushBits();
+
+        if (offset < 0 || length < 0 || offset + length > bytes.length || offset + length < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", bytes.length: " + bytes.length);
+        }
+
+        if (length >= BUFFER_SIZE) {
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(bytes, offset, length), streamPos);
+            streamPos += length;
+
+            return;
+        }
+
+        prepareWrite(length);
+
+        buffer.put(bytes, offset, length);
+        streamPos += length;
+    }
+
+    /**
+     * Makes room for {@code length} bytes in the buffer, continuing at the current stream position.
+     */
+    private void prepareWrite(final int length) throws IOException {
+        if (buffer.position() > 0 && (bufferStart + buffer.position() != streamPos || buffer.remaining() < length)) {
+            flushBuffer();
+        }
+
+        if (buffer.position() == 0) {
+            bufferStart = streamPos;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            writeFully(buffer, bufferStart);
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(final ByteBuffer source, final long position) throws IOException {
+        for (long pos = position; source.hasRemaining(); ) {
+            pos += channel.write(source, pos);
+        }
+    }
+
+    @Override public int read() throws IOException {
+        checkClosed();
+        flushBuffer();
+        bitOffset = 0;
+
+        ByteBuffer one = ByteBuffer.allocate(1);
+        if (channel.read(one, streamPos) <= 0) {
+            return -1;
+        }
+
+        streamPos++;
+
+        return one.get(0) & 0xff;
+    }
+
+    @Override public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        checkClosed();
+        flushBuffer();
+
+        if (offset < 0 || length < 0 || offset + length > bytes.length || offset + length < 0) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", bytes.length: " + bytes.length);
+        }
+
+        bitOffset = 0;
+
+        if (length == 0) {
+            return 0;
+        }
+
+        int count = channel.read(ByteBuffer.wrap(bytes, offset, length), streamPos);
+        if (count > 0) {
+            streamPos += count;
+        }
+
+        return count;
+    }
+
+    @Override public long length() {
+        try {
+            checkClosed();
+            return Math.max(channel.size(), bufferStart + buffer.position());
+        }
+        catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    @Override public void flushBefore(final long pos) throws IOException {
+        super.flushBefore(pos);
+        flushBuffer();
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            flushBuffer();
+        }
+        finally {
+            super.close();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,495 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The frames of an animated image, or the pages of a multipage document, decoded on demand.
+ * <p>
+ * Frames are decoded when first requested, either on the calling thread using {@link #getFrame(int)},
+ * or ahead of time on a background thread using {@link #getFrameAsync(int)}, and kept in a cache bounded
+ * by a number of bytes, evicting the least recently used frames first.
+ * The input file is kept open until the sequence is {@link #close() closed}, and frames may be requested
+ * in any order, the reader seeks directly to each frame.
+ * </p>
+ * <p>
+ * GIF frames are composed onto a canvas of the logical screen size, applying the disposal method of each frame.
+ * Composition is incremental, playing frames in order decodes each frame once. Seeking starts from the nearest
+ * earlier frame still in the cache, or from the first frame otherwise.
+ * Frames of other formats, like the pages of a TIFF, are decoded independently.
+ * </p>
+ * <p>
+ * This class is thread-safe, frames are decoded one at a time.
+ * Returned images are shared with the cache, and must not be modified.
+ * </p>
+ *
+ * @see FXImageIO#readFrames(Path)
+ */
+public final class FrameSequence implements Closeable {
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+
+    private final ImageInputStream stream;
+    private final ImageReader reader;
+    private final long maxCacheBytes;
+    private final boolean composed;
+
+    // Guarded by this
+    private int frameCount = -1;
+    private final LinkedHashMap<Integer, WritableImage> cache = new LinkedHashMap<>(16, .75f, true);
+    private long cacheBytes;
+    private ExecutorService executor;
+    private final Set<CompletableFuture<WritableImage>> pending = new HashSet<>();
+    private boolean closed;
+
+    // Composition state, guarded by this
+    private int canvasWidth;
+    private int canvasHeight;
+    private int[] canvas;
+    private int canvasIndex = -1;
+    private Frame[] frames = new Frame[0];
+    private int[] previous;
+
+    FrameSequence(final ImageInputStream stream, final ImageReader reader, final long maxCacheBytes) throws IOException {
+        this.stream = stream;
+        this.reader = reader;
+        this.maxCacheBytes = maxCacheBytes;
+        this.composed = isGIF(reader);
+
+        if (composed) {
+            Dimension screen = getLogicalScreenSize(reader);
+            canvasWidth = screen.width > 0 ? screen.width : reader.getWidth(0);
+            canvasHeight = screen.height > 0 ? screen.height : reader.getHeight(0);
+        }
+    }
+
+    private static boolean isGIF(final ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        return metadata != null && GIF_IMAGE_METADATA.equals(metadata.getNativeMetadataFormatName());
+    }
+
+    /**
+     * Returns the number of frames. May need to scan the entire input, the first time it is invoked.
+     */
+    public synchronized int getFrameCount() throws IOException {
+        ensureOpen();
+
+        if (frameCount < 0) {
+            frameCount = reader.getNumImages(true);
+        }
+
+        return frameCount;
+    }
+
+    /**
+     * Returns the time to display the given frame, or {@link Duration#ZERO} if the format has no timing.
+     */
+    public synchronized Duration getDelay(final int index) throws IOException {
+        checkIndex(index);
+
+        return composed ? Duration.millis(getFrame0(index).delay * 10.0) : Duration.ZERO;
+    }
+
+    /**
+     * Returns the given frame, decoding it (and, for composed formats, any frames it depends on) if not cached.
+     *
+     * @return a cached {@code WritableImage}, of the logical screen size for composed formats.
+     * @throws IOException if an error occurs during reading.
+     * @throws IndexOutOfBoundsException if there is no such frame.
+     */
+    public synchronized WritableImage getFrame(final int index) throws IOException {
+        checkIndex(index);
+
+        WritableImage image = cache.get(index);
+        if (image != null) {
+            return image;
+        }
+
+        image = composed ? compose(index) : FXImageIO.read(reader, index, null);
+        put(index, image);
+
+        return image;
+    }
+
+    /**
+     * Returns the given frame, decoding it on a background thread if not cached.
+     * Use this to decode the next frames ahead of playback.
+     *
+     * @return a future completing with the frame, or exceptionally with an {@code UncheckedIOException},
+     * also if the sequence is closed before the frame is decoded.
+     */
+    public CompletableFuture<WritableImage> getFrameAsync(final int index) {
+        synchronized (this) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new UncheckedIOException(new IOException("FrameSequence closed")));
+            }
+
+            WritableImage image = cache.get(index);
+            if (image != null) {
+                return CompletableFuture.completedFuture(image);
+            }
+
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "FrameSequence decoder");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+
+            // Not supplyAsync, as requests still queued when closed would never complete
+            CompletableFuture<WritableImage> future = new CompletableFuture<>();
+            pending.add(future);
+
+            executor.execute(() -> {
+                try {
+                    future.complete(getFrame(index));
+                }
+                catch (IOException e) {
+                    future.completeExceptionally(new UncheckedIOException(e));
+                }
+                catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                }
+                finally {
+                    synchronized (this) {
+                        pending.remove(future);
+                    }
+                }
+            });
+
+            return future;
+        }
+    }
+
+    /**
+     * Closes the input, and stops the background thread. Pending asynchronous requests complete exceptionally.
+     */
+    @Override public void close() throws IOException {
+        ExecutorService executor;
+        List<CompletableFuture<WritableImage>> requests;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            executor = this.executor;
+            requests = new ArrayList<>(pending);
+            pending.clear();
+            cache.clear();
+            canvas = null;
+            previous = null;
+
+            reader.dispose();
+            stream.close();
+        }
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+
+        for (CompletableFuture<WritableImage> request : requests) {
+            request.completeExceptionally(new UncheckedIOException(new IOException("FrameSequence closed")));
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("FrameSequence closed");
+        }
+    }
+
+    private void checkIndex(final int index) throws IOException {
+        ensureOpen();
+
+        // Avoid scanning the entire input for the count, the reader fails if there is no such image
+        if (index < 0 || frameCount >= 0 && index >= frameCount) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+    }
+
+    private void put(final int index, final WritableImage image) {
+        long size = FXImageIO.sizeOf(image);
+        if (size > maxCacheBytes) {
+            return;
+        }
+
+        cache.put(index, image);
+        cacheBytes += size;
+
+        for (Iterator<WritableImage> iterator = cache.values().iterator(); cacheBytes > maxCacheBytes && iterator.hasNext(); ) {
+            cacheBytes -= FXImageIO.sizeOf(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private WritableImage compose(final int index) throws IOException {
+        if (canvas == null || index <= canvasIndex) {
+            seek(index);
+        }
+
+        while (canvasIndex < index) {
+            draw(canvasIndex + 1);
+        }
+
+        WritableImage image = new WritableImage(canvasWidth, canvasHeight);
+        image.getPixelWriter().setPixels(0, 0, canvasWidth, canvasHeight, PixelFormat.getIntArgbInstance(), canvas, 0, canvasWidth);
+
+        return image;
+    }
+
+    /**
+     * Restores the canvas to the nearest cached frame before {@code index}, or clears it.
+     */
+    private void seek(final int index) {
+        if (canvas == null) {
+            canvas = new int[canvasWidth * canvasHeight];
+        }
+
+        for (int i = index - 1; i >= 0; i--) {
+            WritableImage image = cache.get(i);
+
+            // The area covered by frames to be restored to previous, is not known from the composed frame
+            if (image != null && frames[i].disposal != Disposal.RESTORE_TO_PREVIOUS) {
+                image.getPixelReader().getPixels(0, 0, canvasWidth, canvasHeight, PixelFormat.getIntArgbInstance(), canvas, 0, canvasWidth);
+                canvasIndex = i;
+
+                return;
+            }
+        }
+
+        Arrays.fill(canvas, 0);
+        canvasIndex = -1;
+    }
+
+    /**
+     * Disposes the frame currently on the canvas, and draws the next frame.
+     */
+    private void draw(final int index) throws IOException {
+        if (canvasIndex >= 0) {
+            dispose(frames[canvasIndex]);
+        }
+
+        Frame frame = getFrame0(index);
+        Rectangle bounds = frame.bounds.intersection(new Rectangle(0, 0, canvasWidth, canvasHeight));
+
+        if (frame.disposal == Disposal.RESTORE_TO_PREVIOUS && !bounds.isEmpty()) {
+            previous = copy(bounds, previous);
+        }
+
+        BufferedImage image = reader.read(index);
+        int width = image.getWidth();
+        int[] argb = ScratchBuffers.getInts(width * image.getHeight());
+
+        try {
+            image.getRGB(0, 0, width, image.getHeight(), argb, 0, width);
+
+            // Clip to the decoded size, in case the descriptor is inconsistent
+            Rectangle drawn = bounds.intersection(new Rectangle(frame.bounds.x, frame.bounds.y, width, image.getHeight()));
+
+            // GIF transparency is either fully transparent or opaque, only opaque pixels are drawn
+            for (int y = drawn.y; y < drawn.y + drawn.height; y++) {
+                int source = (y - frame.bounds.y) * width + drawn.x - frame.bounds.x;
+                int target = y * canvasWidth + drawn.x;
+
+                for (int x = 0; x < drawn.width; x++) {
+                    int pixel = argb[source + x];
+
+                    if (pixel >>> 24 != 0) {
+                        canvas[target + x] = pixel;
+                    }
+                }
+            }
+        }
+        finally {
+            ScratchBuffers.release(argb);
+        }
+
+        canvasIndex = index;
+    }
+
+    private void dispose(final Frame frame) {
+        Rectangle bounds = frame.bounds.intersection(new Rectangle(0, 0, canvasWidth, canvasHeight));
+
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        switch (frame.disposal) {
+            case RESTORE_TO_BACKGROUND:
+                // Restored to transparent, as most browsers do, rather than the background color
+                for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                    Arrays.fill(canvas, y * canvasWidth + bounds.x, y * canvasWidth + bounds.x + bounds.width, 0);
+                }
+                break;
+
+            case RESTORE_TO_PREVIOUS:
+                for (int y = 0; y < bounds.height; y++) {
+                    System.arraycopy(previous, y * bounds.width, canvas, (bounds.y + y) * canvasWidth + bounds.x, bounds.width);
+                }
+                break;
+
+            default:
+                // Left in place
+        }
+    }
+
+    private int[] copy(final Rectangle bounds, final int[] buffer) {
+        int[] region = buffer != null && buffer.length >= bounds.width * bounds.height ? buffer : new int[bounds.width * bounds.height];
+
+        for (int y = 0; y < bounds.height; y++) {
+            System.arraycopy(canvas, (bounds.y + y) * canvasWidth + bounds.x, region, y * bounds.width, bounds.width);
+        }
+
+        return region;
+    }
+
+    private Frame getFrame0(final int index) throws IOException {
+        if (index >= frames.length) {
+            frames = Arrays.copyOf(frames, Math.max(index + 1, frames.length * 2));
+        }
+
+        if (frames[index] == null) {
+            frames[index] = Frame.create(reader.getImageMetadata(index));
+        }
+
+        return frames[index];
+    }
+
+    private static Dimension getLogicalScreenSize(final ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getStreamMetadata();
+
+        if (metadata != null && GIF_STREAM_METADATA.equals(metadata.getNativeMetadataFormatName())) {
+            Node descriptor = getChild(metadata.getAsTree(GIF_STREAM_METADATA), "LogicalScreenDescriptor");
+
+            if (descriptor != null) {
+                return new Dimension(getInt(descriptor, "logicalScreenWidth"), getInt(descriptor, "logicalScreenHeight"));
+            }
+        }
+
+        return new Dimension(0, 0);
+    }
+
+    private static Node getChild(final Node parent, final String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (name.equals(child.getNodeName())) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    private static int getInt(final Node node, final String attribute) {
+        String value = ((IIOMetadataNode) node).getAttribute(attribute);
+        return value == null || value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+
+    private enum Disposal {
+        NONE,
+        DO_NOT_DISPOSE,
+        RESTORE_TO_BACKGROUND,
+        RESTORE_TO_PREVIOUS
+    }
+
+    /**
+     * Position, disposal method and delay of a GIF frame.
+     */
+    private static final class Frame {
+        final Rectangle bounds;
+        final Disposal disposal;
+        final int delay; // 1/100 s
+
+        private Frame(final Rectangle bounds, final Disposal disposal, final int delay) {
+            this.bounds = bounds;
+            this.disposal = disposal;
+            this.delay = delay;
+        }
+
+        static Frame create(final IIOMetadata metadata) {
+            Node root = metadata.getAsTree(GIF_IMAGE_METADATA);
+            Node descriptor = getChild(root, "ImageDescriptor");
+            Node control = getChild(root, "GraphicControlExtension");
+
+            Rectangle bounds = descriptor != null
+                               ? new Rectangle(getInt(descriptor, "imageLeftPosition"), getInt(descriptor, "imageTopPosition"),
+                                               getInt(descriptor, "imageWidth"), getInt(descriptor, "imageHeight"))
+                               : new Rectangle();
+
+            if (control == null) {
+                return new Frame(bounds, Disposal.NONE, 0);
+            }
+
+            return new Frame(bounds, getDisposal(((IIOMetadataNode) control).getAttribute("disposalMethod")), getInt(control, "delayTime"));
+        }
+
+        private static Disposal getDisposal(final String method) {
+            switch (method) {
+                case "doNotDispose":
+                    return Disposal.DO_NOT_DISPOSE;
+                case "restoreToBackgroundColor":
+                    return Disposal.RESTORE_TO_BACKGROUND;
+                case "restoreToPrevious":
+                    return Disposal.RESTORE_TO_PREVIOUS;
+                default:
+                    return Disposal.NONE;
+            }
+        }
+    }
+}
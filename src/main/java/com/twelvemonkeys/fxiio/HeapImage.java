@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * An image with pixels stored in an array on the Java heap, that can be read, written and encoded without
+ * starting the JavaFX toolkit.
+ * <p>
+ * Use for server side batch conversions, benchmarks and tests, where starting the toolkit is slow or not possible,
+ * and {@link #toImage() convert} to a {@code WritableImage} once the image is to be displayed.
+ * Pixels are stored as in a {@code WritableImage} ({@code BYTE_BGRA_PRE}), and are decoded and encoded by the
+ * same code as for FX images, so the conversion is a plain copy.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @see FXImageIO#readHeap(Path, javax.imageio.ImageReadParam)
+ */
+public final class HeapImage {
+    private final HeapPixelSurface surface;
+
+    HeapImage(final HeapPixelSurface surface) {
+        this.surface = surface;
+    }
+
+    /**
+     * Creates a new, fully transparent, image.
+     *
+     * @throws IllegalArgumentException if width or height is not positive, or the image has more than
+     * {@code Integer.MAX_VALUE / 4} pixels.
+     */
+    public static HeapImage create(final int width, final int height) {
+        return new HeapImage(createSurface(width, height));
+    }
+
+    static HeapPixelSurface createSurface(final int width, final int height) {
+        return new HeapPixelSurface(width, height, PixelFormat.Type.BYTE_BGRA_PRE);
+    }
+
+    HeapPixelSurface getSurface() {
+        return surface;
+    }
+
+    public int getWidth() {
+        return surface.getWidth();
+    }
+
+    public int getHeight() {
+        return surface.getHeight();
+    }
+
+    /**
+     * Returns a pixel reader for this image, that may be used without the JavaFX toolkit.
+     */
+    public PixelReader getPixelReader() {
+        return surface;
+    }
+
+    /**
+     * Returns a pixel writer for this image, that may be used without the JavaFX toolkit.
+     */
+    public PixelWriter getPixelWriter() {
+        return surface;
+    }
+
+    /**
+     * Creates a {@code WritableImage} holding a copy of this image, for display. Requires the JavaFX toolkit.
+     *
+     * @return a new {@code WritableImage} of the same size as this image.
+     */
+    public WritableImage toImage() {
+        WritableImage image = new WritableImage(getWidth(), getHeight());
+        image.getPixelWriter().setPixels(0, 0, getWidth(), getHeight(), surface, 0, 0);
+
+        return image;
+    }
+
+    /**
+     * Writes the image to the given file, in the given format. Any existing file is replaced.
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     */
+    public boolean write(final String formatName, final Path path) throws IOException {
+        return FXImageIO.write(new FXBufferedImage(surface), formatName, path);
+    }
+
+    /**
+     * Writes the image to the given stream, in the given format. The stream is not closed.
+     *
+     * @return {@code false} if no writer for the format could encode the image.
+     * @throws IOException if an error occurs during writing.
+     */
+    public boolean write(final String formatName, final OutputStream output) throws IOException {
+        return FXImageIO.write(new FXBufferedImage(surface), formatName, output);
+    }
+
+    @Override public String toString() {
+        return "HeapImage: " + getWidth() + "x" + getHeight() + " " + surface.getPixelFormatType();
+    }
+}
@@ -0,0 +1,683 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritablePixelFormat;
+import javafx.scene.paint.Color;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A surface backed by an array on the heap, that does not need the JavaFX toolkit.
+ * <p>
+ * Pixels are stored in the layout of a JavaFX {@link PixelFormat.Type pixel format}, {@code INT_ARGB(_PRE)}
+ * in an {@code int} array, {@code BYTE_BGRA(_PRE)}, {@code BYTE_RGB} and {@code BYTE_INDEXED} in a {@code byte} array,
+ * and are read and written exactly as for an FX image of the same pixel format.
+ * Pixels in the stored format are transferred by plain array copies, other formats are converted one row
+ * at a time, through ARGB (premultiplied, if the stored format is).
+ * Indexed surfaces are read-only, like indexed FX images.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+final class HeapPixelSurface implements PixelSurface, PixelReader, PixelWriter {
+    private final int width;
+    private final int height;
+    private final PixelFormat<?> pixelFormat;
+    private final PixelFormat.Type type;
+    private final int sampleSize;
+
+    // Pixels, either ints or bytes depending on the pixel format
+    private final int[] ints;
+    private final byte[] bytes;
+
+    // Non-premultiplied palette of 256 entries, for indexed pixels, otherwise null
+    private final int[] palette;
+
+    // Palette of the last indexed pixel format written from
+    private PixelFormat<?> sourceFormat;
+    private int[] sourcePalette;
+
+    /**
+     * Creates a new, fully transparent (or black, for {@code BYTE_RGB}), surface of the given pixel format.
+     *
+     * @throws IllegalArgumentException if the pixel format is {@code BYTE_INDEXED}, as there's no palette.
+     */
+    HeapPixelSurface(final int width, final int height, final PixelFormat.Type type) {
+        this(width, height, getPixelFormat(type), null, null);
+    }
+
+    /**
+     * Creates a surface backed by the given pixels, in the given {@code INT_ARGB(_PRE)} pixel format.
+     */
+    HeapPixelSurface(final int width, final int height, final PixelFormat<IntBuffer> pixelFormat, final int[] pixels) {
+        this(width, height, pixelFormat, pixels, null);
+    }
+
+    /**
+     * Creates a surface backed by the given pixels, in the given {@code BYTE_BGRA(_PRE)}, {@code BYTE_RGB}
+     * or {@code BYTE_INDEXED} pixel format.
+     */
+    HeapPixelSurface(final int width, final int height, final PixelFormat<ByteBuffer> pixelFormat, final byte[] pixels) {
+        this(width, height, pixelFormat, null, pixels);
+    }
+
+    private HeapPixelSurface(final int width, final int height, final PixelFormat<?> pixelFormat, final int[] ints, final byte[] bytes) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and height must be positive: " + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.pixelFormat = pixelFormat;
+        this.type = pixelFormat.getType();
+        this.sampleSize = FXBufferedImage.getSampleSize(pixelFormat);
+
+        long length = (long) width * height * sampleSize;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Surface too large: " + width + "x" + height);
+        }
+
+        boolean intPixels = type == PixelFormat.Type.INT_ARGB || type == PixelFormat.Type.INT_ARGB_PRE;
+        this.ints = intPixels ? ints != null ? ints : new int[(int) length] : null;
+        this.bytes = intPixels ? null : bytes != null ? bytes : new byte[(int) length];
+
+        if ((intPixels ? this.ints.length : this.bytes.length) < length) {
+            throw new IllegalArgumentException("Pixel array too short for " + width + "x" + height + " " + type);
+        }
+
+        @SuppressWarnings("unchecked")
+        PixelFormat<ByteBuffer> indexedFormat = type == PixelFormat.Type.BYTE_INDEXED ? (PixelFormat<ByteBuffer>) pixelFormat : null;
+        this.palette = indexedFormat != null ? Arrays.copyOf(FXBufferedImage.getPalette(indexedFormat), 256) : null;
+    }
+
+    private static PixelFormat<?> getPixelFormat(final PixelFormat.Type type) {
+        switch (type) {
+            case INT_ARGB_PRE:
+                return PixelFormat.getIntArgbPreInstance();
+            case INT_ARGB:
+                return PixelFormat.getIntArgbInstance();
+            case BYTE_BGRA_PRE:
+                return PixelFormat.getByteBgraPreInstance();
+            case BYTE_BGRA:
+                return PixelFormat.getByteBgraInstance();
+            case BYTE_RGB:
+                return PixelFormat.getByteRgbInstance();
+            default:
+                throw new IllegalArgumentException("Unsupported pixel format: " + type);
+        }
+    }
+
+    @Override public int getWidth() {
+        return width;
+    }
+
+    @Override public int getHeight() {
+        return height;
+    }
+
+    @Override public PixelReader getPixelReader() {
+        return this;
+    }
+
+    @Override public PixelWriter getPixelWriter() {
+        return type == PixelFormat.Type.BYTE_INDEXED ? null : this;
+    }
+
+    @Override public PixelFormat.Type getPixelFormatType() {
+        return type;
+    }
+
+    @Override public PixelFormat<?> getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Whether ARGB values converted to or from the stored pixels are premultiplied.
+     * Indexed pixels are converted using the non-premultiplied palette.
+     */
+    private boolean isPremultiplied() {
+        return pixelFormat.isPremultiplied() && type != PixelFormat.Type.BYTE_INDEXED;
+    }
+
+    // PixelReader
+
+    @Override public int getArgb(final int x, final int y) {
+        checkBounds(x, y, 1, 1);
+
+        int argb = readPixel(y * width + x);
+
+        return isPremultiplied() ? PixelConversion.unpremultiply(argb) : argb;
+    }
+
+    @Override public Color getColor(final int x, final int y) {
+        int argb = getArgb(x, y);
+
+        return Color.rgb((argb >> 16) & 0xff, (argb >> 8) & 0xff, argb & 0xff, (argb >>> 24) / 255.0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T extends Buffer> void getPixels(final int x, final int y, final int w, final int h,
+                                                       final WritablePixelFormat<T> format, final T buffer, final int scanlineStride) {
+        int position = buffer.position();
+
+        if (buffer instanceof IntBuffer) {
+            IntBuffer ints = (IntBuffer) buffer;
+            WritablePixelFormat<IntBuffer> intFormat = (WritablePixelFormat<IntBuffer>) format;
+
+            if (ints.hasArray()) {
+                getPixels(x, y, w, h, intFormat, ints.array(), ints.arrayOffset() + position, scanlineStride);
+                return;
+            }
+
+            int[] row = ScratchBuffers.getInts(w);
+
+            try {
+                IntBuffer destination = ints.duplicate();
+
+                for (int r = 0; r < h; r++) {
+                    getPixels(x, y + r, w, 1, intFormat, row, 0, w);
+                    destination.position(position + r * scanlineStride);
+                    destination.put(row, 0, w);
+                }
+            }
+            finally {
+                ScratchBuffers.release(row);
+            }
+        }
+        else {
+            ByteBuffer bytes = (ByteBuffer) buffer;
+            WritablePixelFormat<ByteBuffer> byteFormat = (WritablePixelFormat<ByteBuffer>) format;
+
+            if (bytes.hasArray()) {
+                getPixels(x, y, w, h, byteFormat, bytes.array(), bytes.arrayOffset() + position, scanlineStride);
+                return;
+            }
+
+            int rowLength = w * FXBufferedImage.getSampleSize(format);
+            byte[] row = ScratchBuffers.getBytes(rowLength);
+
+            try {
+                ByteBuffer destination = bytes.duplicate();
+
+                for (int r = 0; r < h; r++) {
+                    getPixels(x, y + r, w, 1, byteFormat, row, 0, rowLength);
+                    destination.position(position + r * scanlineStride);
+                    destination.put(row, 0, rowLength);
+                }
+            }
+            finally {
+                ScratchBuffers.release(row);
+            }
+        }
+    }
+
+    @Override public void getPixels(final int x, final int y, final int w, final int h,
+                                    final WritablePixelFormat<ByteBuffer> format, final byte[] buffer, final int offset, final int scanlineStride) {
+        checkBounds(x, y, w, h);
+
+        if (format.getType() == type) {
+            copyRows(bytes, (y * width + x) * sampleSize, width * sampleSize, buffer, offset, scanlineStride, w * sampleSize, h);
+            return;
+        }
+
+        int[] argb = ScratchBuffers.getInts(w);
+
+        try {
+            for (int r = 0; r < h; r++) {
+                readRow(x, y + r, w, argb);
+                convertAlpha(argb, w, isPremultiplied(), format.isPremultiplied());
+                argbToBGRA(argb, w, buffer, offset + r * scanlineStride);
+            }
+        }
+        finally {
+            ScratchBuffers.release(argb);
+        }
+    }
+
+    @Override public void getPixels(final int x, final int y, final int w, final int h,
+                                    final WritablePixelFormat<IntBuffer> format, final int[] buffer, final int offset, final int scanlineStride) {
+        checkBounds(x, y, w, h);
+
+        if (format.getType() == type) {
+            copyRows(ints, y * width + x, width, buffer, offset, scanlineStride, w, h);
+            return;
+        }
+
+        for (int r = 0; r < h; r++) {
+            // Convert in place, in the destination
+            int start = offset + r * scanlineStride;
+
+            readRow(x, y + r, w, buffer, start);
+            convertAlpha(buffer, start, w, isPremultiplied(), format.isPremultiplied());
+        }
+    }
+
+    // PixelWriter
+
+    @Override public void setArgb(final int x, final int y, final int argb) {
+        checkWritable();
+        checkBounds(x, y, 1, 1);
+
+        writePixel(y * width + x, isPremultiplied() ? PixelConversion.premultiply(argb) : argb);
+    }
+
+    @Override public void setColor(final int x, final int y, final Color color) {
+        int a = (int) Math.round(color.getOpacity() * 255.0);
+        int r = (int) Math.round(color.getRed() * 255.0);
+        int g = (int) Math.round(color.getGreen() * 255.0);
+        int b = (int) Math.round(color.getBlue() * 255.0);
+
+        setArgb(x, y, a << 24 | r << 16 | g << 8 | b);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public <T extends Buffer> void setPixels(final int x, final int y, final int w, final int h,
+                                                       final PixelFormat<T> format, final T buffer, final int scanlineStride) {
+        int position = buffer.position();
+
+        if (buffer instanceof IntBuffer) {
+            IntBuffer ints = (IntBuffer) buffer;
+            PixelFormat<IntBuffer> intFormat = (PixelFormat<IntBuffer>) format;
+
+            if (ints.hasArray()) {
+                setPixels(x, y, w, h, intFormat, ints.array(), ints.arrayOffset() + position, scanlineStride);
+                return;
+            }
+
+            int[] row = ScratchBuffers.getInts(w);
+
+            try {
+                IntBuffer source = ints.duplicate();
+
+                for (int r = 0; r < h; r++) {
+                    source.position(position + r * scanlineStride);
+                    source.get(row, 0, w);
+                    setPixels(x, y + r, w, 1, intFormat, row, 0, w);
+                }
+            }
+            finally {
+                ScratchBuffers.release(row);
+            }
+        }
+        else {
+            ByteBuffer bytes = (ByteBuffer) buffer;
+            PixelFormat<ByteBuffer> byteFormat = (PixelFormat<ByteBuffer>) format;
+
+            if (bytes.hasArray()) {
+                setPixels(x, y, w, h, byteFormat, bytes.array(), bytes.arrayOffset() + position, scanlineStride);
+                return;
+            }
+
+            int rowLength = w * FXBufferedImage.getSampleSize(format);
+            byte[] row = ScratchBuffers.getBytes(rowLength);
+
+            try {
+                ByteBuffer source = bytes.duplicate();
+
+                for (int r = 0; r < h; r++) {
+                    source.position(position + r * scanlineStride);
+                    source.get(row, 0, rowLength);
+                    setPixels(x, y + r, w, 1, byteFormat, row, 0, rowLength);
+                }
+            }
+            finally {
+                ScratchBuffers.release(row);
+            }
+        }
+    }
+
+    @Override public void setPixels(final int x, final int y, final int w, final int h,
+                                    final PixelFormat<ByteBuffer> format, final byte[] buffer, final int offset, final int scanlineStride) {
+        checkWritable();
+        checkBounds(x, y, w, h);
+
+        if (format.getType() == type) {
+            copyRows(buffer, offset, scanlineStride, bytes, (y * width + x) * sampleSize, width * sampleSize, w * sampleSize, h);
+            return;
+        }
+
+        int[] sourcePalette = format.getType() == PixelFormat.Type.BYTE_INDEXED ? getSourcePalette(format) : null;
+        int[] argb = ScratchBuffers.getInts(w);
+
+        try {
+            for (int r = 0; r < h; r++) {
+                int start = offset + r * scanlineStride;
+
+                switch (format.getType()) {
+                    case BYTE_BGRA_PRE:
+                    case BYTE_BGRA:
+                        bgraToARGB(buffer, start, w, argb);
+                        break;
+                    case BYTE_RGB:
+                        rgbToARGB(buffer, start, w, argb);
+                        break;
+                    case BYTE_INDEXED:
+                        indexedToARGB(buffer, start, w, sourcePalette, argb);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported pixel format: " + format.getType());
+                }
+
+                // The palette is non-premultiplied
+                convertAlpha(argb, w, format.isPremultiplied() && sourcePalette == null, isPremultiplied());
+                writeRow(x, y + r, w, argb, 0);
+            }
+        }
+        finally {
+            ScratchBuffers.release(argb);
+        }
+    }
+
+    @Override public void setPixels(final int x, final int y, final int w, final int h,
+                                    final PixelFormat<IntBuffer> format, final int[] buffer, final int offset, final int scanlineStride) {
+        checkWritable();
+        checkBounds(x, y, w, h);
+
+        if (format.getType() == type) {
+            copyRows(buffer, offset, scanlineStride, ints, y * width + x, width, w, h);
+            return;
+        }
+
+        boolean convert = format.isPremultiplied() != isPremultiplied();
+        int[] argb = convert ? ScratchBuffers.getInts(w) : null;
+
+        try {
+            for (int r = 0; r < h; r++) {
+                int start = offset + r * scanlineStride;
+
+                if (convert) {
+                    System.arraycopy(buffer, start, argb, 0, w);
+                    convertAlpha(argb, w, format.isPremultiplied(), isPremultiplied());
+                    writeRow(x, y + r, w, argb, 0);
+                }
+                else {
+                    writeRow(x, y + r, w, buffer, start);
+                }
+            }
+        }
+        finally {
+            ScratchBuffers.release(argb);
+        }
+    }
+
+    @Override public void setPixels(final int dstx, final int dsty, final int w, final int h,
+                                    final PixelReader reader, final int srcx, final int srcy) {
+        checkWritable();
+        checkBounds(dstx, dsty, w, h);
+
+        // Copy rows bottom up, if copying down within this surface, not to overwrite rows not yet copied
+        boolean bottomUp = reader == this && dsty > srcy;
+
+        if (reader instanceof HeapPixelSurface && ((HeapPixelSurface) reader).type == type) {
+            HeapPixelSurface source = (HeapPixelSurface) reader;
+            source.checkBounds(srcx, srcy, w, h);
+
+            for (int i = 0; i < h; i++) {
+                int r = bottomUp ? h - 1 - i : i;
+
+                if (ints != null) {
+                    System.arraycopy(source.ints, (srcy + r) * source.width + srcx, ints, (dsty + r) * width + dstx, w);
+                }
+                else {
+                    System.arraycopy(source.bytes, ((srcy + r) * source.width + srcx) * sampleSize, bytes, ((dsty + r) * width + dstx) * sampleSize, w * sampleSize);
+                }
+            }
+
+            return;
+        }
+
+        WritablePixelFormat<IntBuffer> rowFormat = isPremultiplied() ? PixelFormat.getIntArgbPreInstance() : PixelFormat.getIntArgbInstance();
+        int[] argb = ScratchBuffers.getInts(w);
+
+        try {
+            for (int i = 0; i < h; i++) {
+                int r = bottomUp ? h - 1 - i : i;
+
+                reader.getPixels(srcx, srcy + r, w, 1, rowFormat, argb, 0, w);
+                writeRow(dstx, dsty + r, w, argb, 0);
+            }
+        }
+        finally {
+            ScratchBuffers.release(argb);
+        }
+    }
+
+    // Conversion of stored pixels, to and from ARGB in the stored form
+
+    private void readRow(final int x, final int y, final int w, final int[] argb) {
+        readRow(x, y, w, argb, 0);
+    }
+
+    private void readRow(final int x, final int y, final int w, final int[] argb, final int argbOffset) {
+        int pixel = y * width + x;
+
+        switch (type) {
+            case INT_ARGB_PRE:
+            case INT_ARGB:
+                System.arraycopy(ints, pixel, argb, argbOffset, w);
+                break;
+            case BYTE_BGRA_PRE:
+            case BYTE_BGRA:
+                bgraToARGB(bytes, pixel * 4, w, argb, argbOffset);
+                break;
+            case BYTE_RGB:
+                rgbToARGB(bytes, pixel * 3, w, argb, argbOffset);
+                break;
+            case BYTE_INDEXED:
+                indexedToARGB(bytes, pixel, w, palette, argb, argbOffset);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported pixel format: " + type);
+        }
+    }
+
+    private void writeRow(final int x, final int y, final int w, final int[] argb, final int argbOffset) {
+        int pixel = y * width + x;
+
+        switch (type) {
+            case INT_ARGB_PRE:
+            case INT_ARGB:
+                System.arraycopy(argb, argbOffset, ints, pixel, w);
+                break;
+            case BYTE_BGRA_PRE:
+            case BYTE_BGRA:
+                argbToBGRA(argb, argbOffset, w, bytes, pixel * 4);
+                break;
+            case BYTE_RGB:
+                // Alpha is discarded, as for any opaque format
+                for (int i = argbOffset, o = pixel * 3; i < argbOffset + w; i++, o += 3) {
+                    int value = argb[i];
+
+                    bytes[o    ] = (byte) (value >> 16);
+                    bytes[o + 1] = (byte) (value >> 8);
+                    bytes[o + 2] = (byte) value;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unsupported pixel format: " + type);
+        }
+    }
+
+    private int readPixel(final int pixel) {
+        switch (type) {
+            case INT_ARGB_PRE:
+            case INT_ARGB:
+                return ints[pixel];
+            case BYTE_BGRA_PRE:
+            case BYTE_BGRA: {
+                int i = pixel * 4;
+                return (bytes[i + 3] & 0xff) << 24 | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i] & 0xff;
+            }
+            case BYTE_RGB: {
+                int i = pixel * 3;
+                return 0xff000000 | (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+            }
+            case BYTE_INDEXED:
+                return palette[bytes[pixel] & 0xff];
+            default:
+                throw new IllegalStateException("Unsupported pixel format: " + type);
+        }
+    }
+
+    private void writePixel(final int pixel, final int argb) {
+        switch (type) {
+            case INT_ARGB_PRE:
+            case INT_ARGB:
+                ints[pixel] = argb;
+                break;
+            case BYTE_BGRA_PRE:
+            case BYTE_BGRA: {
+                int o = pixel * 4;
+                bytes[o    ] = (byte) argb;
+                bytes[o + 1] = (byte) (argb >> 8);
+                bytes[o + 2] = (byte) (argb >> 16);
+                bytes[o + 3] = (byte) (argb >>> 24);
+                break;
+            }
+            case BYTE_RGB: {
+                // Alpha is discarded, as for any opaque format
+                int o = pixel * 3;
+                bytes[o    ] = (byte) (argb >> 16);
+                bytes[o + 1] = (byte) (argb >> 8);
+                bytes[o + 2] = (byte) argb;
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unsupported pixel format: " + type);
+        }
+    }
+
+    private int[] getSourcePalette(final PixelFormat<ByteBuffer> format) {
+        // Palettes are looked up one index at a time, so keep the last one, typically the same format is written many times
+        if (format != sourceFormat) {
+            sourcePalette = Arrays.copyOf(FXBufferedImage.getPalette(format), 256);
+            sourceFormat = format;
+        }
+
+        return sourcePalette;
+    }
+
+    private static void convertAlpha(final int[] argb, final int pixels, final boolean fromPremultiplied, final boolean toPremultiplied) {
+        convertAlpha(argb, 0, pixels, fromPremultiplied, toPremultiplied);
+    }
+
+    private static void convertAlpha(final int[] argb, final int offset, final int pixels, final boolean fromPremultiplied, final boolean toPremultiplied) {
+        if (fromPremultiplied && !toPremultiplied) {
+            PixelConversion.unpremultiply(argb, offset, pixels);
+        }
+        else if (!fromPremultiplied && toPremultiplied) {
+            PixelConversion.premultiply(argb, offset, pixels);
+        }
+    }
+
+    private static void bgraToARGB(final byte[] bgra, final int offset, final int pixels, final int[] argb) {
+        bgraToARGB(bgra, offset, pixels, argb, 0);
+    }
+
+    private static void bgraToARGB(final byte[] bgra, final int offset, final int pixels, final int[] argb, final int argbOffset) {
+        for (int p = 0, i = offset; p < pixels; p++, i += 4) {
+            argb[argbOffset + p] = (bgra[i + 3] & 0xff) << 24 | (bgra[i + 2] & 0xff) << 16 | (bgra[i + 1] & 0xff) << 8 | bgra[i] & 0xff;
+        }
+    }
+
+    private static void rgbToARGB(final byte[] rgb, final int offset, final int pixels, final int[] argb) {
+        rgbToARGB(rgb, offset, pixels, argb, 0);
+    }
+
+    private static void rgbToARGB(final byte[] rgb, final int offset, final int pixels, final int[] argb, final int argbOffset) {
+        for (int p = 0, i = offset; p < pixels; p++, i += 3) {
+            argb[argbOffset + p] = 0xff000000 | (rgb[i] & 0xff) << 16 | (rgb[i + 1] & 0xff) << 8 | rgb[i + 2] & 0xff;
+        }
+    }
+
+    private static void indexedToARGB(final byte[] indices, final int offset, final int pixels, final int[] palette, final int[] argb) {
+        indexedToARGB(indices, offset, pixels, palette, argb, 0);
+    }
+
+    private static void indexedToARGB(final byte[] indices, final int offset, final int pixels, final int[] palette, final int[] argb, final int argbOffset) {
+        for (int p = 0; p < pixels; p++) {
+            argb[argbOffset + p] = palette[indices[offset + p] & 0xff];
+        }
+    }
+
+    private static void argbToBGRA(final int[] argb, final int pixels, final byte[] bgra, final int offset) {
+        argbToBGRA(argb, 0, pixels, bgra, offset);
+    }
+
+    private static void argbToBGRA(final int[] argb, final int argbOffset, final int pixels, final byte[] bgra, final int offset) {
+        for (int p = 0, o = offset; p < pixels; p++, o += 4) {
+            int value = argb[argbOffset + p];
+
+            bgra[o    ] = (byte) value;
+            bgra[o + 1] = (byte) (value >> 8);
+            bgra[o + 2] = (byte) (value >> 16);
+            bgra[o + 3] = (byte) (value >>> 24);
+        }
+    }
+
+    private static void copyRows(final Object source, final int sourceOffset, final int sourceStride,
+                                 final Object destination, final int destinationOffset, final int destinationStride,
+                                 final int rowLength, final int rows) {
+        if (sourceStride == rowLength && destinationStride == rowLength) {
+            // Contiguous rows, copy in one go
+            System.arraycopy(source, sourceOffset, destination, destinationOffset, rowLength * rows);
+            return;
+        }
+
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(source, sourceOffset + r * sourceStride, destination, destinationOffset + r * destinationStride, rowLength);
+        }
+    }
+
+    private void checkWritable() {
+        if (type == PixelFormat.Type.BYTE_INDEXED) {
+            throw new UnsupportedOperationException("Indexed surfaces are read-only");
+        }
+    }
+
+    private void checkBounds(final int x, final int y, final int w, final int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+        }
+    }
+
+    @Override public String toString() {
+        return "HeapPixelSurface: " + width + "x" + height + " " + type;
+    }
+}
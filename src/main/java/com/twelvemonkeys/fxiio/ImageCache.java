@@ -0,0 +1,504 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageReadParam;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * A cache of decoded images, in front of {@link FXImageIO#read(Path, ImageReadParam)}.
+ * <p>
+ * Images are keyed by file path, last modified time and size, source region and subsampling.
+ * A file modified after it was read is thus read again, and stale entries for the same file are dropped.
+ * Images of an older version of a file, read concurrently with a newer version, are not cached.
+ * The cache holds images up to a budget of bytes, computed from the image dimensions and pixel format,
+ * evicting the least recently used images first.
+ * Optionally, evicted images are kept as soft references, until reused or reclaimed by the garbage collector.
+ * </p>
+ * <p>
+ * Concurrent reads of the same key are decoded only once, the other threads wait for the result.
+ * Images that could not be decoded are not cached.
+ * </p>
+ * <p>
+ * Cached images are shared, and must not be modified.
+ * This class is thread-safe.
+ * </p>
+ */
+public final class ImageCache {
+    private final long maxBytes;
+    private final boolean softSpill;
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<Key, WritableImage> entries = new LinkedHashMap<>(16, .75f, true);
+    private final Map<Key, SpilledImage> spilled = new HashMap<>();
+    private final ReferenceQueue<WritableImage> reclaimed = new ReferenceQueue<>();
+    private final ConcurrentMap<Key, CompletableFuture<WritableImage>> loading = new ConcurrentHashMap<>();
+    // The newest version of each file with images held, or kept as soft references
+    private final Map<Path, Version> versions = new HashMap<>();
+
+    // Guarded by lock
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a cache holding images up to the given number of bytes.
+     *
+     * @param maxBytes the maximum number of bytes of pixels held.
+     */
+    public ImageCache(final long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * Creates a cache holding images up to the given number of bytes.
+     *
+     * @param maxBytes the maximum number of bytes of pixels held.
+     * @param softSpill if {@code true}, evicted images are kept as soft references.
+     */
+    public ImageCache(final long maxBytes, final boolean softSpill) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes < 0: " + maxBytes);
+        }
+
+        this.maxBytes = maxBytes;
+        this.softSpill = softSpill;
+    }
+
+    /**
+     * Reads an image from the given file, or returns the cached image.
+     *
+     * @return a cached {@code WritableImage}, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     */
+    public WritableImage read(final Path path) throws IOException {
+        return read(path, null);
+    }
+
+    /**
+     * Reads an image from the given file, using the source region and subsampling settings of {@code param},
+     * or returns the cached image.
+     *
+     * @param param the source region and subsampling settings, may be {@code null}.
+     * @return a cached {@code WritableImage}, sized to the region and subsampling, or {@code null} if no reader could decode the file.
+     * @throws IOException if an error occurs during reading.
+     * @see FXImageIO#read(Path, ImageReadParam)
+     */
+    public WritableImage read(final Path path, final ImageReadParam param) throws IOException {
+        Key key = Key.create(path, param);
+
+        WritableImage image = get(key, true);
+        if (image != null) {
+            return image;
+        }
+
+        CompletableFuture<WritableImage> future = new CompletableFuture<>();
+        CompletableFuture<WritableImage> pending = loading.putIfAbsent(key, future);
+
+        if (pending != null) {
+            image = await(pending);
+
+            synchronized (lock) {
+                hits++;
+            }
+
+            return image;
+        }
+
+        try {
+            // Another thread may have completed the same load, since we looked
+            image = get(key, false);
+
+            if (image == null) {
+                synchronized (lock) {
+                    misses++;
+                }
+
+                image = FXImageIO.read(path, param);
+
+                if (image != null) {
+                    put(key, image);
+                }
+            }
+
+            future.complete(image);
+
+            return image;
+        }
+        catch (IOException | RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Removes all cached images read from the given file.
+     */
+    public void invalidate(final Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+
+        synchronized (lock) {
+            removeIf(key -> key.path.equals(normalized));
+        }
+    }
+
+    /**
+     * Removes all cached images.
+     */
+    public void invalidateAll() {
+        synchronized (lock) {
+            entries.clear();
+            spilled.clear();
+            versions.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes of pixels held.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of bytes of pixels currently held, not counting images kept as soft references.
+     */
+    public long getBytes() {
+        synchronized (lock) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     */
+    public Statistics getStatistics() {
+        synchronized (lock) {
+            return new Statistics(hits, misses, evictions, entries.size(), bytes);
+        }
+    }
+
+    private WritableImage get(final Key key, final boolean count) {
+        synchronized (lock) {
+            purgeReclaimed();
+
+            WritableImage image = entries.get(key);
+
+            if (image == null) {
+                SpilledImage reference = spilled.get(key);
+                image = reference != null ? reference.get() : null;
+
+                if (image != null) {
+                    put(key, image);
+                }
+                else if (reference != null) {
+                    spilled.remove(key);
+                    forget(key);
+                }
+            }
+
+            if (image != null && count) {
+                hits++;
+            }
+
+            return image;
+        }
+    }
+
+    private void put(final Key key, final WritableImage image) {
+        long size = FXImageIO.sizeOf(image);
+
+        synchronized (lock) {
+            // Different versions of a file may be read concurrently, an older version must not replace a newer one
+            Version version = versions.compute(key.path, (path, current) -> current == null || !current.key.hasSameStamp(key) && !current.key.isNewerThan(key)
+                                                                            ? new Version(key)
+                                                                            : current);
+            if (!version.key.hasSameStamp(key)) {
+                return;
+            }
+
+            // Entries for older versions of the same file will never be hit again
+            removeIf(other -> other.path.equals(key.path) && !other.hasSameStamp(key));
+
+            if (size > maxBytes) {
+                if (version.count == 0) {
+                    versions.remove(key.path);
+                }
+
+                return;
+            }
+
+            boolean added = spilled.remove(key) == null;
+
+            WritableImage previous = entries.put(key, image);
+            if (previous != null) {
+                bytes -= FXImageIO.sizeOf(previous);
+                added = false;
+            }
+            bytes += size;
+
+            if (added) {
+                version.count++;
+            }
+
+            for (Iterator<Map.Entry<Key, WritableImage>> iterator = entries.entrySet().iterator(); bytes > maxBytes && iterator.hasNext(); ) {
+                Map.Entry<Key, WritableImage> eldest = iterator.next();
+                iterator.remove();
+
+                bytes -= FXImageIO.sizeOf(eldest.getValue());
+                evictions++;
+
+                if (softSpill) {
+                    spilled.put(eldest.getKey(), new SpilledImage(eldest.getKey(), eldest.getValue(), reclaimed));
+                }
+                else {
+                    forget(eldest.getKey());
+                }
+            }
+        }
+    }
+
+    private void removeIf(final Predicate<Key> filter) {
+        for (Iterator<Map.Entry<Key, WritableImage>> iterator = entries.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Key, WritableImage> entry = iterator.next();
+
+            if (filter.test(entry.getKey())) {
+                iterator.remove();
+                bytes -= FXImageIO.sizeOf(entry.getValue());
+                forget(entry.getKey());
+            }
+        }
+
+        for (Iterator<Key> iterator = spilled.keySet().iterator(); iterator.hasNext(); ) {
+            Key key = iterator.next();
+
+            if (filter.test(key)) {
+                iterator.remove();
+                forget(key);
+            }
+        }
+    }
+
+    private void purgeReclaimed() {
+        SpilledImage reference;
+
+        while ((reference = (SpilledImage) reclaimed.poll()) != null) {
+            if (spilled.remove(reference.key, reference)) {
+                forget(reference.key);
+            }
+        }
+    }
+
+    /**
+     * Counts an image no longer held, nor kept as a soft reference, dropping the version of its file when none are left.
+     */
+    private void forget(final Key key) {
+        versions.computeIfPresent(key.path, (path, version) -> !version.key.hasSameStamp(key) || --version.count > 0 ? version : null);
+    }
+
+    private static WritableImage await(final CompletableFuture<WritableImage> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for image");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * A snapshot of the cache statistics.
+     */
+    public static final class Statistics {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int count;
+        private final long bytes;
+
+        Statistics(final long hits, final long misses, final long evictions, final int count, final long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.count = count;
+            this.bytes = bytes;
+        }
+
+        /** Returns the number of reads served from the cache, or by waiting for another thread reading the same image. */
+        public long getHits() {
+            return hits;
+        }
+
+        /** Returns the number of reads that decoded the image. */
+        public long getMisses() {
+            return misses;
+        }
+
+        /** Returns the number of images evicted to stay within the byte budget. */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /** Returns the number of images held. */
+        public int getCount() {
+            return count;
+        }
+
+        /** Returns the number of bytes of pixels held. */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Returns the ratio of hits to reads, or {@code 0} if there were no reads. */
+        public double getHitRate() {
+            long reads = hits + misses;
+            return reads == 0 ? 0 : (double) hits / reads;
+        }
+
+        @Override public String toString() {
+            return String.format("Statistics[hits=%d, misses=%d, evictions=%d, count=%d, bytes=%d]", hits, misses, evictions, count, bytes);
+        }
+    }
+
+    private static final class Key {
+        final Path path;
+        final long lastModified;
+        final long length;
+
+        final Rectangle sourceRegion;
+        final int xSubsampling;
+        final int ySubsampling;
+        final int xOffset;
+        final int yOffset;
+
+        private Key(final Path path, final long lastModified, final long length, final ImageReadParam param) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+
+            // Copy settings, as the param is mutable
+            sourceRegion = param != null && param.getSourceRegion() != null ? new Rectangle(param.getSourceRegion()) : null;
+            xSubsampling = param != null ? param.getSourceXSubsampling() : 1;
+            ySubsampling = param != null ? param.getSourceYSubsampling() : 1;
+            xOffset = param != null ? param.getSubsamplingXOffset() : 0;
+            yOffset = param != null ? param.getSubsamplingYOffset() : 0;
+        }
+
+        static Key create(final Path path, final ImageReadParam param) throws IOException {
+            Path normalized = path.toAbsolutePath().normalize();
+            BasicFileAttributes attributes = Files.readAttributes(normalized, BasicFileAttributes.class);
+
+            return new Key(normalized, attributes.lastModifiedTime().toMillis(), attributes.size(), param);
+        }
+
+        boolean hasSameStamp(final Key other) {
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        boolean isNewerThan(final Key other) {
+            return lastModified > other.lastModified;
+        }
+
+        @Override public boolean equals(final Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+
+            return hasSameStamp(key)
+                    && xSubsampling == key.xSubsampling && ySubsampling == key.ySubsampling
+                    && xOffset == key.xOffset && yOffset == key.yOffset
+                    && path.equals(key.path)
+                    && Objects.equals(sourceRegion, key.sourceRegion);
+        }
+
+        @Override public int hashCode() {
+            return Objects.hash(path, lastModified, length, sourceRegion, xSubsampling, ySubsampling, xOffset, yOffset);
+        }
+    }
+
+    /**
+     * A version of a file, and the number of its images held, or kept as soft references.
+     */
+    private static final class Version {
+        final Key key;
+        int count;
+
+        Version(final Key key) {
+            this.key = key;
+        }
+    }
+
+    private static final class SpilledImage extends SoftReference<WritableImage> {
+        final Key key;
+
+        SpilledImage(final Key key, final WritableImage image, final ReferenceQueue<WritableImage> queue) {
+            super(image, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Selects which of the image types offered by a reader to decode into, for a given JavaFX pixel format.
+ * <p>
+ * Each type is given a cost, depending on the conversion needed to store its pixels in the pixel format,
+ * and the cheapest type is selected. Types with the same cost are ordered as offered by the reader,
+ * which normally offers the type closest to the encoded data first.
+ * </p>
+ */
+final class ImageTypeNegotiation {
+    /** RGB(A) with matching (or no) alpha premultiplication, bulk copied with a byte shuffle, or as packed pixels into int formats. */
+    static final int DIRECT = 0;
+    /** Palette indices, converted by JavaFX when written. */
+    static final int INDEXED = 1;
+    /** Gray (and alpha), replicated to RGB. */
+    static final int GRAY = 2;
+    /** RGBA with different alpha premultiplication than the pixel format, premultiplied after, or converted by JavaFX. */
+    static final int PREMULTIPLY = 3;
+    /** RGB(A) or gray (and alpha) with more than 8 bits per component, or floating point, reduced to 8 bits when written. */
+    static final int REDUCE = 4;
+    /** Anything else, can not be stored without losing information, or at all. */
+    static final int UNSUPPORTED = Integer.MAX_VALUE;
+
+    private ImageTypeNegotiation() {}
+
+    /**
+     * Selects the image type to decode into.
+     *
+     * @return the cheapest image type, or the first image type if none are supported.
+     */
+    static ImageTypeSpecifier select(final ImageReader reader, final int imageIndex, final PixelFormat.Type target) throws IOException {
+        ImageTypeSpecifier first = null;
+        ImageTypeSpecifier best = null;
+        int bestCost = UNSUPPORTED;
+
+        for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(imageIndex); types.hasNext(); ) {
+            ImageTypeSpecifier spec = types.next();
+            int cost = cost(spec, target);
+
+            if (first == null) {
+                first = spec;
+            }
+            if (cost < bestCost) {
+                best = spec;
+                bestCost = cost;
+            }
+            if (cost == DIRECT) {
+                break;
+            }
+        }
+
+        return best != null ? best : first;
+    }
+
+    /**
+     * Selects the image type to decode into, if any is supported.
+     *
+     * @return the cheapest supported image type, or {@code null} if none are supported.
+     */
+    static ImageTypeSpecifier selectSupported(final ImageReader reader, final int imageIndex, final PixelFormat.Type target) throws IOException {
+        ImageTypeSpecifier spec = select(reader, imageIndex, target);
+        return spec != null && cost(spec, target) != UNSUPPORTED ? spec : null;
+    }
+
+    /**
+     * Computes the cost of storing pixels of the given image type in the given pixel format.
+     */
+    static int cost(final ImageTypeSpecifier spec, final PixelFormat.Type target) {
+        ColorModel colorModel = spec.getColorModel();
+
+        if (!hasByteComponents(colorModel)) {
+            // Samples are only reduced into byte images
+            boolean reducible = (target == PixelFormat.Type.BYTE_BGRA || target == PixelFormat.Type.BYTE_BGRA_PRE) && isReducible(spec);
+            return reducible ? REDUCE : UNSUPPORTED;
+        }
+
+        boolean premultiplied = target == PixelFormat.Type.INT_ARGB_PRE || target == PixelFormat.Type.BYTE_BGRA_PRE;
+        boolean matchingAlpha = !colorModel.hasAlpha() || colorModel.isAlphaPremultiplied() == premultiplied;
+
+        switch (target) {
+            case INT_ARGB_PRE:
+            case INT_ARGB:
+                // Packed pixels, as used by pixel buffers and mapped images
+                if (!PixelBufferImage.isSupported(spec)) {
+                    return UNSUPPORTED;
+                }
+
+                return matchingAlpha ? DIRECT : PREMULTIPLY;
+
+            case BYTE_BGRA_PRE:
+            case BYTE_BGRA:
+                if (colorModel instanceof IndexColorModel) {
+                    return INDEXED;
+                }
+
+                if (colorModel.getTransferType() != DataBuffer.TYPE_BYTE) {
+                    // Packed pixels, can not be stored in the byte data buffer of the image
+                    return UNSUPPORTED;
+                }
+
+                switch (colorModel.getColorSpace().getType()) {
+                    case ColorSpace.TYPE_RGB:
+                        if (spec.getNumBands() != colorModel.getNumComponents()) {
+                            return UNSUPPORTED;
+                        }
+
+                        return matchingAlpha ? DIRECT : PREMULTIPLY;
+
+                    case ColorSpace.TYPE_GRAY:
+                        if (spec.getNumBands() != colorModel.getNumComponents()) {
+                            return UNSUPPORTED;
+                        }
+
+                        return matchingAlpha ? GRAY : PREMULTIPLY;
+
+                    default:
+                        return UNSUPPORTED;
+                }
+
+            default:
+                // Read-only formats
+                return UNSUPPORTED;
+        }
+    }
+
+    private static boolean isReducible(final ImageTypeSpecifier spec) {
+        return SampleReduction.isSupported(spec.getColorModel()) && spec.getNumBands() == spec.getColorModel().getNumComponents();
+    }
+
+    private static boolean hasByteComponents(final ColorModel colorModel) {
+        if (colorModel instanceof IndexColorModel) {
+            return colorModel.getPixelSize() <= 8;
+        }
+
+        if (colorModel.getTransferType() == DataBuffer.TYPE_FLOAT || colorModel.getTransferType() == DataBuffer.TYPE_DOUBLE) {
+            return false;
+        }
+
+        for (int i = 0; i < colorModel.getNumComponents(); i++) {
+            if (colorModel.getComponentSize(i) != 8) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the fast and slow paths between ImageIO and JavaFX images.
+ * <p>
+ * Counting is enabled by the system property {@code com.twelvemonkeys.fxiio.instrumentation},
+ * and the counters are then also exposed as the MBean {@value #OBJECT_NAME}, unless an MBean of that name
+ * is already registered.
+ * When disabled, the counters are never touched, and the checks are removed by the JIT.
+ * </p>
+ * <p>
+ * Reads and writes are also recorded as JFR events, {@link ImageReadEvent} and {@link ImageWriteEvent},
+ * regardless of this property, when enabled in the JFR recording settings.
+ * </p>
+ *
+ * @see InstrumentationMBean
+ */
+final class Instrumentation implements InstrumentationMBean {
+    static final boolean ENABLED = Boolean.getBoolean("com.twelvemonkeys.fxiio.instrumentation");
+    static final String OBJECT_NAME = "com.twelvemonkeys.fxiio:type=Instrumentation";
+
+    /** Raster bulk operations, converting and transferring all pixels in one operation. */
+    static final LongAdder FAST_PATH = new LongAdder();
+    /** Raster operations falling back to the default implementation, accessing the data buffer one element at a time. */
+    static final LongAdder FALLBACK = new LongAdder();
+    /** Single pixels set through the raster, buffered in the row cache. */
+    static final LongAdder PIXELS = new LongAdder();
+    /** Element (or pixel) accesses served from the row cache. */
+    static final LongAdder ROW_CACHE_HITS = new LongAdder();
+    /** Element (or pixel) accesses that had to read a block of rows from the image. */
+    static final LongAdder ROW_CACHE_MISSES = new LongAdder();
+    /** Calls to {@code PixelReader.getPixels}. */
+    static final LongAdder PIXEL_READER_CALLS = new LongAdder();
+    /** Calls to {@code PixelWriter.setPixels}. */
+    static final LongAdder PIXEL_WRITER_CALLS = new LongAdder();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Instrumentation(), new ObjectName(OBJECT_NAME));
+            }
+            catch (JMException ignore) {
+                // Counting still works, just not exposed, typically as the MBean is registered by another class loader
+            }
+        }
+    }
+
+    private Instrumentation() {}
+
+    static void increment(final LongAdder counter) {
+        if (ENABLED) {
+            counter.increment();
+        }
+    }
+
+    @Override public long getFastPathCount() {
+        return FAST_PATH.sum();
+    }
+
+    @Override public long getFallbackCount() {
+        return FALLBACK.sum();
+    }
+
+    @Override public long getPixelCount() {
+        return PIXELS.sum();
+    }
+
+    @Override public long getRowCacheHitCount() {
+        return ROW_CACHE_HITS.sum();
+    }
+
+    @Override public long getRowCacheMissCount() {
+        return ROW_CACHE_MISSES.sum();
+    }
+
+    @Override public long getPixelReaderCallCount() {
+        return PIXEL_READER_CALLS.sum();
+    }
+
+    @Override public long getPixelWriterCallCount() {
+        return PIXEL_WRITER_CALLS.sum();
+    }
+
+    @Override public void reset() {
+        FAST_PATH.reset();
+        FALLBACK.reset();
+        PIXELS.reset();
+        ROW_CACHE_HITS.reset();
+        ROW_CACHE_MISSES.reset();
+        PIXEL_READER_CALLS.reset();
+        PIXEL_WRITER_CALLS.reset();
+    }
+}
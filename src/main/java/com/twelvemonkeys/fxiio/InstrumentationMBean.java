@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+/**
+ * Management interface for the counters of the fast and slow paths between ImageIO and JavaFX images.
+ * <p>
+ * Registered as {@code com.twelvemonkeys.fxiio:type=Instrumentation},
+ * when the system property {@code com.twelvemonkeys.fxiio.instrumentation} is {@code true}.
+ * A high fallback or row cache miss count, relative to the fast path count,
+ * means pixels are transferred one at a time, which is typically orders of magnitude slower.
+ * </p>
+ */
+public interface InstrumentationMBean {
+    /** Returns the number of raster bulk operations, transferring all pixels in one operation. */
+    long getFastPathCount();
+
+    /** Returns the number of raster operations falling back to accessing one data buffer element at a time. */
+    long getFallbackCount();
+
+    /** Returns the number of single pixels set through the raster. */
+    long getPixelCount();
+
+    /** Returns the number of data buffer accesses served from the row cache. */
+    long getRowCacheHitCount();
+
+    /** Returns the number of data buffer accesses that had to read rows from the image. */
+    long getRowCacheMissCount();
+
+    /** Returns the number of calls to {@code PixelReader.getPixels}. */
+    long getPixelReaderCallCount();
+
+    /** Returns the number of calls to {@code PixelWriter.setPixels}. */
+    long getPixelWriterCallCount();
+
+    /** Resets all counters to zero. */
+    void reset();
+}
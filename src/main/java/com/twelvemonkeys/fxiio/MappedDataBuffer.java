@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DataBuffer of packed {@code int} pixels, backed by memory mapped segments of a file.
+ * <p>
+ * A single mapping is limited to 2 GB, so the file is mapped in segments of whole rows,
+ * of at most {@link #MAX_SEGMENT_BYTES} each. The number of pixels is still limited by the
+ * {@code int} size of the {@code DataBuffer}, but the number of bytes is not.
+ * </p>
+ */
+final class MappedDataBuffer extends DataBuffer {
+    static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final int width;
+    private final int segmentRows;
+    private final int segmentSize;
+    private final IntBuffer[] segments;
+
+    MappedDataBuffer(final FileChannel channel, final int width, final int height) throws IOException {
+        super(TYPE_INT, checkSize(width, height));
+
+        this.width = width;
+        this.segmentRows = Math.min(height, MAX_SEGMENT_BYTES / 4 / width);
+        this.segmentSize = segmentRows * width;
+        this.segments = new IntBuffer[(height + segmentRows - 1) / segmentRows];
+
+        for (int i = 0; i < segments.length; i++) {
+            long position = (long) i * segmentSize * 4;
+            int rows = Math.min(segmentRows, height - i * segmentRows);
+
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) rows * width * 4)
+                                 .order(ByteOrder.nativeOrder())
+                                 .asIntBuffer();
+        }
+    }
+
+    private static int checkSize(final int width, final int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Width and height must be > 0: " + width + "x" + height);
+        }
+        if (width > MAX_SEGMENT_BYTES / 4) {
+            throw new IllegalArgumentException("Width too large: " + width);
+        }
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image too large: " + width + "x" + height);
+        }
+
+        return width * height;
+    }
+
+    @Override public int getElem(final int bank, final int i) {
+        int segment = i / segmentSize;
+        return segments[segment].get(i - segment * segmentSize);
+    }
+
+    @Override public void setElem(final int bank, final int i, final int val) {
+        int segment = i / segmentSize;
+        segments[segment].put(i - segment * segmentSize, val);
+    }
+
+    /**
+     * Returns a new view of the segment containing the given pixel, positioned at the pixel.
+     * Rows never span segments.
+     */
+    IntBuffer view(final int x, final int y) {
+        int segment = y / segmentRows;
+
+        IntBuffer view = segments[segment].duplicate();
+        view.position((y - segment * segmentRows) * width + x);
+
+        return view;
+    }
+}
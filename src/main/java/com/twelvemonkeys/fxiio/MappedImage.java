@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An image too large for the Java heap or texture memory, with pixels stored in a memory mapped scratch file.
+ * <p>
+ * Pixels are stored as packed 32 bit ARGB (or RGB) values, mapped in segments, so that images larger than 2 GB
+ * are supported. ImageIO encodes from, and decodes into, the mapped pixels directly,
+ * or one strip at the time for readers that can not decode into them.
+ * Parts of the image may be displayed using {@link #createViewport(int, int, int, int) viewports},
+ * small {@code WritableImage}s holding a copy of a window of the image.
+ * </p>
+ * <p>
+ * The scratch file is created in the directory given by the system property {@code com.twelvemonkeys.fxiio.scratchDir},
+ * or the default temporary directory, and deleted when the image is {@link #close() closed}.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @see FXImageIO#readMapped(Path, javax.imageio.ImageReadParam)
+ */
+public final class MappedImage implements Closeable {
+    private static final String SCRATCH_DIR = System.getProperty("com.twelvemonkeys.fxiio.scratchDir");
+
+    private final FileChannel channel;
+    private final BufferedImage image;
+
+    private MappedImage(final FileChannel channel, final BufferedImage image) {
+        this.channel = channel;
+        this.image = image;
+    }
+
+    /**
+     * Creates a new, fully transparent (or black, if {@code hasAlpha} is {@code false}), image.
+     *
+     * @throws IOException if the scratch file could not be created.
+     * @throws IllegalArgumentException if the image has more than {@code Integer.MAX_VALUE} pixels.
+     */
+    public static MappedImage create(final int width, final int height, final boolean hasAlpha) throws IOException {
+        return create(width, height, ImageTypeSpecifier.createFromBufferedImageType(hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+    }
+
+    static MappedImage create(final int width, final int height, final ImageTypeSpecifier spec) throws IOException {
+        Path file = SCRATCH_DIR != null ? Files.createTempFile(Paths.get(SCRATCH_DIR), "fxiio", ".raw") : Files.createTempFile("fxiio", ".raw");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+
+        try {
+            ColorModel colorModel = PixelBufferImage.createColorModel(spec);
+            MappedRaster raster = new MappedRaster(PixelBufferImage.createSampleModel(width, height, spec), new MappedDataBuffer(channel, width, height));
+
+            return new MappedImage(channel, new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null));
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    BufferedImage getBufferedImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * Creates a viewport, holding a copy of the given window of this image.
+     *
+     * @return a new {@code WritableImage} of size {@code width x height}.
+     * @see #updateViewport(WritableImage, int, int)
+     */
+    public WritableImage createViewport(final int x, final int y, final int width, final int height) {
+        WritableImage viewport = new WritableImage(width, height);
+        updateViewport(viewport, x, y);
+
+        return viewport;
+    }
+
+    /**
+     * Updates the viewport, with a copy of the window of this image at the given position, of the same size as the viewport.
+     * Any part of the window outside this image is left unchanged.
+     * <p>
+     * The viewport should only be updated on the JavaFX application thread, if it is attached to a scene.
+     * </p>
+     */
+    public void updateViewport(final WritableImage viewport, final int x, final int y) {
+        Rectangle window = new Rectangle(x, y, (int) viewport.getWidth(), (int) viewport.getHeight())
+                .intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+
+        if (window.isEmpty()) {
+            return;
+        }
+
+        int[] pixels = (int[]) image.getRaster().getDataElements(window.x, window.y, window.width, window.height, null);
+
+        ColorModel colorModel = image.getColorModel();
+        if (!colorModel.hasAlpha()) {
+            // The alpha bits are not part of the pixels, and may have any value
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] |= 0xff000000;
+            }
+        }
+
+        viewport.getPixelWriter().setPixels(window.x - x, window.y - y, window.width, window.height,
+                                            colorModel.isAlphaPremultiplied() ? PixelFormat.getIntArgbPreInstance() : PixelFormat.getIntArgbInstance(),
+                                            pixels, 0, window.width);
+    }
+
+    /**
+     * Writes the image to the given file, in the given format, encoding directly from the mapped pixels.
+     *
+     * @return {@code false} if no writer could encode the image in the given format.
+     * @throws IOException if an error occurs during writing.
+     */
+    public boolean write(final String formatName, final Path path) throws IOException {
+        return FXImageIO.write(image, formatName, path);
+    }
+
+    /**
+     * Closes and deletes the scratch file. The mapped memory is released once the image is garbage collected.
+     */
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override public String toString() {
+        return "MappedImage: " + getWidth() + "x" + getHeight() + " " + image.getColorModel();
+    }
+}
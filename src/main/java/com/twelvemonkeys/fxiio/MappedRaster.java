@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import java.awt.Point;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * WritableRaster backed by a {@link MappedDataBuffer}.
+ * Optimized for reading/writing rows of pixels, using bulk operations on the mapped segments,
+ * rather than accessing the data buffer one sample at the time.
+ */
+final class MappedRaster extends WritableRaster {
+    private final MappedDataBuffer mappedBuffer;
+
+    /** Bit offset into an ARGB pixel for each band. */
+    private final int[] argbShifts;
+
+    /** Scratch buffer for packing pixels, re-used to avoid allocation. */
+    private int[] argbBuffer;
+
+    MappedRaster(final SinglePixelPackedSampleModel sampleModel, final MappedDataBuffer dataBuffer) {
+        super(sampleModel, dataBuffer, new Point());
+
+        this.mappedBuffer = dataBuffer;
+        this.argbShifts = sampleModel.getBitOffsets();
+    }
+
+    @Override public Object getDataElements(final int x, final int y, final int w, final int h, final Object outData) {
+        // Overriden for better performance, reads rows in bulk
+        checkBounds(x, y, w, h);
+
+        int[] data = outData != null ? (int[]) outData : new int[w * h];
+        getRows(x, y, w, h, data);
+
+        return data;
+    }
+
+    @Override public void setDataElements(final int x, final int y, final int w, final int h, final Object inData) {
+        // Overriden for better performance, writes rows in bulk
+        checkBounds(x, y, w, h);
+        setRows(x, y, w, h, (int[]) inData);
+    }
+
+    @Override public int[] getPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
+        // Overriden for better performance, reads rows in bulk, and unpacks in place
+        checkBounds(x, y, w, h);
+
+        int[] pixels = iArray != null ? iArray : new int[w * h * numBands];
+        getRows(x, y, w, h, pixels);
+        PixelConversion.unpackARGB(pixels, w * h, argbShifts);
+
+        return pixels;
+    }
+
+    @Override public void setPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
+        // Overriden for better performance, packs and writes one row at the time
+        checkBounds(x, y, w, h);
+
+        int[] argb = getARGBBuffer(w);
+
+        for (int row = 0; row < h; row++) {
+            PixelConversion.packARGB(iArray, row * w * numBands, w, argbShifts, argb, 0);
+            setRows(x, y + row, w, 1, argb);
+        }
+    }
+
+    private void getRows(final int x, final int y, final int w, final int h, final int[] data) {
+        for (int row = 0; row < h; row++) {
+            mappedBuffer.view(x - minX, y - minY + row).get(data, row * w, w);
+        }
+    }
+
+    private void setRows(final int x, final int y, final int w, final int h, final int[] data) {
+        for (int row = 0; row < h; row++) {
+            mappedBuffer.view(x - minX, y - minY + row).put(data, row * w, w);
+        }
+    }
+
+    private int[] getARGBBuffer(final int pixels) {
+        if (argbBuffer == null || argbBuffer.length < pixels) {
+            argbBuffer = new int[pixels];
+        }
+
+        return argbBuffer;
+    }
+
+    private void checkBounds(final int x, final int y, final int w, final int h) {
+        if (x < minX || y < minY || w < 0 || h < 0 || x + w > minX + width || y + h > minY + height) {
+            throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads tiled images in parallel.
+ * <p>
+ * The image is split into tile-aligned regions, each decoded by a separate task with its own reader and stream,
+ * into a surface of its own, directly or staged, the same way as {@link FXImageIO#read(Path)}.
+ * The decoded regions are written to the {@code WritableImage} one at the time,
+ * as the pixel writer of the image is not safe for concurrent use.
+ * </p>
+ *
+ * @see FXImageIO#readParallel(Path, ForkJoinPool)
+ */
+final class ParallelTileReader {
+    // Number of regions per worker thread, to even out differences in decoding time between regions
+    private static final int REGIONS_PER_THREAD = 4;
+
+    private ParallelTileReader() {}
+
+    static WritableImage read(final Path path, final ForkJoinPool pool) throws IOException {
+        ImageReadEvent event = new ImageReadEvent();
+        event.begin();
+
+        WritableImage image;
+        ImageReader reader;
+        List<Rectangle> regions;
+
+        try (ImageInputStream stream = FXImageIO.createInputStream(path)) {
+            reader = FXImageIO.getReader(stream);
+            if (reader == null) {
+                return null;
+            }
+
+            try {
+                reader.setInput(stream, true, true);
+
+                regions = isTiled(reader) ? createRegions(reader, pool.getParallelism() * REGIONS_PER_THREAD) : null;
+
+                if (regions == null || regions.size() < 2) {
+                    // Nothing to gain, read the entire image on the current thread
+                    return FXImageIO.read(path);
+                }
+
+                image = new WritableImage(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally {
+                FXImageIO.release(reader);
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(regions.size());
+        for (Rectangle region : regions) {
+            tasks.add(() -> readRegion(path, region, image));
+        }
+
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading: " + path);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IIOException("Could not read: " + path, cause);
+        }
+
+        FXImageIO.commit(event, reader, image);
+
+        return image;
+    }
+
+    private static boolean isTiled(final ImageReader reader) throws IOException {
+        return reader.isImageTiled(0)
+                && (reader.getTileWidth(0) < reader.getWidth(0) || reader.getTileHeight(0) < reader.getHeight(0));
+    }
+
+    /**
+     * Groups the tiles into regions of whole tiles, either a number of full tile rows,
+     * or a number of tiles within a single tile row.
+     */
+    private static List<Rectangle> createRegions(final ImageReader reader, final int count) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int tileWidth = reader.getTileWidth(0);
+        int tileHeight = reader.getTileHeight(0);
+        int tileGridX = reader.getTileGridXOffset(0);
+        int tileGridY = reader.getTileGridYOffset(0);
+
+        int tilesAcross = (width - tileGridX + tileWidth - 1) / tileWidth;
+        int tilesDown = (height - tileGridY + tileHeight - 1) / tileHeight;
+        int tilesPerRegion = Math.max(1, (tilesAcross * tilesDown + count - 1) / count);
+
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        List<Rectangle> regions = new ArrayList<>();
+
+        if (tilesPerRegion >= tilesAcross) {
+            int rows = tilesPerRegion / tilesAcross;
+
+            for (int ty = 0; ty < tilesDown; ty += rows) {
+                regions.add(bounds.intersection(new Rectangle(tileGridX, tileGridY + ty * tileHeight, tilesAcross * tileWidth, rows * tileHeight)));
+            }
+        }
+        else {
+            for (int ty = 0; ty < tilesDown; ty++) {
+                for (int tx = 0; tx < tilesAcross; tx += tilesPerRegion) {
+                    regions.add(bounds.intersection(new Rectangle(tileGridX + tx * tileWidth, tileGridY + ty * tileHeight, tilesPerRegion * tileWidth, tileHeight)));
+                }
+            }
+        }
+
+        regions.removeIf(Rectangle::isEmpty);
+
+        return regions;
+    }
+
+    private static Void readRegion(final Path path, final Rectangle region, final WritableImage image) throws IOException {
+        HeapPixelSurface surface = new HeapPixelSurface(region.width, region.height, image.getPixelReader().getPixelFormat().getType());
+
+        try (ImageInputStream stream = FXImageIO.createInputStream(path)) {
+            ImageReader reader = FXImageIO.getReader(stream);
+            if (reader == null) {
+                throw new IIOException("No reader for: " + path);
+            }
+
+            try {
+                reader.setInput(stream, true, true);
+
+                StripStagingReader.read(reader, stream, 0, source -> {
+                    FXImageIO.read(source, 0, createReadParam(source, region), region, surface);
+                    return null;
+                });
+            }
+            finally {
+                FXImageIO.release(reader);
+            }
+        }
+
+        synchronized (image) {
+            image.getPixelWriter().setPixels(region.x, region.y, region.width, region.height, surface.getPixelReader(), 0, 0);
+        }
+
+        return null;
+    }
+
+    private static ImageReadParam createReadParam(final ImageReader reader, final Rectangle region) {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+
+        return param;
+    }
+}
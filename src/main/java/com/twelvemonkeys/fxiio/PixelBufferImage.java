@@ -0,0 +1,183 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.Point;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Support for decoding directly into the pixels of a JavaFX {@link PixelBuffer}.
+ * <p>
+ * The pixel buffer wraps an {@code int} array, which is exposed to ImageIO as a standard {@link DataBufferInt}
+ * with a {@link SinglePixelPackedSampleModel}, so that decoders write directly into the memory JavaFX renders from,
+ * without any intermediate copies.
+ * A heap buffer is used rather than a direct buffer, as the JDK decoders have fast paths for {@code DataBufferInt},
+ * while a direct buffer could only be accessed one sample at the time.
+ * </p>
+ * <p>
+ * Only image types offered by the reader as packed 8 bit RGB or ARGB {@code int}s are supported,
+ * as decoders write pixels in the layout of the type they offer, and some access the data buffer directly.
+ * Anything else must be converted.
+ * </p>
+ */
+final class PixelBufferImage {
+    private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+    private static final int[] RGBA_MASKS = {0xFF0000, 0xFF00, 0xFF, 0xFF000000};
+
+    private PixelBufferImage() {}
+
+    /**
+     * Returns {@code true} if images of the given type may be decoded directly into a pixel buffer.
+     */
+    static boolean isSupported(final ImageTypeSpecifier spec) {
+        ColorModel colorModel = spec.getColorModel();
+        SampleModel sampleModel = spec.getSampleModel();
+
+        if (colorModel.getColorSpace().getType() != ColorSpace.TYPE_RGB || colorModel instanceof IndexColorModel
+                || !(sampleModel instanceof SinglePixelPackedSampleModel) || sampleModel.getDataType() != DataBuffer.TYPE_INT) {
+            return false;
+        }
+
+        int[] masks = ((SinglePixelPackedSampleModel) sampleModel).getBitMasks();
+        return Arrays.equals(masks, colorModel.hasAlpha() ? RGBA_MASKS : RGB_MASKS);
+    }
+
+    /**
+     * Returns {@code true} if the pixels written by ImageIO need to be premultiplied, before they can be displayed.
+     */
+    static boolean needsPremultiply(final ImageTypeSpecifier spec) {
+        ColorModel colorModel = spec.getColorModel();
+        return colorModel.hasAlpha() && !colorModel.isAlphaPremultiplied();
+    }
+
+    static PixelBuffer<IntBuffer> createPixelBuffer(final int width, final int height, final ImageTypeSpecifier spec) {
+        return new PixelBuffer<>(width, height, IntBuffer.wrap(createPixels(width, height, spec)), PixelFormat.getIntArgbPreInstance());
+    }
+
+    /**
+     * Creates pixels for images of the given type, in the layout of a pixel buffer.
+     */
+    static int[] createPixels(final int width, final int height, final ImageTypeSpecifier spec) {
+        int[] pixels = new int[width * height];
+
+        if (!spec.getColorModel().hasAlpha()) {
+            // The alpha channel is not written by the decoder
+            Arrays.fill(pixels, 0xFF000000);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Creates a {@code BufferedImage} compatible with the given type, sharing the pixels of the pixel buffer.
+     */
+    static BufferedImage createBufferedImage(final PixelBuffer<IntBuffer> pixelBuffer, final ImageTypeSpecifier spec) {
+        return createBufferedImage(pixelBuffer.getBuffer().array(), pixelBuffer.getWidth(), pixelBuffer.getHeight(), spec);
+    }
+
+    /**
+     * Creates a {@code BufferedImage} compatible with the given type, sharing the given pixels, in the layout of a pixel buffer.
+     */
+    static BufferedImage createBufferedImage(final int[] pixels, final int width, final int height, final ImageTypeSpecifier spec) {
+        ColorModel colorModel = createColorModel(spec);
+        SinglePixelPackedSampleModel sampleModel = createSampleModel(width, height, spec);
+        WritableRaster raster = new PixelBufferRaster(sampleModel, new DataBufferInt(pixels, pixels.length));
+
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Creates a packed ARGB (or RGB) color model, compatible with the given (supported) type.
+     */
+    static DirectColorModel createColorModel(final ImageTypeSpecifier spec) {
+        ColorModel specColorModel = spec.getColorModel();
+        boolean hasAlpha = specColorModel.hasAlpha();
+
+        return new DirectColorModel(specColorModel.getColorSpace(), hasAlpha ? 32 : 24,
+                                    RGBA_MASKS[0], RGBA_MASKS[1], RGBA_MASKS[2], hasAlpha ? RGBA_MASKS[3] : 0,
+                                    specColorModel.isAlphaPremultiplied(), DataBuffer.TYPE_INT);
+    }
+
+    static SinglePixelPackedSampleModel createSampleModel(final int width, final int height, final ImageTypeSpecifier spec) {
+        return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, spec.getColorModel().hasAlpha() ? RGBA_MASKS : RGB_MASKS);
+    }
+
+    /**
+     * Premultiplies the pixels in the given region in place, as JavaFX pixel buffers are always premultiplied.
+     */
+    static void premultiply(final PixelBuffer<IntBuffer> pixelBuffer, final int x, final int y, final int width, final int height) {
+        int[] pixels = pixelBuffer.getBuffer().array();
+        int scanline = pixelBuffer.getWidth();
+
+        for (int row = y; row < y + height; row++) {
+            int offset = row * scanline;
+
+            for (int i = offset + x; i < offset + x + width; i++) {
+                pixels[i] = PixelConversion.premultiply(pixels[i]);
+            }
+        }
+    }
+
+    /**
+     * Raster over the pixels of a pixel buffer, packing whole rows of samples at the time.
+     * Decoders that write rows of a different layout than the destination, typically use
+     * {@code setRect}, which is implemented using {@code setPixels}.
+     */
+    private static final class PixelBufferRaster extends WritableRaster {
+        private final int[] pixels;
+        private final int[] shifts;
+
+        PixelBufferRaster(final SinglePixelPackedSampleModel sampleModel, final DataBufferInt dataBuffer) {
+            super(sampleModel, dataBuffer, new Point());
+
+            pixels = dataBuffer.getData();
+            shifts = sampleModel.getBitOffsets();
+        }
+
+        @Override public void setPixels(final int x, final int y, final int w, final int h, final int[] iArray) {
+            // Overriden for better performance, the default implementation sets one sample at the time
+            if (x < minX || y < minY || w < 0 || h < 0 || x + w > minX + width || y + h > minY + height) {
+                throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+            }
+
+            for (int row = 0; row < h; row++) {
+                PixelConversion.packARGB(iArray, row * w * numBands, w, shifts, pixels, (y - minY + row) * width + x - minX);
+            }
+        }
+    }
+}
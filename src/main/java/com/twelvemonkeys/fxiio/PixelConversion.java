@@ -0,0 +1,388 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+/**
+ * Conversions between the sample layouts used by ImageIO and the pixel layouts used by JavaFX.
+ * <p>
+ * Bands are described by their bit offsets ("shifts") into an ARGB pixel, i.e. {@code 16} for red,
+ * {@code 8} for green, {@code 0} for blue and {@code 24} for alpha.
+ * The byte BGRA layout uses the same description, the byte offset of a band is its shift / 8.
+ * The common RGBA and RGB band orders have dedicated loops, free of divisions and inner loops,
+ * that are simple enough for the JIT to unroll and vectorize.
+ * </p>
+ * <p>
+ * Conversions between premultiplied and non-premultiplied alpha use 64 KB lookup tables, one per direction,
+ * computed once with the same rounding as JavaFX, and applied to whole rows at a time.
+ * </p>
+ * <p>
+ * A gray band is described by the shift {@link #GRAY}, and is replicated to red, green and blue when packing,
+ * and read from red when unpacking. Gray may only be the first band, optionally followed by alpha.
+ * </p>
+ */
+final class PixelConversion {
+    /** Shift describing a gray band. */
+    static final int GRAY = -1;
+
+    // Lookup tables indexed by alpha << 8 | component, rounding the same way as JavaFX
+    private static final byte[] PREMULTIPLY = new byte[256 * 256];
+    private static final byte[] UNPREMULTIPLY = new byte[256 * 256];
+
+    static {
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                PREMULTIPLY[a << 8 | c] = (byte) ((c * a + 127) / 255);
+
+                // Fully transparent pixels are left as is, and components larger than alpha are clamped
+                UNPREMULTIPLY[a << 8 | c] = (byte) (a == 0 ? c : c >= a ? 0xff : (c * 0xff + (a >> 1)) / a);
+            }
+        }
+    }
+
+    private PixelConversion() {}
+
+    /**
+     * Unpacks ARGB pixels to one sample per band, in place.
+     *
+     * @param data ARGB pixels in the first {@code pixels} elements, must have room for {@code pixels * shifts.length} samples.
+     */
+    static void unpackARGB(final int[] data, final int pixels, final int[] shifts) {
+        // Loop from the back, to not overwrite pixels not yet unpacked
+        if (isRGBA(shifts)) {
+            for (int p = pixels - 1, i = p * 4; p >= 0; p--, i -= 4) {
+                int argb = data[p];
+
+                data[i + 3] = argb >>> 24;
+                data[i + 2] = argb & 0xff;
+                data[i + 1] = (argb >> 8) & 0xff;
+                data[i    ] = (argb >> 16) & 0xff;
+            }
+        }
+        else if (isRGB(shifts)) {
+            for (int p = pixels - 1, i = p * 3; p >= 0; p--, i -= 3) {
+                int argb = data[p];
+
+                data[i + 2] = argb & 0xff;
+                data[i + 1] = (argb >> 8) & 0xff;
+                data[i    ] = (argb >> 16) & 0xff;
+            }
+        }
+        else if (isGray(shifts)) {
+            int bands = shifts.length;
+
+            for (int p = pixels - 1, i = p * bands; p >= 0; p--, i -= bands) {
+                int argb = data[p];
+
+                if (bands > 1) {
+                    data[i + 1] = argb >>> 24;
+                }
+                data[i] = (argb >> 16) & 0xff;
+            }
+        }
+        else {
+            int bands = shifts.length;
+
+            for (int p = pixels - 1, i = p * bands; p >= 0; p--, i -= bands) {
+                int argb = data[p];
+
+                for (int b = bands - 1; b >= 0; b--) {
+                    data[i + b] = (argb >>> shifts[b]) & 0xff;
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs samples to ARGB pixels. Pixels are opaque, unless there's an alpha band.
+     * May be used in place, as {@code argb} elements are written only after the corresponding samples are read.
+     */
+    static void packARGB(final int[] samples, final int pixels, final int[] shifts, final int[] argb) {
+        packARGB(samples, 0, pixels, shifts, argb, 0);
+    }
+
+    /**
+     * Packs samples, starting at {@code samplesOffset}, to ARGB pixels, starting at {@code argbOffset}.
+     * Pixels are opaque, unless there's an alpha band.
+     */
+    static void packARGB(final int[] samples, final int samplesOffset, final int pixels, final int[] shifts, final int[] argb, final int argbOffset) {
+        if (isRGBA(shifts)) {
+            for (int p = argbOffset, i = samplesOffset; p < argbOffset + pixels; p++, i += 4) {
+                argb[p] = (samples[i + 3] & 0xff) << 24 | (samples[i] & 0xff) << 16 | (samples[i + 1] & 0xff) << 8 | samples[i + 2] & 0xff;
+            }
+        }
+        else if (isRGB(shifts)) {
+            for (int p = argbOffset, i = samplesOffset; p < argbOffset + pixels; p++, i += 3) {
+                argb[p] = 0xff000000 | (samples[i] & 0xff) << 16 | (samples[i + 1] & 0xff) << 8 | samples[i + 2] & 0xff;
+            }
+        }
+        else if (isGray(shifts)) {
+            int bands = shifts.length;
+
+            for (int p = argbOffset, i = samplesOffset; p < argbOffset + pixels; p++, i += bands) {
+                int alpha = bands > 1 ? (samples[i + 1] & 0xff) << 24 : 0xff000000;
+                argb[p] = alpha | (samples[i] & 0xff) * 0x010101;
+            }
+        }
+        else {
+            int bands = shifts.length;
+            int opaque = hasAlpha(shifts) ? 0 : 0xff000000;
+
+            for (int p = argbOffset, i = samplesOffset; p < argbOffset + pixels; p++, i += bands) {
+                int value = opaque;
+
+                for (int b = 0; b < bands; b++) {
+                    value |= (samples[i + b] & 0xff) << shifts[b];
+                }
+
+                argb[p] = value;
+            }
+        }
+    }
+
+    /**
+     * Packs the samples of a single pixel to ARGB. The pixel is opaque, unless there's an alpha band.
+     */
+    static int packARGB(final int[] samples, final int[] shifts) {
+        int argb = hasAlpha(shifts) ? 0 : 0xff000000;
+
+        for (int b = 0; b < shifts.length; b++) {
+            argb |= shifts[b] == GRAY ? (samples[b] & 0xff) * 0x010101 : (samples[b] & 0xff) << shifts[b];
+        }
+
+        return argb;
+    }
+
+    /**
+     * Converts BGRA pixels to one (byte) sample per band.
+     */
+    static void bgraToSamples(final byte[] bgra, final int pixels, final int[] shifts, final byte[] samples) {
+        if (isRGBA(shifts)) {
+            for (int p = 0, i = 0; p < pixels; p++, i += 4) {
+                samples[i    ] = bgra[i + 2];
+                samples[i + 1] = bgra[i + 1];
+                samples[i + 2] = bgra[i    ];
+                samples[i + 3] = bgra[i + 3];
+            }
+        }
+        else if (isRGB(shifts)) {
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, i += 3, o += 4) {
+                samples[i    ] = bgra[o + 2];
+                samples[i + 1] = bgra[o + 1];
+                samples[i + 2] = bgra[o    ];
+            }
+        }
+        else if (isGray(shifts)) {
+            int bands = shifts.length;
+
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, i += bands, o += 4) {
+                samples[i] = bgra[o + 2];
+
+                if (bands > 1) {
+                    samples[i + 1] = bgra[o + 3];
+                }
+            }
+        }
+        else {
+            int bands = shifts.length;
+
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, o += 4) {
+                for (int b = 0; b < bands; b++) {
+                    samples[i++] = bgra[o + (shifts[b] >> 3)];
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts (byte) samples to BGRA pixels. Pixels are opaque, unless there's an alpha band.
+     */
+    static void samplesToBGRA(final byte[] samples, final int pixels, final int[] shifts, final byte[] bgra) {
+        if (isRGBA(shifts)) {
+            for (int p = 0, i = 0; p < pixels; p++, i += 4) {
+                bgra[i    ] = samples[i + 2];
+                bgra[i + 1] = samples[i + 1];
+                bgra[i + 2] = samples[i    ];
+                bgra[i + 3] = samples[i + 3];
+            }
+        }
+        else if (isRGB(shifts)) {
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, i += 3, o += 4) {
+                bgra[o    ] = samples[i + 2];
+                bgra[o + 1] = samples[i + 1];
+                bgra[o + 2] = samples[i    ];
+                bgra[o + 3] = (byte) 0xff;
+            }
+        }
+        else if (isGray(shifts)) {
+            int bands = shifts.length;
+
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, i += bands, o += 4) {
+                byte gray = samples[i];
+
+                bgra[o    ] = gray;
+                bgra[o + 1] = gray;
+                bgra[o + 2] = gray;
+                bgra[o + 3] = bands > 1 ? samples[i + 1] : (byte) 0xff;
+            }
+        }
+        else {
+            int bands = shifts.length;
+            boolean opaque = !hasAlpha(shifts);
+
+            for (int p = 0, i = 0, o = 0; p < pixels; p++, o += 4) {
+                for (int b = 0; b < bands; b++) {
+                    bgra[o + (shifts[b] >> 3)] = samples[i++];
+                }
+
+                if (opaque) {
+                    bgra[o + 3] = (byte) 0xff;
+                }
+            }
+        }
+    }
+
+    /**
+     * Premultiplies the color components of a single ARGB pixel with its alpha, rounding the same way as JavaFX.
+     */
+    static int premultiply(final int argb) {
+        int a = argb >>> 24;
+
+        if (a == 0xff) {
+            return argb;
+        }
+
+        int row = a << 8;
+
+        return a << 24
+                | (PREMULTIPLY[row | (argb >> 16) & 0xff] & 0xff) << 16
+                | (PREMULTIPLY[row | (argb >> 8) & 0xff] & 0xff) << 8
+                | PREMULTIPLY[row | argb & 0xff] & 0xff;
+    }
+
+    /**
+     * Divides the color components of a single premultiplied ARGB pixel by its alpha, rounding the same way as JavaFX.
+     */
+    static int unpremultiply(final int argb) {
+        int a = argb >>> 24;
+
+        if (a == 0xff || a == 0) {
+            return argb;
+        }
+
+        int row = a << 8;
+
+        return a << 24
+                | (UNPREMULTIPLY[row | (argb >> 16) & 0xff] & 0xff) << 16
+                | (UNPREMULTIPLY[row | (argb >> 8) & 0xff] & 0xff) << 8
+                | UNPREMULTIPLY[row | argb & 0xff] & 0xff;
+    }
+
+    /**
+     * Premultiplies ARGB pixels, in place.
+     */
+    static void premultiply(final int[] argb, final int offset, final int pixels) {
+        convertAlpha(argb, offset, pixels, PREMULTIPLY);
+    }
+
+    /**
+     * Divides premultiplied ARGB pixels by their alpha, in place.
+     */
+    static void unpremultiply(final int[] argb, final int offset, final int pixels) {
+        convertAlpha(argb, offset, pixels, UNPREMULTIPLY);
+    }
+
+    private static void convertAlpha(final int[] argb, final int offset, final int pixels, final byte[] table) {
+        for (int i = offset; i < offset + pixels; i++) {
+            int pixel = argb[i];
+            int a = pixel >>> 24;
+
+            // Opaque pixels are the same in both forms
+            if (a != 0xff) {
+                int row = a << 8;
+
+                argb[i] = a << 24
+                        | (table[row | (pixel >> 16) & 0xff] & 0xff) << 16
+                        | (table[row | (pixel >> 8) & 0xff] & 0xff) << 8
+                        | table[row | pixel & 0xff] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Premultiplies BGRA pixels, in place.
+     */
+    static void premultiply(final byte[] bgra, final int offset, final int pixels) {
+        convertAlpha(bgra, offset, pixels, PREMULTIPLY);
+    }
+
+    /**
+     * Divides premultiplied BGRA pixels by their alpha, in place.
+     */
+    static void unpremultiply(final byte[] bgra, final int offset, final int pixels) {
+        convertAlpha(bgra, offset, pixels, UNPREMULTIPLY);
+    }
+
+    private static void convertAlpha(final byte[] bgra, final int offset, final int pixels, final byte[] table) {
+        for (int i = offset; i < offset + pixels * 4; i += 4) {
+            int a = bgra[i + 3] & 0xff;
+
+            if (a != 0xff) {
+                int row = a << 8;
+
+                bgra[i    ] = table[row | bgra[i    ] & 0xff];
+                bgra[i + 1] = table[row | bgra[i + 1] & 0xff];
+                bgra[i + 2] = table[row | bgra[i + 2] & 0xff];
+            }
+        }
+    }
+
+    static boolean hasAlpha(final int[] shifts) {
+        for (int shift : shifts) {
+            if (shift == 24) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isRGBA(final int[] shifts) {
+        return shifts.length == 4 && shifts[0] == 16 && shifts[1] == 8 && shifts[2] == 0 && shifts[3] == 24;
+    }
+
+    private static boolean isGray(final int[] shifts) {
+        return shifts[0] == GRAY;
+    }
+
+    private static boolean isRGB(final int[] shifts) {
+        return shifts.length == 3 && shifts[0] == 16 && shifts[1] == 8 && shifts[2] == 0;
+    }
+}
@@ -27,23 +27,56 @@ CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
 OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
 OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package com.twelvemonkeys.fxiio;
 
 import javafx.scene.image.*;
 
+import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
- * DataBuffer implementation backed by a JavaFX {@link PixelReader}.
+ * DataBuffer implementation backed by a JavaFX {@link PixelReader}, of an FX image or a {@link PixelSurface heap surface}.
  * Optimized for reading/writing rows of pixels (which is normally the case for writing using ImageIO).
- * Probably slow for random access.
+ * <p>
+ * Pixels are cached in blocks of consecutive rows, fetched using a single {@code PixelReader.getPixels} call,
+ * so sequential scans prefetch the following rows.
+ * Blocks are evicted in least recently used order, when the memory budget for the image is exceeded.
+ * This makes tile or column wise access reasonably fast, as long as the tiles fit in the cache.
+ * The budget and the number of rows per block may be configured using the system properties
+ * {@code com.twelvemonkeys.fxiio.cacheBudget} (bytes per image) and {@code com.twelvemonkeys.fxiio.cacheBlockRows}.
+ * </p>
+ * <p>
+ * Writes are buffered, and the changed region of a block is written back to the {@link PixelWriter}
+ * in a single operation, whenever the block is evicted, or when {@link #flush()} is invoked.
+ * Always invoke {@code flush()} after writing, to make sure the FX image is complete.
+ * </p>
+ * <p>
+ * Blocks hold pixels premultiplied or not, as specified by the color model, so that data elements have the meaning
+ * the color model gives them, also when the image stores pixels the other way (like a non-premultiplied
+ * {@code TYPE_4BYTE_ABGR} raster over a premultiplied {@code WritableImage}).
+ * Blocks are then converted using the {@link PixelConversion} tables, when read and when written back.
+ * </p>
+ * <p>
+ * Each thread using the buffer gets a block cache of its own (and budget), so concurrent reads, like writers
+ * encoding the same image concurrently, are safe. Changes are buffered in the cache of the writing thread, and
+ * written back when it invokes {@link #flush()} or {@link #release()}, which also returns its blocks to the pool.
+ * Every write back to the FX image bumps the generation of the buffer, and a cache validated against an older
+ * generation writes back its own changes and drops its blocks before use, so no thread reads stale pixels
+ * written by another.
+ * </p>
  */
 abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
+    static final long DEFAULT_CACHE_BUDGET = Long.getLong("com.twelvemonkeys.fxiio.cacheBudget", 4 * 1024 * 1024);
+    static final int DEFAULT_CACHE_BLOCK_ROWS = Integer.getInteger("com.twelvemonkeys.fxiio.cacheBlockRows", 16);
+
     protected final int width;
+    protected final int height;
     protected final int sampleSize;
 
     protected final PixelReader pixelReader;
@@ -51,26 +84,68 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
     protected final WritablePixelFormat<T> writablePixelFormat;
     protected final int writableFormatSampleSize;
 
-    protected int bufferedRow = -1;
+    // Whether the cached blocks hold premultiplied pixels, as specified by the color model
+    protected final boolean premultiplied;
+
+    // Each block holds blockRows consecutive rows
+    protected final int blockRows;
+    private final int blockCount;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicLongFieldUpdater<PixelReaderDataBuffer> GENERATION =
+            AtomicLongFieldUpdater.newUpdater(PixelReaderDataBuffer.class, "generation");
+
+    // Bumped on every write back to the FX image, caches of an older generation may hold stale pixels
+    private volatile long generation;
+
+    // Block cache of each thread using the buffer, until it invokes release()
+    private final ThreadLocal<BlockCache> threadCaches;
 
     @SuppressWarnings("unchecked") PixelReaderDataBuffer(final int type,
                                                          final int width,
                                                          final int height,
                                                          final int sampleSize,
+                                                         final int blockPixelBytes,
                                                          final PixelReader pixelReader,
-                                                         final PixelWriter pixelWriter) {
-        super(type, getBufferSize(width, height, pixelReader));
+                                                         final PixelWriter pixelWriter,
+                                                         final boolean premultiplied) {
+        super(type, sampleSize * width * height);
         this.width = width;
+        this.height = height;
         this.sampleSize = sampleSize;
         this.pixelReader = pixelReader;
         this.pixelWriter = pixelWriter;
         this.writablePixelFormat = getWritablePixelFormat(pixelReader.getPixelFormat());
         this.writableFormatSampleSize = FXBufferedImage.getSampleSize(writablePixelFormat);
+        this.premultiplied = premultiplied;
+
+        // Fit as many blocks as the budget allows, but always at least one row
+        long rowBytes = (long) width * blockPixelBytes;
+        this.blockRows = (int) Math.max(1, Math.min(Math.min(DEFAULT_CACHE_BLOCK_ROWS, height), DEFAULT_CACHE_BUDGET / Math.max(1, rowBytes)));
+        this.blockCount = (int) Math.max(1, Math.min((height + blockRows - 1) / blockRows, DEFAULT_CACHE_BUDGET / (rowBytes * blockRows)));
+
+        this.threadCaches = ThreadLocal.withInitial(() -> new BlockCache(blockCount));
     }
 
-    public static DataBuffer createDataBuffer(final Image image) {
-        PixelReader pixelReader = image.getPixelReader();
-        PixelWriter pixelWriter = image instanceof WritableImage ? ((WritableImage) image).getPixelWriter() : null;
+    /**
+     * Creates a data buffer for the given surface.
+     * If the color model is an {@code IndexColorModel}, the buffer holds one byte palette index per pixel,
+     * regardless of the pixel format of the surface.
+     * If the color model has samples of more than 8 bits, or floating point, the buffer holds samples of the
+     * transfer type of the color model, reduced to 8 bits when written back.
+     */
+    public static DataBuffer createDataBuffer(final PixelSurface surface, final ColorModel colorModel) {
+        int width = surface.getWidth();
+        int height = surface.getHeight();
+        PixelReader pixelReader = surface.getPixelReader();
+        PixelWriter pixelWriter = surface.getPixelWriter();
+
+        if (colorModel instanceof IndexColorModel) {
+            return new PixelReaderDataBufferIndexed(width, height, pixelReader, pixelWriter, (IndexColorModel) colorModel);
+        }
+        if (SampleReduction.isSupported(colorModel)) {
+            return new PixelReaderDataBufferReduced(width, height, pixelReader, pixelWriter, colorModel);
+        }
 
         @SuppressWarnings("rawtypes")
         PixelFormat pixelFormat = pixelReader.getPixelFormat();
@@ -78,21 +153,16 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
         switch (pixelFormat.getType()) {
             case INT_ARGB_PRE:
             case INT_ARGB:
-                return new PixelReaderDataBufferInt((int) image.getWidth(), (int) image.getHeight(), pixelReader, pixelWriter);
+                return new PixelReaderDataBufferInt(width, height, pixelReader, pixelWriter, colorModel.isAlphaPremultiplied());
             case BYTE_BGRA_PRE:
             case BYTE_BGRA:
             case BYTE_RGB:
-            case BYTE_INDEXED:
-                return new PixelReaderDataBufferByte((int) image.getWidth(), (int) image.getHeight(), pixelReader, pixelWriter);
+                return new PixelReaderDataBufferByte(width, height, pixelReader, pixelWriter, colorModel.hasAlpha(), colorModel.isAlphaPremultiplied());
             default:
                 throw new IllegalArgumentException("Unsupported pixel format: " + pixelFormat.getType());
         }
     }
 
-    private static int getBufferSize(final int width, final int height, final PixelReader pixelReader) {
-        return FXBufferedImage.getSampleSize(pixelReader.getPixelFormat()) * width * height;
-    }
-
     @SuppressWarnings("rawtypes")
     private static WritablePixelFormat getWritablePixelFormat(final PixelFormat format) {
         return format instanceof WritablePixelFormat ? (WritablePixelFormat) format : PixelFormat.getByteBgraInstance();
@@ -102,14 +172,369 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
         throw new UnsupportedOperationException("DataBuffer is read-only");
     }
 
+    /**
+     * Returns the block cache of the current thread, emptied first if another thread wrote to the FX image since
+     * it was last validated.
+     */
+    protected final BlockCache cache() {
+        BlockCache cache = threadCaches.get();
+
+        if (cache.generation != generation) {
+            revalidate(cache);
+        }
+
+        return cache;
+    }
+
+    private void revalidate(final BlockCache cache) {
+        for (int block = 0; block < blockCount; block++) {
+            flush(cache, block);
+        }
+
+        // Read after our own write backs, any later write by another thread is detected on next use
+        long current = generation;
+
+        for (int block = 0; block < blockCount; block++) {
+            // Keep the array for re-use, empty blocks are picked first
+            cache.blockStart[block] = -1;
+            cache.blockUsed[block] = 0;
+        }
+
+        cache.generation = current;
+    }
+
+    /**
+     * Bumps the generation after the current thread wrote to the FX image, making the caches of other threads stale.
+     * The cache of the current thread stays valid, unless another thread wrote since it was validated.
+     */
+    private void written(final BlockCache cache) {
+        long validated = cache.generation;
+
+        if (GENERATION.compareAndSet(this, validated, validated + 1)) {
+            cache.generation = validated + 1;
+        }
+        else {
+            GENERATION.incrementAndGet(this);
+        }
+    }
+
+    /**
+     * Writes any pending changes in the cached blocks of the current thread back to the FX image.
+     */
+    public final void flush() {
+        BlockCache cache = cache();
+
+        for (int block = 0; block < blockCount; block++) {
+            flush(cache, block);
+        }
+    }
+
+    /**
+     * Writes any pending changes of the current thread back to the FX image, and returns its cached blocks to
+     * the scratch buffer pool.
+     * The buffer is still usable after release, blocks are then borrowed again as needed.
+     */
+    final void release() {
+        BlockCache cache = cache();
+
+        for (int block = 0; block < blockCount; block++) {
+            flush(cache, block);
+
+            releaseBlock(cache.blocks[block]);
+            cache.blocks[block] = null;
+            cache.blockStart[block] = -1;
+            cache.blockUsed[block] = 0;
+        }
+
+        threadCaches.remove();
+    }
+
+    /**
+     * Writes any pending changes of the current thread back to the FX image, and empties its cached blocks overlapping
+     * rows {@code y} to {@code y + h} (exclusive), before these rows are written directly to the FX image.
+     * Otherwise, the cached blocks would return the old pixels, and a later write back could overwrite the new pixels.
+     * The caches of other threads are made stale as well.
+     */
+    final void invalidate(final int y, final int h) {
+        BlockCache cache = cache();
+
+        for (int block = 0; block < blockCount; block++) {
+            flush(cache, block);
+
+            int start = cache.blockStart[block];
+            if (start >= 0 && start < y + h && start + blockRows > y) {
+                // Keep the array for re-use, empty blocks are picked first
+                cache.blockStart[block] = -1;
+                cache.blockUsed[block] = 0;
+            }
+        }
+
+        written(cache);
+    }
+
+    private void flush(final BlockCache cache, final int block) {
+        if (cache.dirtyMaxX[block] > cache.dirtyMinX[block]) {
+            Instrumentation.increment(Instrumentation.PIXEL_WRITER_CALLS);
+
+            int x = cache.dirtyMinX[block];
+            int y = cache.dirtyMinY[block];
+            writeBlock(cache.blocks[block], pixelOffset(cache, block, x, y), x, y, cache.dirtyMaxX[block] - x, cache.dirtyMaxY[block] - y);
+            cache.clearDirty(block);
+            written(cache);
+        }
+    }
+
+    /**
+     * Marks the pixel at {@code x, y} in the given block as changed, after updating the block.
+     * Changes are written back on flush, or when the block is evicted.
+     */
+    protected final void changed(final BlockCache cache, final int block, final int x, final int y) {
+        cache.markDirty(block, x, y);
+    }
+
+    /**
+     * Makes sure row {@code y} is cached, evicting the least recently used block if needed.
+     *
+     * @return the index of the block holding row {@code y}
+     */
+    protected final int bufferRow(final BlockCache cache, final int y) {
+        int block = cache.currentBlock;
+        int start = cache.blockStart[block];
+
+        if (start < 0 || y < start || y >= start + blockRows) {
+            block = findBlock(cache, y - y % blockRows);
+            cache.currentBlock = block;
+        }
+        else {
+            Instrumentation.increment(Instrumentation.ROW_CACHE_HITS);
+        }
+
+        cache.blockUsed[block] = ++cache.useCount;
+
+        return block;
+    }
+
+    private int findBlock(final BlockCache cache, final int start) {
+        int leastRecentlyUsed = 0;
+
+        for (int block = 0; block < blockCount; block++) {
+            if (cache.blockStart[block] == start) {
+                Instrumentation.increment(Instrumentation.ROW_CACHE_HITS);
+                return block;
+            }
+            if (cache.blockUsed[block] < cache.blockUsed[leastRecentlyUsed]) {
+                leastRecentlyUsed = block;
+            }
+        }
+
+        // Cache miss, evict and re-use the least recently used block (empty blocks are always picked first)
+        Instrumentation.increment(Instrumentation.ROW_CACHE_MISSES);
+        Instrumentation.increment(Instrumentation.PIXEL_READER_CALLS);
+
+        flush(cache, leastRecentlyUsed);
+        cache.blocks[leastRecentlyUsed] = readBlock(cache.blocks[leastRecentlyUsed], start, Math.min(blockRows, height - start));
+        cache.blockStart[leastRecentlyUsed] = start;
+
+        return leastRecentlyUsed;
+    }
+
+    /**
+     * Computes the offset (in pixels) of pixel {@code x, y} into the given block.
+     */
+    protected final int pixelOffset(final BlockCache cache, final int block, final int x, final int y) {
+        return (y - cache.blockStart[block]) * width + x;
+    }
+
+    protected final void checkWritable(final int bank) {
+        if (pixelWriter == null) {
+            throw new UnsupportedOperationException("DataBuffer is read-only");
+        }
+        if (bank > 0) {
+            throw new IndexOutOfBoundsException("bank (" + bank + ") >= numBanks (" + 1 + ")");
+        }
+    }
+
+    /**
+     * Returns the format used for writing palette indices, or {@code null} if the buffer does not hold indices.
+     */
+    PixelFormat<ByteBuffer> getIndexedFormat() {
+        return null;
+    }
+
+    /**
+     * Sets the samples of a single pixel, reduced to 8 bits when written back on flush.
+     * Only supported for color models with samples of more than 8 bits, or floating point.
+     */
+    void setReducedPixel(final int x, final int y, final int[] samples) {
+        throw new UnsupportedOperationException("DataBuffer does not reduce samples");
+    }
+
+    /**
+     * Writes the samples of the region {@code x, y, w, h} directly to the FX image, reduced to 8 bits.
+     * Only supported for color models with samples of more than 8 bits, or floating point.
+     */
+    void setReducedPixels(final int x, final int y, final int w, final int h, final int[] samples) {
+        throw new UnsupportedOperationException("DataBuffer does not reduce samples");
+    }
+
+    /**
+     * Writes the samples of the region {@code x, y, w, h} directly to the FX image, reduced to 8 bits.
+     * Only supported for color models with samples of more than 8 bits, or floating point.
+     */
+    void setReducedPixels(final int x, final int y, final int w, final int h, final float[] samples) {
+        throw new UnsupportedOperationException("DataBuffer does not reduce samples");
+    }
+
+    /**
+     * Sets a single pixel, from an ARGB value, premultiplied or not. The pixel is written back on flush.
+     */
+    abstract void setArgb(int x, int y, int argb, boolean premultiplied);
+
+    /**
+     * Converts an ARGB value, premultiplied or not, to the form of the cached blocks.
+     */
+    final int toBlockFormat(final int argb, final boolean argbPremultiplied) {
+        if (argbPremultiplied == premultiplied) {
+            return argb;
+        }
+
+        return argbPremultiplied ? PixelConversion.unpremultiply(argb) : PixelConversion.premultiply(argb);
+    }
+
+    /**
+     * Returns whether blocks are converted between the form of the color model and the writable pixel format,
+     * when read and written back.
+     */
+    final boolean isConverted() {
+        return premultiplied != writablePixelFormat.isPremultiplied();
+    }
+
+    /**
+     * Reads {@code rows} rows starting at row {@code y} from the PixelReader into the given block array,
+     * or into a new array if {@code null}.
+     *
+     * @return the block array
+     */
+    protected abstract Object readBlock(Object block, int y, int rows);
+
+    /** Writes the region {@code x, y, w, h}, starting at pixel {@code offset} of the given block array, to the PixelWriter. */
+    protected abstract void writeBlock(Object block, int offset, int x, int y, int w, int h);
+
+    /** Returns a block array to the scratch buffer pool. {@code null} is ignored. */
+    protected abstract void releaseBlock(Object block);
+
+    /**
+     * The cached blocks of one thread, each block holding {@code blockRows} rows, or empty.
+     */
+    static final class BlockCache {
+        // The arrays of each block (the type depends on the buffer), and the first row (-1 means empty)
+        final Object[] blocks;
+        final int[] blockStart;
+        final long[] blockUsed;
+        long useCount;
+        int currentBlock;
+
+        // The generation of the buffer the blocks were validated against
+        long generation;
+
+        // Dirty region of each block, in pixels (end is exclusive)
+        private final int[] dirtyMinX;
+        private final int[] dirtyMaxX;
+        private final int[] dirtyMinY;
+        private final int[] dirtyMaxY;
+
+        BlockCache(final int blocks) {
+            this.blocks = new Object[blocks];
+            this.blockStart = new int[blocks];
+            this.blockUsed = new long[blocks];
+            this.dirtyMinX = new int[blocks];
+            this.dirtyMaxX = new int[blocks];
+            this.dirtyMinY = new int[blocks];
+            this.dirtyMaxY = new int[blocks];
+
+            for (int i = 0; i < blocks; i++) {
+                blockStart[i] = -1;
+                clearDirty(i);
+            }
+        }
+
+        /**
+         * Marks the pixel at {@code x, y} in the given block as changed.
+         */
+        void markDirty(final int block, final int x, final int y) {
+            if (x < dirtyMinX[block]) {
+                dirtyMinX[block] = x;
+            }
+            if (x >= dirtyMaxX[block]) {
+                dirtyMaxX[block] = x + 1;
+            }
+            if (y < dirtyMinY[block]) {
+                dirtyMinY[block] = y;
+            }
+            if (y >= dirtyMaxY[block]) {
+                dirtyMaxY[block] = y + 1;
+            }
+        }
+
+        void clearDirty(final int block) {
+            dirtyMinX[block] = Integer.MAX_VALUE;
+            dirtyMaxX[block] = 0;
+            dirtyMinY[block] = Integer.MAX_VALUE;
+            dirtyMaxY[block] = 0;
+        }
+    }
+
     private static final class PixelReaderDataBufferInt extends PixelReaderDataBuffer<IntBuffer> {
-        private final int[] readBuffer;
-        private final int[] writeBuffer;
+        private PixelReaderDataBufferInt(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter, final boolean premultiplied) {
+            super(DataBuffer.TYPE_INT, width, height, 1, Integer.BYTES, pixelReader, pixelWriter, premultiplied);
+        }
+
+        @Override protected Object readBlock(final Object block, final int y, final int rows) {
+            int[] data = block != null ? (int[]) block : ScratchBuffers.getInts(width * blockRows);
+            pixelReader.getPixels(0, y, width, rows, writablePixelFormat, data, 0, width);
+
+            if (isConverted()) {
+                if (premultiplied) {
+                    PixelConversion.premultiply(data, 0, width * rows);
+                }
+                else {
+                    PixelConversion.unpremultiply(data, 0, width * rows);
+                }
+            }
+
+            return data;
+        }
 
-        private PixelReaderDataBufferInt(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter) {
-            super(DataBuffer.TYPE_INT, width, height, 1, pixelReader, pixelWriter);
-            this.readBuffer = new int[width];
-            this.writeBuffer = new int[1];
+        @Override protected void releaseBlock(final Object block) {
+            ScratchBuffers.release((int[]) block);
+        }
+
+        @Override protected void writeBlock(final Object block, final int offset, final int x, final int y, final int w, final int h) {
+            if (!isConverted()) {
+                pixelWriter.setPixels(x, y, w, h, writablePixelFormat, (int[]) block, offset, width);
+                return;
+            }
+
+            // Convert a copy, the block stays cached
+            int[] argb = ScratchBuffers.getInts(w * h);
+
+            try {
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(block, offset + row * width, argb, row * w, w);
+                }
+
+                if (premultiplied) {
+                    PixelConversion.unpremultiply(argb, 0, w * h);
+                }
+                else {
+                    PixelConversion.premultiply(argb, 0, w * h);
+                }
+
+                pixelWriter.setPixels(x, y, w, h, writablePixelFormat, argb, 0, w);
+            }
+            finally {
+                ScratchBuffers.release(argb);
+            }
         }
 
         @Override public int getElem(final int bank, final int i) {
@@ -120,32 +545,34 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
             int x = (i / sampleSize) % width;
             int y = (i / sampleSize) / width;
 
-            if (bufferedRow != y) {
-                pixelReader.getPixels(0, y, width, 1, writablePixelFormat, readBuffer, 0, width);
-                bufferedRow = y;
-            }
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
 
-            return readBuffer[x * writableFormatSampleSize];
+            return ((int[]) cache.blocks[block])[pixelOffset(cache, block, x, y) * writableFormatSampleSize];
         }
 
         @Override public void setElem(final int bank, final int i, final int val) {
-            if (pixelWriter == null) {
-                throw new UnsupportedOperationException("DataBuffer is read-only");
-            }
-            if (bank > 0) {
-                throw new IndexOutOfBoundsException("bank (" + bank + ") >= numBanks (" + 1 + ")");
-            }
+            checkWritable(bank);
 
             int x = (i / sampleSize) % width;
             int y = (i / sampleSize) / width;
 
-            if (y == bufferedRow) {
-                // Update buffered value
-                readBuffer[i] = val;
-            }
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
 
-            writeBuffer[0] = val;
-            pixelWriter.setPixels(x, y, 1, 1, writablePixelFormat, writeBuffer, 0, 1);
+            // Update buffer in place, written back on flush
+            ((int[]) cache.blocks[block])[pixelOffset(cache, block, x, y)] = val;
+            changed(cache, block, x, y);
+        }
+
+        @Override void setArgb(final int x, final int y, final int argb, final boolean premultiplied) {
+            checkWritable(0);
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            ((int[]) cache.blocks[block])[pixelOffset(cache, block, x, y)] = toBlockFormat(argb, premultiplied);
+            changed(cache, block, x, y);
         }
     }
 
@@ -153,15 +580,64 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
         /** Conversion table, if writablePixelFormat differs from pixelReader.getFormat(). */
         private final int[] conversion;
 
-        private final byte[] readBuffer;
-        private final byte[] writeBuffer;
+        /** Whether the samples written include alpha, otherwise pixels are made opaque when written. */
+        private final boolean hasAlpha;
 
-        private PixelReaderDataBufferByte(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter) {
-            super(DataBuffer.TYPE_BYTE, width, height, FXBufferedImage.getSampleSize(pixelReader.getPixelFormat()), pixelReader, pixelWriter);
+        private PixelReaderDataBufferByte(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter,
+                                          final boolean hasAlpha, final boolean premultiplied) {
+            // Blocks are always BGRA
+            super(DataBuffer.TYPE_BYTE, width, height, FXBufferedImage.getSampleSize(pixelReader.getPixelFormat()), 4, pixelReader, pixelWriter, premultiplied);
 
-            this.readBuffer = new byte[width * writableFormatSampleSize];
-            this.writeBuffer = new byte[writableFormatSampleSize];
             this.conversion = getConversionTable(pixelReader.getPixelFormat().getType(), writablePixelFormat.getType());
+            this.hasAlpha = hasAlpha;
+        }
+
+        @Override protected Object readBlock(final Object block, final int y, final int rows) {
+            byte[] data = block != null ? (byte[]) block : ScratchBuffers.getBytes(width * blockRows * writableFormatSampleSize);
+            pixelReader.getPixels(0, y, width, rows, writablePixelFormat, data, 0, width * writableFormatSampleSize);
+
+            if (isConverted()) {
+                if (premultiplied) {
+                    PixelConversion.premultiply(data, 0, width * rows);
+                }
+                else {
+                    PixelConversion.unpremultiply(data, 0, width * rows);
+                }
+            }
+
+            return data;
+        }
+
+        @Override protected void releaseBlock(final Object block) {
+            ScratchBuffers.release((byte[]) block);
+        }
+
+        @Override protected void writeBlock(final Object block, final int offset, final int x, final int y, final int w, final int h) {
+            if (!isConverted()) {
+                pixelWriter.setPixels(x, y, w, h, writablePixelFormat, (byte[]) block, offset * writableFormatSampleSize, width * writableFormatSampleSize);
+                return;
+            }
+
+            // Convert a copy, the block stays cached (always BGRA, as only BGRA formats have alpha)
+            byte[] bgra = ScratchBuffers.getBytes(w * h * 4);
+
+            try {
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(block, (offset + row * width) * 4, bgra, row * w * 4, w * 4);
+                }
+
+                if (premultiplied) {
+                    PixelConversion.unpremultiply(bgra, 0, w * h);
+                }
+                else {
+                    PixelConversion.premultiply(bgra, 0, w * h);
+                }
+
+                pixelWriter.setPixels(x, y, w, h, writablePixelFormat, bgra, 0, w * 4);
+            }
+            finally {
+                ScratchBuffers.release(bgra);
+            }
         }
 
         private static int[] getConversionTable(final PixelFormat.Type pixelFormat, final PixelFormat.Type writablePixelFormat) {
@@ -186,18 +662,320 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
             int x = (i / sampleSize) % width;
             int y = (i / sampleSize) / width;
 
-            if (bufferedRow != y) {
-                pixelReader.getPixels(0, y, width, 1, writablePixelFormat, readBuffer, 0, width * sampleSize);
-                bufferedRow = y;
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            return ((byte[]) cache.blocks[block])[pixelOffset(cache, block, x, y) * writableFormatSampleSize + conversion[i % sampleSize]] & 0xff;
+        }
+
+        @Override public void setElem(final int bank, final int i, final int val) {
+            checkWritable(bank);
+
+            int x = (i / sampleSize) % width;
+            int y = (i / sampleSize) / width;
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+            int offset = pixelOffset(cache, block, x, y) * writableFormatSampleSize;
+
+            // Update buffer in place, written back on flush
+            byte[] data = (byte[]) cache.blocks[block];
+            data[offset + conversion[i % sampleSize]] = (byte) val;
+
+            if (!hasAlpha) {
+                // The raster has no alpha band, so alpha is never written, and would otherwise be left transparent
+                data[offset + 3] = (byte) 0xff;
+            }
+
+            changed(cache, block, x, y);
+        }
+
+        @Override void setArgb(final int x, final int y, final int argb, final boolean premultiplied) {
+            checkWritable(0);
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+            int offset = pixelOffset(cache, block, x, y) * writableFormatSampleSize;
+            int value = toBlockFormat(argb, premultiplied);
+
+            // Always BGRA
+            byte[] data = (byte[]) cache.blocks[block];
+            data[offset    ] = (byte) value;
+            data[offset + 1] = (byte) (value >> 8);
+            data[offset + 2] = (byte) (value >> 16);
+            data[offset + 3] = (byte) (value >>> 24);
+
+            changed(cache, block, x, y);
+        }
+    }
+
+    /**
+     * Buffer of one byte palette index per pixel, for indexed color models.
+     * Indices are written to the image through a byte indexed pixel format, converted by JavaFX in the same operation.
+     * As JavaFX can't read indices, the indices are looked up from the ARGB values read from the image.
+     */
+    private static final class PixelReaderDataBufferIndexed extends PixelReaderDataBuffer<ByteBuffer> {
+        private final int[] palette;
+        private final PixelFormat<ByteBuffer> indexedFormat;
+
+        // Palette colors (with all transparent colors as 0), sorted for lookup, and the corresponding index
+        private final int[] sortedColors;
+        private final byte[] sortedIndices;
+
+        // The last color not found in the palette (high bits), and its closest index, as one value for concurrent readers
+        private volatile long lastMiss = 0x7fffffffL << 32;
+
+        private PixelReaderDataBufferIndexed(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter, final IndexColorModel colorModel) {
+            // Palettes are never premultiplied
+            super(DataBuffer.TYPE_BYTE, width, height, 1, 1, pixelReader, pixelWriter, false);
+
+            this.palette = new int[colorModel.getMapSize()];
+            colorModel.getRGBs(palette);
+            this.indexedFormat = PixelFormat.createByteIndexedInstance(palette);
+
+            long[] entries = new long[palette.length];
+            for (int i = 0; i < palette.length; i++) {
+                // Color in the high bits, so entries sort by color, and then by index
+                entries[i] = (long) normalize(palette[i]) << 32 | i;
+            }
+            Arrays.sort(entries);
+
+            this.sortedColors = new int[entries.length];
+            this.sortedIndices = new byte[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                sortedColors[i] = (int) (entries[i] >> 32);
+                sortedIndices[i] = (byte) entries[i];
+            }
+        }
+
+        private static int normalize(final int argb) {
+            return (argb >>> 24) == 0 ? 0 : argb;
+        }
+
+        private byte indexOf(final int argb) {
+            int color = normalize(argb);
+            int found = Arrays.binarySearch(sortedColors, color);
+
+            if (found >= 0) {
+                // Pick the lowest index with this color
+                while (found > 0 && sortedColors[found - 1] == color) {
+                    found--;
+                }
+
+                return sortedIndices[found];
+            }
+
+            return closestIndex(color);
+        }
+
+        private byte closestIndex(final int argb) {
+            // Colors with partial alpha may not survive the premultiply round trip exactly
+            long miss = lastMiss;
+
+            if ((int) (miss >> 32) != argb) {
+                long minDistance = Long.MAX_VALUE;
+                int closest = 0;
+
+                for (int i = 0; i < palette.length; i++) {
+                    long distance = 0;
+
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int diff = ((argb >>> shift) & 0xff) - ((palette[i] >>> shift) & 0xff);
+                        distance += diff * diff;
+                    }
+
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        closest = i;
+                    }
+                }
+
+                miss = (long) argb << 32 | closest;
+                lastMiss = miss;
+            }
+
+            return (byte) miss;
+        }
+
+        @Override PixelFormat<ByteBuffer> getIndexedFormat() {
+            return indexedFormat;
+        }
+
+        @Override protected Object readBlock(final Object block, final int y, final int rows) {
+            byte[] data = block != null ? (byte[]) block : ScratchBuffers.getBytes(width * blockRows);
+            int[] argb = ScratchBuffers.getInts(width * rows);
+
+            try {
+                pixelReader.getPixels(0, y, width, rows, PixelFormat.getIntArgbInstance(), argb, 0, width);
+
+                for (int i = 0; i < width * rows; i++) {
+                    data[i] = indexOf(argb[i]);
+                }
+            }
+            finally {
+                ScratchBuffers.release(argb);
+            }
+
+            return data;
+        }
+
+        @Override protected void writeBlock(final Object block, final int offset, final int x, final int y, final int w, final int h) {
+            pixelWriter.setPixels(x, y, w, h, indexedFormat, (byte[]) block, offset, width);
+        }
+
+        @Override protected void releaseBlock(final Object block) {
+            ScratchBuffers.release((byte[]) block);
+        }
+
+        @Override public int getElem(final int bank, final int i) {
+            if (bank > 0) {
+                throw new IndexOutOfBoundsException("bank (" + bank + ") >= numBanks (" + 1 + ")");
             }
 
-            return readBuffer[x * writableFormatSampleSize + conversion[i % sampleSize]];
+            int x = i % width;
+            int y = i / width;
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            return ((byte[]) cache.blocks[block])[pixelOffset(cache, block, x, y)] & 0xff;
         }
 
         @Override public void setElem(final int bank, final int i, final int val) {
-            if (pixelWriter == null) {
-                throw new UnsupportedOperationException("DataBuffer is read-only");
+            checkWritable(bank);
+
+            int x = i % width;
+            int y = i / width;
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            // Update buffer in place, written back on flush
+            ((byte[]) cache.blocks[block])[pixelOffset(cache, block, x, y)] = (byte) val;
+            changed(cache, block, x, y);
+        }
+
+        @Override void setArgb(final int x, final int y, final int argb, final boolean premultiplied) {
+            checkWritable(0);
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            // Palettes are never premultiplied
+            ((byte[]) cache.blocks[block])[pixelOffset(cache, block, x, y)] = indexOf(premultiplied ? PixelConversion.unpremultiply(argb) : argb);
+            changed(cache, block, x, y);
+        }
+    }
+
+    /**
+     * Buffer of samples with more than 8 bits, or floating point, for the color models supported by {@link SampleReduction}.
+     * Samples are laid out as BGRA pixels, like 8 bit samples, as readers may otherwise assume a standard data buffer.
+     * Cached samples are kept as floating point, and reduced to 8 bits when written back,
+     * so that only the cached rows are held at full precision. Samples read from the image are expanded from 8 bits.
+     */
+    private static final class PixelReaderDataBufferReduced extends PixelReaderDataBuffer<Buffer> {
+        private final int[] bandOffsets;
+
+        // Reduction of the cached BGRA samples, and of rows of samples written directly
+        private final SampleReduction reduction;
+        private final SampleReduction rowReduction;
+        private final WritablePixelFormat<IntBuffer> argbFormat;
+
+        private PixelReaderDataBufferReduced(final int width, final int height, final PixelReader pixelReader, final PixelWriter pixelWriter, final ColorModel colorModel) {
+            super(colorModel.getTransferType(), width, height, SampleReduction.BGRA_STRIDE, SampleReduction.BGRA_STRIDE * Float.BYTES, pixelReader, pixelWriter, colorModel.isAlphaPremultiplied());
+
+            this.bandOffsets = SampleReduction.getBGRAOffsets(colorModel);
+            this.reduction = new SampleReduction(colorModel, SampleReduction.BGRA_STRIDE, bandOffsets);
+            this.rowReduction = new SampleReduction(colorModel);
+            this.argbFormat = reduction.isPremultiplied() ? PixelFormat.getIntArgbPreInstance() : PixelFormat.getIntArgbInstance();
+        }
+
+        @Override protected Object readBlock(final Object block, final int y, final int rows) {
+            float[] data = block != null ? (float[]) block : ScratchBuffers.getFloats(width * blockRows * sampleSize);
+            int[] argb = ScratchBuffers.getInts(width * rows);
+
+            try {
+                pixelReader.getPixels(0, y, width, rows, argbFormat, argb, 0, width);
+                reduction.expand(argb, 0, width * rows, data, 0);
+            }
+            finally {
+                ScratchBuffers.release(argb);
+            }
+
+            return data;
+        }
+
+        @Override protected void writeBlock(final Object block, final int offset, final int x, final int y, final int w, final int h) {
+            int[] argb = ScratchBuffers.getInts(w * h);
+
+            try {
+                for (int row = 0; row < h; row++) {
+                    reduction.reduce((float[]) block, (offset + row * width) * sampleSize, w, argb, row * w);
+                }
+
+                pixelWriter.setPixels(x, y, w, h, argbFormat, argb, 0, w);
+            }
+            finally {
+                ScratchBuffers.release(argb);
+            }
+        }
+
+        @Override protected void releaseBlock(final Object block) {
+            ScratchBuffers.release((float[]) block);
+        }
+
+        @Override void setReducedPixel(final int x, final int y, final int[] samples) {
+            checkWritable(0);
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+            int offset = pixelOffset(cache, block, x, y) * sampleSize;
+
+            float[] data = (float[]) cache.blocks[block];
+            for (int b = 0; b < bandOffsets.length; b++) {
+                data[offset + bandOffsets[b]] = samples[b];
+            }
+
+            changed(cache, block, x, y);
+        }
+
+        @Override void setReducedPixels(final int x, final int y, final int w, final int h, final int[] samples) {
+            checkWritable(0);
+
+            int[] argb = ScratchBuffers.getInts(w * h);
+
+            try {
+                rowReduction.reduce(samples, 0, w * h, argb, 0);
+                pixelWriter.setPixels(x, y, w, h, argbFormat, argb, 0, w);
+            }
+            finally {
+                ScratchBuffers.release(argb);
+            }
+        }
+
+        @Override void setReducedPixels(final int x, final int y, final int w, final int h, final float[] samples) {
+            checkWritable(0);
+
+            int[] argb = ScratchBuffers.getInts(w * h);
+
+            try {
+                rowReduction.reduce(samples, 0, w * h, argb, 0);
+                pixelWriter.setPixels(x, y, w, h, argbFormat, argb, 0, w);
+            }
+            finally {
+                ScratchBuffers.release(argb);
             }
+        }
+
+        @Override public int getElem(final int bank, final int i) {
+            return Math.round(getElemFloat(bank, i));
+        }
+
+        @Override public double getElemDouble(final int bank, final int i) {
+            return getElemFloat(bank, i);
+        }
+
+        @Override public float getElemFloat(final int bank, final int i) {
             if (bank > 0) {
                 throw new IndexOutOfBoundsException("bank (" + bank + ") >= numBanks (" + 1 + ")");
             }
@@ -205,21 +983,44 @@ abstract class PixelReaderDataBuffer<T extends Buffer> extends DataBuffer {
             int x = (i / sampleSize) % width;
             int y = (i / sampleSize) / width;
 
-            // Get current row
-            if (bufferedRow != y) {
-                getElem(bank, i);
-            }
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            return ((float[]) cache.blocks[block])[pixelOffset(cache, block, x, y) * sampleSize + i % sampleSize];
+        }
+
+        @Override public void setElem(final int bank, final int i, final int val) {
+            setElemFloat(bank, i, val);
+        }
 
-            // Update buffer in place
-            readBuffer[x * writableFormatSampleSize + conversion[i % sampleSize]] = (byte) val;
+        @Override public void setElemDouble(final int bank, final int i, final double val) {
+            setElemFloat(bank, i, (float) val);
+        }
+
+        @Override public void setElemFloat(final int bank, final int i, final float val) {
+            checkWritable(bank);
+
+            int x = (i / sampleSize) % width;
+            int y = (i / sampleSize) / width;
+
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+
+            // Update buffer in place, reduced and written back on flush
+            ((float[]) cache.blocks[block])[pixelOffset(cache, block, x, y) * sampleSize + i % sampleSize] = val;
+            changed(cache, block, x, y);
+        }
 
-            // TODO: Only if ARGB -> RGB conversion, because A component is otherwise left as 0 (transparent)
-            readBuffer[x * writableFormatSampleSize + 3] = (byte) 0xff;
+        @Override void setArgb(final int x, final int y, final int argb, final boolean premultiplied) {
+            checkWritable(0);
 
-            // Copy to writebuffer
-            System.arraycopy(readBuffer, x * writableFormatSampleSize, writeBuffer, 0, writableFormatSampleSize);
+            BlockCache cache = cache();
+            int block = bufferRow(cache, y);
+            int value = premultiplied == reduction.isPremultiplied() ? argb
+                        : premultiplied ? PixelConversion.unpremultiply(argb) : PixelConversion.premultiply(argb);
 
-            pixelWriter.setPixels(x, y, 1, 1, writablePixelFormat, writeBuffer, 0, writableFormatSampleSize);
+            reduction.expand(value, (float[]) cache.blocks[block], pixelOffset(cache, block, x, y) * sampleSize);
+            changed(cache, block, x, y);
         }
     }
 }
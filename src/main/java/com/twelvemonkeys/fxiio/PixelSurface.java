@@ -0,0 +1,80 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+
+/**
+ * Pixel access to an image, the only view of an image the bridge classes depend on.
+ * <p>
+ * A surface is either backed by a JavaFX {@link Image} (see {@link #of(Image)}), or by an array on the heap
+ * (see {@link HeapPixelSurface}), that does not need the JavaFX toolkit.
+ * Both use the same {@link PixelFormat.Type pixel formats}, so the bridge decodes and encodes
+ * the same way for either.
+ * </p>
+ */
+interface PixelSurface {
+    int getWidth();
+
+    int getHeight();
+
+    PixelReader getPixelReader();
+
+    /**
+     * Returns the pixel writer of the surface, or {@code null} if the surface is read-only.
+     */
+    PixelWriter getPixelWriter();
+
+    /**
+     * Returns the type of the pixels, as stored.
+     */
+    default PixelFormat.Type getPixelFormatType() {
+        return getPixelReader().getPixelFormat().getType();
+    }
+
+    /**
+     * Creates a surface backed by the given FX image.
+     */
+    static PixelSurface of(final Image image) {
+        return new FXPixelSurface(image);
+    }
+
+    /**
+     * Creates surfaces to decode into, of the size of the decoded image.
+     */
+    @FunctionalInterface
+    interface Factory<S extends PixelSurface> {
+        S create(int width, int height);
+    }
+}
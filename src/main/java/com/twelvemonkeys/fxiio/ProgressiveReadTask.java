@@ -0,0 +1,406 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Task that reads an image progressively, publishing decoded pixels on the JavaFX application thread while reading.
+ * <p>
+ * The image is decoded into a private image, never into the published image, as the published image may be rendered
+ * at any time. At most once per publish interval, and after each progressive or interlaced pass, the updated rows
+ * are copied from the private image on the reading thread, and handed to the FX application thread, which copies them
+ * into the published image. The private image doubles the memory needed while reading.
+ * Images that can be decoded as opaque or premultiplied packed 8 bit RGB(A) {@code int}s, are decoded into
+ * an array in the layout of a {@link PixelBuffer}, and published in a pixel buffer, updated inside
+ * {@link PixelBuffer#updateBuffer(javafx.util.Callback)}.
+ * Other images are decoded into an off-screen staging image, and published in a {@code WritableImage}.
+ * Readers that can only be read {@link StripStagingReader staged} are read into the staging image one strip at the time,
+ * and the image is published once complete.
+ * The published image is available as the task {@link #valueProperty() value}, as soon as the image dimensions are known.
+ * </p>
+ *
+ * @see FXImageIO#readProgressively(java.nio.file.Path, ImageReadParam, Duration)
+ */
+final class ProgressiveReadTask extends Task<WritableImage> implements IIOReadUpdateListener, IIOReadProgressListener {
+    private final Callable<ImageInputStream> input;
+    private final ImageReadParam settings;
+    private final long publishIntervalNanos;
+
+    // The image decoded into, and a reader of its pixels, only accessed by the reading thread
+    private BufferedImage destination;
+    private PixelReader decoded;
+
+    // The published image, and its pixel buffer if any, only written on the FX application thread
+    private PixelBuffer<IntBuffer> pixelBuffer;
+    private WritableImage image;
+
+    // Updated region not yet copied, and time of the last copy, only accessed by the reading thread
+    private Rectangle dirty;
+    private long lastPublish;
+
+    // Copies of updated pixels to publish, guarded by lock
+    private final Object lock = new Object();
+    private final List<Batch> batches = new ArrayList<>();
+    private boolean publishPending;
+
+    ProgressiveReadTask(final Callable<ImageInputStream> input, final ImageReadParam settings, final Duration publishInterval) {
+        this.input = input;
+        this.settings = settings;
+        this.publishIntervalNanos = (long) (publishInterval.toMillis() * 1000000);
+    }
+
+    @Override protected WritableImage call() throws Exception {
+        try (ImageInputStream stream = input.call()) {
+            ImageReader reader = FXImageIO.getReader(stream);
+            if (reader == null) {
+                return null;
+            }
+
+            long start = stream.getStreamPosition();
+
+            try {
+                reader.setInput(stream, true, true);
+
+                ImageReadParam param = FXImageIO.createReadParam(reader, settings);
+                Rectangle region = FXImageIO.computeSourceRegion(reader.getWidth(0), reader.getHeight(0), param);
+                Dimension size = FXImageIO.getDestinationSize(region, param);
+
+                ImageTypeSpecifier spec = ImageTypeNegotiation.selectSupported(reader, 0, PixelFormat.Type.INT_ARGB_PRE);
+                WritableImage staging = null;
+
+                if (spec != null && ImageTypeNegotiation.cost(spec, PixelFormat.Type.INT_ARGB_PRE) == ImageTypeNegotiation.DIRECT) {
+                    int[] pixels = PixelBufferImage.createPixels(size.width, size.height, spec);
+
+                    destination = PixelBufferImage.createBufferedImage(pixels, size.width, size.height, spec);
+                    decoded = new HeapPixelSurface(size.width, size.height, PixelFormat.getIntArgbPreInstance(), pixels);
+                    pixelBuffer = PixelBufferImage.createPixelBuffer(size.width, size.height, spec);
+                    image = new WritableImage(pixelBuffer);
+                }
+                else {
+                    staging = FXImageIO.createImage(region, param);
+                    decoded = staging.getPixelReader();
+                    image = FXImageIO.createImage(region, param);
+
+                    PixelFormat.Type type = staging.getPixelReader().getPixelFormat().getType();
+                    if (!StripStagingReader.isRequired(reader, 0, type)) {
+                        destination = new FXBufferedImage(staging, ImageTypeNegotiation.select(reader, 0, type));
+                    }
+                }
+
+                // Publish the (still empty) image, so it may be displayed while reading
+                updateValue(image);
+
+                if (destination instanceof FXBufferedImage) {
+                    try {
+                        readDirect(reader, param);
+                    }
+                    catch (StripStagingReader.DirectReadException e) {
+                        // The reader assumes a standard destination, read it staged instead, from the start
+                        ((FXBufferedImage) destination).release();
+                        destination = null;
+
+                        try {
+                            stream.seek(start);
+                        }
+                        catch (IOException | IndexOutOfBoundsException ignore) {
+                            // Stream is already flushed past the start, can't retry
+                            throw e.getCause();
+                        }
+
+                        reader.removeAllIIOReadUpdateListeners();
+                        reader.removeAllIIOReadProgressListeners();
+                        reader.setInput(stream, true, true);
+
+                        readStaged(reader, param, region, staging);
+                    }
+                }
+                else if (destination != null) {
+                    readDirect(reader, param);
+                }
+                else {
+                    readStaged(reader, param, region, staging);
+                }
+
+                if (isCancelled()) {
+                    return null;
+                }
+
+                // Publish any remaining pixels, and wait for it, so that the image is complete when the task completes
+                if (destination instanceof FXBufferedImage) {
+                    ((FXBufferedImage) destination).release();
+                }
+
+                copyDirty();
+                runAndWait(this::publish);
+
+                return image;
+            }
+            finally {
+                FXImageIO.release(reader);
+            }
+        }
+    }
+
+    private void readDirect(final ImageReader reader, final ImageReadParam param) throws IOException {
+        param.setDestination(destination);
+
+        reader.addIIOReadUpdateListener(this);
+        reader.addIIOReadProgressListener(this);
+
+        if (destination instanceof FXBufferedImage) {
+            StripStagingReader.readDirect(reader, 0, param);
+        }
+        else {
+            reader.read(0, param);
+        }
+    }
+
+    private void readStaged(final ImageReader reader, final ImageReadParam param, final Rectangle region, final WritableImage staging) throws IOException {
+        // Each strip is a separate read, so the listeners would see the progress of strips, not the image
+        StripStagingReader.read(reader, 0, param, region, PixelSurface.of(staging));
+        updateProgress(100, 100);
+
+        dirty = new Rectangle(0, 0, (int) staging.getWidth(), (int) staging.getHeight());
+    }
+
+    /**
+     * Aborts the reader if the task is cancelled. Called on the reading thread, as some readers,
+     * like the JPEG reader, may only be aborted from the thread using them.
+     */
+    private boolean abortIfCancelled(final ImageReader source) {
+        if (isCancelled()) {
+            source.abort();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void updated(final int minX, final int minY, final int width, final int height, final boolean force) {
+        Rectangle updated = new Rectangle(minX, minY, width, height);
+        dirty = dirty == null ? updated : dirty.union(updated);
+
+        long now = System.nanoTime();
+        if (!force && now - lastPublish < publishIntervalNanos) {
+            return;
+        }
+
+        lastPublish = now;
+
+        if (destination instanceof FXBufferedImage) {
+            // Make sure all updated pixels are written to the staging image, before copying
+            destination.flush();
+        }
+
+        if (copyDirty()) {
+            Platform.runLater(this::publish);
+        }
+    }
+
+    /**
+     * Copies the updated pixels on the reading thread, so that the FX application thread never reads pixels
+     * while they are decoded.
+     *
+     * @return {@code true} if the copy must be published, {@code false} if nothing was updated, or a publish is pending.
+     */
+    private boolean copyDirty() {
+        Rectangle region = dirty != null ? dirty.intersection(new Rectangle(0, 0, (int) image.getWidth(), (int) image.getHeight())) : null;
+        dirty = null;
+
+        if (region == null || region.isEmpty()) {
+            return false;
+        }
+
+        // Not pooled, as the copy is handed to the FX application thread
+        int[] pixels = new int[region.width * region.height];
+        decoded.getPixels(region.x, region.y, region.width, region.height, PixelFormat.getIntArgbPreInstance(), pixels, 0, region.width);
+
+        synchronized (lock) {
+            batches.add(new Batch(region, pixels));
+
+            if (publishPending) {
+                return false;
+            }
+
+            publishPending = true;
+            return true;
+        }
+    }
+
+    private void publish() {
+        List<Batch> published;
+
+        synchronized (lock) {
+            published = new ArrayList<>(batches);
+            batches.clear();
+            publishPending = false;
+        }
+
+        for (Batch batch : published) {
+            Rectangle region = batch.region;
+
+            if (pixelBuffer != null) {
+                // Pixel buffers may only be changed inside the callback
+                pixelBuffer.updateBuffer(buffer -> {
+                    int[] pixels = buffer.getBuffer().array();
+                    int scanline = buffer.getWidth();
+
+                    for (int row = 0; row < region.height; row++) {
+                        System.arraycopy(batch.pixels, row * region.width, pixels, (region.y + row) * scanline + region.x, region.width);
+                    }
+
+                    return new Rectangle2D(region.x, region.y, region.width, region.height);
+                });
+            }
+            else {
+                image.getPixelWriter().setPixels(region.x, region.y, region.width, region.height,
+                                                 PixelFormat.getIntArgbPreInstance(), batch.pixels, 0, region.width);
+            }
+        }
+    }
+
+    private static void runAndWait(final Runnable runnable) throws InterruptedException, ExecutionException {
+        if (Platform.isFxApplicationThread()) {
+            runnable.run();
+        }
+        else {
+            FutureTask<Void> task = new FutureTask<>(runnable, null);
+            Platform.runLater(task);
+            task.get();
+        }
+    }
+
+    // IIOReadUpdateListener
+
+    @Override public void imageUpdate(final ImageReader source, final BufferedImage theImage, final int minX, final int minY, final int width, final int height, final int periodX, final int periodY, final int[] bands) {
+        if (abortIfCancelled(source)) {
+            return;
+        }
+
+        updated(minX, minY, width, height, false);
+    }
+
+    @Override public void passComplete(final ImageReader source, final BufferedImage theImage) {
+        // Always publish complete progressive or interlaced passes
+        if (dirty == null) {
+            return;
+        }
+
+        Rectangle all = new Rectangle(0, 0, (int) image.getWidth(), (int) image.getHeight());
+        updated(all.x, all.y, all.width, all.height, true);
+    }
+
+    @Override public void passStarted(final ImageReader source, final BufferedImage theImage, final int pass, final int minPass, final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    @Override public void thumbnailPassStarted(final ImageReader source, final BufferedImage theThumbnail, final int pass, final int minPass, final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    @Override public void thumbnailUpdate(final ImageReader source, final BufferedImage theThumbnail, final int minX, final int minY, final int width, final int height, final int periodX, final int periodY, final int[] bands) {
+    }
+
+    @Override public void thumbnailPassComplete(final ImageReader source, final BufferedImage theThumbnail) {
+    }
+
+    // IIOReadProgressListener
+
+    @Override public void imageProgress(final ImageReader source, final float percentageDone) {
+        if (abortIfCancelled(source)) {
+            return;
+        }
+
+        updateProgress(percentageDone, 100);
+    }
+
+    @Override public void imageStarted(final ImageReader source, final int imageIndex) {
+        updateProgress(0, 100);
+    }
+
+    @Override public void imageComplete(final ImageReader source) {
+        updateProgress(100, 100);
+    }
+
+    @Override public void sequenceStarted(final ImageReader source, final int minIndex) {
+    }
+
+    @Override public void sequenceComplete(final ImageReader source) {
+    }
+
+    @Override public void thumbnailStarted(final ImageReader source, final int imageIndex, final int thumbnailIndex) {
+    }
+
+    @Override public void thumbnailProgress(final ImageReader source, final float percentageDone) {
+    }
+
+    @Override public void thumbnailComplete(final ImageReader source) {
+    }
+
+    @Override public void readAborted(final ImageReader source) {
+    }
+
+    /**
+     * A copy of the updated pixels of a region, as premultiplied ARGB, never changed once created.
+     */
+    private static final class Batch {
+        final Rectangle region;
+        final int[] pixels;
+
+        Batch(final Rectangle region, final int[] pixels) {
+            this.region = region;
+            this.pixels = pixels;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+
+/**
+ * Reduction of RGB(A) or gray (and alpha) samples of more than 8 bits, or floating point, to 8 bit ARGB pixels,
+ * as stored in JavaFX images, and expansion back.
+ * <p>
+ * Integer samples are scaled from the range of their component size, floating point samples are expected
+ * in the range {@code [0, 1]}. Color values above 1 are clamped, or, if the system property
+ * {@code com.twelvemonkeys.fxiio.toneMapping} is {@code true}, compressed using the Reinhard operator
+ * {@code c / (1 + c)}, to keep detail in highlights.
+ * Linear RGB is encoded as sRGB, using a lookup table indexed by 12 bit linear values,
+ * fine enough to reach every 8 bit value. Other color spaces, like the gray color space used for 16 bit PNG and TIFF,
+ * are stored as is.
+ * </p>
+ * <p>
+ * Samples are interleaved, either in the order of the color model components, or laid out as BGRA pixels,
+ * with gray as red, the same way as 8 bit samples are stored in FX images.
+ * Pixels are premultiplied or not, as the samples of the color model.
+ * Expanding reduced pixels and reducing them again gives the same pixels.
+ * </p>
+ */
+final class SampleReduction {
+    private static final boolean TONE_MAPPING = Boolean.getBoolean("com.twelvemonkeys.fxiio.toneMapping");
+
+    // Lookup tables between 12 bit linear values and 8 bit sRGB values
+    private static final int LINEAR_MAX = 4095;
+    private static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_MAX + 1];
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+
+    static {
+        for (int i = 0; i <= LINEAR_MAX; i++) {
+            double linear = i / (double) LINEAR_MAX;
+            LINEAR_TO_SRGB[i] = (byte) Math.round((linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055) * 0xff);
+        }
+
+        for (int i = 0; i < 256; i++) {
+            double srgb = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float) (srgb <= 0.04045 ? srgb / 12.92 : Math.pow((srgb + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    /** Number of samples per pixel, when laid out as BGRA pixels. */
+    static final int BGRA_STRIDE = 4;
+
+    private final int stride;
+    private final int[] offsets;
+    private final int bands;
+    private final int colorBands;
+    private final boolean premultiplied;
+    private final boolean linear;
+    private final boolean toneMap;
+
+    // Factor to normalize the samples of each band to [0, 1]
+    private final float[] scales;
+    // Sample value of each band for each 8 bit value, for expanding
+    private final float[][] expansions;
+
+    /**
+     * Creates a reduction of samples interleaved in the order of the color model components.
+     */
+    SampleReduction(final ColorModel colorModel) {
+        this(colorModel, colorModel.getNumComponents(), null);
+    }
+
+    /**
+     * Creates a reduction of samples interleaved using the given pixel stride and offset of each band.
+     *
+     * @param offsets the offset of each band into a pixel, or {@code null} for the order of the color model components.
+     */
+    SampleReduction(final ColorModel colorModel, final int stride, final int[] offsets) {
+        if (!isSupported(colorModel)) {
+            throw new IllegalArgumentException("Unsupported color model: " + colorModel);
+        }
+
+        this.stride = stride;
+        this.offsets = offsets != null ? offsets.clone() : new int[] {0, 1, 2, 3};
+
+        bands = colorModel.getNumComponents();
+        colorBands = colorModel.getNumColorComponents();
+        premultiplied = colorModel.isAlphaPremultiplied();
+        linear = colorModel.getColorSpace() == ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB);
+
+        boolean floatingPoint = colorModel.getTransferType() != DataBuffer.TYPE_USHORT;
+        toneMap = floatingPoint && TONE_MAPPING;
+
+        scales = new float[bands];
+        expansions = new float[bands][256];
+        for (int b = 0; b < bands; b++) {
+            scales[b] = floatingPoint ? 1 : 1f / ((1 << colorModel.getComponentSize(b)) - 1);
+
+            for (int value = 0; value < 256; value++) {
+                expansions[b][value] = (b < colorBands ? expandColor(value) : value / 255f) / scales[b];
+            }
+        }
+    }
+
+    /**
+     * Returns whether the color model has RGB or gray components, of more than 8 bits or floating point, that can be reduced.
+     */
+    static boolean isSupported(final ColorModel colorModel) {
+        if (!(colorModel instanceof ComponentColorModel)) {
+            return false;
+        }
+
+        switch (colorModel.getTransferType()) {
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_FLOAT:
+            case DataBuffer.TYPE_DOUBLE:
+                int type = colorModel.getColorSpace().getType();
+                return type == ColorSpace.TYPE_RGB || type == ColorSpace.TYPE_GRAY;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the offset of each band into a pixel laid out as BGRA, with gray as red.
+     */
+    static int[] getBGRAOffsets(final ColorModel colorModel) {
+        if (colorModel.getNumColorComponents() == 1) {
+            return colorModel.hasAlpha() ? new int[] {2, 3} : new int[] {2};
+        }
+
+        return colorModel.hasAlpha() ? new int[] {2, 1, 0, 3} : new int[] {2, 1, 0};
+    }
+
+    /**
+     * Returns whether the pixels are premultiplied.
+     */
+    boolean isPremultiplied() {
+        return premultiplied;
+    }
+
+    /**
+     * Reduces integer samples to ARGB pixels.
+     */
+    void reduce(final int[] samples, final int offset, final int pixels, final int[] argb, final int argbOffset) {
+        int[] o = offsets;
+
+        for (int p = argbOffset, i = offset; p < argbOffset + pixels; p++, i += stride) {
+            int value = bands > colorBands ? quantize(samples[i + o[colorBands]] * scales[colorBands], 0xff) << 24 : 0xff000000;
+
+            if (colorBands == 1) {
+                value |= reduceColor(samples[i + o[0]] * scales[0]) * 0x010101;
+            }
+            else {
+                value |= reduceColor(samples[i + o[0]] * scales[0]) << 16 | reduceColor(samples[i + o[1]] * scales[1]) << 8 | reduceColor(samples[i + o[2]] * scales[2]);
+            }
+
+            argb[p] = value;
+        }
+    }
+
+    /**
+     * Reduces floating point samples (or integer samples stored as floating point) to ARGB pixels.
+     */
+    void reduce(final float[] samples, final int offset, final int pixels, final int[] argb, final int argbOffset) {
+        int[] o = offsets;
+
+        for (int p = argbOffset, i = offset; p < argbOffset + pixels; p++, i += stride) {
+            int value = bands > colorBands ? quantize(samples[i + o[colorBands]] * scales[colorBands], 0xff) << 24 : 0xff000000;
+
+            if (colorBands == 1) {
+                value |= reduceColor(samples[i + o[0]] * scales[0]) * 0x010101;
+            }
+            else {
+                value |= reduceColor(samples[i + o[0]] * scales[0]) << 16 | reduceColor(samples[i + o[1]] * scales[1]) << 8 | reduceColor(samples[i + o[2]] * scales[2]);
+            }
+
+            argb[p] = value;
+        }
+    }
+
+    /**
+     * Expands ARGB pixels to samples, stored as floating point. Gray is expanded from red.
+     */
+    void expand(final int[] argb, final int argbOffset, final int pixels, final float[] samples, final int offset) {
+        for (int p = argbOffset, i = offset; p < argbOffset + pixels; p++, i += stride) {
+            expand(argb[p], samples, i);
+        }
+    }
+
+    /**
+     * Expands a single ARGB pixel to samples, stored as floating point. Gray is expanded from red.
+     */
+    void expand(final int argb, final float[] samples, final int offset) {
+        for (int b = 0; b < colorBands; b++) {
+            samples[offset + offsets[b]] = expansions[b][(argb >> 16 - 8 * b) & 0xff];
+        }
+        if (bands > colorBands) {
+            samples[offset + offsets[colorBands]] = expansions[colorBands][argb >>> 24];
+        }
+    }
+
+    private int reduceColor(final float value) {
+        float mapped = toneMap && value > 0 ? value / (1 + value) : value;
+        return linear ? LINEAR_TO_SRGB[quantize(mapped, LINEAR_MAX)] & 0xff : quantize(mapped, 0xff);
+    }
+
+    private float expandColor(final int value) {
+        float mapped = linear ? SRGB_TO_LINEAR[value] : value / 255f;
+
+        // The inverse of the tone mapping, 1 is mapped to the largest value, as it compresses to 1 again
+        return !toneMap ? mapped : mapped < 1 ? mapped / (1 - mapped) : Float.MAX_VALUE;
+    }
+
+    private static int quantize(final float value, final int max) {
+        // NaN is quantized to 0
+        return value >= 1 ? max : value > 0 ? (int) (value * max + .5f) : 0;
+    }
+}
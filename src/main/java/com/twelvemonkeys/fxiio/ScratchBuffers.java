@@ -0,0 +1,223 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread pools of scratch arrays, for row caches, strips and pixel conversion.
+ * <p>
+ * Arrays are pooled by size class, with lengths rounded up to a power of two, so that arrays may be re-used between
+ * images of different sizes. A borrowed array may thus be longer than requested.
+ * Each thread retains at most {@code com.twelvemonkeys.fxiio.poolBudget} bytes (per array type),
+ * arrays released beyond the budget, or too large for it, are left to the garbage collector.
+ * </p>
+ * <p>
+ * Arrays may be released on a different thread than they were borrowed on, they are then pooled by that thread.
+ * An array must not be used after it is released.
+ * </p>
+ */
+final class ScratchBuffers {
+    static final long POOL_BUDGET = Long.getLong("com.twelvemonkeys.fxiio.poolBudget", 2 * PixelReaderDataBuffer.DEFAULT_CACHE_BUDGET);
+
+    private static final int SIZE_CLASSES = 31;
+
+    private static final ThreadLocal<ScratchBuffers> pools = ThreadLocal.withInitial(ScratchBuffers::new);
+
+    // Stack of pooled arrays per size class, grown as needed
+    private final int[][][] ints = new int[SIZE_CLASSES][0][];
+    private final int[] intCounts = new int[SIZE_CLASSES];
+    private long intBytes;
+
+    private final byte[][][] bytes = new byte[SIZE_CLASSES][0][];
+    private final int[] byteCounts = new int[SIZE_CLASSES];
+    private long byteBytes;
+
+    private final float[][][] floats = new float[SIZE_CLASSES][0][];
+    private final int[] floatCounts = new int[SIZE_CLASSES];
+    private long floatBytes;
+
+    private ScratchBuffers() {}
+
+    private static int sizeClass(final int length) {
+        return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    private static boolean isPooled(final int length, final int elementBytes) {
+        return Integer.bitCount(length) == 1 && (long) length * elementBytes <= POOL_BUDGET;
+    }
+
+    /**
+     * Borrows an int array of at least the given length. The content is undefined.
+     */
+    static int[] getInts(final int length) {
+        int sizeClass = sizeClass(length);
+
+        if (sizeClass >= SIZE_CLASSES || !isPooled(1 << sizeClass, Integer.BYTES)) {
+            return new int[length];
+        }
+
+        ScratchBuffers pool = pools.get();
+        int count = pool.intCounts[sizeClass];
+
+        if (count == 0) {
+            return new int[1 << sizeClass];
+        }
+
+        int[] array = pool.ints[sizeClass][--count];
+        pool.ints[sizeClass][count] = null;
+        pool.intCounts[sizeClass] = count;
+        pool.intBytes -= (long) array.length * Integer.BYTES;
+
+        return array;
+    }
+
+    /**
+     * Returns a borrowed int array to the pool of the current thread. {@code null} is ignored.
+     */
+    static void release(final int[] array) {
+        if (array == null || !isPooled(array.length, Integer.BYTES)) {
+            return;
+        }
+
+        ScratchBuffers pool = pools.get();
+        int sizeClass = sizeClass(array.length);
+        int count = pool.intCounts[sizeClass];
+        long size = (long) array.length * Integer.BYTES;
+
+        if (pool.intBytes + size <= POOL_BUDGET) {
+            if (count == pool.ints[sizeClass].length) {
+                pool.ints[sizeClass] = Arrays.copyOf(pool.ints[sizeClass], Math.max(4, count * 2));
+            }
+
+            pool.ints[sizeClass][count] = array;
+            pool.intCounts[sizeClass] = count + 1;
+            pool.intBytes += size;
+        }
+    }
+
+    /**
+     * Borrows a byte array of at least the given length. The content is undefined.
+     */
+    static byte[] getBytes(final int length) {
+        int sizeClass = sizeClass(length);
+
+        if (sizeClass >= SIZE_CLASSES || !isPooled(1 << sizeClass, Byte.BYTES)) {
+            return new byte[length];
+        }
+
+        ScratchBuffers pool = pools.get();
+        int count = pool.byteCounts[sizeClass];
+
+        if (count == 0) {
+            return new byte[1 << sizeClass];
+        }
+
+        byte[] array = pool.bytes[sizeClass][--count];
+        pool.bytes[sizeClass][count] = null;
+        pool.byteCounts[sizeClass] = count;
+        pool.byteBytes -= array.length;
+
+        return array;
+    }
+
+    /**
+     * Returns a borrowed byte array to the pool of the current thread. {@code null} is ignored.
+     */
+    static void release(final byte[] array) {
+        if (array == null || !isPooled(array.length, Byte.BYTES)) {
+            return;
+        }
+
+        ScratchBuffers pool = pools.get();
+        int sizeClass = sizeClass(array.length);
+        int count = pool.byteCounts[sizeClass];
+
+        if (pool.byteBytes + array.length <= POOL_BUDGET) {
+            if (count == pool.bytes[sizeClass].length) {
+                pool.bytes[sizeClass] = Arrays.copyOf(pool.bytes[sizeClass], Math.max(4, count * 2));
+            }
+
+            pool.bytes[sizeClass][count] = array;
+            pool.byteCounts[sizeClass] = count + 1;
+            pool.byteBytes += array.length;
+        }
+    }
+
+    /**
+     * Borrows a float array of at least the given length. The content is undefined.
+     */
+    static float[] getFloats(final int length) {
+        int sizeClass = sizeClass(length);
+
+        if (sizeClass >= SIZE_CLASSES || !isPooled(1 << sizeClass, Float.BYTES)) {
+            return new float[length];
+        }
+
+        ScratchBuffers pool = pools.get();
+        int count = pool.floatCounts[sizeClass];
+
+        if (count == 0) {
+            return new float[1 << sizeClass];
+        }
+
+        float[] array = pool.floats[sizeClass][--count];
+        pool.floats[sizeClass][count] = null;
+        pool.floatCounts[sizeClass] = count;
+        pool.floatBytes -= (long) array.length * Float.BYTES;
+
+        return array;
+    }
+
+    /**
+     * Returns a borrowed float array to the pool of the current thread. {@code null} is ignored.
+     */
+    static void release(final float[] array) {
+        if (array == null || !isPooled(array.length, Float.BYTES)) {
+            return;
+        }
+
+        ScratchBuffers pool = pools.get();
+        int sizeClass = sizeClass(array.length);
+        int count = pool.floatCounts[sizeClass];
+        long size = (long) array.length * Float.BYTES;
+
+        if (pool.floatBytes + size <= POOL_BUDGET) {
+            if (count == pool.floats[sizeClass].length) {
+                pool.floats[sizeClass] = Arrays.copyOf(pool.floats[sizeClass], Math.max(4, count * 2));
+            }
+
+            pool.floats[sizeClass][count] = array;
+            pool.floatCounts[sizeClass] = count + 1;
+            pool.floatBytes += size;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritablePixelFormat;
+import javafx.scene.paint.Color;
+
+import javax.imageio.IIOException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Strips of rows of a surface, read once, and shared by several read-only views, for encoding one image
+ * to several outputs concurrently.
+ * <p>
+ * Each view is used by one thread (writer), and holds on to the last strips it read from.
+ * A strip is read from the source by the first view needing it, and dropped when all views have moved past it,
+ * so each row is read from the source once, as long as the views read the rows in order.
+ * The memory used thus depends on how far apart the views are, at most one copy of the image, if one view
+ * reads all rows before the others start, or if the views read in opposite directions (like BMP, bottom-up).
+ * A view going back to a dropped strip reads it again.
+ * </p>
+ * <p>
+ * Strips are stored in the pixel format of the source, if writable, otherwise as {@code BYTE_BGRA},
+ * like the row cache of {@link PixelReaderDataBuffer}, and read through {@link HeapPixelSurface}s,
+ * so the views convert pixels exactly like the source. Views report the pixel format of the source,
+ * so images created from a view are encoded exactly like images created from the source.
+ * </p>
+ * <p>
+ * This class is thread-safe, the views are not.
+ * </p>
+ *
+ * @see FXImageIO#writeAll(javafx.scene.image.Image, List, ForkJoinPool)
+ */
+final class SharedStrips {
+    private final PixelReader source;
+    private final int width;
+    private final int height;
+    private final int stripRows;
+    private final int views;
+    private final WritablePixelFormat<?> stripFormat;
+
+    // The strips currently read, and the number of views that have moved past each strip
+    private final AtomicReferenceArray<HeapPixelSurface> strips;
+    private final AtomicIntegerArray passed;
+
+    // Reads from the source are serialized, the source may not be safe for concurrent readers
+    private final Object lock = new Object();
+
+    SharedStrips(final PixelSurface source, final int views) {
+        this.source = source.getPixelReader();
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.stripRows = Math.max(1, Math.min(PixelReaderDataBuffer.DEFAULT_CACHE_BLOCK_ROWS, height));
+        this.views = views;
+        this.stripFormat = getStripFormat(this.source.getPixelFormat());
+
+        int count = (height + stripRows - 1) / stripRows;
+        this.strips = new AtomicReferenceArray<>(count);
+        this.passed = new AtomicIntegerArray(count);
+    }
+
+    /**
+     * Writes the source to all targets, each encoded by a task in the given pool, through a view of its own.
+     * All tasks are completed before returning, or throwing the first failure (with any others suppressed).
+     *
+     * @return whether each target was written, in the order of the targets.
+     */
+    static List<Boolean> write(final PixelSurface source, final List<WriteTarget> targets, final ForkJoinPool pool) throws IOException {
+        List<Boolean> written = new ArrayList<>(targets.size());
+
+        if (targets.size() < 2) {
+            // Nothing to share, write on the current thread
+            for (WriteTarget target : targets) {
+                written.add(target.write(new FXBufferedImage(source)));
+            }
+
+            return written;
+        }
+
+        SharedStrips strips = new SharedStrips(source, targets.size());
+
+        List<View> views = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            views.add(strips.createView());
+        }
+
+        List<Future<Boolean>> results = new ArrayList<>(targets.size());
+        Throwable failure = null;
+
+        try {
+            for (int i = 0; i < targets.size(); i++) {
+                View view = views.get(i);
+                WriteTarget target = targets.get(i);
+                results.add(pool.submit(() -> write(view, target)));
+            }
+        }
+        catch (RuntimeException | Error e) {
+            // Submitted tasks release their own views, the others are released here, or strips are kept for them
+            for (View view : views.subList(results.size(), views.size())) {
+                view.release();
+            }
+
+            failure = e;
+        }
+
+        for (Future<Boolean> result : results) {
+            // Wait for all targets, even if one fails
+            try {
+                written.add(result.get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing: " + targets);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+
+                if (failure == null) {
+                    failure = cause;
+                }
+                else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IIOException("Could not write: " + targets, failure);
+        }
+
+        return written;
+    }
+
+    private static boolean write(final View view, final WriteTarget target) {
+        try {
+            return target.write(new FXBufferedImage(view));
+        }
+        catch (IOException e) {
+            // The pool would otherwise wrap it in a plain RuntimeException
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            view.release();
+        }
+    }
+
+    private static WritablePixelFormat<?> getStripFormat(final PixelFormat<?> format) {
+        return format instanceof WritablePixelFormat ? (WritablePixelFormat<?>) format : PixelFormat.getByteBgraInstance();
+    }
+
+    /**
+     * Creates a view of the source. At most the number of views given in the constructor may be created,
+     * and each view must be {@link View#release() released} when done.
+     */
+    View createView() {
+        return new View();
+    }
+
+    private HeapPixelSurface getStrip(final int index) {
+        HeapPixelSurface strip = strips.get(index);
+
+        return strip != null ? strip : readStrip(index);
+    }
+
+    private HeapPixelSurface readStrip(final int index) {
+        synchronized (lock) {
+            HeapPixelSurface strip = strips.get(index);
+
+            if (strip == null) {
+                Instrumentation.increment(Instrumentation.PIXEL_READER_CALLS);
+
+                int y = index * stripRows;
+                strip = readStrip(y, Math.min(stripRows, height - y));
+
+                // Keep the strip only if some view may still need it
+                if (passed.get(index) < views) {
+                    strips.set(index, strip);
+                }
+            }
+
+            return strip;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private HeapPixelSurface readStrip(final int y, final int rows) {
+        switch (stripFormat.getType()) {
+            case INT_ARGB:
+            case INT_ARGB_PRE: {
+                WritablePixelFormat<IntBuffer> format = (WritablePixelFormat<IntBuffer>) stripFormat;
+                int[] pixels = new int[width * rows];
+                source.getPixels(0, y, width, rows, format, pixels, 0, width);
+
+                return new HeapPixelSurface(width, rows, format, pixels);
+            }
+            default: {
+                WritablePixelFormat<ByteBuffer> format = (WritablePixelFormat<ByteBuffer>) stripFormat;
+                byte[] pixels = new byte[width * rows * 4];
+                source.getPixels(0, y, width, rows, format, pixels, 0, width * 4);
+
+                return new HeapPixelSurface(width, rows, format, pixels);
+            }
+        }
+    }
+
+    private void pass(final int index) {
+        if (passed.incrementAndGet(index) == views) {
+            strips.set(index, null);
+        }
+    }
+
+    /**
+     * A read-only surface of the source, reading pixels from the shared strips. Not thread-safe.
+     */
+    final class View implements PixelSurface, PixelReader {
+        // The indices of the strips held, and the strips, most recently used first (-1 means none)
+        private final int[] held = {-1, -1};
+        private final HeapPixelSurface[] heldStrips = new HeapPixelSurface[2];
+        private final BitSet passedStrips = new BitSet();
+
+        private View() {
+        }
+
+        private HeapPixelSurface strip(final int index) {
+            if (held[0] != index) {
+                if (held[1] == index) {
+                    swapHeld();
+                }
+                else {
+                    // Done with the least recently used strip, for now
+                    if (held[1] >= 0) {
+                        passStrip(held[1]);
+                    }
+
+                    held[1] = index;
+                    heldStrips[1] = getStrip(index);
+                    swapHeld();
+                }
+            }
+
+            return heldStrips[0];
+        }
+
+        private void swapHeld() {
+            int index = held[0];
+            held[0] = held[1];
+            held[1] = index;
+
+            HeapPixelSurface strip = heldStrips[0];
+            heldStrips[0] = heldStrips[1];
+            heldStrips[1] = strip;
+        }
+
+        private void passStrip(final int index) {
+            if (!passedStrips.get(index)) {
+                passedStrips.set(index);
+                pass(index);
+            }
+        }
+
+        /**
+         * Moves past all strips, so that the other views are not holding on to strips for this view.
+         * The view must not be used after release.
+         */
+        void release() {
+            for (int index = 0; index < strips.length(); index++) {
+                passStrip(index);
+            }
+
+            held[0] = held[1] = -1;
+            heldStrips[0] = heldStrips[1] = null;
+        }
+
+        @Override public int getWidth() {
+            return width;
+        }
+
+        @Override public int getHeight() {
+            return height;
+        }
+
+        @Override public PixelReader getPixelReader() {
+            return this;
+        }
+
+        @Override public PixelWriter getPixelWriter() {
+            return null;
+        }
+
+        @Override public PixelFormat<?> getPixelFormat() {
+            return source.getPixelFormat();
+        }
+
+        @Override public int getArgb(final int x, final int y) {
+            checkBounds(x, y, 1, 1);
+
+            return strip(y / stripRows).getArgb(x, y % stripRows);
+        }
+
+        @Override public Color getColor(final int x, final int y) {
+            checkBounds(x, y, 1, 1);
+
+            return strip(y / stripRows).getColor(x, y % stripRows);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override public <T extends Buffer> void getPixels(final int x, final int y, final int w, final int h,
+                                                           final WritablePixelFormat<T> format, final T buffer, final int scanlineStride) {
+            checkBounds(x, y, w, h);
+
+            int position = buffer.position();
+
+            for (int row = y; row < y + h; ) {
+                int stripY = row % stripRows;
+                int rows = Math.min(y + h - row, stripRows - stripY);
+
+                T destination = (T) buffer.duplicate();
+                destination.position(position + (row - y) * scanlineStride);
+                strip(row / stripRows).getPixels(x, stripY, w, rows, format, destination, scanlineStride);
+
+                row += rows;
+            }
+        }
+
+        @Override public void getPixels(final int x, final int y, final int w, final int h,
+                                        final WritablePixelFormat<ByteBuffer> format, final byte[] buffer, final int offset, final int scanlineStride) {
+            checkBounds(x, y, w, h);
+
+            for (int row = y; row < y + h; ) {
+                int stripY = row % stripRows;
+                int rows = Math.min(y + h - row, stripRows - stripY);
+
+                strip(row / stripRows).getPixels(x, stripY, w, rows, format, buffer, offset + (row - y) * scanlineStride, scanlineStride);
+
+                row += rows;
+            }
+        }
+
+        @Override public void getPixels(final int x, final int y, final int w, final int h,
+                                        final WritablePixelFormat<IntBuffer> format, final int[] buffer, final int offset, final int scanlineStride) {
+            checkBounds(x, y, w, h);
+
+            for (int row = y; row < y + h; ) {
+                int stripY = row % stripRows;
+                int rows = Math.min(y + h - row, stripRows - stripY);
+
+                strip(row / stripRows).getPixels(x, stripY, w, rows, format, buffer, offset + (row - y) * scanlineStride, scanlineStride);
+
+                row += rows;
+            }
+        }
+
+        private void checkBounds(final int x, final int y, final int w, final int h) {
+            if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+                throw new ArrayIndexOutOfBoundsException("Coordinate out of bounds!");
+            }
+        }
+
+        @Override public String toString() {
+            return "SharedStrips.View: " + width + "x" + height + " " + getPixelFormat().getType();
+        }
+    }
+}
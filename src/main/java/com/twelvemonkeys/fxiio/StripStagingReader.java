@@ -0,0 +1,549 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritablePixelFormat;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads images one strip of rows at a time, into a standard {@code BufferedImage} of a type offered by the reader,
+ * backed by an array from the {@link ScratchBuffers} pool,
+ * copying each strip to the image (or surface) using a single {@code PixelWriter.setPixels} call.
+ * <p>
+ * Some readers bypass the bulk operations of {@link FXWritableRaster}, and access the data buffer one sample
+ * at a time, or assume the data buffer is one of the standard types.
+ * Staging avoids both, at the cost of decoding each strip using a separate source region,
+ * and the extra memory for one strip.
+ * Readers of tiled or strip based formats, like TIFF, decode only the tiles or strips intersecting the region,
+ * but readers of sequential formats, like PNG and JPEG, decode the image from the start up to the end of each strip,
+ * so the total decoding work grows with the square of the number of strips, roughly
+ * {@code (height / stripRows + 1) / 2} times the work of a direct read.
+ * Readers are thus only read staged when they must be, or when measured to be faster, and strips are as
+ * tall as the budget allows.
+ * The strip height is given by the system property {@code com.twelvemonkeys.fxiio.stripRows},
+ * or as many rows as fit in the row cache budget of {@link PixelReaderDataBuffer}.
+ * </p>
+ * <p>
+ * Whether to read directly or staged is decided per reader class, before reading.
+ * Readers known to cast the destination data buffer or sample model to the standard types, and readers offering
+ * no image type that can be stored in the pixel format of the destination, are always read staged.
+ * The system property {@code com.twelvemonkeys.fxiio.stagedReaders} lists further reader class names always read staged.
+ * Other readers are read directly, until their measured throughput is low enough that staging is tried,
+ * after which the faster of the two is used.
+ * A reader failing a direct read with a {@code ClassCastException}, is assumed to cast the destination
+ * to the standard types, and is always read staged from then on (see {@link #readDirect}).
+ * </p>
+ */
+final class StripStagingReader {
+    private static final int STRIP_ROWS = Integer.getInteger("com.twelvemonkeys.fxiio.stripRows", 0);
+    private static final Set<String> STAGED_READERS = parseClassNames(System.getProperty("com.twelvemonkeys.fxiio.stagedReaders"));
+    // Readers that cast the data buffer or sample model of the destination to the standard types
+    private static final Set<String> STANDARD_RASTER_READERS = Set.of(
+            "com.sun.imageio.plugins.bmp.BMPImageReader",
+            "com.sun.imageio.plugins.wbmp.WBMPImageReader"
+    );
+
+    // Images smaller than this are too fast to time reliably
+    private static final long MIN_MEASURED_PIXELS = 256 * 256;
+    // Direct reads slower than this likely access the data buffer per sample, try staging
+    private static final double SLOW_NANOS_PER_PIXEL = 500;
+    // Weight of the latest measurement in the moving average
+    private static final double SMOOTHING = 0.25;
+
+    private static final ConcurrentMap<Class<?>, Throughput> throughputs = new ConcurrentHashMap<>();
+
+    private StripStagingReader() {}
+
+    private static Set<String> parseClassNames(final String classNames) {
+        return classNames == null || classNames.isBlank()
+               ? Set.of()
+               : new HashSet<>(Arrays.asList(classNames.trim().split("\\s*,\\s*")));
+    }
+
+    /**
+     * Returns whether the given reader should be read staged, rather than directly.
+     */
+    static boolean isPreferred(final ImageReader reader) {
+        if (STAGED_READERS.contains(reader.getClass().getName())) {
+            return true;
+        }
+
+        Throughput throughput = throughputs.get(reader.getClass());
+        return throughput != null && throughput.isStagedFaster();
+    }
+
+    /**
+     * Returns whether the given reader can only be read staged into the given pixel format,
+     * as it assumes standard data buffers or sample models, or offers no image type that can be stored in the pixel format.
+     */
+    static boolean isRequired(final ImageReader reader, final int imageIndex, final PixelFormat.Type target) throws IOException {
+        if (STANDARD_RASTER_READERS.contains(reader.getClass().getName())) {
+            return true;
+        }
+
+        Throughput throughput = throughputs.get(reader.getClass());
+        if (throughput != null && throughput.isStagedOnly()) {
+            return true;
+        }
+
+        return ImageTypeNegotiation.selectSupported(reader, imageIndex, target) == null;
+    }
+
+    /**
+     * Marks the given reader class as not supporting direct reads, because it assumes standard data buffers or sample models.
+     */
+    static void setRequired(final ImageReader reader) {
+        throughputs.computeIfAbsent(reader.getClass(), c -> new Throughput()).setStagedOnly();
+    }
+
+    /**
+     * Reads the image directly into the destination of {@code param}, which is not a standard {@code BufferedImage},
+     * like an {@link FXBufferedImage}.
+     *
+     * @throws DirectReadException if the reader failed with a {@code ClassCastException}, as it assumes a standard
+     * data buffer or sample model, after which the reader class is always read staged.
+     */
+    static void readDirect(final ImageReader reader, final int imageIndex, final ImageReadParam param) throws IOException {
+        try {
+            reader.read(imageIndex, param);
+        }
+        catch (ClassCastException e) {
+            setRequired(reader);
+            throw new DirectReadException(e);
+        }
+    }
+
+    /**
+     * Reads using the given read, and reads again from the start of the stream if a direct read failed
+     * (see {@link #readDirect}), when the reader is read staged.
+     *
+     * @param start the position of the stream, when given as the input of the reader.
+     */
+    static <T> T read(final ImageReader reader, final ImageInputStream stream, final long start, final Read<T> read) throws IOException {
+        try {
+            return read.read(reader);
+        }
+        catch (DirectReadException e) {
+            try {
+                stream.seek(start);
+            }
+            catch (IOException | IndexOutOfBoundsException ignore) {
+                // Stream is already flushed past the start, can't retry
+                throw e.getCause();
+            }
+
+            reader.setInput(stream, true, true);
+
+            return read.read(reader);
+        }
+    }
+
+    /**
+     * Records the time used to read an image, directly or staged.
+     */
+    static void record(final ImageReader reader, final boolean staged, final long pixels, final long nanos) {
+        if (pixels >= MIN_MEASURED_PIXELS) {
+            throughputs.computeIfAbsent(reader.getClass(), c -> new Throughput()).record(staged, (double) nanos / pixels);
+        }
+    }
+
+    /**
+     * Reads the source region of the image into the surface, which must be of the subsampled size of the region.
+     * The source region, subsampling and destination of {@code param} are changed while reading.
+     */
+    static void read(final ImageReader reader, final int imageIndex, final ImageReadParam param, final Rectangle region,
+                     final PixelSurface surface) throws IOException {
+        Dimension size = new Dimension(surface.getWidth(), surface.getHeight());
+        PixelWriter pixelWriter = surface.getPixelWriter();
+        Strip strip = Strip.create(reader, imageIndex, size.width, getStripRows(size));
+
+        try {
+            read(reader, imageIndex, param, region, strip, size.height, (y, rows) -> strip.copyTo(pixelWriter, y, rows));
+        }
+        finally {
+            strip.release();
+        }
+    }
+
+    /**
+     * Reads the source region of the image into a new mapped image, of the subsampled size of the region,
+     * converting the pixels to packed ARGB (or RGB), premultiplied if the reader decodes premultiplied samples.
+     * The source region, subsampling and destination of {@code param} are changed while reading.
+     */
+    static MappedImage readMapped(final ImageReader reader, final int imageIndex, final ImageReadParam param, final Rectangle region) throws IOException {
+        Dimension size = FXImageIO.getDestinationSize(region, param);
+        Strip strip = Strip.create(reader, imageIndex, size.width, getStripRows(size));
+
+        try {
+            MappedImage image = MappedImage.create(size.width, size.height, strip.getPackedType());
+            WritableRaster raster = image.getBufferedImage().getRaster();
+
+            try {
+                read(reader, imageIndex, param, region, strip, size.height, (y, rows) -> strip.copyTo(raster, y, rows));
+            }
+            catch (IOException | RuntimeException e) {
+                image.close();
+                throw e;
+            }
+
+            return image;
+        }
+        finally {
+            strip.release();
+        }
+    }
+
+    private static void read(final ImageReader reader, final int imageIndex, final ImageReadParam param, final Rectangle region,
+                             final Strip strip, final int height, final StripTarget target) throws IOException {
+        int stripRows = strip.image.getHeight();
+        int ySubsampling = param.getSourceYSubsampling();
+
+        // The source region is already adjusted for the subsampling offsets
+        param.setSourceSubsampling(param.getSourceXSubsampling(), ySubsampling, 0, 0);
+        param.setDestination(strip.image);
+
+        for (int y = 0; y < height; y += stripRows) {
+            int rows = Math.min(stripRows, height - y);
+
+            param.setSourceRegion(new Rectangle(region.x, region.y + y * ySubsampling, region.width, (rows - 1) * ySubsampling + 1));
+            reader.read(imageIndex, param);
+
+            target.copy(y, rows);
+        }
+    }
+
+    static int getStripRows(final Dimension size) {
+        int rows = STRIP_ROWS > 0
+                   ? STRIP_ROWS
+                   : (int) Math.min(Integer.MAX_VALUE, PixelReaderDataBuffer.DEFAULT_CACHE_BUDGET / Math.max(1, (long) size.width * Integer.BYTES));
+
+        return Math.max(1, Math.min(rows, size.height));
+    }
+
+    /**
+     * A standard {@code BufferedImage} holding one strip, and the conversion to ARGB pixels.
+     */
+    private static final class Strip {
+        final BufferedImage image;
+
+        // Bit offset into an ARGB pixel for each band, for 8 bit component images, otherwise null
+        private final int[] shifts;
+        // Reduction of samples with more than 8 bits, otherwise null
+        private final SampleReduction reduction;
+        private final WritablePixelFormat<IntBuffer> format;
+        private final int[] argb;
+        private int[] samples;
+        private float[] floatSamples;
+
+        private Strip(final BufferedImage image, final int[] shifts, final SampleReduction reduction, final int[] argb) {
+            this.image = image;
+            this.shifts = shifts;
+            this.reduction = reduction;
+            this.argb = argb;
+
+            // Only the packed, component and reduced cases keep premultiplied values, getRGB is always non-premultiplied
+            boolean premultiplied = (argb == getData(image) || shifts != null || reduction != null) && image.isAlphaPremultiplied();
+            this.format = premultiplied ? PixelFormat.getIntArgbPreInstance() : PixelFormat.getIntArgbInstance();
+        }
+
+        static Strip create(final ImageReader reader, final int imageIndex, final int width, final int rows) throws IOException {
+            // Use the type offered by the reader, as some readers only decode into their own types
+            ImageTypeSpecifier spec = ImageTypeNegotiation.select(reader, imageIndex, PixelFormat.Type.BYTE_BGRA);
+            BufferedImage image = createImage(spec, width, rows);
+
+            if (isPackedARGB(image)) {
+                // Copied without conversion
+                return new Strip(image, null, null, getData(image));
+            }
+
+            int cost = ImageTypeNegotiation.cost(spec, PixelFormat.Type.BYTE_BGRA);
+            if (cost == ImageTypeNegotiation.REDUCE) {
+                return new Strip(image, null, new SampleReduction(spec.getColorModel()), ScratchBuffers.getInts(width * rows));
+            }
+
+            boolean components = cost != ImageTypeNegotiation.INDEXED && cost != ImageTypeNegotiation.UNSUPPORTED;
+
+            return new Strip(image, components ? getShifts(spec.getColorModel()) : null, null, ScratchBuffers.getInts(width * rows));
+        }
+
+        /**
+         * Creates an image of the given type, backed by an array from the scratch buffer pool, if possible.
+         */
+        private static BufferedImage createImage(final ImageTypeSpecifier spec, final int width, final int rows) {
+            SampleModel sampleModel = spec.getSampleModel(width, rows);
+            int size = getDataSize(sampleModel);
+
+            DataBuffer dataBuffer;
+            if (size > 0 && sampleModel.getDataType() == DataBuffer.TYPE_INT) {
+                dataBuffer = new DataBufferInt(ScratchBuffers.getInts(size), size);
+            }
+            else if (size > 0 && sampleModel.getDataType() == DataBuffer.TYPE_BYTE) {
+                dataBuffer = new DataBufferByte(ScratchBuffers.getBytes(size), size);
+            }
+            else {
+                dataBuffer = sampleModel.createDataBuffer();
+            }
+
+            ColorModel colorModel = spec.getColorModel();
+
+            return new BufferedImage(colorModel, Raster.createWritableRaster(sampleModel, dataBuffer, null), colorModel.isAlphaPremultiplied(), null);
+        }
+
+        /**
+         * Computes the size of the single bank of data needed by the sample model, or {@code -1} if not known.
+         */
+        private static int getDataSize(final SampleModel sampleModel) {
+            if (sampleModel instanceof SinglePixelPackedSampleModel) {
+                return ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() * sampleModel.getHeight();
+            }
+            if (sampleModel instanceof MultiPixelPackedSampleModel) {
+                return ((MultiPixelPackedSampleModel) sampleModel).getScanlineStride() * sampleModel.getHeight();
+            }
+            if (sampleModel instanceof PixelInterleavedSampleModel) {
+                return ((PixelInterleavedSampleModel) sampleModel).getScanlineStride() * sampleModel.getHeight();
+            }
+
+            return -1;
+        }
+
+        /**
+         * Returns the scratch arrays of this strip to the pool. The strip must not be used after release.
+         */
+        void release() {
+            DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+
+            if (dataBuffer instanceof DataBufferInt) {
+                ScratchBuffers.release(((DataBufferInt) dataBuffer).getData());
+            }
+            else if (dataBuffer instanceof DataBufferByte) {
+                ScratchBuffers.release(((DataBufferByte) dataBuffer).getData());
+            }
+
+            if (argb != getData(image)) {
+                ScratchBuffers.release(argb);
+            }
+
+            ScratchBuffers.release(samples);
+            ScratchBuffers.release(floatSamples);
+        }
+
+        private static boolean isPackedARGB(final BufferedImage image) {
+            if (!(image.getColorModel() instanceof DirectColorModel) || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+                    || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                    || ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride() != image.getWidth()) {
+                return false;
+            }
+
+            DirectColorModel colorModel = (DirectColorModel) image.getColorModel();
+
+            return colorModel.getRedMask() == 0xff0000 && colorModel.getGreenMask() == 0xff00 && colorModel.getBlueMask() == 0xff
+                    && (colorModel.getAlphaMask() == 0xff000000 || colorModel.getAlphaMask() == 0);
+        }
+
+        private static int[] getShifts(final ColorModel colorModel) {
+            if (colorModel.getNumColorComponents() == 1) {
+                return colorModel.hasAlpha() ? new int[] {PixelConversion.GRAY, 24} : new int[] {PixelConversion.GRAY};
+            }
+
+            return colorModel.hasAlpha() ? new int[] {16, 8, 0, 24} : new int[] {16, 8, 0};
+        }
+
+        private static int[] getData(final BufferedImage image) {
+            return image.getRaster().getDataBuffer() instanceof DataBufferInt ? ((DataBufferInt) image.getRaster().getDataBuffer()).getData() : null;
+        }
+
+        /**
+         * Returns the type of the packed pixels the strip is converted to.
+         */
+        ImageTypeSpecifier getPackedType() {
+            int type = format.isPremultiplied() ? BufferedImage.TYPE_INT_ARGB_PRE
+                       : image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+            return ImageTypeSpecifier.createFromBufferedImageType(type);
+        }
+
+        void copyTo(final PixelWriter pixelWriter, final int y, final int rows) {
+            int width = image.getWidth();
+
+            pixelWriter.setPixels(0, y, width, rows, format, toARGB(rows), 0, width);
+            Instrumentation.increment(Instrumentation.PIXEL_WRITER_CALLS);
+        }
+
+        void copyTo(final WritableRaster raster, final int y, final int rows) {
+            raster.setDataElements(0, y, image.getWidth(), rows, toARGB(rows));
+        }
+
+        /**
+         * Converts the first rows of the strip to packed ARGB pixels, in the format of this strip.
+         */
+        private int[] toARGB(final int rows) {
+            int width = image.getWidth();
+            int pixels = width * rows;
+
+            if (argb == getData(image)) {
+                if (!image.getColorModel().hasAlpha()) {
+                    // Readers may write the entire int, with no alpha bits set
+                    for (int i = 0; i < pixels; i++) {
+                        argb[i] |= 0xff000000;
+                    }
+                }
+            }
+            else if (reduction != null) {
+                Raster raster = image.getRaster();
+
+                if (raster.getTransferType() == DataBuffer.TYPE_USHORT) {
+                    if (samples == null) {
+                        samples = ScratchBuffers.getInts(pixels * raster.getNumBands());
+                    }
+
+                    raster.getPixels(0, 0, width, rows, samples);
+                    reduction.reduce(samples, 0, pixels, argb, 0);
+                }
+                else {
+                    if (floatSamples == null) {
+                        floatSamples = ScratchBuffers.getFloats(pixels * raster.getNumBands());
+                    }
+
+                    raster.getPixels(0, 0, width, rows, floatSamples);
+                    reduction.reduce(floatSamples, 0, pixels, argb, 0);
+                }
+            }
+            else if (shifts != null) {
+                if (samples == null) {
+                    samples = ScratchBuffers.getInts(pixels * image.getRaster().getNumBands());
+                }
+
+                image.getRaster().getPixels(0, 0, width, rows, samples);
+                PixelConversion.packARGB(samples, pixels, shifts, argb);
+            }
+            else {
+                // Indexed, or packed with other than 8 bits per sample, let the color model convert
+                image.getRGB(0, 0, width, rows, argb, 0, width);
+            }
+
+            return argb;
+        }
+    }
+
+    /**
+     * Receives the rows of each strip, as read.
+     */
+    @FunctionalInterface
+    private interface StripTarget {
+        void copy(int y, int rows);
+    }
+
+    @FunctionalInterface
+    interface Read<T> {
+        T read(ImageReader reader) throws IOException;
+    }
+
+    /**
+     * Thrown by a direct read, when the reader assumes the destination has a standard data buffer or sample model.
+     */
+    static final class DirectReadException extends RuntimeException {
+        DirectReadException(final ClassCastException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override public synchronized ClassCastException getCause() {
+            return (ClassCastException) super.getCause();
+        }
+    }
+
+    /**
+     * Moving averages of the time per pixel, read directly and staged, for one reader class.
+     */
+    private static final class Throughput {
+        private double direct = Double.NaN;
+        private double staged = Double.NaN;
+        private boolean stagedOnly;
+
+        synchronized void record(final boolean isStaged, final double nanosPerPixel) {
+            if (isStaged) {
+                staged = Double.isNaN(staged) ? nanosPerPixel : staged + SMOOTHING * (nanosPerPixel - staged);
+            }
+            else {
+                direct = Double.isNaN(direct) ? nanosPerPixel : direct + SMOOTHING * (nanosPerPixel - direct);
+            }
+        }
+
+        synchronized void setStagedOnly() {
+            stagedOnly = true;
+        }
+
+        synchronized boolean isStagedOnly() {
+            return stagedOnly;
+        }
+
+        synchronized boolean isStagedFaster() {
+            if (stagedOnly) {
+                return true;
+            }
+            if (Double.isNaN(direct)) {
+                return false;
+            }
+            if (Double.isNaN(staged)) {
+                // Not tried yet, only worth trying if direct reads are slow
+                return direct > SLOW_NANOS_PER_PIXEL;
+            }
+
+            return staged < direct;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.IntBuffer;
+
+/**
+ * Writes images one strip of rows at a time, using {@link ImageWriter#prepareWriteEmpty} and
+ * {@link ImageWriter#replacePixels(Raster, ImageWriteParam)}.
+ * <p>
+ * Each strip is read using a single {@code PixelReader.getPixels} call, into an array from the {@link ScratchBuffers} pool,
+ * reused for all strips. The writer never sees the entire image, so memory use is bounded by the strip size,
+ * regardless of the image size.
+ * The strip height is the same as for {@link StripStagingReader}.
+ * </p>
+ * <p>
+ * Only writers that can write empty images and replace pixels are supported, of the JDK writers only TIFF.
+ * Such writers typically write uncompressed data, as compressed data can not be replaced in place.
+ * </p>
+ */
+final class StripStreamingWriter {
+    private static final ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+
+    static final ImageTypeSpecifier INT_ARGB = createSpecifier(new DirectColorModel(sRGB, 32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000, false, DataBuffer.TYPE_INT));
+    static final ImageTypeSpecifier INT_ARGB_PRE = createSpecifier(new DirectColorModel(sRGB, 32, 0xFF0000, 0xFF00, 0xFF, 0xFF000000, true, DataBuffer.TYPE_INT));
+    static final ImageTypeSpecifier INT_RGB = createSpecifier(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF));
+
+    private StripStreamingWriter() {}
+
+    private static ImageTypeSpecifier createSpecifier(final DirectColorModel colorModel) {
+        return new ImageTypeSpecifier(colorModel, colorModel.createCompatibleSampleModel(1, 1));
+    }
+
+    /**
+     * Returns the type of the strips written for the given image, the same as the pixels of the image,
+     * premultiplied or not, or without alpha for opaque pixel formats.
+     */
+    static ImageTypeSpecifier getType(final Image image) {
+        PixelFormat<?> format = image.getPixelReader().getPixelFormat();
+
+        if (format.getType() == PixelFormat.Type.BYTE_RGB) {
+            return INT_RGB;
+        }
+
+        return format.isPremultiplied() ? INT_ARGB_PRE : INT_ARGB;
+    }
+
+    /**
+     * Returns whether the given writer can write images one strip at a time.
+     * <p>
+     * Writers only answer with an output set, so a discarding output is set while asking,
+     * rather than the target, which would be created (or truncated) even if the writer can't write strips.
+     * The output of the writer is {@code null} when returning.
+     * </p>
+     */
+    static boolean canWrite(final ImageWriter writer) {
+        try (ImageOutputStream probe = new MemoryCacheImageOutputStream(OutputStream.nullOutputStream())) {
+            writer.setOutput(probe);
+            return writer.canWriteEmpty();
+        }
+        catch (IOException | IllegalStateException e) {
+            return false;
+        }
+        finally {
+            writer.setOutput(null);
+        }
+    }
+
+    static void write(final ImageWriter writer, final Image image, final ImageTypeSpecifier type) throws IOException {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+
+        PixelReader pixelReader = image.getPixelReader();
+        WritablePixelFormat<IntBuffer> pixelFormat = type == INT_ARGB_PRE ? PixelFormat.getIntArgbPreInstance() : PixelFormat.getIntArgbInstance();
+        int[] masks = ((DirectColorModel) type.getColorModel()).getMasks();
+
+        int stripRows = StripStagingReader.getStripRows(new Dimension(width, height));
+        int[] strip = ScratchBuffers.getInts(width * stripRows);
+
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            writer.prepareWriteEmpty(null, type, width, height, null, null, param);
+
+            if (!writer.canReplacePixels(0)) {
+                throw new IIOException("Writer can't replace pixels: " + writer.getClass().getName());
+            }
+
+            for (int y = 0; y < height; y += stripRows) {
+                int rows = Math.min(stripRows, height - y);
+
+                pixelReader.getPixels(0, y, width, rows, pixelFormat, strip, 0, width);
+                Instrumentation.increment(Instrumentation.PIXEL_READER_CALLS);
+
+                WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(strip, width * rows), width, rows, width, masks, null);
+
+                writer.prepareReplacePixels(0, new Rectangle(0, y, width, rows));
+                param.setDestinationOffset(new Point(0, y));
+                writer.replacePixels(raster, param);
+                writer.endReplacePixels();
+            }
+
+            writer.endWriteEmpty();
+        }
+        finally {
+            ScratchBuffers.release(strip);
+        }
+    }
+}
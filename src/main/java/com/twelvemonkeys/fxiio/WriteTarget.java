@@ -0,0 +1,79 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.twelvemonkeys.fxiio;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A file or stream to write an image to, in a given format, for writing one image to several outputs at once.
+ *
+ * @see FXImageIO#writeAll(javafx.scene.image.Image, java.util.List)
+ */
+public final class WriteTarget {
+    private final String formatName;
+    private final Object output;
+
+    private WriteTarget(final String formatName, final Object output) {
+        this.formatName = Objects.requireNonNull(formatName, "formatName");
+        this.output = output;
+    }
+
+    /**
+     * Creates a target writing to the given file, in the given format. Any existing file is replaced.
+     */
+    public static WriteTarget of(final String formatName, final Path path) {
+        return new WriteTarget(formatName, Objects.requireNonNull(path, "path"));
+    }
+
+    /**
+     * Creates a target writing to the given stream, in the given format. The stream is not closed.
+     */
+    public static WriteTarget of(final String formatName, final OutputStream output) {
+        return new WriteTarget(formatName, Objects.requireNonNull(output, "output"));
+    }
+
+    public String getFormatName() {
+        return formatName;
+    }
+
+    boolean write(final BufferedImage image) throws IOException {
+        return output instanceof Path
+               ? FXImageIO.write(image, formatName, (Path) output)
+               : FXImageIO.write(image, formatName, (OutputStream) output);
+    }
+
+    @Override public String toString() {
+        return "WriteTarget: " + formatName + " " + output;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageReadParam;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the budget, queueing and cancellation of requests, using an executor run by the test,
+ * so that the state between the steps of each request is known.
+ */
+class AsyncImageIOTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    // The size of a read image, a BYTE_BGRA_PRE WritableImage
+    private static final long IMAGE_BYTES = (long) WIDTH * HEIGHT * 4;
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+
+    @BeforeEach
+    void writeImage() throws IOException {
+        path = TestImages.write(TestImages.create(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), "png", directory);
+    }
+
+    /**
+     * Creates an instance reading all headers concurrently, so that the tasks of each test run in the same order on any machine.
+     */
+    private static AsyncImageIO create(final Executor executor, final long maxBytes) {
+        return new AsyncImageIO(executor, maxBytes, 16);
+    }
+
+    /**
+     * Runs tasks only when asked, on the test thread.
+     */
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override public void execute(final Runnable task) {
+            tasks.add(task);
+        }
+
+        void runNext() {
+            tasks.remove().run();
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+
+    @Test
+    void readReservesImageSize() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        CompletableFuture<WritableImage> future = io.read(path);
+        assertEquals(0, io.getReservedBytes());
+
+        // Reads the header, and starts the read
+        executor.runNext();
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+
+        executor.runNext();
+        assertEquals(0, io.getReservedBytes());
+        assertTrue(executor.tasks.isEmpty());
+
+        WritableImage image = future.get();
+        assertEquals(WIDTH, (int) image.getWidth());
+        assertEquals(HEIGHT, (int) image.getHeight());
+    }
+
+    @Test
+    void readSubsampledReservesDestinationSize() {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        ImageReadParam param = new ImageReadParam();
+        param.setSourceSubsampling(2, 3, 0, 0);
+        io.read(path, param);
+
+        executor.runNext();
+        assertEquals((WIDTH / 2) * (HEIGHT / 3) * 4, io.getReservedBytes());
+
+        executor.runAll();
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void writeReservesSizeOfPixelFormat() throws Exception {
+        Image image;
+        try (InputStream stream = Files.newInputStream(path)) {
+            // BYTE_RGB, three bytes per pixel
+            image = new Image(stream);
+        }
+
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        CompletableFuture<Boolean> future = io.write(image, "png", directory.resolve("written.png"));
+        assertEquals((long) WIDTH * HEIGHT * 3, io.getReservedBytes());
+
+        executor.runAll();
+        assertTrue(future.get());
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void queuedUntilBudgetReleased() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, IMAGE_BYTES);
+
+        CompletableFuture<WritableImage> first = io.read(path);
+        CompletableFuture<WritableImage> second = io.read(path);
+
+        // Reads both headers, only the first read fits the budget
+        executor.runNext();
+        executor.runNext();
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+        assertEquals(1, io.getQueuedCount());
+        assertEquals(1, executor.tasks.size());
+
+        // Completing the first, starts the second
+        executor.runNext();
+        assertNotNull(first.get());
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+        assertEquals(0, io.getQueuedCount());
+
+        executor.runNext();
+        assertNotNull(second.get());
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void largerThanBudgetStartsAlone() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, 1);
+
+        CompletableFuture<WritableImage> future = io.read(path);
+        executor.runNext();
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+
+        executor.runAll();
+        assertNotNull(future.get());
+    }
+
+    @Test
+    void cancelQueued() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, IMAGE_BYTES);
+
+        CompletableFuture<WritableImage> first = io.read(path);
+        CompletableFuture<WritableImage> second = io.read(path);
+        CompletableFuture<WritableImage> third = io.read(path);
+
+        executor.runNext();
+        executor.runNext();
+        executor.runNext();
+        assertEquals(2, io.getQueuedCount());
+
+        assertTrue(second.cancel(false));
+
+        // The cancelled request is skipped, and the budget goes to the next
+        executor.runNext();
+        assertNotNull(first.get());
+        assertEquals(0, io.getQueuedCount());
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+
+        executor.runAll();
+        assertNotNull(third.get());
+        assertTrue(second.isCancelled());
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void cancelStartedBeforeRunning() {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        CompletableFuture<WritableImage> future = io.read(path);
+        executor.runNext();
+        assertEquals(IMAGE_BYTES, io.getReservedBytes());
+
+        // Not decoded, but the budget is released
+        assertTrue(future.cancel(false));
+        executor.runAll();
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void cancelBeforeMeasured() {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        CompletableFuture<WritableImage> future = io.read(path);
+        assertTrue(future.cancel(false));
+
+        // The header is not read, and no read is started
+        executor.runNext();
+        assertTrue(executor.tasks.isEmpty());
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void headersReadConcurrentlyBounded() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = new AsyncImageIO(executor, Long.MAX_VALUE, 2);
+
+        List<CompletableFuture<WritableImage>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(io.read(path));
+        }
+
+        // Only two headers are read, the rest wait without a task
+        assertEquals(2, executor.tasks.size());
+        assertEquals(3, io.getQueuedCount());
+
+        // A cancelled request waiting for its header is skipped
+        assertTrue(futures.get(2).cancel(false));
+
+        // Reading a header starts the read, and the header of the next
+        executor.runNext();
+        assertEquals(3, executor.tasks.size());
+        assertEquals(1, io.getQueuedCount());
+
+        executor.runAll();
+        assertEquals(0, io.getQueuedCount());
+
+        for (int i = 0; i < futures.size(); i++) {
+            if (i != 2) {
+                assertNotNull(futures.get(i).get());
+            }
+        }
+    }
+
+    @Test
+    void readUnsupportedCompletesWithNull() throws Exception {
+        Path text = Files.write(directory.resolve("test.txt"), "Not an image".getBytes());
+
+        ManualExecutor executor = new ManualExecutor();
+        AsyncImageIO io = create(executor, Long.MAX_VALUE);
+
+        CompletableFuture<WritableImage> future = io.read(text);
+        executor.runAll();
+
+        assertEquals(null, future.get());
+        assertEquals(0, io.getReservedBytes());
+    }
+
+    @Test
+    void rejectedCompletesExceptionally() {
+        AsyncImageIO io = new AsyncImageIO(task -> {
+            throw new RejectedExecutionException("Rejected");
+        }, Long.MAX_VALUE, 2);
+
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<WritableImage> future = io.read(path);
+            ExecutionException e = assertThrows(ExecutionException.class, future::get);
+            assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        }
+
+        // Rejected header reads don't count against the bound
+        assertEquals(0, io.getQueuedCount());
+    }
+
+    @Test
+    void defaultExecutorReusesThreads() throws Exception {
+        try (AsyncImageIO io = new AsyncImageIO()) {
+            readAll(io);
+            Set<Thread> threads = getExecutorThreads();
+
+            assertFalse(threads.isEmpty());
+            assertTrue(threads.size() <= AsyncImageIO.THREADS, "threads: " + threads.size());
+
+            for (Thread thread : threads) {
+                assertTrue(thread.isDaemon(), thread.getName());
+            }
+
+            // The same threads, so that the readers pooled per thread are reused
+            readAll(io);
+            assertEquals(threads, getExecutorThreads());
+        }
+    }
+
+    private void readAll(final AsyncImageIO io) throws Exception {
+        List<CompletableFuture<WritableImage>> futures = new ArrayList<>();
+
+        for (int i = 0; i < AsyncImageIO.THREADS * 4; i++) {
+            futures.add(io.read(path));
+        }
+
+        for (CompletableFuture<WritableImage> future : futures) {
+            assertNotNull(future.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Set<Thread> getExecutorThreads() {
+        Set<Thread> threads = new HashSet<>();
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("AsyncImageIO-")) {
+                threads.add(thread);
+            }
+        }
+
+        return threads;
+    }
+}
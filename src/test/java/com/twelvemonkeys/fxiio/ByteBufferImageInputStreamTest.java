@@ -0,0 +1,304 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that the stream behaves as the ImageIO streams, for the methods it overrides.
+ */
+class ByteBufferImageInputStreamTest {
+    private static final ByteOrder[] BYTE_ORDERS = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+
+    @TempDir
+    Path directory;
+
+    private static byte[] createData(final int length) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+
+        return data;
+    }
+
+    private static ImageInputStream createReference(final byte[] data) {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Runs the test on a new thread, so that it starts with empty scratch buffer pools.
+     */
+    private static void onNewThread(final FutureTask<Void> test) throws Exception {
+        new Thread(test).start();
+
+        try {
+            test.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    @Test
+    void readFullyShorts() throws IOException {
+        byte[] data = createData(1001);
+
+        for (ByteOrder order : BYTE_ORDERS) {
+            try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data)); ImageInputStream reference = createReference(data)) {
+                stream.setByteOrder(order);
+                reference.setByteOrder(order);
+
+                // Unaligned, into the middle of the array
+                stream.seek(3);
+                reference.seek(3);
+
+                short[] expected = new short[500];
+                short[] actual = new short[500];
+                reference.readFully(expected, 7, 490);
+                stream.readFully(actual, 7, 490);
+
+                assertArrayEquals(expected, actual, order.toString());
+                assertEquals(reference.getStreamPosition(), stream.getStreamPosition());
+                assertEquals(reference.read(), stream.read());
+            }
+        }
+    }
+
+    @Test
+    void readFullyInts() throws IOException {
+        byte[] data = createData(1001);
+
+        for (ByteOrder order : BYTE_ORDERS) {
+            try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data)); ImageInputStream reference = createReference(data)) {
+                stream.setByteOrder(order);
+                reference.setByteOrder(order);
+
+                stream.seek(5);
+                reference.seek(5);
+
+                int[] expected = new int[250];
+                int[] actual = new int[250];
+                reference.readFully(expected, 1, 248);
+                stream.readFully(actual, 1, 248);
+
+                assertArrayEquals(expected, actual, order.toString());
+                assertEquals(reference.getStreamPosition(), stream.getStreamPosition());
+                assertEquals(reference.read(), stream.read());
+            }
+        }
+    }
+
+    @Test
+    void readFullyFloats() throws IOException {
+        byte[] data = createData(1001);
+
+        for (ByteOrder order : BYTE_ORDERS) {
+            try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data)); ImageInputStream reference = createReference(data)) {
+                stream.setByteOrder(order);
+                reference.setByteOrder(order);
+
+                stream.seek(2);
+                reference.seek(2);
+
+                float[] expected = new float[250];
+                float[] actual = new float[250];
+                reference.readFully(expected, 0, 249);
+                stream.readFully(actual, 0, 249);
+
+                // Compared as bits, as some are NaN
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]), order + ", float " + i);
+                }
+
+                assertEquals(reference.getStreamPosition(), stream.getStreamPosition());
+            }
+        }
+    }
+
+    @Test
+    void readFullyResetsBitOffset() throws IOException {
+        byte[] data = createData(16);
+
+        try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data)); ImageInputStream reference = createReference(data)) {
+            reference.readBits(3);
+            stream.readBits(3);
+
+            int[] expected = new int[2];
+            int[] actual = new int[2];
+            reference.readFully(expected, 0, 2);
+            stream.readFully(actual, 0, 2);
+
+            assertArrayEquals(expected, actual);
+            assertEquals(reference.getBitOffset(), stream.getBitOffset());
+        }
+    }
+
+    @Test
+    void readAtEOF() throws IOException {
+        byte[] data = createData(10);
+
+        try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data))) {
+            assertEquals(10, stream.length());
+
+            stream.seek(9);
+            assertEquals(data[9] & 0xff, stream.read());
+            assertEquals(-1, stream.read());
+            assertEquals(-1, stream.read(new byte[4], 0, 4));
+            assertEquals(0, stream.read(new byte[4], 0, 0));
+            assertEquals(10, stream.getStreamPosition());
+
+            // Seeking past the end is allowed, reading is not
+            stream.seek(20);
+            assertEquals(-1, stream.read());
+        }
+    }
+
+    @Test
+    void readPartialAtEOF() throws IOException {
+        byte[] data = createData(10);
+
+        try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data))) {
+            stream.seek(6);
+
+            byte[] bytes = new byte[8];
+            assertEquals(4, stream.read(bytes, 2, 6));
+            assertArrayEquals(new byte[] {0, 0, data[6], data[7], data[8], data[9], 0, 0}, bytes);
+        }
+    }
+
+    @Test
+    void readFullyPastEOF() throws IOException {
+        byte[] data = createData(10);
+
+        try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(data)); ImageInputStream reference = createReference(data)) {
+            stream.seek(3);
+            reference.seek(3);
+
+            assertThrows(EOFException.class, () -> reference.readFully(new int[2], 0, 2));
+            assertThrows(EOFException.class, () -> stream.readFully(new int[2], 0, 2));
+            assertEquals(reference.getStreamPosition(), stream.getStreamPosition());
+
+            assertThrows(EOFException.class, () -> stream.readFully(new short[1], 0, 1));
+            assertThrows(EOFException.class, () -> stream.readFully(new float[1], 0, 1));
+            assertThrows(EOFException.class, () -> stream.readFully(new byte[1]));
+
+            // Empty reads at the end are fine
+            stream.readFully(new int[0], 0, 0);
+        }
+    }
+
+    @Test
+    void readFullyBounds() throws IOException {
+        try (ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(createData(100)))) {
+            assertThrows(IndexOutOfBoundsException.class, () -> stream.readFully(new int[4], 2, 3));
+            assertThrows(IndexOutOfBoundsException.class, () -> stream.readFully(new short[4], -1, 2));
+            assertThrows(IndexOutOfBoundsException.class, () -> stream.readFully(new float[4], 0, -1));
+            assertThrows(IndexOutOfBoundsException.class, () -> stream.read(new byte[4], 3, 2));
+
+            assertEquals(0, stream.getStreamPosition());
+        }
+    }
+
+    @Test
+    void readAfterClose() throws IOException {
+        ImageInputStream stream = new ByteBufferImageInputStream(ByteBuffer.wrap(createData(100)));
+        stream.close();
+
+        assertThrows(IOException.class, stream::read);
+        assertThrows(IOException.class, () -> stream.read(new byte[4], 0, 4));
+        assertThrows(IOException.class, () -> stream.readFully(new int[4], 0, 4));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1000, 100_000})
+    void openFile(final int length) throws IOException {
+        // Read into an array, or mapped, depending on the size
+        byte[] data = createData(length);
+        Path path = Files.write(directory.resolve("data.bin"), data);
+
+        try (ImageInputStream stream = ByteBufferImageInputStream.open(path)) {
+            assertNotNull(stream);
+            assertEquals(length, stream.length());
+
+            stream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+            stream.seek(length - 8);
+            assertEquals(ByteBuffer.wrap(data, length - 8, 8).order(ByteOrder.LITTLE_ENDIAN).getLong(), stream.readLong());
+            assertEquals(-1, stream.read());
+        }
+    }
+
+    @Test
+    void pooledArrayReleasedOnClose() throws Exception {
+        Path path = Files.write(directory.resolve("data.bin"), createData(1000));
+
+        onNewThread(new FutureTask<>(() -> {
+            // The array borrowed by the stream, as the last released is borrowed first
+            byte[] pooled = ScratchBuffers.getBytes(1000);
+            ScratchBuffers.release(pooled);
+
+            ImageInputStream stream = ByteBufferImageInputStream.open(path);
+            assertNotSame(pooled, ScratchBuffers.getBytes(1000));
+
+            stream.close();
+            assertSame(pooled, ScratchBuffers.getBytes(1000));
+
+            return null;
+        }));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that images read with source region and subsampling settings match those read by ImageIO, with the same settings.
+ */
+class FXImageIOReadParamTest {
+    private static final BufferedImage SOURCE = TestImages.create(101, 77, BufferedImage.TYPE_INT_RGB);
+
+    @TempDir
+    Path directory;
+
+    static Stream<Arguments> params() {
+        return Stream.of("png", "bmp")
+                .flatMap(formatName -> Stream.of(
+                        Arguments.of(formatName, "none", null),
+                        Arguments.of(formatName, "region", param(new Rectangle(13, 7, 50, 41), 1, 1, 0, 0)),
+                        Arguments.of(formatName, "subsampling", param(null, 3, 2, 0, 0)),
+                        Arguments.of(formatName, "region and subsampling", param(new Rectangle(10, 20, 61, 40), 4, 3, 0, 0)),
+                        Arguments.of(formatName, "region, subsampling and offsets", param(new Rectangle(5, 5, 90, 60), 2, 5, 1, 3)),
+                        Arguments.of(formatName, "region outside image", param(new Rectangle(90, 70, 50, 50), 1, 1, 0, 0))
+                ));
+    }
+
+    private static ImageReadParam param(final Rectangle region, final int xSubsampling, final int ySubsampling, final int xOffset, final int yOffset) {
+        ImageReadParam param = new ImageReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(xSubsampling, ySubsampling, xOffset, yOffset);
+
+        return param;
+    }
+
+    private static BufferedImage readExpected(final Path path, final ImageReadParam param) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(path.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            assertTrue(readers.hasNext());
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(stream);
+                return reader.read(0, param);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @ParameterizedTest(name = "{0}, {1}")
+    @MethodSource("params")
+    void read(final String formatName, final String description, final ImageReadParam param) throws IOException {
+        Path path = TestImages.write(SOURCE, formatName, directory);
+        WritableImage image = FXImageIO.read(path, param);
+
+        assertNotNull(image);
+        TestImages.assertPixels(readExpected(path, param), (int) image.getWidth(), (int) image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @ParameterizedTest(name = "{0}, {1}")
+    @MethodSource("params")
+    void readHeap(final String formatName, final String description, final ImageReadParam param) throws IOException {
+        Path path = TestImages.write(SOURCE, formatName, directory);
+        HeapImage image = FXImageIO.readHeap(path, param);
+
+        assertNotNull(image);
+        TestImages.assertPixels(readExpected(path, param), image.getWidth(), image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @ParameterizedTest(name = "{0}, {1}")
+    @MethodSource("params")
+    void readPixelBuffer(final String formatName, final String description, final ImageReadParam param) throws IOException {
+        Path path = TestImages.write(SOURCE, formatName, directory);
+        WritableImage image = FXImageIO.readPixelBuffer(path, param);
+
+        assertNotNull(image);
+        TestImages.assertPixels(readExpected(path, param), (int) image.getWidth(), (int) image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"png", "bmp"})
+    void readRegionNotIntersecting(final String formatName) throws IOException {
+        Path path = TestImages.write(SOURCE, formatName, directory);
+        ImageReadParam param = param(new Rectangle(200, 100, 10, 10), 1, 1, 0, 0);
+
+        assertThrows(IllegalArgumentException.class, () -> FXImageIO.read(path, param));
+        assertThrows(IllegalArgumentException.class, () -> FXImageIO.readHeap(path, param));
+    }
+}
@@ -0,0 +1,362 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests that raster writes, of single samples through the data buffer and of rows directly, are consistent.
+ */
+class FXWritableRasterTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 8;
+
+    private static FXBufferedImage createImage(final WritableImage fxImage, final int type) {
+        return new FXBufferedImage(fxImage, ImageTypeSpecifier.createFromBufferedImageType(type));
+    }
+
+    private static int[] fill(final int... samples) {
+        int[] pixels = new int[WIDTH * HEIGHT * samples.length];
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = samples[i % samples.length];
+        }
+
+        return pixels;
+    }
+
+    @Test
+    void bulkWriteInvalidatesCachedReads() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        WritableRaster raster = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR).getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        // Reads the rows into the cache of the data buffer, the FX image stores BGRA
+        assertEquals(0, buffer.getElem(2));
+
+        raster.setPixels(0, 0, WIDTH, HEIGHT, fill(200, 100, 50, 255));
+
+        assertEquals(200, buffer.getElem(2) & 0xff);
+        assertEquals(200, buffer.getElem((WIDTH * HEIGHT - 1) * 4 + 2) & 0xff);
+    }
+
+    @Test
+    void bulkWriteNotOverwrittenByCachedWrites() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage image = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR);
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        buffer.getElem(0);
+        raster.setPixels(0, 0, WIDTH, HEIGHT, fill(200, 100, 50, 255));
+
+        // Changes the corners, the pixels in between must be written back from the new pixels
+        raster.setPixel(0, 0, new int[] {10, 20, 30, 255});
+        raster.setPixel(WIDTH - 1, HEIGHT - 1, new int[] {10, 20, 30, 255});
+        image.flush();
+
+        assertEquals(0xff0a141e, fxImage.getPixelReader().getArgb(0, 0));
+        assertEquals(0xffc86432, fxImage.getPixelReader().getArgb(WIDTH / 2, HEIGHT / 2));
+        assertEquals(0xff0a141e, fxImage.getPixelReader().getArgb(WIDTH - 1, HEIGHT - 1));
+    }
+
+    @Test
+    void dataElementsWriteInvalidatesCachedReads() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        WritableRaster raster = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR).getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        buffer.getElem(0);
+
+        // Translucent, the FX image stores premultiplied pixels, while the color model is not premultiplied
+        byte[] elements = new byte[WIDTH * 4];
+        Arrays.fill(elements, (byte) 0x40);
+        for (int i = 3; i < elements.length; i += 4) {
+            elements[i] = (byte) 0x80;
+        }
+        raster.setDataElements(0, 3, WIDTH, 1, elements);
+
+        assertEquals(0x40, buffer.getElem((3 * WIDTH) * 4));
+        assertEquals(0x80, buffer.getElem((3 * WIDTH) * 4 + 3) & 0xff);
+        assertEquals(0, buffer.getElem((2 * WIDTH) * 4));
+    }
+
+    @Test
+    void setSampleKeepsAlpha() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage image = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR);
+        WritableRaster raster = image.getRaster();
+
+        // Not saturated, so that a component stored without premultiplying would read back larger
+        raster.setSample(1, 1, 3, 0x80);
+        raster.setSample(1, 1, 0, 0x40);
+        image.flush();
+
+        assertEquals(0x80400000, fxImage.getPixelReader().getArgb(1, 1));
+        assertEquals(0x40, raster.getSample(1, 1, 0));
+        assertEquals(0x80, raster.getSample(1, 1, 3));
+    }
+
+    @Test
+    void setSampleSameAsSetPixel() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage image = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR);
+        WritableRaster raster = image.getRaster();
+
+        raster.setPixel(1, 1, new int[] {0x40, 0x20, 0x10, 0x80});
+
+        raster.setSample(2, 1, 0, 0x40);
+        raster.setSample(2, 1, 1, 0x20);
+        raster.setSample(2, 1, 2, 0x10);
+        raster.setSample(2, 1, 3, 0x80);
+        image.flush();
+
+        assertEquals(0x80402010, fxImage.getPixelReader().getArgb(1, 1));
+        assertEquals(fxImage.getPixelReader().getArgb(1, 1), fxImage.getPixelReader().getArgb(2, 1));
+        assertArrayEquals(raster.getPixel(1, 1, (int[]) null), raster.getPixel(2, 1, (int[]) null));
+    }
+
+    @Test
+    void getSampleNotPremultiplied() {
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        fxImage.getPixelWriter().setArgb(1, 1, 0x80402010);
+
+        WritableRaster raster = createImage(fxImage, BufferedImage.TYPE_4BYTE_ABGR).getRaster();
+
+        // Through the data buffer, the same as the bulk read
+        assertEquals(0x40, raster.getSample(1, 1, 0));
+        assertEquals(0x20, raster.getSample(1, 1, 1));
+        assertEquals(0x10, raster.getSample(1, 1, 2));
+        assertEquals(0x80, raster.getSample(1, 1, 3));
+        assertArrayEquals(new int[] {0x40, 0x20, 0x10, 0x80}, raster.getPixels(1, 1, 1, 1, (int[]) null));
+    }
+
+    @Test
+    void setElemIntNotPremultiplied() {
+        // A packed, not premultiplied, color model over a premultiplied int surface
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.INT_ARGB_PRE);
+        FXBufferedImage image = new FXBufferedImage(surface, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB));
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        buffer.setElem(WIDTH + 1, 0x80402010);
+        image.flush();
+
+        assertEquals(0x80402010, surface.getArgb(1, 1));
+        assertEquals(0x80402010, buffer.getElem(WIDTH + 1));
+        assertEquals(0x80402010, image.getRGB(1, 1));
+    }
+
+    @Test
+    void setElemBytePremultipliedOverStraight() {
+        // A premultiplied color model over a non-premultiplied byte surface
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.BYTE_BGRA);
+        FXBufferedImage image = new FXBufferedImage(surface, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_4BYTE_ABGR_PRE));
+        WritableRaster raster = image.getRaster();
+
+        raster.setSample(1, 1, 3, 0x80);
+        raster.setSample(1, 1, 0, 0x20);
+        image.flush();
+
+        assertEquals(0x80400000, surface.getArgb(1, 1));
+        assertEquals(0x20, raster.getSample(1, 1, 0));
+    }
+
+    @Test
+    void setSampleOpaqueWithoutAlpha() {
+        // Alpha is never written to rasters without an alpha band, but the FX image is initially transparent
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage image = createImage(fxImage, BufferedImage.TYPE_3BYTE_BGR);
+
+        image.getRaster().setSample(1, 1, 0, 0xff);
+        image.flush();
+
+        assertEquals(0xffff0000, fxImage.getPixelReader().getArgb(1, 1));
+    }
+
+    @Test
+    void writesOfOtherThreadsBuffered() throws Exception {
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.INT_ARGB_PRE);
+        FXBufferedImage image = new FXBufferedImage(surface, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB_PRE));
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+
+        // The current thread uses the image first
+        assertEquals(0, buffer.getElem(0));
+
+        onOtherThread(() -> {
+            buffer.setElem(WIDTH + 1, 0xff102030);
+            buffer.setElem(WIDTH + 2, 0xff102030);
+
+            // Not written back until flushed
+            assertEquals(0, surface.getArgb(1, 1));
+
+            image.flush();
+            assertEquals(0xff102030, surface.getArgb(1, 1));
+            assertEquals(0xff102030, surface.getArgb(2, 1));
+        });
+    }
+
+    @Test
+    void cachedReadsSeeWritesOfOtherThreads() throws Exception {
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.INT_ARGB_PRE);
+        FXBufferedImage image = new FXBufferedImage(surface, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB_PRE));
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+
+        // Reads the rows into the cache of the current thread
+        assertEquals(0, buffer.getElem(WIDTH + 1));
+
+        onOtherThread(() -> {
+            buffer.setElem(WIDTH + 1, 0xff102030);
+            image.release();
+        });
+
+        assertEquals(0xff102030, buffer.getElem(WIDTH + 1));
+
+        onOtherThread(() -> raster.setDataElements(0, 1, WIDTH, 1, new int[WIDTH]));
+
+        assertEquals(0, buffer.getElem(WIDTH + 1));
+    }
+
+    private static void onOtherThread(final Runnable task) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            executor.submit(task).get();
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Data elements of the natural color model of the surface, premultiplied if the surface is.
+     */
+    private static Object createDataElements(final ColorModel colorModel, final int pixels) {
+        Object elements = null;
+
+        for (int i = 0; i < pixels; i++) {
+            // Opaque every other pixel, translucent otherwise, with components no larger than alpha
+            int a = i % 2 == 0 ? 0xff : 0x80 + i % 0x7f;
+            int argb = a << 24 | (i * 7 % a) << 16 | (i * 13 % a) << 8 | i * 3 % a;
+            Object pixel = colorModel.getDataElements(colorModel.isAlphaPremultiplied() ? argb : PixelConversion.unpremultiply(argb), null);
+
+            if (elements == null) {
+                elements = Array.newInstance(pixel.getClass().getComponentType(), pixels * Array.getLength(pixel));
+            }
+
+            System.arraycopy(pixel, 0, elements, i * Array.getLength(pixel), Array.getLength(pixel));
+        }
+
+        return elements;
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PixelFormat.Type.class, names = {"INT_ARGB", "INT_ARGB_PRE", "BYTE_BGRA", "BYTE_BGRA_PRE", "BYTE_RGB"})
+    void setGetDataElements(final PixelFormat.Type type) {
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, type);
+        FXBufferedImage image = new FXBufferedImage(surface);
+        WritableRaster raster = image.getRaster();
+
+        Object elements = createDataElements(image.getColorModel(), 5 * 3);
+        raster.setDataElements(2, 4, 5, 3, elements);
+
+        Object read = raster.getDataElements(2, 4, 5, 3, null);
+        if (elements instanceof int[]) {
+            assertArrayEquals((int[]) elements, (int[]) read);
+        }
+        else {
+            assertArrayEquals((byte[]) elements, (byte[]) read);
+        }
+
+        // Read into the given array
+        assertSame(read, raster.getDataElements(2, 4, 5, 3, read));
+
+        // Outside the region is unchanged
+        assertEquals(type == PixelFormat.Type.BYTE_RGB ? 0xff000000 : 0, surface.getArgb(1, 4));
+        assertEquals(type == PixelFormat.Type.BYTE_RGB ? 0xff000000 : 0, surface.getArgb(7, 6));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PixelFormat.Type.class, names = {"INT_ARGB", "INT_ARGB_PRE", "BYTE_BGRA", "BYTE_BGRA_PRE", "BYTE_RGB"})
+    void setDataElementsMatchesColorModel(final PixelFormat.Type type) {
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, type);
+        FXBufferedImage image = new FXBufferedImage(surface);
+        ColorModel colorModel = image.getColorModel();
+
+        Object elements = createDataElements(colorModel, WIDTH * HEIGHT);
+        image.getRaster().setDataElements(0, 0, WIDTH, HEIGHT, elements);
+
+        Object pixel = null;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixel = image.getRaster().getDataElements(x, y, pixel);
+
+                // Opaque pixels only, translucent pixels are rounded differently by the color model
+                if (colorModel.getAlpha(pixel) == 0xff) {
+                    assertEquals(Integer.toHexString(colorModel.getRGB(pixel)), Integer.toHexString(surface.getArgb(x, y)), "pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void getDataElementsIndexed() {
+        int[] palette = {0xff000000, 0xffff0000, 0xff00ff00, 0xff0000ff};
+        byte[] indices = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = (byte) (i % palette.length);
+        }
+
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.createByteIndexedInstance(palette), indices);
+        FXBufferedImage image = new FXBufferedImage(surface);
+
+        assertArrayEquals(Arrays.copyOfRange(indices, 2 * WIDTH, 4 * WIDTH), (byte[]) image.getRaster().getDataElements(0, 2, WIDTH, 2, null));
+        assertEquals(palette[3], image.getRGB(3, 0));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests that the stream writes the same files as the ImageIO file stream, for the same sequence of operations.
+ */
+class FileChannelImageOutputStreamTest {
+    private static final ByteOrder[] BYTE_ORDERS = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+
+    @TempDir
+    Path directory;
+
+    @FunctionalInterface
+    private interface Operations {
+        void apply(ImageOutputStream stream) throws IOException;
+    }
+
+    private void assertSameAsReference(final Operations operations) throws IOException {
+        Path expected = directory.resolve("expected.bin");
+        Path actual = directory.resolve("actual.bin");
+
+        try (ImageOutputStream stream = new FileImageOutputStream(expected.toFile())) {
+            operations.apply(stream);
+        }
+
+        try (ImageOutputStream stream = new FileChannelImageOutputStream(actual)) {
+            operations.apply(stream);
+        }
+
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(actual));
+    }
+
+    private static byte[] createData(final int length) {
+        byte[] data = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+
+        return data;
+    }
+
+    @Test
+    void writeArraysBothByteOrders() throws IOException {
+        assertSameAsReference(stream -> {
+            for (ByteOrder order : BYTE_ORDERS) {
+                stream.setByteOrder(order);
+
+                stream.writeShorts(new short[] {1, -2, 0x1234, Short.MIN_VALUE}, 1, 3);
+                stream.writeInts(new int[] {0x12345678, -1, Integer.MAX_VALUE}, 0, 3);
+                stream.writeFloats(new float[] {1.5f, Float.NaN, -0f}, 0, 3);
+                stream.writeLong(0x0102030405060708L);
+                stream.writeDouble(Math.PI);
+            }
+        });
+    }
+
+    @Test
+    void writeLargerThanBuffer() throws IOException {
+        byte[] data = createData(200_000);
+
+        assertSameAsReference(stream -> {
+            stream.write(data, 0, 100);
+            stream.write(data, 100, 150_000);
+            stream.write(data, 150_100, 49_900);
+        });
+    }
+
+    @Test
+    void seekBackAndOverwrite() throws IOException {
+        byte[] data = createData(100_000);
+
+        assertSameAsReference(stream -> {
+            // Like writers updating offsets and lengths of data already written
+            stream.writeInt(0);
+            stream.write(data);
+
+            stream.seek(0);
+            stream.writeInt(data.length);
+
+            stream.seek(50_000);
+            stream.write(data, 0, 10);
+
+            stream.seek(stream.length());
+            stream.writeShort(-1);
+        });
+    }
+
+    @Test
+    void seekPastEndLeavesGap() throws IOException {
+        assertSameAsReference(stream -> {
+            stream.write(1);
+            stream.seek(10);
+            stream.write(2);
+        });
+    }
+
+    @Test
+    void writeBits() throws IOException {
+        assertSameAsReference(stream -> {
+            stream.writeBits(0b101, 3);
+            stream.writeBits(0x3ff, 10);
+
+            // Pending bits are flushed, before writing whole bytes
+            stream.write(0xaa);
+            stream.writeBit(1);
+        });
+    }
+
+    @Test
+    void readBackWritten() throws IOException {
+        try (ImageOutputStream stream = new FileChannelImageOutputStream(directory.resolve("test.bin"))) {
+            stream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+            stream.writeInts(new int[] {1, 2, 3}, 0, 3);
+            assertEquals(12, stream.length());
+
+            // Read while still buffered
+            stream.seek(4);
+            assertEquals(2, stream.readInt());
+
+            int[] ints = new int[2];
+            stream.seek(4);
+            stream.readFully(ints, 0, 2);
+            assertArrayEquals(new int[] {2, 3}, ints);
+        }
+    }
+
+    @Test
+    void readAtEOF() throws IOException {
+        try (ImageOutputStream stream = new FileChannelImageOutputStream(directory.resolve("test.bin"))) {
+            stream.write(createData(10));
+
+            assertEquals(-1, stream.read());
+            assertEquals(-1, stream.read(new byte[4], 0, 4));
+            assertEquals(0, stream.read(new byte[4], 0, 0));
+            assertThrows(EOFException.class, stream::readInt);
+
+            stream.seek(8);
+            byte[] bytes = new byte[4];
+            assertEquals(2, stream.read(bytes, 0, 4));
+            assertEquals(10, stream.getStreamPosition());
+        }
+    }
+
+    @Test
+    void existingFileTruncated() throws IOException {
+        Path path = Files.write(directory.resolve("test.bin"), createData(1000));
+
+        try (ImageOutputStream stream = new FileChannelImageOutputStream(path)) {
+            assertEquals(0, stream.length());
+            stream.write(createData(10));
+        }
+
+        assertArrayEquals(createData(10), Files.readAllBytes(path));
+    }
+
+    @Test
+    void flushBeforeWritesBuffer() throws IOException {
+        Path path = directory.resolve("test.bin");
+
+        try (ImageOutputStream stream = new FileChannelImageOutputStream(path)) {
+            stream.write(createData(10));
+            stream.flushBefore(10);
+
+            assertEquals(10, Files.size(path));
+            assertThrows(IndexOutOfBoundsException.class, () -> stream.seek(5));
+        }
+    }
+
+    @Test
+    void writeAfterClose() throws IOException {
+        ImageOutputStream stream = new FileChannelImageOutputStream(directory.resolve("test.bin"));
+        stream.close();
+
+        assertThrows(IOException.class, () -> stream.write(1));
+        assertThrows(IOException.class, () -> stream.write(new byte[4], 0, 4));
+        assertThrows(IOException.class, stream::read);
+        assertEquals(-1, stream.length());
+    }
+}
@@ -0,0 +1,305 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import javafx.util.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests composition of animated GIF frames, with sub-image frames and the different disposal methods.
+ */
+class FrameSequenceTest {
+    private static final int SIZE = 8;
+
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+    private static final int WHITE = 0xffffffff;
+
+    // Frame bounds (x, y, width, height), colors and disposal methods
+    private static final int[][] BOUNDS = {{0, 0, SIZE, SIZE}, {2, 2, 4, 4}, {0, 0, 2, 2}, {6, 6, 2, 2}, {4, 0, 2, 2}};
+    private static final int[] COLORS = {RED, GREEN, BLUE, WHITE, GREEN};
+    private static final String[] DISPOSALS = {"doNotDispose", "restoreToPrevious", "restoreToBackgroundColor", "none", "none"};
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+
+    @BeforeEach
+    void writeFrames() throws IOException {
+        path = directory.resolve("test.gif");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(path.toFile())) {
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BufferedImage image = new BufferedImage(BOUNDS[i][2], BOUNDS[i][3], BufferedImage.TYPE_INT_RGB);
+
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        image.setRGB(x, y, COLORS[i]);
+                    }
+                }
+
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+                String formatName = metadata.getNativeMetadataFormatName();
+                IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+                IIOMetadataNode descriptor = getChild(root, "ImageDescriptor");
+                descriptor.setAttribute("imageLeftPosition", String.valueOf(BOUNDS[i][0]));
+                descriptor.setAttribute("imageTopPosition", String.valueOf(BOUNDS[i][1]));
+
+                IIOMetadataNode control = getChild(root, "GraphicControlExtension");
+                control.setAttribute("disposalMethod", DISPOSALS[i]);
+                control.setAttribute("userInputFlag", "FALSE");
+                control.setAttribute("transparentColorFlag", "FALSE");
+                control.setAttribute("transparentColorIndex", "0");
+                control.setAttribute("delayTime", String.valueOf(10 * (i + 1)));
+
+                metadata.setFromTree(formatName, root);
+                writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            }
+
+            writer.endWriteSequence();
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    private static IIOMetadataNode getChild(final IIOMetadataNode parent, final String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+
+        IIOMetadataNode child = new IIOMetadataNode(name);
+        parent.appendChild(child);
+
+        return child;
+    }
+
+    /**
+     * The frames as a browser would display them.
+     */
+    private static int[] expectedFrame(final int index) {
+        int[] canvas = new int[SIZE * SIZE];
+        fill(canvas, BOUNDS[0], RED);
+
+        switch (index) {
+            case 0:
+                break;
+            case 1:
+                fill(canvas, BOUNDS[1], GREEN);
+                break;
+            case 4:
+                fill(canvas, BOUNDS[4], GREEN);
+                // Fall through, as frames 3 and 4 are left in place
+            case 3:
+                // Frame 2 was restored to background (transparent)
+                fill(canvas, BOUNDS[2], 0);
+                fill(canvas, BOUNDS[3], WHITE);
+                break;
+            case 2:
+                // Frame 1 was restored to previous
+                fill(canvas, BOUNDS[2], BLUE);
+                break;
+            default:
+                throw new IllegalArgumentException("index: " + index);
+        }
+
+        return canvas;
+    }
+
+    private static void fill(final int[] canvas, final int[] bounds, final int argb) {
+        for (int y = bounds[1]; y < bounds[1] + bounds[3]; y++) {
+            Arrays.fill(canvas, y * SIZE + bounds[0], y * SIZE + bounds[0] + bounds[2], argb);
+        }
+    }
+
+    private static void assertFrame(final int index, final WritableImage frame) {
+        assertEquals(SIZE, (int) frame.getWidth(), "width");
+        assertEquals(SIZE, (int) frame.getHeight(), "height");
+
+        int[] expected = expectedFrame(index);
+
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                int actual = frame.getPixelReader().getArgb(x, y);
+
+                if (expected[y * SIZE + x] != actual) {
+                    assertEquals(Integer.toHexString(expected[y * SIZE + x]), Integer.toHexString(actual), "frame " + index + ", pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    private static long frameBytes() {
+        return FXImageIO.sizeOf(new WritableImage(SIZE, SIZE));
+    }
+
+    @Test
+    void composeInOrder() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path)) {
+            assertEquals(BOUNDS.length, frames.getFrameCount());
+
+            for (int i = 0; i < BOUNDS.length; i++) {
+                assertFrame(i, frames.getFrame(i));
+                assertEquals(Duration.millis(100 * (i + 1)), frames.getDelay(i));
+            }
+        }
+    }
+
+    @Test
+    void composeOutOfOrder() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path)) {
+            for (int i : new int[] {3, 1, 4, 0, 2}) {
+                assertFrame(i, frames.getFrame(i));
+            }
+        }
+    }
+
+    @Test
+    void cachedFramesReturned() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path)) {
+            WritableImage frame = frames.getFrame(2);
+            assertSame(frame, frames.getFrame(2));
+        }
+    }
+
+    @Test
+    void seekBackwardsFromCachedFrame() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path, 3 * frameBytes())) {
+            assertFrame(0, frames.getFrame(0));
+            assertFrame(1, frames.getFrame(1));
+            assertFrame(2, frames.getFrame(2));
+
+            // Frame 3 is drawn, but not cached, on the way to frame 4
+            assertFrame(4, frames.getFrame(4));
+
+            // Restored from the cached frame 2, which is disposed to background before drawing frame 3
+            assertFrame(3, frames.getFrame(3));
+        }
+    }
+
+    @Test
+    void seekBackwardsSkipsRestoreToPrevious() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path, 2 * frameBytes())) {
+            assertFrame(1, frames.getFrame(1));
+            assertFrame(3, frames.getFrame(3));
+
+            // Only frames 1 and 3 are cached, frame 1 can't be restored from, as its composed frame includes the green area
+            assertFrame(2, frames.getFrame(2));
+        }
+    }
+
+    @Test
+    void seekBackwardsWithoutCache() throws IOException {
+        try (FrameSequence frames = FXImageIO.readFrames(path, 0)) {
+            assertFrame(4, frames.getFrame(4));
+            assertFrame(2, frames.getFrame(2));
+            assertFrame(3, frames.getFrame(3));
+            assertFrame(0, frames.getFrame(0));
+        }
+    }
+
+    @Test
+    void getFrameAsync() throws Exception {
+        try (FrameSequence frames = FXImageIO.readFrames(path)) {
+            List<CompletableFuture<WritableImage>> futures = new ArrayList<>();
+
+            for (int i = BOUNDS.length - 1; i >= 0; i--) {
+                futures.add(0, frames.getFrameAsync(i));
+            }
+
+            for (int i = 0; i < BOUNDS.length; i++) {
+                assertFrame(i, futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    void closeCompletesPendingRequests() throws Exception {
+        FrameSequence frames = FXImageIO.readFrames(path);
+        List<CompletableFuture<WritableImage>> futures = new ArrayList<>();
+
+        // The sequence is locked while decoding, holding the lock keeps the requests pending until closed
+        synchronized (frames) {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                futures.add(frames.getFrameAsync(i));
+            }
+
+            frames.close();
+        }
+
+        for (CompletableFuture<WritableImage> future : futures) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(UncheckedIOException.class, e.getCause());
+        }
+
+        assertThrows(IOException.class, () -> frames.getFrame(0));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> frames.getFrameAsync(0).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(UncheckedIOException.class, e.getCause());
+    }
+}
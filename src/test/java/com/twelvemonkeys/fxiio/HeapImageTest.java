@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reading into, and writing from, heap images, without the JavaFX toolkit.
+ */
+class HeapImageTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void readHeap() throws IOException {
+        BufferedImage expected = TestImages.create(67, 43, BufferedImage.TYPE_INT_RGB);
+        HeapImage image = FXImageIO.readHeap(TestImages.write(expected, "png", directory));
+
+        assertNotNull(image);
+        TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @Test
+    void readHeapStaged() throws IOException {
+        // The BMP reader can not decode into the heap surface, so it is read one strip at the time
+        BufferedImage expected = TestImages.create(67, 43, BufferedImage.TYPE_3BYTE_BGR);
+        HeapImage image = FXImageIO.readHeap(TestImages.write(expected, "bmp", directory));
+
+        assertNotNull(image);
+        TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @Test
+    void writeReadHeap() throws IOException {
+        BufferedImage expected = TestImages.create(31, 17, BufferedImage.TYPE_INT_RGB);
+        HeapImage image = FXImageIO.readHeap(TestImages.write(expected, "png", directory));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(image.write("png", output));
+
+        HeapImage copy = FXImageIO.readHeap(new ByteArrayInputStream(output.toByteArray()));
+        TestImages.assertPixels(expected, copy.getWidth(), copy.getHeight(), copy.getPixelReader()::getArgb);
+    }
+
+    @Test
+    void readHeapUnknownFormat() throws IOException {
+        Path path = Files.write(directory.resolve("test.bin"), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+        assertNull(FXImageIO.readHeap(path));
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = PixelFormat.Type.class, names = {"INT_ARGB", "INT_ARGB_PRE", "BYTE_BGRA", "BYTE_BGRA_PRE", "BYTE_RGB"})
+    void singlePixelsMatchRows(final PixelFormat.Type type) {
+        HeapPixelSurface single = new HeapPixelSurface(7, 5, type);
+        HeapPixelSurface rows = new HeapPixelSurface(7, 5, type);
+        int[] pixel = new int[1];
+
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 7; x++) {
+                int argb = (x * 37 + 20) << 24 | (x * 11) << 16 | (y * 13) << 8 | (x + y);
+
+                single.setArgb(x, y, argb);
+                pixel[0] = argb;
+                rows.setPixels(x, y, 1, 1, PixelFormat.getIntArgbInstance(), pixel, 0, 1);
+            }
+        }
+
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 7; x++) {
+                rows.getPixels(x, y, 1, 1, PixelFormat.getIntArgbInstance(), pixel, 0, 1);
+
+                assertEquals(pixel[0], single.getArgb(x, y), "pixel " + x + ", " + y);
+                assertEquals(pixel[0], rows.getArgb(x, y), "pixel " + x + ", " + y);
+            }
+        }
+    }
+
+    @Test
+    void opaqueSurfaceDiscardsAlpha() {
+        HeapPixelSurface surface = new HeapPixelSurface(1, 1, PixelFormat.Type.BYTE_RGB);
+        surface.setArgb(0, 0, 0x80123456);
+
+        assertEquals(0xff123456, surface.getArgb(0, 0));
+    }
+}
@@ -0,0 +1,245 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests caching decoded images.
+ */
+class ImageCacheTest {
+    // Bytes of each image, as stored in a BYTE_BGRA_PRE image
+    private static final int SIZE = 16;
+    private static final long BYTES = SIZE * SIZE * 4;
+
+    @TempDir
+    Path directory;
+
+    private Path write(final String name, final int rgb) throws IOException {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                image.setRGB(x, y, rgb);
+            }
+        }
+
+        Path path = directory.resolve(name + ".png");
+        assertTrue(ImageIO.write(image, "png", path.toFile()));
+
+        return path;
+    }
+
+    @Test
+    void readCached() throws IOException {
+        Path path = write("a", 0xff0000);
+        ImageCache cache = new ImageCache(BYTES * 4);
+
+        WritableImage image = cache.read(path);
+
+        assertSame(image, cache.read(path));
+        assertEquals(0xffff0000, image.getPixelReader().getArgb(0, 0));
+
+        ImageCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getCount());
+        assertEquals(BYTES, statistics.getBytes());
+    }
+
+    @Test
+    void concurrentReadsDecodedOnce() throws Exception {
+        Path path = write("a", 0xff0000);
+        ImageCache cache = new ImageCache(BYTES * 4);
+
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<WritableImage>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Callable<WritableImage> read = () -> {
+                    start.await();
+                    return cache.read(path);
+                };
+                results.add(executor.submit(read));
+            }
+
+            start.countDown();
+
+            WritableImage image = results.get(0).get();
+            for (Future<WritableImage> result : results) {
+                assertSame(image, result.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        ImageCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getMisses());
+        assertEquals(threads - 1, statistics.getHits());
+    }
+
+    @Test
+    void evictLeastRecentlyUsed() throws IOException {
+        Path a = write("a", 0xff0000);
+        Path b = write("b", 0x00ff00);
+        Path c = write("c", 0x0000ff);
+        ImageCache cache = new ImageCache(BYTES * 2);
+
+        WritableImage imageA = cache.read(a);
+        WritableImage imageB = cache.read(b);
+        assertSame(imageA, cache.read(a));
+
+        // Over budget, b is the least recently used
+        cache.read(c);
+
+        ImageCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getEvictions());
+        assertEquals(2, statistics.getCount());
+        assertEquals(BYTES * 2, cache.getBytes());
+
+        assertSame(imageA, cache.read(a));
+        assertNotSame(imageB, cache.read(b));
+        assertEquals(4, cache.getStatistics().getMisses());
+    }
+
+    @Test
+    void imageLargerThanBudgetNotCached() throws IOException {
+        Path path = write("a", 0xff0000);
+        ImageCache cache = new ImageCache(BYTES - 1);
+
+        WritableImage image = cache.read(path);
+
+        assertNotSame(image, cache.read(path));
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getStatistics().getCount());
+    }
+
+    @Test
+    void softSpill() throws IOException {
+        Path a = write("a", 0xff0000);
+        Path b = write("b", 0x00ff00);
+        ImageCache cache = new ImageCache(BYTES, true);
+
+        // Strongly reachable, so the soft reference is not cleared
+        WritableImage imageA = cache.read(a);
+        cache.read(b);
+
+        assertEquals(1, cache.getStatistics().getEvictions());
+        assertEquals(BYTES, cache.getBytes());
+
+        // Reused from the soft reference, evicting b
+        assertSame(imageA, cache.read(a));
+        assertEquals(2, cache.getStatistics().getMisses());
+        assertEquals(2, cache.getStatistics().getEvictions());
+        assertEquals(BYTES, cache.getBytes());
+    }
+
+    @Test
+    void evictedWithoutSoftSpill() throws IOException {
+        Path a = write("a", 0xff0000);
+        Path b = write("b", 0x00ff00);
+        ImageCache cache = new ImageCache(BYTES);
+
+        WritableImage imageA = cache.read(a);
+        cache.read(b);
+
+        assertNotSame(imageA, cache.read(a));
+        assertEquals(3, cache.getStatistics().getMisses());
+    }
+
+    @Test
+    void fileChangedReadAgain() throws IOException {
+        Path path = write("a", 0xff0000);
+        ImageCache cache = new ImageCache(BYTES * 4);
+
+        WritableImage image = cache.read(path);
+        FileTime modified = Files.getLastModifiedTime(path);
+
+        write("a", 0x00ff00);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified.toMillis() + 2000));
+
+        WritableImage changed = cache.read(path);
+
+        assertNotSame(image, changed);
+        assertEquals(0xff00ff00, changed.getPixelReader().getArgb(0, 0));
+        assertSame(changed, cache.read(path));
+
+        // The image of the old version is dropped
+        assertEquals(1, cache.getStatistics().getCount());
+        assertEquals(BYTES, cache.getBytes());
+    }
+
+    @Test
+    void invalidate() throws IOException {
+        Path a = write("a", 0xff0000);
+        Path b = write("b", 0x00ff00);
+        ImageCache cache = new ImageCache(BYTES * 4, true);
+
+        WritableImage imageA = cache.read(a);
+        WritableImage imageB = cache.read(b);
+
+        cache.invalidate(a);
+
+        assertEquals(BYTES, cache.getBytes());
+        assertNotSame(imageA, cache.read(a));
+        assertSame(imageB, cache.read(b));
+
+        cache.invalidateAll();
+
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getStatistics().getCount());
+        assertNotSame(imageB, cache.read(b));
+    }
+}
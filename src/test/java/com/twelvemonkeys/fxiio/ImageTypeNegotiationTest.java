@@ -0,0 +1,212 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.DIRECT;
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.GRAY;
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.INDEXED;
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.PREMULTIPLY;
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.REDUCE;
+import static com.twelvemonkeys.fxiio.ImageTypeNegotiation.UNSUPPORTED;
+import static javafx.scene.image.PixelFormat.Type.BYTE_BGRA;
+import static javafx.scene.image.PixelFormat.Type.BYTE_BGRA_PRE;
+import static javafx.scene.image.PixelFormat.Type.BYTE_INDEXED;
+import static javafx.scene.image.PixelFormat.Type.BYTE_RGB;
+import static javafx.scene.image.PixelFormat.Type.INT_ARGB;
+import static javafx.scene.image.PixelFormat.Type.INT_ARGB_PRE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests the cost of storing each image type in each pixel format, and selecting the image type to decode into.
+ */
+class ImageTypeNegotiationTest {
+    private static final ColorSpace GRAY_SPACE = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+    private static final ColorSpace RGB_SPACE = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+
+    private static final ImageTypeSpecifier INT_RGB_TYPE = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB);
+    private static final ImageTypeSpecifier BYTE_BGR_TYPE = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+    private static final ImageTypeSpecifier BYTE_GRAY_TYPE = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_GRAY);
+    private static final ImageTypeSpecifier USHORT_GRAY_TYPE = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_USHORT_GRAY);
+
+    private static ImageTypeSpecifier type(final int bufferedImageType) {
+        return ImageTypeSpecifier.createFromBufferedImageType(bufferedImageType);
+    }
+
+    static Stream<Arguments> costs() {
+        ImageTypeSpecifier grayAlpha = ImageTypeSpecifier.createInterleaved(GRAY_SPACE, new int[] {0, 1}, DataBuffer.TYPE_BYTE, true, false);
+        ImageTypeSpecifier rgb16 = ImageTypeSpecifier.createInterleaved(RGB_SPACE, new int[] {0, 1, 2}, DataBuffer.TYPE_USHORT, false, false);
+        ImageTypeSpecifier rgbaFloat = ImageTypeSpecifier.createInterleaved(RGB_SPACE, new int[] {0, 1, 2, 3}, DataBuffer.TYPE_FLOAT, true, false);
+        ImageTypeSpecifier bandedRGB = ImageTypeSpecifier.createBanded(RGB_SPACE, new int[] {0, 1, 2}, new int[] {0, 0, 0}, DataBuffer.TYPE_BYTE, false, false);
+
+        return Stream.of(
+                // Packed ARGB
+                Arguments.of(type(BufferedImage.TYPE_INT_ARGB), INT_ARGB, DIRECT),
+                Arguments.of(type(BufferedImage.TYPE_INT_ARGB), INT_ARGB_PRE, PREMULTIPLY),
+                Arguments.of(type(BufferedImage.TYPE_INT_ARGB_PRE), INT_ARGB_PRE, DIRECT),
+                Arguments.of(type(BufferedImage.TYPE_INT_ARGB_PRE), INT_ARGB, PREMULTIPLY),
+                Arguments.of(INT_RGB_TYPE, INT_ARGB_PRE, DIRECT),
+                Arguments.of(type(BufferedImage.TYPE_INT_BGR), INT_ARGB_PRE, UNSUPPORTED),
+                // Packed pixels can not be stored in the byte formats
+                Arguments.of(type(BufferedImage.TYPE_INT_ARGB), BYTE_BGRA, UNSUPPORTED),
+                Arguments.of(INT_RGB_TYPE, BYTE_BGRA_PRE, UNSUPPORTED),
+                // Interleaved bytes, only packed pixels can be stored in the int formats
+                Arguments.of(BYTE_BGR_TYPE, BYTE_BGRA_PRE, DIRECT),
+                Arguments.of(BYTE_BGR_TYPE, INT_ARGB_PRE, UNSUPPORTED),
+                Arguments.of(type(BufferedImage.TYPE_4BYTE_ABGR), BYTE_BGRA, DIRECT),
+                Arguments.of(type(BufferedImage.TYPE_4BYTE_ABGR), BYTE_BGRA_PRE, PREMULTIPLY),
+                Arguments.of(type(BufferedImage.TYPE_4BYTE_ABGR_PRE), BYTE_BGRA_PRE, DIRECT),
+                Arguments.of(bandedRGB, BYTE_BGRA_PRE, DIRECT),
+                // Gray
+                Arguments.of(BYTE_GRAY_TYPE, BYTE_BGRA_PRE, GRAY),
+                Arguments.of(BYTE_GRAY_TYPE, INT_ARGB_PRE, UNSUPPORTED),
+                Arguments.of(grayAlpha, BYTE_BGRA, GRAY),
+                Arguments.of(grayAlpha, BYTE_BGRA_PRE, PREMULTIPLY),
+                // Palette
+                Arguments.of(type(BufferedImage.TYPE_BYTE_INDEXED), BYTE_BGRA_PRE, INDEXED),
+                Arguments.of(type(BufferedImage.TYPE_BYTE_BINARY), BYTE_BGRA, INDEXED),
+                Arguments.of(type(BufferedImage.TYPE_BYTE_INDEXED), INT_ARGB_PRE, UNSUPPORTED),
+                // More than 8 bits, or floating point, only reduced into byte formats
+                Arguments.of(USHORT_GRAY_TYPE, BYTE_BGRA_PRE, REDUCE),
+                Arguments.of(USHORT_GRAY_TYPE, INT_ARGB_PRE, UNSUPPORTED),
+                Arguments.of(rgb16, BYTE_BGRA, REDUCE),
+                Arguments.of(rgbaFloat, BYTE_BGRA_PRE, REDUCE),
+                // Less than 8 bits, not palette
+                Arguments.of(type(BufferedImage.TYPE_USHORT_565_RGB), BYTE_BGRA_PRE, UNSUPPORTED),
+                // Read-only formats
+                Arguments.of(BYTE_BGR_TYPE, BYTE_RGB, UNSUPPORTED),
+                Arguments.of(type(BufferedImage.TYPE_BYTE_INDEXED), BYTE_INDEXED, UNSUPPORTED)
+        );
+    }
+
+    @ParameterizedTest
+    @MethodSource("costs")
+    void cost(final ImageTypeSpecifier spec, final PixelFormat.Type target, final int expected) {
+        assertEquals(expected, ImageTypeNegotiation.cost(spec, target));
+    }
+
+    @Test
+    void selectCheapest() throws Exception {
+        ImageReader reader = new TypesReader(USHORT_GRAY_TYPE, BYTE_GRAY_TYPE, BYTE_BGR_TYPE, INT_RGB_TYPE);
+
+        assertSame(BYTE_BGR_TYPE, ImageTypeNegotiation.select(reader, 0, BYTE_BGRA_PRE));
+        assertSame(INT_RGB_TYPE, ImageTypeNegotiation.select(reader, 0, INT_ARGB_PRE));
+    }
+
+    @Test
+    void selectSameCostInReaderOrder() throws Exception {
+        ImageTypeSpecifier byteRGB = ImageTypeSpecifier.createInterleaved(RGB_SPACE, new int[] {0, 1, 2}, DataBuffer.TYPE_BYTE, false, false);
+
+        assertSame(byteRGB, ImageTypeNegotiation.select(new TypesReader(byteRGB, BYTE_BGR_TYPE), 0, BYTE_BGRA_PRE));
+        assertSame(BYTE_BGR_TYPE, ImageTypeNegotiation.select(new TypesReader(BYTE_BGR_TYPE, byteRGB), 0, BYTE_BGRA_PRE));
+    }
+
+    @Test
+    void selectSupportedCreatesImage() throws Exception {
+        ImageReader reader = new TypesReader(INT_RGB_TYPE, type(BufferedImage.TYPE_INT_ARGB), BYTE_GRAY_TYPE, BYTE_BGR_TYPE);
+
+        for (PixelFormat.Type target : new PixelFormat.Type[] {BYTE_BGRA, BYTE_BGRA_PRE}) {
+            ImageTypeSpecifier spec = ImageTypeNegotiation.selectSupported(reader, 0, target);
+
+            assertSame(BYTE_BGR_TYPE, spec);
+            new FXBufferedImage(new HeapPixelSurface(4, 4, target), spec).release();
+        }
+    }
+
+    @Test
+    void selectUnsupported() throws Exception {
+        ImageReader reader = new TypesReader(BYTE_GRAY_TYPE, BYTE_BGR_TYPE);
+
+        // The first type, as the reader is then read staged
+        assertSame(BYTE_GRAY_TYPE, ImageTypeNegotiation.select(reader, 0, INT_ARGB_PRE));
+        assertNull(ImageTypeNegotiation.selectSupported(reader, 0, INT_ARGB_PRE));
+        assertSame(BYTE_BGR_TYPE, ImageTypeNegotiation.selectSupported(reader, 0, BYTE_BGRA_PRE));
+    }
+
+    /**
+     * Reader offering the given image types, for negotiation only.
+     */
+    private static final class TypesReader extends ImageReader {
+        private final List<ImageTypeSpecifier> types;
+
+        TypesReader(final ImageTypeSpecifier... types) {
+            super(null);
+            this.types = Arrays.asList(types);
+        }
+
+        @Override public Iterator<ImageTypeSpecifier> getImageTypes(final int imageIndex) {
+            return types.iterator();
+        }
+
+        @Override public int getNumImages(final boolean allowSearch) {
+            return 1;
+        }
+
+        @Override public int getWidth(final int imageIndex) {
+            return 1;
+        }
+
+        @Override public int getHeight(final int imageIndex) {
+            return 1;
+        }
+
+        @Override public IIOMetadata getStreamMetadata() {
+            return null;
+        }
+
+        @Override public IIOMetadata getImageMetadata(final int imageIndex) {
+            return null;
+        }
+
+        @Override public BufferedImage read(final int imageIndex, final ImageReadParam param) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reading and writing palette images, through the indexed path.
+ */
+class IndexedImageTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    // The last entry is fully transparent
+    private static final int[] PALETTE = createPalette(16);
+
+    @TempDir
+    Path directory;
+
+    private static int[] createPalette(final int size) {
+        int[] palette = new int[size];
+
+        for (int i = 0; i < size - 1; i++) {
+            palette[i] = 0xff000000 | (i * 17) << 16 | (255 - i * 13) << 8 | (i * 71 & 0xff);
+        }
+
+        return palette;
+    }
+
+    private static byte[] createIndices() {
+        byte[] indices = new byte[WIDTH * HEIGHT];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                indices[y * WIDTH + x] = (byte) ((x + y * 3) % PALETTE.length);
+            }
+        }
+
+        return indices;
+    }
+
+    private static BufferedImage createIndexedImage() {
+        IndexColorModel colorModel = new IndexColorModel(8, PALETTE.length, PALETTE, 0, true, -1, DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+
+        byte[] indices = createIndices();
+        System.arraycopy(indices, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, indices.length);
+
+        return image;
+    }
+
+    private static void assertSamePixels(final BufferedImage expected, final TestImages.ArgbSource actual) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expectedArgb = expected.getRGB(x, y);
+                // JavaFX does not keep the color of fully transparent pixels
+                expectedArgb = expectedArgb >>> 24 == 0 ? 0 : expectedArgb;
+
+                int actualArgb = actual.getArgb(x, y);
+
+                if (expectedArgb != actualArgb) {
+                    assertEquals(Integer.toHexString(expectedArgb), Integer.toHexString(actualArgb), "pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"gif", "png"})
+    void readIndexed(final String formatName) throws IOException {
+        Path path = TestImages.write(createIndexedImage(), formatName, directory);
+        BufferedImage expected = ImageIO.read(path.toFile());
+        assertInstanceOf(IndexColorModel.class, expected.getColorModel());
+
+        WritableImage image = FXImageIO.read(path);
+
+        assertEquals(WIDTH, (int) image.getWidth());
+        assertEquals(HEIGHT, (int) image.getHeight());
+        assertSamePixels(expected, image.getPixelReader()::getArgb);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"gif", "png"})
+    void writeReadIndexed(final String formatName) throws IOException {
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.createByteIndexedInstance(PALETTE), createIndices());
+        Path path = directory.resolve("indexed." + formatName);
+
+        assertTrue(FXImageIO.write(new FXBufferedImage(surface), formatName, path));
+
+        // Written as a palette image, with the palette of the surface
+        BufferedImage written = ImageIO.read(path.toFile());
+        assertInstanceOf(IndexColorModel.class, written.getColorModel());
+        assertSamePixels(written, surface.getPixelReader()::getArgb);
+
+        // Read back to the same pixels
+        WritableImage image = FXImageIO.read(path);
+        assertSamePixels(written, image.getPixelReader()::getArgb);
+    }
+}
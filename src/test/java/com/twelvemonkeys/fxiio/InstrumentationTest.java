@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the instrumentation counters, enabled for the tests by the build, and the JFR events.
+ */
+class InstrumentationTest {
+    @TempDir
+    Path directory;
+
+    private InstrumentationMBean counters;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        assertTrue(Instrumentation.ENABLED, "Instrumentation not enabled, run with -Dcom.twelvemonkeys.fxiio.instrumentation=true");
+
+        counters = JMX.newMBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName(Instrumentation.OBJECT_NAME), InstrumentationMBean.class);
+        counters.reset();
+    }
+
+    @Test
+    void countReadBulk() throws IOException {
+        // The JPEG reader writes rows using setRect
+        FXImageIO.read(TestImages.write(TestImages.create(64, 48, BufferedImage.TYPE_INT_RGB), "jpeg", directory));
+
+        assertTrue(counters.getFastPathCount() > 0, "fast path");
+        assertTrue(counters.getPixelWriterCallCount() > 0, "pixel writer calls");
+        assertEquals(0, counters.getFallbackCount(), "fallback");
+        assertEquals(0, counters.getPixelCount(), "pixels");
+    }
+
+    @Test
+    void countReadPixels() throws IOException {
+        // The PNG reader only writes rows in bulk to standard rasters, other rasters are written one pixel at the time
+        FXImageIO.read(TestImages.write(TestImages.create(64, 48, BufferedImage.TYPE_INT_RGB), "png", directory));
+
+        assertEquals(64 * 48, counters.getPixelCount(), "pixels");
+        assertEquals(0, counters.getFallbackCount(), "fallback");
+
+        // Buffered in the row cache, and written one block at the time
+        assertTrue(counters.getRowCacheMissCount() > 0, "row cache misses");
+        assertEquals(counters.getRowCacheMissCount(), counters.getPixelWriterCallCount(), "pixel writer calls");
+    }
+
+    @Test
+    void countWrite() throws IOException {
+        WritableImage image = FXImageIO.read(TestImages.write(TestImages.create(64, 48, BufferedImage.TYPE_INT_RGB), "png", directory));
+        counters.reset();
+
+        assertTrue(FXImageIO.write(image, "png", directory.resolve("written.png")));
+
+        assertTrue(counters.getFastPathCount() > 0, "fast path");
+        assertTrue(counters.getPixelReaderCallCount() > 0, "pixel reader calls");
+        assertEquals(0, counters.getPixelWriterCallCount(), "pixel writer calls");
+    }
+
+    @Test
+    void countPixels() {
+        FXBufferedImage image = new FXBufferedImage(new HeapPixelSurface(8, 8, PixelFormat.Type.BYTE_BGRA_PRE));
+
+        image.getRaster().setPixel(1, 2, new int[] {0x10, 0x20, 0x30, 0xff});
+        image.getRaster().setPixel(2, 2, new int[] {0x10, 0x20, 0x30, 0xff});
+
+        assertEquals(2, counters.getPixelCount());
+        assertEquals(1, counters.getRowCacheMissCount());
+        assertEquals(1, counters.getRowCacheHitCount());
+
+        image.release();
+
+        assertEquals(1, counters.getPixelWriterCallCount());
+    }
+
+    @Test
+    void reset() throws IOException {
+        FXImageIO.read(TestImages.write(TestImages.create(16, 16, BufferedImage.TYPE_INT_RGB), "png", directory));
+        counters.reset();
+
+        assertEquals(0, counters.getFastPathCount());
+        assertEquals(0, counters.getPixelWriterCallCount());
+    }
+
+    private List<RecordedEvent> record(final String eventName, final IORunnable action) throws IOException {
+        Path file = directory.resolve("recording.jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable(eventName).withoutThreshold();
+            recording.start();
+
+            action.run();
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        return RecordingFile.readAllEvents(file).stream()
+                            .filter(event -> event.getEventType().getName().equals(eventName))
+                            .collect(Collectors.toList());
+    }
+
+    @Test
+    void readEvent() throws IOException {
+        Path path = TestImages.write(TestImages.create(40, 30, BufferedImage.TYPE_INT_RGB), "png", directory);
+
+        List<RecordedEvent> events = record("com.twelvemonkeys.fxiio.ImageRead", () -> FXImageIO.read(path));
+
+        assertEquals(1, events.size());
+
+        RecordedEvent event = events.get(0);
+        assertEquals("png", event.getString("format"));
+        assertEquals(40, event.getInt("width"));
+        assertEquals(30, event.getInt("height"));
+        assertEquals("BYTE_BGRA_PRE", event.getString("pixelFormat"));
+        assertEquals(40 * 30 * 4, event.getLong("bytes"));
+    }
+
+    @Test
+    void writeEvent() throws IOException {
+        WritableImage image = FXImageIO.read(TestImages.write(TestImages.create(40, 30, BufferedImage.TYPE_INT_RGB), "png", directory));
+        Path path = directory.resolve("written.png");
+
+        List<RecordedEvent> events = record("com.twelvemonkeys.fxiio.ImageWrite", () -> FXImageIO.write(image, "png", path));
+
+        assertEquals(1, events.size());
+
+        RecordedEvent event = events.get(0);
+        assertEquals("png", event.getString("format"));
+        assertEquals(40, event.getInt("width"));
+        assertEquals(30, event.getInt("height"));
+        assertEquals("BYTE_BGRA_PRE", event.getString("pixelFormat"));
+        assertEquals(Files.size(path), event.getLong("bytes"));
+    }
+
+    @FunctionalInterface
+    private interface IORunnable {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Tests reading into, and writing from, memory mapped images.
+ */
+class MappedImageTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(ints = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_INDEXED})
+    void readMappedBMP(final int type) throws IOException {
+        // The BMP reader casts the data buffer, 24 bit BMPs used to fail with a ClassCastException
+        BufferedImage expected = TestImages.create(57, 31, type);
+
+        try (MappedImage image = FXImageIO.readMapped(TestImages.write(expected, "bmp", directory))) {
+            assertNotNull(image);
+            TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getBufferedImage()::getRGB);
+        }
+    }
+
+    @Test
+    void readMappedWBMP() throws IOException {
+        BufferedImage expected = TestImages.create(57, 31, BufferedImage.TYPE_BYTE_BINARY);
+
+        try (MappedImage image = FXImageIO.readMapped(TestImages.write(expected, "wbmp", directory))) {
+            assertNotNull(image);
+            TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getBufferedImage()::getRGB);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"png", "jpeg", "gif"})
+    void readMapped(final String formatName) throws IOException {
+        Path path = TestImages.write(TestImages.create(57, 31, BufferedImage.TYPE_INT_RGB), formatName, directory);
+        // Compared to the image as decoded by ImageIO, as JPEG and GIF are lossy
+        BufferedImage expected = ImageIO.read(path.toFile());
+
+        try (MappedImage image = FXImageIO.readMapped(path)) {
+            assertNotNull(image);
+            TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getBufferedImage()::getRGB);
+        }
+    }
+
+    @Test
+    void viewport() throws IOException {
+        BufferedImage expected = TestImages.create(57, 31, BufferedImage.TYPE_3BYTE_BGR);
+
+        try (MappedImage image = FXImageIO.readMapped(TestImages.write(expected, "bmp", directory))) {
+            WritableImage viewport = image.createViewport(10, 5, 20, 15);
+
+            TestImages.assertPixels(expected.getSubimage(10, 5, 20, 15), 20, 15, viewport.getPixelReader()::getArgb);
+        }
+    }
+
+    @Test
+    void writeReadMapped() throws IOException {
+        BufferedImage expected = TestImages.create(57, 31, BufferedImage.TYPE_INT_RGB);
+        Path copy = directory.resolve("copy.bmp");
+
+        try (MappedImage image = FXImageIO.readMapped(TestImages.write(expected, "png", directory))) {
+            image.write("bmp", copy);
+        }
+
+        try (MappedImage image = FXImageIO.readMapped(copy)) {
+            TestImages.assertPixels(expected, image.getWidth(), image.getHeight(), image.getBufferedImage()::getRGB);
+        }
+    }
+}
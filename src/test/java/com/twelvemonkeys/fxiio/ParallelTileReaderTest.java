@@ -0,0 +1,133 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests reading tiled images in parallel.
+ */
+class ParallelTileReaderTest {
+    @TempDir
+    Path directory;
+
+    private Path writeTiled(final BufferedImage image, final int tileWidth, final int tileHeight) throws IOException {
+        Path path = directory.resolve("tiled.tif");
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(path.toFile())) {
+            writer.setOutput(stream);
+
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setTiling(tileWidth, tileHeight, 0, 0);
+
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+
+        return path;
+    }
+
+    private static void assertSameImage(final WritableImage expected, final WritableImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "height");
+
+        for (int y = 0; y < (int) expected.getHeight(); y++) {
+            for (int x = 0; x < (int) expected.getWidth(); x++) {
+                int expectedArgb = expected.getPixelReader().getArgb(x, y);
+                int actualArgb = actual.getPixelReader().getArgb(x, y);
+
+                if (expectedArgb != actualArgb) {
+                    assertEquals(Integer.toHexString(expectedArgb), Integer.toHexString(actualArgb), "pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void readParallelMatchesSerialRead() throws IOException {
+        Path path = writeTiled(TestImages.create(200, 150, BufferedImage.TYPE_INT_RGB), 32, 32);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertSameImage(FXImageIO.read(path), FXImageIO.readParallel(path, pool));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void readParallelMatchesSerialReadAlpha() throws IOException {
+        BufferedImage image = TestImages.create(96, 80, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, image.getRGB(x, y) & 0xffffff | (x * 3 + y & 0xff) << 24);
+            }
+        }
+
+        Path path = writeTiled(image, 16, 16);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            assertSameImage(FXImageIO.read(path), FXImageIO.readParallel(path, pool));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void readParallelUntiled() throws IOException {
+        // Read on the current thread, staged, as the BMP reader casts the data buffer to the standard types
+        BufferedImage image = TestImages.create(40, 30, BufferedImage.TYPE_3BYTE_BGR);
+        WritableImage actual = FXImageIO.readParallel(TestImages.write(image, "bmp", directory));
+
+        TestImages.assertPixels(image, (int) actual.getWidth(), (int) actual.getHeight(), actual.getPixelReader()::getArgb);
+    }
+}
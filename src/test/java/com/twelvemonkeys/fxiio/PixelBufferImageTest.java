@@ -0,0 +1,92 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reading into images backed by a {@code PixelBuffer}.
+ */
+class PixelBufferImageTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void isSupportedPackedInt() {
+        assertTrue(PixelBufferImage.isSupported(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB)));
+        assertTrue(PixelBufferImage.isSupported(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_BGR,
+                         BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_BYTE_INDEXED})
+    void isSupportedOtherTypes(final int type) {
+        assertFalse(PixelBufferImage.isSupported(ImageTypeSpecifier.createFromBufferedImageType(type)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_INDEXED})
+    void readPixelBufferBMP(final int type) throws IOException {
+        // The BMP reader only decodes into its own types, 24 bit BMPs used to fail with a NullPointerException
+        BufferedImage expected = TestImages.create(57, 31, type);
+        WritableImage image = FXImageIO.readPixelBuffer(TestImages.write(expected, "bmp", directory));
+
+        assertNotNull(image);
+        TestImages.assertPixels(expected, (int) image.getWidth(), (int) image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"png", "jpeg", "gif"})
+    void readPixelBuffer(final String formatName) throws IOException {
+        BufferedImage source = TestImages.create(57, 31, BufferedImage.TYPE_INT_RGB);
+        Path path = TestImages.write(source, formatName, directory);
+        WritableImage image = FXImageIO.readPixelBuffer(path);
+
+        assertNotNull(image);
+        // Compared to the image as decoded by ImageIO, as JPEG and GIF are lossy
+        BufferedImage expected = ImageIO.read(path.toFile());
+        TestImages.assertPixels(expected, (int) image.getWidth(), (int) image.getHeight(), image.getPixelReader()::getArgb);
+    }
+}
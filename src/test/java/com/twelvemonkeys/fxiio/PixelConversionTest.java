@@ -0,0 +1,179 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+import org.junit.jupiter.api.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests premultiplying and unpremultiplying alpha, compared to the conversions of JavaFX images.
+ */
+class PixelConversionTest {
+    /**
+     * All combinations of alpha and component value, with different components.
+     */
+    private static int[] createPixels(final boolean premultiplied) {
+        int[] argb = new int[256 * 256];
+
+        for (int a = 0; a < 256; a++) {
+            for (int c = 0; c < 256; c++) {
+                // Premultiplied components are never larger than alpha
+                int value = premultiplied ? c * a / 255 : c;
+                argb[a << 8 | c] = a << 24 | value << 16 | (premultiplied ? a - value : 255 - value) << 8 | value >> 1;
+            }
+        }
+
+        return argb;
+    }
+
+    /**
+     * Converts the pixels using a JavaFX image, that stores pixels premultiplied.
+     */
+    private static int[] convertFX(final int[] argb, final PixelFormat<IntBuffer> from, final WritablePixelFormat<IntBuffer> to) {
+        WritableImage image = new WritableImage(256, 256);
+        image.getPixelWriter().setPixels(0, 0, 256, 256, from, argb, 0, 256);
+
+        int[] converted = new int[argb.length];
+        image.getPixelReader().getPixels(0, 0, 256, 256, to, converted, 0, 256);
+
+        return converted;
+    }
+
+    private static void assertPixels(final int[] expected, final int[] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                assertEquals(Integer.toHexString(expected[i]), Integer.toHexString(actual[i]), "pixel " + i);
+            }
+        }
+    }
+
+    @Test
+    void premultiplyMatchesFX() {
+        int[] argb = createPixels(false);
+        int[] expected = convertFX(argb, PixelFormat.getIntArgbInstance(), PixelFormat.getIntArgbPreInstance());
+
+        int[] actual = new int[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            actual[i] = PixelConversion.premultiply(argb[i]);
+        }
+
+        assertPixels(expected, actual);
+    }
+
+    @Test
+    void unpremultiplyMatchesFX() {
+        int[] argb = createPixels(true);
+        int[] expected = convertFX(argb, PixelFormat.getIntArgbPreInstance(), PixelFormat.getIntArgbInstance());
+
+        int[] actual = new int[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            actual[i] = PixelConversion.unpremultiply(argb[i]);
+        }
+
+        assertPixels(expected, actual);
+    }
+
+    @Test
+    void premultiplyUnpremultiply() {
+        // Premultiplied pixels are the same after unpremultiplying and premultiplying again
+        int[] argb = createPixels(true);
+
+        for (int pixel : argb) {
+            assertEquals(Integer.toHexString(pixel), Integer.toHexString(PixelConversion.premultiply(PixelConversion.unpremultiply(pixel))));
+        }
+    }
+
+    @Test
+    void opaqueUnchanged() {
+        for (int c = 0; c < 256; c++) {
+            int argb = 0xff000000 | c << 16 | (255 - c) << 8 | c >> 1;
+
+            assertEquals(argb, PixelConversion.premultiply(argb));
+            assertEquals(argb, PixelConversion.unpremultiply(argb));
+        }
+    }
+
+    @Test
+    void unpremultiplyClampsComponents() {
+        // Components larger than alpha are invalid, but clamped rather than overflowing
+        assertEquals(0x80ffff00, PixelConversion.unpremultiply(0x80ff8100));
+    }
+
+    @Test
+    void intArraysMatchSinglePixels() {
+        int[] argb = createPixels(false);
+        int[] premultiplied = argb.clone();
+        PixelConversion.premultiply(premultiplied, 0, premultiplied.length);
+
+        int[] unpremultiplied = premultiplied.clone();
+        PixelConversion.unpremultiply(unpremultiplied, 0, unpremultiplied.length);
+
+        for (int i = 0; i < argb.length; i++) {
+            assertEquals(PixelConversion.premultiply(argb[i]), premultiplied[i]);
+            assertEquals(PixelConversion.unpremultiply(premultiplied[i]), unpremultiplied[i]);
+        }
+    }
+
+    @Test
+    void byteArraysMatchIntArrays() {
+        int[] argb = createPixels(false);
+        byte[] bgra = toBGRA(argb);
+
+        int[] premultiplied = argb.clone();
+        PixelConversion.premultiply(premultiplied, 0, premultiplied.length);
+        PixelConversion.premultiply(bgra, 0, argb.length);
+        assertArrayEquals(toBGRA(premultiplied), bgra);
+
+        PixelConversion.unpremultiply(premultiplied, 0, premultiplied.length);
+        PixelConversion.unpremultiply(bgra, 0, argb.length);
+        assertArrayEquals(toBGRA(premultiplied), bgra);
+    }
+
+    private static byte[] toBGRA(final int[] argb) {
+        byte[] bgra = new byte[argb.length * 4];
+
+        for (int i = 0, o = 0; i < argb.length; i++, o += 4) {
+            bgra[o    ] = (byte) argb[i];
+            bgra[o + 1] = (byte) (argb[i] >> 8);
+            bgra[o + 2] = (byte) (argb[i] >> 16);
+            bgra[o + 3] = (byte) (argb[i] >>> 24);
+        }
+
+        return bgra;
+    }
+}
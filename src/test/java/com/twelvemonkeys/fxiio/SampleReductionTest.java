@@ -0,0 +1,311 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reduction of 16 bit and floating point samples to 8 bit ARGB pixels, and expansion back.
+ */
+class SampleReductionTest {
+    private static final ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+    private static final ColorSpace LINEAR_RGB = ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB);
+    private static final ColorSpace GRAY = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+
+    private static final int WIDTH = 17;
+    private static final int HEIGHT = 11;
+
+    @TempDir
+    Path directory;
+
+    private static ColorModel colorModel(final ColorSpace colorSpace, final boolean hasAlpha, final boolean premultiplied, final int dataType) {
+        int bands = colorSpace.getNumComponents() + (hasAlpha ? 1 : 0);
+        int[] offsets = new int[bands];
+        for (int i = 0; i < bands; i++) {
+            offsets[i] = i;
+        }
+
+        return ImageTypeSpecifier.createInterleaved(colorSpace, offsets, dataType, hasAlpha, premultiplied).getColorModel();
+    }
+
+    private static int reduce16(final int value) {
+        return (int) (value / 65535f * 255 + .5f);
+    }
+
+    @Test
+    void isSupported() {
+        assertTrue(SampleReduction.isSupported(colorModel(sRGB, false, false, DataBuffer.TYPE_USHORT)));
+        assertTrue(SampleReduction.isSupported(colorModel(sRGB, true, true, DataBuffer.TYPE_USHORT)));
+        assertTrue(SampleReduction.isSupported(colorModel(GRAY, true, false, DataBuffer.TYPE_USHORT)));
+        assertTrue(SampleReduction.isSupported(colorModel(LINEAR_RGB, true, false, DataBuffer.TYPE_FLOAT)));
+        assertTrue(SampleReduction.isSupported(colorModel(GRAY, false, false, DataBuffer.TYPE_DOUBLE)));
+
+        // 8 bit samples are stored as is, packed and indexed samples are not components
+        assertFalse(SampleReduction.isSupported(colorModel(sRGB, true, false, DataBuffer.TYPE_BYTE)));
+        assertFalse(SampleReduction.isSupported(new DirectColorModel(16, 0xf800, 0x07e0, 0x001f)));
+        assertFalse(SampleReduction.isSupported(new IndexColorModel(8, 2, new byte[2], new byte[2], new byte[2])));
+        assertFalse(SampleReduction.isSupported(colorModel(ColorSpace.getInstance(ColorSpace.CS_PYCC), false, false, DataBuffer.TYPE_USHORT)));
+    }
+
+    @Test
+    void bgraOffsets() {
+        assertArrayEquals(new int[] {2, 1, 0}, SampleReduction.getBGRAOffsets(colorModel(sRGB, false, false, DataBuffer.TYPE_USHORT)));
+        assertArrayEquals(new int[] {2, 1, 0, 3}, SampleReduction.getBGRAOffsets(colorModel(sRGB, true, false, DataBuffer.TYPE_FLOAT)));
+        assertArrayEquals(new int[] {2}, SampleReduction.getBGRAOffsets(colorModel(GRAY, false, false, DataBuffer.TYPE_USHORT)));
+        assertArrayEquals(new int[] {2, 3}, SampleReduction.getBGRAOffsets(colorModel(GRAY, true, false, DataBuffer.TYPE_USHORT)));
+    }
+
+    @Test
+    void reduceUShortRGBA() {
+        SampleReduction reduction = new SampleReduction(colorModel(sRGB, true, false, DataBuffer.TYPE_USHORT));
+
+        int[] samples = {0, 0x7fff, 0xffff, 0x8080, 0x1234, 0xfedc, 0x0101, 0};
+        int[] argb = new int[2];
+        reduction.reduce(samples, 0, 2, argb, 0);
+
+        assertEquals(reduce16(0x8080) << 24 | reduce16(0x7fff) << 8 | 0xff, argb[0]);
+        assertEquals(reduce16(0) << 24 | reduce16(0x1234) << 16 | reduce16(0xfedc) << 8 | reduce16(0x0101), argb[1]);
+    }
+
+    @Test
+    void reduceUShortGray() {
+        SampleReduction reduction = new SampleReduction(colorModel(GRAY, false, false, DataBuffer.TYPE_USHORT));
+
+        int[] samples = {0, 0x7fff, 0xffff, 0x1234};
+        int[] argb = new int[4];
+        reduction.reduce(samples, 0, 4, argb, 0);
+
+        // Gray is replicated, and stored as is, without conversion to sRGB
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(0xff000000 | reduce16(samples[i]) * 0x010101, argb[i], "pixel " + i);
+        }
+    }
+
+    @Test
+    void reduceFloatClamped() {
+        SampleReduction reduction = new SampleReduction(colorModel(sRGB, true, false, DataBuffer.TYPE_FLOAT));
+
+        float[] samples = {0.5f, 1.5f, -1f, 1, Float.NaN, 0, 0.25f, 2};
+        int[] argb = new int[2];
+        reduction.reduce(samples, 0, 2, argb, 0);
+
+        // Values above 1 are clamped, below 0 and NaN are 0
+        assertEquals(0xff80ff00, argb[0]);
+        assertEquals(0xff000040, argb[1]);
+    }
+
+    @Test
+    void reduceLinearRGBToSRGB() {
+        SampleReduction reduction = new SampleReduction(colorModel(LINEAR_RGB, false, false, DataBuffer.TYPE_FLOAT));
+
+        float[] samples = {0, 1, 0.5f, 0.0031308f, 0.2159f, 0.0f};
+        int[] argb = new int[2];
+        reduction.reduce(samples, 0, 2, argb, 0);
+
+        // Linear 0.5 is sRGB 0.735, linear 0.2159 is sRGB 0.502
+        assertEquals(0xff00ff00 | 188, argb[0]);
+        assertEquals(0xff000000 | 10 << 16 | 128 << 8, argb[1]);
+    }
+
+    @Test
+    void reduceBGRALayout() {
+        SampleReduction reduction = new SampleReduction(colorModel(sRGB, true, false, DataBuffer.TYPE_FLOAT), SampleReduction.BGRA_STRIDE, new int[] {2, 1, 0, 3});
+
+        // Blue, green, red, alpha, and the second pixel after an offset of one pixel
+        float[] samples = {0, 0, 0, 0, 0.25f, 0.5f, 1, 1};
+        int[] argb = new int[3];
+        reduction.reduce(samples, 4, 1, argb, 1);
+
+        assertArrayEquals(new int[] {0, 0xffff8040, 0}, argb);
+    }
+
+    @Test
+    void expandReduceRoundTrip() {
+        ColorModel[] colorModels = {
+                colorModel(sRGB, false, false, DataBuffer.TYPE_USHORT),
+                colorModel(sRGB, true, false, DataBuffer.TYPE_USHORT),
+                colorModel(sRGB, true, true, DataBuffer.TYPE_USHORT),
+                colorModel(GRAY, true, false, DataBuffer.TYPE_USHORT),
+                colorModel(sRGB, true, false, DataBuffer.TYPE_FLOAT),
+                colorModel(LINEAR_RGB, true, false, DataBuffer.TYPE_FLOAT),
+                colorModel(LINEAR_RGB, false, false, DataBuffer.TYPE_DOUBLE),
+        };
+
+        for (ColorModel colorModel : colorModels) {
+            SampleReduction reduction = new SampleReduction(colorModel);
+            int bands = colorModel.getNumComponents();
+
+            int[] argb = new int[256];
+            for (int i = 0; i < argb.length; i++) {
+                // Gray is expanded from red, and the other components are reduced from gray
+                int color = colorModel.getNumColorComponents() == 1 ? i * 0x010101 : i << 16 | (255 - i) << 8 | i * 37 & 0xff;
+                argb[i] = (colorModel.hasAlpha() ? 255 - i : 0xff) << 24 | color;
+            }
+
+            float[] samples = new float[argb.length * bands];
+            reduction.expand(argb, 0, argb.length, samples, 0);
+
+            int[] reduced = new int[argb.length];
+            reduction.reduce(samples, 0, argb.length, reduced, 0);
+            assertArrayEquals(argb, reduced, colorModel.toString());
+
+            // Integer samples, as reduced from the data buffer
+            if (colorModel.getTransferType() == DataBuffer.TYPE_USHORT) {
+                int[] intSamples = new int[samples.length];
+                for (int i = 0; i < samples.length; i++) {
+                    intSamples[i] = Math.round(samples[i]);
+                }
+
+                reduction.reduce(intSamples, 0, argb.length, reduced, 0);
+                assertArrayEquals(argb, reduced, colorModel.toString());
+            }
+        }
+    }
+
+    @Test
+    void expandUShortFullRange() {
+        SampleReduction reduction = new SampleReduction(colorModel(sRGB, true, false, DataBuffer.TYPE_USHORT));
+
+        float[] samples = new float[4];
+        reduction.expand(0xff00ff80, samples, 0);
+
+        assertArrayEquals(new float[] {0, 0xffff, 0x8080, 0xffff}, samples);
+    }
+
+    @Test
+    void writeFloatPixels() {
+        // The float fast path of the raster, as used by setRect
+        ColorModel colorModel = colorModel(sRGB, true, false, DataBuffer.TYPE_FLOAT);
+        ImageTypeSpecifier spec = new ImageTypeSpecifier(colorModel, colorModel.createCompatibleSampleModel(1, 1));
+
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.BYTE_BGRA);
+        FXBufferedImage image = new FXBufferedImage(surface, spec);
+        WritableRaster raster = image.getRaster();
+
+        float[] samples = new float[WIDTH * HEIGHT * 4];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            samples[i * 4    ] = (i % 5) / 4f;
+            samples[i * 4 + 1] = 2;
+            samples[i * 4 + 2] = 0;
+            samples[i * 4 + 3] = 1;
+        }
+
+        raster.setPixels(0, 0, WIDTH, HEIGHT, samples);
+        image.flush();
+
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int red = (int) ((i % 5) / 4f * 255 + .5f);
+            assertEquals(0xff00ff00 | red << 16, surface.getArgb(i % WIDTH, i / WIDTH), "pixel " + i);
+        }
+
+        // Read back, expanded from 8 bits
+        assertEquals(0.5f, raster.getSampleFloat(2, 0, 0), 1 / 255f);
+        assertEquals(1f, raster.getSampleFloat(2, 0, 1));
+    }
+
+    @Test
+    void setSampleUShort() {
+        ColorModel colorModel = colorModel(sRGB, true, false, DataBuffer.TYPE_USHORT);
+        ImageTypeSpecifier spec = new ImageTypeSpecifier(colorModel, colorModel.createCompatibleSampleModel(1, 1));
+
+        WritableImage fxImage = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage image = new FXBufferedImage(fxImage, spec);
+        WritableRaster raster = image.getRaster();
+
+        // Through the data buffer, reduced when flushed
+        raster.setPixel(3, 4, new int[] {0x4000, 0x2000, 0x1000, 0x8000});
+        raster.setSample(5, 4, 0, 0xffff);
+        raster.setSample(5, 4, 3, 0xffff);
+        image.flush();
+
+        assertEquals(reduce16(0x8000) << 24 | reduce16(0x4000) << 16 | reduce16(0x2000) << 8 | reduce16(0x1000),
+                     fxImage.getPixelReader().getArgb(3, 4), 1 << 16);
+        assertEquals(0xffff0000, fxImage.getPixelReader().getArgb(5, 4));
+    }
+
+    @Test
+    void read16BitPNG() throws IOException {
+        BufferedImage expected = ImageTypeSpecifier.createInterleaved(sRGB, new int[] {0, 1, 2}, DataBuffer.TYPE_USHORT, false, false)
+                                                   .createBufferedImage(WIDTH, HEIGHT);
+        WritableRaster raster = expected.getRaster();
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setPixel(x, y, new int[] {x * 3853, y * 5953, (x * y * 257) & 0xffff});
+            }
+        }
+
+        WritableImage image = FXImageIO.read(TestImages.write(expected, "png", directory));
+
+        // The color model reduces the same way
+        TestImages.assertPixels(expected, (int) image.getWidth(), (int) image.getHeight(), image.getPixelReader()::getArgb);
+    }
+
+    @Test
+    void read16BitGrayPNG() throws IOException {
+        BufferedImage gray = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = gray.getRaster();
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, (x * 3853 + y * 257) & 0xffff);
+            }
+        }
+
+        WritableImage image = FXImageIO.read(TestImages.write(gray, "png", directory));
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(0xff000000 | reduce16(raster.getSample(x, y, 0)) * 0x010101, image.getPixelReader().getArgb(x, y), "pixel " + x + ", " + y);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests the size classes and budget of the scratch buffer pools.
+ */
+class ScratchBuffersTest {
+    /**
+     * Runs the test on a new thread, so that it starts with empty pools.
+     */
+    private static void onNewThread(final Runnable test) throws Exception {
+        FutureTask<Void> task = new FutureTask<>(test, null);
+        new Thread(task).start();
+
+        try {
+            task.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    @Test
+    void sizeClasses() throws Exception {
+        onNewThread(() -> {
+            assertEquals(1, ScratchBuffers.getInts(0).length);
+            assertEquals(1, ScratchBuffers.getInts(1).length);
+            assertEquals(2, ScratchBuffers.getInts(2).length);
+            assertEquals(4, ScratchBuffers.getInts(3).length);
+            assertEquals(1024, ScratchBuffers.getInts(1000).length);
+            assertEquals(1024, ScratchBuffers.getBytes(1024).length);
+            assertEquals(2048, ScratchBuffers.getFloats(1025).length);
+        });
+    }
+
+    @Test
+    void reuseSameSizeClass() throws Exception {
+        onNewThread(() -> {
+            int[] ints = ScratchBuffers.getInts(1000);
+            ScratchBuffers.release(ints);
+            assertSame(ints, ScratchBuffers.getInts(600));
+
+            byte[] bytes = ScratchBuffers.getBytes(1000);
+            ScratchBuffers.release(bytes);
+            assertSame(bytes, ScratchBuffers.getBytes(513));
+
+            float[] floats = ScratchBuffers.getFloats(1000);
+            ScratchBuffers.release(floats);
+            assertSame(floats, ScratchBuffers.getFloats(1024));
+
+            // Only once
+            assertNotSame(floats, ScratchBuffers.getFloats(1024));
+        });
+    }
+
+    @Test
+    void noReuseOtherSizeClass() throws Exception {
+        onNewThread(() -> {
+            int[] ints = ScratchBuffers.getInts(1000);
+            ScratchBuffers.release(ints);
+
+            assertNotSame(ints, ScratchBuffers.getInts(1025));
+            assertNotSame(ints, ScratchBuffers.getInts(512));
+            assertSame(ints, ScratchBuffers.getInts(1024));
+        });
+    }
+
+    @Test
+    void lastReleasedFirst() throws Exception {
+        onNewThread(() -> {
+            int[] first = ScratchBuffers.getInts(256);
+            int[] second = ScratchBuffers.getInts(256);
+
+            ScratchBuffers.release(first);
+            ScratchBuffers.release(second);
+
+            assertSame(second, ScratchBuffers.getInts(256));
+            assertSame(first, ScratchBuffers.getInts(256));
+        });
+    }
+
+    @Test
+    void notPooledIgnored() throws Exception {
+        onNewThread(() -> {
+            // Not a size class length, so not borrowed from the pool
+            int[] ints = new int[1000];
+            ScratchBuffers.release(ints);
+            assertNotSame(ints, ScratchBuffers.getInts(1000));
+
+            ScratchBuffers.release((int[]) null);
+        });
+    }
+
+    @Test
+    void tooLargeForBudget() throws Exception {
+        onNewThread(() -> {
+            int length = (int) (ScratchBuffers.POOL_BUDGET / Integer.BYTES) + 1;
+
+            int[] ints = ScratchBuffers.getInts(length);
+            assertEquals(length, ints.length);
+
+            ScratchBuffers.release(ints);
+            assertNotSame(ints, ScratchBuffers.getInts(length));
+        });
+    }
+
+    @Test
+    void retainedWithinBudget() throws Exception {
+        onNewThread(() -> {
+            // A quarter of the budget each
+            int length = Integer.highestOneBit((int) (ScratchBuffers.POOL_BUDGET / 4));
+            int retained = (int) (ScratchBuffers.POOL_BUDGET / length);
+
+            List<byte[]> released = new ArrayList<>();
+            for (int i = 0; i < retained + 2; i++) {
+                released.add(ScratchBuffers.getBytes(length));
+            }
+            released.forEach(ScratchBuffers::release);
+
+            Set<byte[]> pooled = Collections.newSetFromMap(new IdentityHashMap<>());
+            pooled.addAll(released);
+
+            int reused = 0;
+            for (int i = 0; i < retained + 2; i++) {
+                if (pooled.contains(ScratchBuffers.getBytes(length))) {
+                    reused++;
+                }
+            }
+
+            // Only the arrays within the budget were pooled, the rest are new
+            assertEquals(retained, reused);
+        });
+    }
+
+    @Test
+    void budgetPerArrayType() throws Exception {
+        onNewThread(() -> {
+            int length = Integer.highestOneBit((int) (ScratchBuffers.POOL_BUDGET / Integer.BYTES));
+
+            int[] ints = ScratchBuffers.getInts(length);
+            float[] floats = ScratchBuffers.getFloats(length);
+            byte[] bytes = ScratchBuffers.getBytes(length);
+
+            ScratchBuffers.release(ints);
+            ScratchBuffers.release(floats);
+            ScratchBuffers.release(bytes);
+
+            assertSame(ints, ScratchBuffers.getInts(length));
+            assertSame(floats, ScratchBuffers.getFloats(length));
+            assertSame(bytes, ScratchBuffers.getBytes(length));
+        });
+    }
+
+    @Test
+    void pooledPerThread() throws Exception {
+        int[][] released = new int[1][];
+
+        onNewThread(() -> {
+            released[0] = ScratchBuffers.getInts(4096);
+            ScratchBuffers.release(released[0]);
+        });
+
+        onNewThread(() -> assertNotSame(released[0], ScratchBuffers.getInts(4096)));
+
+        // Released on another thread than borrowed, pooled by the releasing thread
+        onNewThread(() -> {
+            ScratchBuffers.release(released[0]);
+            assertSame(released[0], ScratchBuffers.getInts(4096));
+        });
+    }
+}
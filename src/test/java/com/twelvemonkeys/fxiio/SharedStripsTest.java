@@ -0,0 +1,134 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests that one image written to several targets concurrently, is encoded the same as when written to each target alone.
+ */
+class SharedStripsTest {
+    // Taller than a strip, with a partial last strip
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 1031;
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static WritableImage createImage() {
+        WritableImage image = new WritableImage(WIDTH, HEIGHT);
+        PixelWriter writer = image.getPixelWriter();
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // Opaque and translucent pixels
+                int a = (x + y) % 3 == 0 ? 0xff : 0x80 + y % 0x7f;
+                writer.setArgb(x, y, a << 24 | (x * 7 & 0xff) << 16 | (y * 13 & 0xff) << 8 | (x ^ y) & 0xff);
+            }
+        }
+
+        return image;
+    }
+
+    private void assertSameAsSerial(final WritableImage image, final String... formatNames) throws IOException {
+        List<WriteTarget> targets = new ArrayList<>();
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+
+        for (String formatName : formatNames) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            outputs.add(output);
+            targets.add(WriteTarget.of(formatName, output));
+        }
+
+        List<Boolean> written = FXImageIO.writeAll(image, targets, pool);
+
+        for (int i = 0; i < formatNames.length; i++) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+            assertEquals(FXImageIO.write(image, formatNames[i], expected), written.get(i), formatNames[i]);
+            assertArrayEquals(expected.toByteArray(), outputs.get(i).toByteArray(), formatNames[i]);
+        }
+    }
+
+    @Test
+    void writeAllSameAsSerial() throws IOException {
+        assertSameAsSerial(createImage(), "png", "png", "tiff", "bmp", "png");
+    }
+
+    @Test
+    void writeAllOfWrittenImage() throws IOException {
+        // Pixels written on this thread, in rows and through the data buffer, are seen by the writers
+        WritableImage image = new WritableImage(WIDTH, HEIGHT);
+        FXBufferedImage buffered = new FXBufferedImage(image, ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_4BYTE_ABGR));
+        WritableRaster raster = buffered.getRaster();
+
+        byte[] row = new byte[WIDTH * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            Arrays.fill(row, (byte) y);
+            raster.setDataElements(0, y, WIDTH, 1, row);
+
+            // Translucent red, one pixel per row, as ABGR
+            int offset = (y * WIDTH + y % WIDTH) * 4;
+            raster.getDataBuffer().setElem(offset, 0x80);
+            raster.getDataBuffer().setElem(offset + 1, 0);
+            raster.getDataBuffer().setElem(offset + 2, 0);
+            raster.getDataBuffer().setElem(offset + 3, 0xff);
+        }
+        buffered.release();
+
+        assertSameAsSerial(image, "png", "png", "png");
+    }
+
+    @Test
+    void writeAllSingleTarget() throws IOException {
+        assertSameAsSerial(createImage(), "png");
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.PixelFormat;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests deciding whether images must be read one strip at the time, and retrying staged when a direct read fails.
+ */
+class StripStagingReaderTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    private static ImageReader createReader(final String formatName, final int type) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(TestImages.create(WIDTH, HEIGHT, type), formatName, output));
+
+        ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ImageReader reader = ImageIO.getImageReaders(stream).next();
+        reader.setInput(stream);
+
+        return reader;
+    }
+
+    @Test
+    void isRequiredStandardRasterReaders() throws IOException {
+        assertTrue(StripStagingReader.isRequired(createReader("bmp", BufferedImage.TYPE_3BYTE_BGR), 0, PixelFormat.Type.BYTE_BGRA_PRE));
+        assertTrue(StripStagingReader.isRequired(createReader("wbmp", BufferedImage.TYPE_BYTE_BINARY), 0, PixelFormat.Type.BYTE_BGRA_PRE));
+    }
+
+    @Test
+    void isRequiredSupportedType() throws IOException {
+        assertFalse(StripStagingReader.isRequired(createReader("png", BufferedImage.TYPE_INT_RGB), 0, PixelFormat.Type.BYTE_BGRA_PRE));
+        assertFalse(StripStagingReader.isRequired(createReader("jpeg", BufferedImage.TYPE_INT_RGB), 0, PixelFormat.Type.BYTE_BGRA_PRE));
+    }
+
+    @Test
+    void readDirectCastFailure() throws IOException {
+        ImageReader reader = new OtherCastingReader();
+        FXBufferedImage destination = new FXBufferedImage(new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.BYTE_BGRA_PRE),
+                                                          ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(destination);
+
+        assertFalse(StripStagingReader.isRequired(reader, 0, PixelFormat.Type.BYTE_BGRA_PRE));
+
+        StripStagingReader.DirectReadException exception = assertThrows(StripStagingReader.DirectReadException.class,
+                                                                         () -> StripStagingReader.readDirect(reader, 0, param));
+        assertInstanceOf(ClassCastException.class, exception.getCause());
+
+        // Always read staged from now on
+        assertTrue(StripStagingReader.isRequired(reader, 0, PixelFormat.Type.BYTE_BGRA_PRE));
+    }
+
+    @Test
+    void readRetriesStaged() throws IOException {
+        ImageReader reader = new CastingReader();
+        ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(new byte[16]));
+        reader.setInput(stream, true, true);
+
+        assertFalse(StripStagingReader.isRequired(reader, 0, PixelFormat.Type.BYTE_BGRA_PRE));
+
+        HeapPixelSurface surface = new HeapPixelSurface(WIDTH, HEIGHT, PixelFormat.Type.BYTE_BGRA_PRE);
+        Rectangle region = new Rectangle(0, 0, WIDTH, HEIGHT);
+
+        StripStagingReader.read(reader, stream, 0, source -> {
+            FXImageIO.read(source, 0, source.getDefaultReadParam(), region, surface);
+            return null;
+        });
+
+        assertTrue(StripStagingReader.isRequired(reader, 0, PixelFormat.Type.BYTE_BGRA_PRE));
+        TestImages.assertPixels(TestImages.create(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), WIDTH, HEIGHT, surface::getArgb);
+    }
+
+    @Test
+    void readOtherFailureNotRetried() throws IOException {
+        ImageReader reader = createReader("png", BufferedImage.TYPE_INT_RGB);
+        ImageInputStream stream = (ImageInputStream) reader.getInput();
+        int[] reads = new int[1];
+
+        assertThrows(IllegalStateException.class, () -> StripStagingReader.read(reader, stream, 0, source -> {
+            reads[0]++;
+            throw new IllegalStateException();
+        }));
+        assertEquals(1, reads[0]);
+    }
+
+    /**
+     * Reader of the test image, that casts the data buffer of the destination to the standard type.
+     */
+    private static class CastingReader extends ImageReader {
+        CastingReader() {
+            super(null);
+        }
+
+        @Override public Iterator<ImageTypeSpecifier> getImageTypes(final int imageIndex) {
+            return List.of(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR)).iterator();
+        }
+
+        @Override public int getNumImages(final boolean allowSearch) {
+            return 1;
+        }
+
+        @Override public int getWidth(final int imageIndex) {
+            return WIDTH;
+        }
+
+        @Override public int getHeight(final int imageIndex) {
+            return HEIGHT;
+        }
+
+        @Override public IIOMetadata getStreamMetadata() {
+            return null;
+        }
+
+        @Override public IIOMetadata getImageMetadata(final int imageIndex) {
+            return null;
+        }
+
+        @Override public BufferedImage read(final int imageIndex, final ImageReadParam param) {
+            BufferedImage destination = param.getDestination();
+            byte[] data = ((DataBufferByte) destination.getRaster().getDataBuffer()).getData();
+
+            Rectangle region = param.getSourceRegion() != null ? param.getSourceRegion() : new Rectangle(WIDTH, HEIGHT);
+            BufferedImage source = TestImages.create(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+            for (int y = 0; y < region.height; y++) {
+                for (int x = 0; x < region.width; x++) {
+                    int rgb = source.getRGB(region.x + x, region.y + y);
+                    int offset = (y * destination.getWidth() + x) * 3;
+
+                    data[offset    ] = (byte) rgb;
+                    data[offset + 1] = (byte) (rgb >> 8);
+                    data[offset + 2] = (byte) (rgb >> 16);
+                }
+            }
+
+            return destination;
+        }
+    }
+
+    private static final class OtherCastingReader extends CastingReader {
+    }
+}
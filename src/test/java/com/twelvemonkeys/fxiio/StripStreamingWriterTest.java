@@ -0,0 +1,158 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that images written one strip at a time, decode the same as images written by {@code ImageIO.write}.
+ */
+class StripStreamingWriterTest {
+    // Taller than a strip, with a partial last strip
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 1031;
+
+    @TempDir
+    Path directory;
+
+    private static void assertSameDecoded(final BufferedImage expected, final BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "height");
+        assertEquals(expected.getColorModel().hasAlpha(), actual.getColorModel().hasAlpha(), "alpha");
+        assertEquals(expected.getColorModel().isAlphaPremultiplied(), actual.getColorModel().isAlphaPremultiplied(), "premultiplied");
+
+        Raster expectedRaster = expected.getRaster();
+        Raster actualRaster = actual.getRaster();
+
+        for (int y = 0; y < expected.getHeight(); y++) {
+            assertArrayEquals(expectedRaster.getPixels(0, y, WIDTH, 1, (int[]) null), actualRaster.getPixels(0, y, WIDTH, 1, (int[]) null), "row " + y);
+        }
+    }
+
+    /**
+     * Loads the image using JavaFX, as {@code BYTE_RGB} for opaque images.
+     */
+    private static Image load(final Path path) throws IOException {
+        try (InputStream stream = Files.newInputStream(path)) {
+            return new Image(stream);
+        }
+    }
+
+    private static BufferedImage decode(final byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] encode(final BufferedImage image, final String formatName) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, formatName, output));
+
+        return output.toByteArray();
+    }
+
+    @Test
+    void writeBytePremultiplied() throws IOException {
+        // Translucent, so that the stored samples depend on alpha
+        WritableImage image = new WritableImage(WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.getPixelWriter().setArgb(x, y, (x + y) % 256 << 24 | (x * 7 & 0xff) << 16 | (y * 5 & 0xff) << 8 | x * y & 0xff);
+            }
+        }
+        assertEquals(PixelFormat.Type.BYTE_BGRA_PRE, image.getPixelReader().getPixelFormat().getType());
+
+        // The same premultiplied pixels, as written by ImageIO
+        BufferedImage expected = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        image.getPixelReader().getPixels(0, 0, WIDTH, HEIGHT, PixelFormat.getIntArgbPreInstance(), pixels, 0, WIDTH);
+        expected.getRaster().setDataElements(0, 0, WIDTH, HEIGHT, pixels);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(FXImageIO.writeStreaming(image, "tiff", output));
+
+        assertSameDecoded(decode(encode(expected, "tiff")), decode(output.toByteArray()));
+    }
+
+    @Test
+    void writeByteRGB() throws IOException {
+        BufferedImage expected = TestImages.create(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Image image = load(TestImages.write(expected, "png", directory));
+        assertEquals(PixelFormat.Type.BYTE_RGB, image.getPixelReader().getPixelFormat().getType());
+
+        Path path = directory.resolve("streamed.tiff");
+        assertTrue(FXImageIO.writeStreaming(image, "tiff", path));
+
+        assertSameDecoded(decode(encode(expected, "tiff")), ImageIO.read(path.toFile()));
+    }
+
+    @Test
+    void canWriteWithoutOutput() {
+        ImageWriter tiffWriter = ImageIO.getImageWritersByFormatName("tiff").next();
+        assertTrue(StripStreamingWriter.canWrite(tiffWriter));
+        assertNull(tiffWriter.getOutput());
+
+        ImageWriter pngWriter = ImageIO.getImageWritersByFormatName("png").next();
+        assertFalse(StripStreamingWriter.canWrite(pngWriter));
+        assertNull(pngWriter.getOutput());
+    }
+
+    @Test
+    void writeFallbackWhenNotStreaming() throws IOException {
+        BufferedImage expected = TestImages.create(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Image image = load(TestImages.write(expected, "png", directory));
+
+        Path path = directory.resolve("written.png");
+        Files.write(path, new byte[] {1, 2, 3});
+        assertTrue(FXImageIO.writeStreaming(image, "png", path));
+
+        assertSameDecoded(expected, ImageIO.read(path.toFile()));
+    }
+}
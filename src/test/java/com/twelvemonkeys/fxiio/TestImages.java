@@ -0,0 +1,89 @@
+/*
+Copyright (c) 2014, Harald Kuhr
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice,
+  this list of conditions and the following disclaimer in the documentation
+  and/or other materials provided with the distribution.
+
+* Neither the name of FX-IIO nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.twelvemonkeys.fxiio;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test images, with a different color for each pixel, written to files for the readers.
+ */
+final class TestImages {
+    private TestImages() {}
+
+    static BufferedImage create(final int width, final int height, final int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xff000000 | (x * 7 & 0xff) << 16 | (y * 5 & 0xff) << 8 | (x + y) & 0xff);
+            }
+        }
+
+        return image;
+    }
+
+    static Path write(final BufferedImage image, final String formatName, final Path directory) throws IOException {
+        Path path = directory.resolve("test." + formatName);
+        assertTrue(ImageIO.write(image, formatName, path.toFile()), "No writer for " + formatName);
+
+        return path;
+    }
+
+    /**
+     * Asserts that the pixels equal the ARGB values of the expected image.
+     */
+    static void assertPixels(final BufferedImage expected, final int width, final int height, final ArgbSource actual) {
+        assertEquals(expected.getWidth(), width, "width");
+        assertEquals(expected.getHeight(), height, "height");
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int expectedArgb = expected.getRGB(x, y);
+                int actualArgb = actual.getArgb(x, y);
+
+                if (expectedArgb != actualArgb) {
+                    assertEquals(Integer.toHexString(expectedArgb), Integer.toHexString(actualArgb), "pixel " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface ArgbSource {
+        int getArgb(int x, int y);
+    }
+}